@@ -1,4 +1,5 @@
 import { NextResponse } from "next/server"
+import { fetchFromPlugin } from "@/lib/smp-stats"
 
 interface PlayerData {
   username: string
@@ -11,10 +12,54 @@ interface PlayerData {
   kit?: string
 }
 
+// Rows kept up to date by the SMPStats plugin. Null until it has built the
+// snapshot once, in which case the leaderboard is aggregated from the history.
+async function readSnapshot(connection: any, kit: string) {
+  try {
+    const [state] = await connection.execute(
+      "SELECT last_fight_player_id FROM leaderboard_state WHERE name = 'fight_players'",
+    )
+    if ((state as any[]).length === 0) {
+      return null
+    }
+  } catch (e) {
+    return null
+  }
+
+  const [rows] = await connection.execute(
+    `SELECT username, elo, wins, losses, win_streak
+    FROM leaderboard_snapshot
+    WHERE kit = ?
+    ORDER BY elo DESC, username`,
+    [kit],
+  )
+
+  return (rows as any[]).map((player, index) => {
+    const wins = Number(player.wins) || 0
+    const losses = Number(player.losses) || 0
+    const totalMatches = wins + losses
+    return {
+      username: player.username,
+      wins,
+      losses,
+      totalMatches,
+      winRate: totalMatches > 0 ? Math.round((wins / totalMatches) * 100) : 0,
+      elo: Number(player.elo),
+      winStreak: Number(player.win_streak) || 0,
+      rank: index + 1,
+    }
+  })
+}
+
 export async function GET(request: Request) {
   const { searchParams } = new URL(request.url)
   const kit = searchParams.get("kit") || "all"
 
+  const fromPlugin = await fetchFromPlugin(`/leaderboard?kit=${encodeURIComponent(kit)}`)
+  if (fromPlugin) {
+    return NextResponse.json(fromPlugin)
+  }
+
   try {
     const mysql = await import("mysql2/promise")
 
@@ -27,6 +72,12 @@ export async function GET(request: Request) {
         database: process.env.MYSQL_DATABASE,
       })
 
+      const snapshot = await readSnapshot(connection, kit)
+      if (snapshot) {
+        await connection.end()
+        return NextResponse.json(snapshot)
+      }
+
       let query: string
       let params: any[] = []
 
@@ -21,7 +21,7 @@ export async function POST(request: Request) {
     const connection = await getConnection()
 
     const [permissionRows] = await connection.execute(
-      `SELECT can_customize_namecard FROM player_stats WHERE LOWER(username) = LOWER(?)`,
+      `SELECT can_customize_namecard FROM player_stats WHERE username = ?`,
       [username],
     )
 
@@ -38,7 +38,7 @@ export async function POST(request: Request) {
       return NextResponse.json({ error: "Invalid URL format" }, { status: 400 })
     }
 
-    await connection.execute(`UPDATE player_stats SET custom_namecard = ? WHERE LOWER(username) = LOWER(?)`, [
+    await connection.execute(`UPDATE player_stats SET custom_namecard = ? WHERE username = ?`, [
       gifUrl,
       username,
     ])
@@ -86,7 +86,7 @@ export async function DELETE(request: Request) {
     const connection = await getConnection()
 
     const [permissionRows] = await connection.execute(
-      `SELECT can_customize_namecard FROM player_stats WHERE LOWER(username) = LOWER(?)`,
+      `SELECT can_customize_namecard FROM player_stats WHERE username = ?`,
       [username],
     )
 
@@ -95,7 +95,7 @@ export async function DELETE(request: Request) {
       return NextResponse.json({ error: "You don't have permission to customize namecards" }, { status: 403 })
     }
 
-    await connection.execute(`UPDATE player_stats SET custom_namecard = NULL WHERE LOWER(username) = LOWER(?)`, [
+    await connection.execute(`UPDATE player_stats SET custom_namecard = NULL WHERE username = ?`, [
       username,
     ])
 
@@ -1,4 +1,5 @@
 import { NextResponse } from "next/server"
+import { fetchFromPlugin } from "@/lib/smp-stats"
 
 export async function GET(request: Request) {
   const { searchParams } = new URL(request.url)
@@ -8,6 +9,11 @@ export async function GET(request: Request) {
     return NextResponse.json({ error: "Username required" }, { status: 400 })
   }
 
+  const fromPlugin = await fetchFromPlugin(`/player-details?username=${encodeURIComponent(username)}`)
+  if (fromPlugin) {
+    return NextResponse.json(fromPlugin)
+  }
+
   try {
     const mysql = await import("mysql2/promise")
 
@@ -21,7 +21,7 @@ export async function POST(request: Request) {
     const connection = await getConnection()
 
     const [rows] = await connection.execute(
-      `SELECT is_admin, can_customize_namecard FROM player_stats WHERE LOWER(username) = LOWER(?)`,
+      `SELECT is_admin, can_customize_namecard FROM player_stats WHERE username = ?`,
       [username],
     )
 
@@ -0,0 +1,50 @@
+// Reads from the SMPStats plugin's HTTP endpoint (http.enabled in its config),
+// which serves leaderboards and player stats from memory instead of MySQL.
+// Set SMP_STATS_URL to use it; without it, or if it fails, callers fall back
+// to querying the database themselves.
+
+// Least recently used first, since a Map keeps insertion order. Player paths
+// are unbounded (one per name looked up), so the oldest entries are dropped.
+const MAX_CACHED = 500
+const cached = new Map<string, { etag: string; body: unknown }>()
+
+function remember(path: string, entry: { etag: string; body: unknown }) {
+  cached.delete(path)
+  cached.set(path, entry)
+  if (cached.size > MAX_CACHED) {
+    cached.delete(cached.keys().next().value as string)
+  }
+}
+
+export async function fetchFromPlugin(path: string): Promise<unknown | null> {
+  const base = process.env.SMP_STATS_URL
+  if (!base) {
+    return null
+  }
+
+  const previous = cached.get(path)
+  try {
+    const response = await fetch(base.replace(/\/$/, "") + path, {
+      cache: "no-store",
+      headers: previous ? { "If-None-Match": previous.etag } : {},
+      signal: AbortSignal.timeout(2000),
+    })
+
+    if (response.status === 304 && previous) {
+      remember(path, previous)
+      return previous.body
+    }
+    if (!response.ok) {
+      return null
+    }
+
+    const body = await response.json()
+    const etag = response.headers.get("etag")
+    if (etag) {
+      remember(path, { etag, body })
+    }
+    return body
+  } catch (e) {
+    return null
+  }
+}
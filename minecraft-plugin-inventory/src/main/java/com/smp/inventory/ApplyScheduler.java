@@ -0,0 +1,125 @@
+package com.smp.inventory;
+
+import com.smp.common.metrics.LatencyHistogram;
+import com.smp.common.metrics.Metrics;
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Main-thread queue for inventory applies, drained a few at a time so that a
+ * crowd changing world group together does not apply every inventory in the
+ * same tick.
+ *
+ * Each tick runs queued work in arrival order until the tick budget is used
+ * up; at least one item runs per tick so the queue always moves. A player has
+ * at most one queued item: submitting again replaces the work but keeps the
+ * player's place in line. Main thread only.
+ */
+final class ApplyScheduler {
+
+    private record Work(Runnable task, long queuedAt) {
+    }
+
+    private final Plugin plugin;
+    private final long budgetNanos;
+    private final Map<UUID, Work> queue = new LinkedHashMap<>();
+    private BukkitTask task;
+
+    private long applied;
+    private long ticksOverBudget;
+    private int maxDepth;
+    private LatencyHistogram waitLatency;
+    private LatencyHistogram applyLatency;
+    private LatencyHistogram tickLatency;
+
+    ApplyScheduler(Plugin plugin, long budgetMicros) {
+        this.plugin = plugin;
+        this.budgetNanos = Math.max(1, budgetMicros) * 1000;
+    }
+
+    void start() {
+        task = Bukkit.getScheduler().runTaskTimer(plugin, this::drain, 1L, 1L);
+    }
+
+    /** Queue work for the player, replacing anything still queued for them. */
+    void submit(UUID uuid, Runnable work) {
+        Work previous = queue.get(uuid);
+        queue.put(uuid, new Work(work, previous != null ? previous.queuedAt() : System.nanoTime()));
+        maxDepth = Math.max(maxDepth, queue.size());
+    }
+
+    /** Drop the player's queued work, e.g. when they leave. */
+    void cancel(UUID uuid) {
+        queue.remove(uuid);
+    }
+
+    int depth() {
+        return queue.size();
+    }
+
+    /** Report per-apply and per-tick time, queue wait and depth. */
+    void instrument(Metrics metrics) {
+        metrics.gauge("queue_depth", "inventory_apply", queue::size);
+        waitLatency = metrics.timer("queue_wait", "inventory_apply");
+        applyLatency = metrics.timer("apply", "inventory");
+        tickLatency = metrics.timer("tick", "inventory_apply");
+    }
+
+    /** Stop draining; anything still queued is discarded. */
+    void stop() {
+        if (task != null) {
+            task.cancel();
+        }
+        queue.clear();
+    }
+
+    List<String> describeMetrics() {
+        List<String> lines = new ArrayList<>();
+        lines.add("Apply queue: " + queue.size() + " waiting (max " + maxDepth + "), " + applied + " applied, "
+                + ticksOverBudget + " ticks over the " + budgetNanos / 1000 + "us budget");
+        return lines;
+    }
+
+    private void drain() {
+        if (queue.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        long now = start;
+        do {
+            // A fresh iterator each time, since the work may submit or cancel
+            Iterator<Work> it = queue.values().iterator();
+            Work work = it.next();
+            it.remove();
+            if (waitLatency != null) {
+                waitLatency.record(now - work.queuedAt());
+            }
+            try {
+                work.task().run();
+            } catch (RuntimeException e) {
+                plugin.getLogger().severe("Inventory apply failed: " + e.getMessage());
+                e.printStackTrace();
+            }
+            long finished = System.nanoTime();
+            if (applyLatency != null) {
+                applyLatency.record(finished - now);
+            }
+            now = finished;
+            applied++;
+        } while (!queue.isEmpty() && now - start < budgetNanos);
+        if (now - start > budgetNanos) {
+            ticksOverBudget++;
+        }
+        if (tickLatency != null) {
+            tickLatency.record(now - start);
+        }
+    }
+}
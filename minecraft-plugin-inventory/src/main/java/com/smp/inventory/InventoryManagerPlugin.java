@@ -1,17 +1,42 @@
 package com.smp.inventory;
 
 import org.bukkit.Bukkit;
+import org.bukkit.ChatColor;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
 import org.bukkit.event.player.PlayerChangedWorldEvent;
 import org.bukkit.event.player.PlayerJoinEvent;
-import org.bukkit.inventory.ItemStack;
+import org.bukkit.event.player.PlayerQuitEvent;
 import org.bukkit.plugin.java.JavaPlugin;
-import org.bukkit.potion.PotionEffect;
+
+import com.smp.common.inventory.InventoryBackend;
+import com.smp.common.inventory.InventoryBackends;
+import com.smp.common.inventory.InventoryCodec;
+import com.smp.common.inventory.InventoryConverter;
+import com.smp.common.inventory.InventoryHistory;
+import com.smp.common.inventory.InventoryIO;
+import com.smp.common.inventory.InventoryPrefetch;
+import com.smp.common.inventory.InventorySnapshot;
+import com.smp.common.inventory.JdbcInventoryBackend;
+import com.smp.common.inventory.ShutdownFlush;
+import com.smp.common.metrics.LatencyHistogram;
+import com.smp.common.metrics.Metrics;
 
 import java.io.*;
+import java.net.InetAddress;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class InventoryManagerPlugin extends JavaPlugin implements Listener {
     
@@ -28,30 +53,419 @@ public class InventoryManagerPlugin extends JavaPlugin implements Listener {
     // LobbyPractice world (Group 2) - separate inventory
     private static final String LOBBY_PRACTICE = "LobbyPractice";
     
+    private static final List<String> GROUPS = Arrays.asList("connected", "lobbypractice");
+    
+    private static final Pattern AGE_PART = Pattern.compile("(\\d{1,6})([smhd])");
+    private static final DateTimeFormatter HISTORY_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
+        .withZone(ZoneId.systemDefault());
+    
     private File dataFolder;
+    private File legacyFolder;
+    private InventoryCodec codec;
+    private InventoryBackend store;
+    private InventoryIO io;
+    private InventoryPrefetch<Map<String, InventorySnapshot>> prefetch;
+    private long prefetchWaitMillis;
+    private ApplyScheduler applyScheduler;
+    // Null unless sync.enabled; then every read and save goes through it
+    private InventorySync sync;
+    private long leaseWaitMillis;
+    // Null if history.enabled is off
+    private InventoryHistory history;
+    private final PlayerFreeze freeze = new PlayerFreeze();
+    private Metrics metrics;
+    private LatencyHistogram preLoginLatency;
+    private LatencyHistogram joinLatency;
+    private LatencyHistogram quitLatency;
+    private LatencyHistogram worldChangeLatency;
+    private LatencyHistogram saveLatency;
+    private LatencyHistogram loadLatency;
+    private LongAdder saveErrors;
+    private LongAdder loadErrors;
+    
+    // Group whose inventory each player is holding; absent while a load is in flight
+    private final Map<UUID, String> heldGroups = new HashMap<>();
+    // Latest load issued per player, so a superseded load is never applied
+    private final Map<UUID, Long> pendingLoads = new HashMap<>();
+    private long loadCounter;
     
     @Override
     public void onEnable() {
+        saveDefaultConfig();
+        
+        metrics = new Metrics("InventoryManager", getLogger());
+        preLoginLatency = metrics.timer("handler", "onPreLogin");
+        joinLatency = metrics.timer("handler", "onPlayerJoin");
+        quitLatency = metrics.timer("handler", "onPlayerQuit");
+        worldChangeLatency = metrics.timer("handler", "onWorldChange");
+        // Encode or decode plus the store call, on the I/O pool
+        saveLatency = metrics.timer("io", "inventory_save");
+        loadLatency = metrics.timer("io", "inventory_load");
+        saveErrors = metrics.counter("errors", "inventory_save");
+        loadErrors = metrics.counter("errors", "inventory_load");
+        
         dataFolder = new File(getDataFolder(), "inventories");
         if (!dataFolder.exists()) {
             dataFolder.mkdirs();
         }
+        legacyFolder = new File(dataFolder, "legacy");
+        codec = new InventoryCodec(getConfig().getInt("storage.compression-threshold", 512));
+        try {
+            store = InventoryBackends.open(getConfig().getConfigurationSection("storage"), getDataFolder().toPath(), getLogger());
+            store.instrument(metrics);
+            InventoryConverter.Result imported = InventoryConverter.convert(dataFolder.toPath(), store, codec,
+                legacyFolder.toPath(), getConfig().getInt("storage.import-threads", 4), getLogger());
+            if (imported.files() > 0 || imported.failed() > 0) {
+                getLogger().info(imported.describe());
+            }
+            if (getConfig().getBoolean("history.enabled", true)) {
+                history = new InventoryHistory(
+                    new File(dataFolder, "history").toPath(),
+                    codec,
+                    new InventoryHistory.Retention(
+                        getConfig().getLong("history.keep-all-minutes", 60) * 60_000L,
+                        getConfig().getLong("history.hourly-hours", 48) * 3_600_000L,
+                        getConfig().getLong("history.daily-days", 30) * 86_400_000L,
+                        getConfig().getInt("history.max-per-group", 500)
+                    ),
+                    getConfig().getLong("history.prune-interval-minutes", 30) * 60_000L,
+                    getLogger()
+                );
+                history.instrument(metrics);
+            }
+            if (getConfig().getBoolean("sync.enabled", false)) {
+                if (store instanceof JdbcInventoryBackend shared) {
+                    String node = getConfig().getString("sync.node-id", "");
+                    if (node.isEmpty()) {
+                        node = defaultNodeId();
+                    }
+                    sync = new InventorySync(this, shared, node, getConfig().getLong("sync.lease-seconds", 10) * 1000);
+                    leaseWaitMillis = getConfig().getLong("sync.lease-wait-ms", 5000);
+                    getLogger().info("Sharing inventories with other servers as node " + node);
+                } else {
+                    getLogger().warning("sync.enabled needs a shared sqlite or mysql storage backend; sync is off");
+                }
+            }
+            // After sync is set up, so a replay cannot overwrite a newer save from another server
+            ShutdownFlush.recover(new File(dataFolder, "recovery").toPath(), flushWriter(), getLogger());
+        } catch (IOException e) {
+            getLogger().severe("Failed to open inventory store: " + e.getMessage());
+            e.printStackTrace();
+            // onDisable stops at io == null, so release what was opened here
+            closeQuietly(history, "inventory history");
+            closeQuietly(store, "inventory store");
+            history = null;
+            sync = null;
+            getServer().getPluginManager().disablePlugin(this);
+            return;
+        }
+        io = new InventoryIO("InventoryManager", getConfig().getInt("storage.io-threads", 2), getLogger());
+        prefetch = new InventoryPrefetch<>(io, getConfig().getLong("storage.prefetch-ttl-seconds", 60) * 1000);
+        prefetchWaitMillis = getConfig().getLong("storage.prefetch-wait-ms", 100);
+        io.instrument(metrics);
+        applyScheduler = new ApplyScheduler(this, (long) (getConfig().getDouble("apply.tick-budget-ms", 2.0) * 1000));
+        applyScheduler.instrument(metrics);
+        metrics.gauge("frozen_players", "inventory_apply", freeze::size);
+        metrics.start(
+            getConfig().getBoolean("metrics.export-enabled", true)
+                ? getDataFolder().toPath().resolve(getConfig().getString("metrics.export-file", "metrics.prom"))
+                : null,
+            getConfig().getLong("metrics.interval-seconds", 15) * 1000L
+        );
         
         Bukkit.getPluginManager().registerEvents(this, this);
+        Bukkit.getPluginManager().registerEvents(freeze, this);
+        applyScheduler.start();
+        if (sync != null) {
+            sync.start();
+        }
         getLogger().info("Inventory Manager enabled - Managing 6 connected worlds + LobbyPractice");
     }
     
     @Override
     public void onDisable() {
+        if (io == null) {
+            return; // Store failed to open
+        }
+        applyScheduler.stop();
+        
+        // Capture everyone in one pass; encoding and the write happen off this thread
+        Map<UUID, Map<String, InventorySnapshot>> captured = new HashMap<>();
         for (Player player : Bukkit.getOnlinePlayers()) {
-            String worldName = player.getWorld().getName();
-            if (isConnectedWorld(worldName) || isLobbyPractice(worldName)) {
-                savePlayerData(player, getInventoryGroup(worldName));
+            String group = getInventoryGroup(player.getWorld().getName());
+            if (group != null && group.equals(heldGroups.get(player.getUniqueId()))) {
+                captured.put(player.getUniqueId(), Map.of(group, InventorySnapshot.capture(player, true)));
             }
         }
+        ShutdownFlush.Result result = ShutdownFlush.flush(
+            captured,
+            codec,
+            flushWriter(),
+            io,
+            new File(dataFolder, "recovery").toPath(),
+            getConfig().getInt("storage.shutdown-threads", 4),
+            getConfig().getLong("storage.shutdown-timeout-ms", 10000),
+            getLogger()
+        );
+        if (result.lost() > 0) {
+            getLogger().severe(result.describe());
+        } else {
+            getLogger().info(result.describe());
+        }
+        if (sync != null) {
+            // Only now that everyone's inventory is written can other servers take them
+            sync.describeMetrics().forEach(getLogger()::info);
+            sync.stop();
+        }
+        if (history != null) {
+            captured.forEach((uuid, groups) -> groups.forEach((group, snapshot) -> history.record(uuid, group, snapshot)));
+            try {
+                history.close();
+            } catch (IOException e) {
+                getLogger().warning("Failed to close inventory history: " + e.getMessage());
+            }
+            history.describeMetrics().forEach(getLogger()::info);
+        }
+        prefetch.describeMetrics().forEach(getLogger()::info);
+        store.describeMetrics().forEach(getLogger()::info);
+        try {
+            store.close();
+        } catch (IOException e) {
+            getLogger().warning("Failed to close inventory store: " + e.getMessage());
+        }
+        metrics.close();
         getLogger().info("Inventory Manager disabled");
     }
     
+    private void closeQuietly(Closeable closeable, String what) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            getLogger().warning("Failed to close " + what + ": " + e.getMessage());
+        }
+    }
+    
+    private ShutdownFlush.Writer flushWriter() {
+        return sync != null ? sync.flushWriter() : ShutdownFlush.writer(store);
+    }
+    
+    @Override
+    public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
+        if (command.getName().equalsIgnoreCase("invmetrics")) {
+            if (io == null) {
+                sender.sendMessage(ChatColor.RED + "The inventory store failed to open, see the console.");
+                return true;
+            }
+            sender.sendMessage(ChatColor.GOLD + "Inventory Manager latency and counters:");
+            for (String line : metrics.describe()) {
+                sender.sendMessage(ChatColor.GRAY + line);
+            }
+            for (String line : applyScheduler.describeMetrics()) {
+                sender.sendMessage(ChatColor.GRAY + line);
+            }
+            for (String line : prefetch.describeMetrics()) {
+                sender.sendMessage(ChatColor.GRAY + line);
+            }
+            for (String line : store.describeMetrics()) {
+                sender.sendMessage(ChatColor.GRAY + line);
+            }
+            if (sync != null) {
+                for (String line : sync.describeMetrics()) {
+                    sender.sendMessage(ChatColor.GRAY + line);
+                }
+            }
+            if (history != null) {
+                for (String line : history.describeMetrics()) {
+                    sender.sendMessage(ChatColor.GRAY + line);
+                }
+            }
+            return true;
+        }
+        if (command.getName().equalsIgnoreCase("invhistory")) {
+            return showHistory(sender, args);
+        }
+        if (command.getName().equalsIgnoreCase("invrollback")) {
+            return rollback(sender, args);
+        }
+        return false;
+    }
+    
+    /** /invhistory &lt;player&gt; &lt;group&gt; [count] */
+    private boolean showHistory(CommandSender sender, String[] args) {
+        if (args.length < 2 || args.length > 3) {
+            return false;
+        }
+        if (history == null) {
+            sender.sendMessage(ChatColor.RED + "Inventory history is disabled in the config.");
+            return true;
+        }
+        UUID uuid = resolvePlayer(sender, args[0]);
+        String group = resolveGroup(sender, args[1]);
+        if (uuid == null || group == null) {
+            return true;
+        }
+        int count = 10;
+        if (args.length > 2) {
+            try {
+                count = Math.max(1, Integer.parseInt(args[2]));
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        
+        List<InventoryHistory.Entry> entries = history.list(uuid, group, count);
+        if (entries.isEmpty()) {
+            sender.sendMessage(ChatColor.YELLOW + "No " + group + " inventory history for " + args[0] + ".");
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        sender.sendMessage(ChatColor.GOLD + "Saved " + group + " inventories of " + args[0] + ", newest first:");
+        for (InventoryHistory.Entry entry : entries) {
+            // Equal ids are identical inventories
+            sender.sendMessage(ChatColor.GRAY + HISTORY_TIME.format(Instant.ofEpochMilli(entry.time()))
+                + " (" + formatAge(now - entry.time()) + " ago) " + ChatColor.DARK_GRAY + entry.id());
+        }
+        sender.sendMessage(ChatColor.GRAY + "Roll back with /invrollback " + args[0] + " " + group + " <age, e.g. 1h30m>");
+        return true;
+    }
+    
+    /**
+     * /invrollback &lt;player&gt; &lt;group&gt; &lt;age&gt;: restore the inventory the player had
+     * in the group that long ago. Applied at once if they are holding that
+     * group here, otherwise written to the store for their next load.
+     */
+    private boolean rollback(CommandSender sender, String[] args) {
+        if (args.length != 3) {
+            return false;
+        }
+        if (history == null) {
+            sender.sendMessage(ChatColor.RED + "Inventory history is disabled in the config.");
+            return true;
+        }
+        UUID uuid = resolvePlayer(sender, args[0]);
+        String group = resolveGroup(sender, args[1]);
+        long age = parseAge(args[2]);
+        if (uuid == null || group == null) {
+            return true;
+        }
+        if (age < 0) {
+            sender.sendMessage(ChatColor.RED + "Give the age as e.g. 30m, 2h or 1d12h.");
+            return true;
+        }
+        
+        String name = args[0];
+        long at = System.currentTimeMillis() - age;
+        io.submit(uuid, () -> history.restore(uuid, group, at)).whenComplete((restored, error) ->
+            Bukkit.getScheduler().runTask(this, () -> finishRollback(sender, name, uuid, group, restored, error)));
+        return true;
+    }
+    
+    private void finishRollback(CommandSender sender, String name, UUID uuid, String group,
+                                InventoryHistory.Restored restored, Throwable error) {
+        if (error != null) {
+            sender.sendMessage(ChatColor.RED + "Failed to read the inventory history: " + error.getMessage());
+            return;
+        }
+        if (restored == null) {
+            sender.sendMessage(ChatColor.YELLOW + "No " + group + " inventory of " + name + " was saved by then.");
+            return;
+        }
+        String when = HISTORY_TIME.format(Instant.ofEpochMilli(restored.time()));
+        Player player = Bukkit.getPlayer(uuid);
+        if (player != null && group.equals(getInventoryGroup(player.getWorld().getName()))) {
+            if (!group.equals(heldGroups.get(uuid))) {
+                sender.sendMessage(ChatColor.RED + name + "'s inventory is still loading; try again in a moment.");
+                return;
+            }
+            restored.snapshot().apply(player);
+            // Also records the rollback itself in the history
+            savePlayerData(player, group);
+            player.sendMessage(ChatColor.YELLOW + "Your inventory was restored to how it was at " + when + ".");
+            sender.sendMessage(ChatColor.GREEN + "Restored " + name + "'s " + group + " inventory from " + when + ".");
+            return;
+        }
+        
+        history.record(uuid, group, restored.snapshot());
+        io.submit(uuid, () -> {
+            byte[] payload = codec.encode(restored.snapshot());
+            if (sync != null) {
+                return sync.overwrite(uuid, group, payload);
+            }
+            store.put(uuid, group, payload);
+            return true;
+        }).whenComplete((written, writeError) -> Bukkit.getScheduler().runTask(this, () -> {
+            if (writeError != null) {
+                sender.sendMessage(ChatColor.RED + "Failed to write the restored inventory: " + writeError.getMessage());
+            } else if (!written) {
+                sender.sendMessage(ChatColor.RED + "Another server saved " + name + "'s " + group
+                    + " inventory at the same time; run the rollback where they are playing.");
+            } else {
+                sender.sendMessage(ChatColor.GREEN + "Restored " + name + "'s " + group + " inventory from " + when
+                    + "; it is applied when they next enter the group.");
+            }
+        }));
+    }
+    
+    /** An online player's name, or any player's UUID. */
+    private UUID resolvePlayer(CommandSender sender, String arg) {
+        Player online = Bukkit.getPlayerExact(arg);
+        if (online != null) {
+            return online.getUniqueId();
+        }
+        try {
+            return UUID.fromString(arg);
+        } catch (IllegalArgumentException e) {
+            sender.sendMessage(ChatColor.RED + arg + " is not online; give an offline player by UUID.");
+            return null;
+        }
+    }
+    
+    private String resolveGroup(CommandSender sender, String arg) {
+        String group = arg.toLowerCase(Locale.ROOT);
+        if (!GROUPS.contains(group)) {
+            sender.sendMessage(ChatColor.RED + "Unknown group " + arg + "; use one of " + String.join(", ", GROUPS) + ".");
+            return null;
+        }
+        return group;
+    }
+    
+    /** @return milliseconds for an age like 45m or 1d12h, or -1 if it does not parse */
+    private static long parseAge(String text) {
+        String age = text.toLowerCase(Locale.ROOT);
+        Matcher matcher = AGE_PART.matcher(age);
+        long millis = 0;
+        int position = 0;
+        while (position < age.length()) {
+            matcher.region(position, age.length());
+            if (!matcher.lookingAt()) {
+                return -1;
+            }
+            long amount = Long.parseLong(matcher.group(1));
+            millis += switch (matcher.group(2)) {
+                case "s" -> TimeUnit.SECONDS.toMillis(amount);
+                case "m" -> TimeUnit.MINUTES.toMillis(amount);
+                case "h" -> TimeUnit.HOURS.toMillis(amount);
+                default -> TimeUnit.DAYS.toMillis(amount);
+            };
+            position = matcher.end();
+        }
+        return position == 0 ? -1 : millis;
+    }
+    
+    private static String formatAge(long millis) {
+        long minutes = TimeUnit.MILLISECONDS.toMinutes(millis);
+        if (minutes < 60) {
+            return minutes + "m";
+        }
+        if (minutes < 24 * 60) {
+            return minutes / 60 + "h" + (minutes % 60 > 0 ? minutes % 60 + "m" : "");
+        }
+        return minutes / (24 * 60) + "d" + (minutes / 60 % 24 > 0 ? minutes / 60 % 24 + "h" : "");
+    }
+    
     private boolean isConnectedWorld(String worldName) {
         return CONNECTED_WORLDS.contains(worldName);
     }
@@ -69,19 +483,98 @@ public class InventoryManagerPlugin extends JavaPlugin implements Listener {
         return null; // Not managed
     }
     
+    private String defaultNodeId() {
+        try {
+            return InetAddress.getLocalHost().getHostName() + ":" + getServer().getPort();
+        } catch (IOException e) {
+            return "server-" + UUID.randomUUID();
+        }
+    }
+    
+    /**
+     * With sync on, hold the login until the server the player came from has
+     * saved them and let go of their lease, so the prefetch below reads
+     * their latest inventories. Runs before it on the same async thread.
+     */
+    @EventHandler(priority = EventPriority.HIGH)
+    public void onPreLoginLease(AsyncPlayerPreLoginEvent event) {
+        if (sync == null || event.getLoginResult() != AsyncPlayerPreLoginEvent.Result.ALLOWED) {
+            return;
+        }
+        UUID uuid = event.getUniqueId();
+        try {
+            if (sync.acquire(uuid, leaseWaitMillis)) {
+                return;
+            }
+            getLogger().warning("Turned away " + event.getName() + ": another server still holds their inventory lease");
+        } catch (IOException e) {
+            getLogger().warning("Failed to take the inventory lease for " + event.getName() + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        event.disallow(AsyncPlayerPreLoginEvent.Result.KICK_OTHER,
+            ChatColor.RED + "Your inventory is still being saved on another server. Please rejoin in a moment.");
+    }
+    
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPreLogin(AsyncPlayerPreLoginEvent event) {
+        if (event.getLoginResult() != AsyncPlayerPreLoginEvent.Result.ALLOWED) {
+            return;
+        }
+        // Read every group now so the join only has to apply decoded data
+        long start = System.nanoTime();
+        UUID uuid = event.getUniqueId();
+        prefetch.prefetch(uuid, () -> readAllGroups(uuid));
+        preLoginLatency.recordSince(start);
+    }
+    
     @EventHandler
     public void onPlayerJoin(PlayerJoinEvent event) {
+        long start = System.nanoTime();
         Player player = event.getPlayer();
-        String worldName = player.getWorld().getName();
+        UUID uuid = player.getUniqueId();
+        String group = getInventoryGroup(player.getWorld().getName());
+        
+        Map<String, InventorySnapshot> groups;
+        try {
+            groups = prefetch.take(uuid, prefetchWaitMillis, () -> readAllGroups(uuid));
+        } catch (Exception e) {
+            loadErrors.increment();
+            getLogger().warning("Failed to load data for " + player.getName() + ": " + e.getMessage());
+            return;
+        } finally {
+            // Includes any wait for the prefetch or a synchronous read
+            joinLatency.recordSince(start);
+        }
         
-        String group = getInventoryGroup(worldName);
         if (group != null) {
-            loadPlayerData(player, group);
+            InventorySnapshot snapshot = groups.get(group);
+            if (snapshot != null) {
+                snapshot.apply(player);
+            }
+            heldGroups.put(uuid, group);
+        }
+    }
+    
+    @EventHandler
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        long start = System.nanoTime();
+        Player player = event.getPlayer();
+        UUID uuid = player.getUniqueId();
+        String held = heldGroups.remove(uuid);
+        if (sync != null) {
+            saveAndRelease(player, held);
         }
+        pendingLoads.remove(uuid);
+        prefetch.invalidate(uuid);
+        applyScheduler.cancel(uuid);
+        freeze.release(uuid);
+        quitLatency.recordSince(start);
     }
     
     @EventHandler
     public void onWorldChange(PlayerChangedWorldEvent event) {
+        long start = System.nanoTime();
         Player player = event.getPlayer();
         String fromWorld = event.getFrom().getName();
         String toWorld = player.getWorld().getName();
@@ -89,118 +582,133 @@ public class InventoryManagerPlugin extends JavaPlugin implements Listener {
         String fromGroup = getInventoryGroup(fromWorld);
         String toGroup = getInventoryGroup(toWorld);
         
-        // Save inventory when leaving a managed world group
+        // Save inventory when leaving a managed world group, unless the
+        // player left before that group's inventory finished loading
         if (fromGroup != null && !fromGroup.equals(toGroup)) {
-            savePlayerData(player, fromGroup);
+            if (fromGroup.equals(heldGroups.remove(player.getUniqueId()))) {
+                savePlayerData(player, fromGroup);
+            }
         }
         
         // Load inventory when entering a managed world group
         if (toGroup != null && !toGroup.equals(fromGroup)) {
             loadPlayerData(player, toGroup);
         }
+        worldChangeLatency.recordSince(start);
     }
     
+    /**
+     * Capture the inventory on the main thread and write it on the I/O pool.
+     */
     private void savePlayerData(Player player, String group) {
-        try {
-            File playerFile = new File(dataFolder, player.getUniqueId() + "_" + group + ".yml");
-            
-            Map<String, Object> data = new HashMap<>();
-            data.put("inventory", serializeInventory(player.getInventory().getContents()));
-            data.put("armor", serializeInventory(player.getInventory().getArmorContents()));
-            data.put("offhand", serializeItem(player.getInventory().getItemInOffHand()));
-            data.put("health", player.getHealth());
-            data.put("food", player.getFoodLevel());
-            data.put("saturation", player.getSaturation());
-            data.put("exp", player.getExp());
-            data.put("level", player.getLevel());
-            data.put("gamemode", player.getGameMode().name());
-            data.put("effects", serializeEffects(player.getActivePotionEffects()));
-            
-            try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(playerFile))) {
-                oos.writeObject(data);
-            }
-        } catch (IOException e) {
-            getLogger().warning("Failed to save data for " + player.getName() + ": " + e.getMessage());
+        UUID uuid = player.getUniqueId();
+        String name = player.getName();
+        InventorySnapshot snapshot = InventorySnapshot.capture(player, true);
+        if (history != null) {
+            history.record(uuid, group, snapshot);
         }
+        
+        io.submit(uuid, () -> {
+            long start = System.nanoTime();
+            byte[] payload = codec.encode(snapshot);
+            if (sync != null) {
+                sync.save(uuid, group, payload);
+            } else {
+                store.put(uuid, group, payload);
+            }
+            saveLatency.recordSince(start);
+            return null;
+        }).exceptionally(e -> {
+            saveErrors.increment();
+            getLogger().warning("Failed to save data for " + name + ": " + e.getMessage());
+            return null;
+        });
     }
     
-    @SuppressWarnings("unchecked")
-    private void loadPlayerData(Player player, String group) {
-        File playerFile = new File(dataFolder, player.getUniqueId() + "_" + group + ".yml");
-        
-        if (!playerFile.exists()) {
-            return; // No saved data, keep current inventory
+    /**
+     * Save the group the player is leaving with, then give up their lease so
+     * the server they are moving to can load it. Both run as one task on the
+     * I/O pool, behind any save already queued for them.
+     */
+    private void saveAndRelease(Player player, String held) {
+        UUID uuid = player.getUniqueId();
+        String name = player.getName();
+        InventorySnapshot snapshot = held != null ? InventorySnapshot.capture(player, true) : null;
+        if (snapshot != null && history != null) {
+            history.record(uuid, held, snapshot);
         }
         
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(playerFile))) {
-            Map<String, Object> data = (Map<String, Object>) ois.readObject();
-            
-            player.getInventory().setContents(deserializeInventory((List<Map<String, Object>>) data.get("inventory")));
-            player.getInventory().setArmorContents(deserializeInventory((List<Map<String, Object>>) data.get("armor")));
-            player.getInventory().setItemInOffHand(deserializeItem((Map<String, Object>) data.get("offhand")));
-            
-            player.setHealth((Double) data.get("health"));
-            player.setFoodLevel((Integer) data.get("food"));
-            player.setSaturation((Float) data.get("saturation"));
-            player.setExp((Float) data.get("exp"));
-            player.setLevel((Integer) data.get("level"));
-            player.setGameMode(org.bukkit.GameMode.valueOf((String) data.get("gamemode")));
-            
-            // Clear existing effects and apply saved ones
-            for (PotionEffect effect : player.getActivePotionEffects()) {
-                player.removePotionEffect(effect.getType());
-            }
-            Collection<PotionEffect> effects = deserializeEffects((List<Map<String, Object>>) data.get("effects"));
-            player.addPotionEffects(effects);
-            
-        } catch (IOException | ClassNotFoundException e) {
-            getLogger().warning("Failed to load data for " + player.getName() + ": " + e.getMessage());
-        }
+        io.submit(uuid, () -> {
+            if (snapshot != null) {
+                long start = System.nanoTime();
+                sync.save(uuid, held, codec.encode(snapshot));
+                saveLatency.recordSince(start);
+            }
+            sync.release(uuid);
+            return null;
+        }).exceptionally(e -> {
+            saveErrors.increment();
+            // The lease expires on its own, so the next server only waits a little longer
+            getLogger().warning("Failed to save data for " + name + " on quit: " + e.getMessage());
+            return null;
+        });
     }
     
-    private List<Map<String, Object>> serializeInventory(ItemStack[] items) {
-        List<Map<String, Object>> serialized = new ArrayList<>();
-        for (ItemStack item : items) {
-            serialized.add(serializeItem(item));
-        }
-        return serialized;
+    /**
+     * Read the group's inventory on the I/O pool, queued behind any save for
+     * the same player, and apply it back on the main thread through the
+     * apply scheduler. The player stays frozen until then.
+     */
+    private void loadPlayerData(Player player, String group) {
+        UUID uuid = player.getUniqueId();
+        long load = ++loadCounter;
+        heldGroups.remove(uuid);
+        pendingLoads.put(uuid, load);
+        freeze.freeze(uuid);
+        
+        io.submit(uuid, () -> readPlayerData(uuid, group)).whenComplete((snapshot, error) ->
+            Bukkit.getScheduler().runTask(this, () ->
+                applyScheduler.submit(uuid, () -> finishLoad(player, group, load, snapshot, error))));
     }
     
-    private Map<String, Object> serializeItem(ItemStack item) {
-        if (item == null) {
-            return null;
+    private void finishLoad(Player player, String group, long load, InventorySnapshot snapshot, Throwable error) {
+        UUID uuid = player.getUniqueId();
+        Long latest = pendingLoads.get(uuid);
+        if (latest == null || latest != load || !player.isOnline()) {
+            return; // Superseded by a later world change, or the player left
         }
-        return item.serialize();
-    }
-    
-    private ItemStack[] deserializeInventory(List<Map<String, Object>> data) {
-        ItemStack[] items = new ItemStack[data.size()];
-        for (int i = 0; i < data.size(); i++) {
-            items[i] = deserializeItem(data.get(i));
+        pendingLoads.remove(uuid);
+        freeze.release(uuid);
+        if (error != null) {
+            loadErrors.increment();
+            // Leave the group unheld so the unreadable file is not overwritten
+            getLogger().warning("Failed to load data for " + player.getName() + ": " + error.getMessage());
+            return;
         }
-        return items;
-    }
-    
-    private ItemStack deserializeItem(Map<String, Object> data) {
-        if (data == null) {
-            return null;
+        if (snapshot != null) {
+            snapshot.apply(player);
         }
-        return ItemStack.deserialize(data);
+        heldGroups.put(uuid, group);
     }
     
-    private List<Map<String, Object>> serializeEffects(Collection<PotionEffect> effects) {
-        List<Map<String, Object>> serialized = new ArrayList<>();
-        for (PotionEffect effect : effects) {
-            serialized.add(effect.serialize());
+    private Map<String, InventorySnapshot> readAllGroups(UUID uuid) throws IOException {
+        Map<String, InventorySnapshot> groups = new HashMap<>();
+        Map<String, byte[]> stored = sync != null ? sync.readAll(uuid) : store.getAll(uuid);
+        for (Map.Entry<String, byte[]> entry : stored.entrySet()) {
+            groups.put(entry.getKey(), codec.decode(entry.getValue()));
         }
-        return serialized;
+        return groups;
     }
     
-    private Collection<PotionEffect> deserializeEffects(List<Map<String, Object>> data) {
-        List<PotionEffect> effects = new ArrayList<>();
-        for (Map<String, Object> effectData : data) {
-            effects.add(new PotionEffect(effectData));
-        }
-        return effects;
+    /**
+     * @return the saved snapshot, or null if the player has no data for this
+     *         group yet and should keep their current inventory
+     */
+    private InventorySnapshot readPlayerData(UUID uuid, String group) throws IOException {
+        long start = System.nanoTime();
+        byte[] data = sync != null ? sync.read(uuid, group) : store.get(uuid, group);
+        InventorySnapshot snapshot = data == null ? null : codec.decode(data);
+        loadLatency.recordSince(start);
+        return snapshot;
     }
 }
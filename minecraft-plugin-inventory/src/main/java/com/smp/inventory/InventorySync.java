@@ -0,0 +1,252 @@
+package com.smp.inventory;
+
+import com.smp.common.inventory.InventoryLeases;
+import com.smp.common.inventory.JdbcInventoryBackend;
+import com.smp.common.inventory.ShutdownFlush;
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+/**
+ * Keeps a player's inventories consistent when several servers share one
+ * database and the player moves between them.
+ *
+ * A server holds the player's lease from pre-login until their quit save
+ * has landed, so the next server's pre-login waits for that save instead of
+ * reading the old copy. Every read remembers the version it saw and every
+ * save only lands if the stored group is still at that version; a save that
+ * loses the race (a lease that expired under a stalled server) is dropped
+ * and logged rather than overwriting the newer copy. The shutdown flush and
+ * the replay of its recovery journal go through the same checks.
+ */
+final class InventorySync {
+
+    private final Plugin plugin;
+    private final JdbcInventoryBackend store;
+    private final InventoryLeases leases;
+    private final long leaseMillis;
+    // Version of each group as last read or written here, per player
+    private final Map<UUID, Map<String, Long>> versions = new ConcurrentHashMap<>();
+    private BukkitTask renewTask;
+
+    InventorySync(Plugin plugin, JdbcInventoryBackend store, String node, long leaseMillis) {
+        this.plugin = plugin;
+        this.store = store;
+        this.leases = store.leases(node, leaseMillis);
+        this.leaseMillis = leaseMillis;
+    }
+
+    /** Renew the leases of online players three times per lease period. */
+    void start() {
+        long period = Math.max(1, leaseMillis / 3 / 50);
+        renewTask = Bukkit.getScheduler().runTaskTimer(plugin, this::renewOnline, period, period);
+    }
+
+    /** Stop renewing and give up every lease, after the shutdown flush. */
+    void stop() {
+        if (renewTask != null) {
+            renewTask.cancel();
+        }
+        try {
+            leases.releaseAll();
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.WARNING, "Could not release inventory leases; they expire on their own", e);
+        }
+        versions.clear();
+    }
+
+    /**
+     * Take the player's lease, waiting for another server to finish saving
+     * them. Blocks, so only call it from the async pre-login.
+     */
+    boolean acquire(UUID uuid, long waitMillis) throws IOException, InterruptedException {
+        return leases.acquire(uuid, waitMillis);
+    }
+
+    Map<String, byte[]> readAll(UUID uuid) throws IOException {
+        Map<String, byte[]> groups = new HashMap<>();
+        Map<String, Long> seen = new ConcurrentHashMap<>();
+        for (Map.Entry<String, JdbcInventoryBackend.Versioned> entry : store.getAllVersioned(uuid).entrySet()) {
+            groups.put(entry.getKey(), entry.getValue().payload());
+            seen.put(entry.getKey(), entry.getValue().version());
+        }
+        versions.put(uuid, seen);
+        return groups;
+    }
+
+    /** @return the group's payload, or null if it was never stored */
+    byte[] read(UUID uuid, String group) throws IOException {
+        JdbcInventoryBackend.Versioned stored = store.getVersioned(uuid, group);
+        Map<String, Long> seen = versions.computeIfAbsent(uuid, k -> new ConcurrentHashMap<>());
+        if (stored == null) {
+            seen.remove(group);
+            return null;
+        }
+        seen.put(group, stored.version());
+        return stored.payload();
+    }
+
+    /**
+     * Write the group if nobody else has since the last read here.
+     *
+     * @return false if a newer copy was kept instead
+     */
+    boolean save(UUID uuid, String group, byte[] payload) throws IOException {
+        long expected = versions.computeIfAbsent(uuid, k -> new ConcurrentHashMap<>()).getOrDefault(group, 0L);
+        return saved(uuid, group, expected, store.compareAndSet(uuid, group, expected, payload));
+    }
+
+    /** Remember the version a save landed on, or forget the stale one it was based on. */
+    private boolean saved(UUID uuid, String group, long expected, long written) {
+        Map<String, Long> seen = versions.computeIfAbsent(uuid, k -> new ConcurrentHashMap<>());
+        if (written < 0) {
+            // Read again before the next save, so one conflict does not reject every later one
+            seen.remove(group);
+            plugin.getLogger().severe("Dropped a stale " + group + " inventory save for " + uuid
+                + ": another server wrote it after version " + expected);
+            return false;
+        }
+        seen.put(group, written);
+        return true;
+    }
+
+    /**
+     * Replace the group whatever version this server last saw, e.g. for a
+     * rollback of a player who is not holding it here.
+     *
+     * @return false if another server wrote it in between
+     */
+    boolean overwrite(UUID uuid, String group, byte[] payload) throws IOException {
+        JdbcInventoryBackend.Versioned current = store.getVersioned(uuid, group);
+        long written = store.compareAndSet(uuid, group, current == null ? 0 : current.version(), payload);
+        if (written < 0) {
+            return false;
+        }
+        Map<String, Long> seen = versions.get(uuid);
+        if (seen != null) {
+            seen.put(group, written);
+        }
+        return true;
+    }
+
+    /**
+     * The shutdown flush and journal replay, held to the same lease and
+     * version checks as any other save.
+     */
+    ShutdownFlush.Writer flushWriter() {
+        return new ShutdownFlush.Writer() {
+            @Override
+            public int writeAll(Map<UUID, Map<String, byte[]>> players) throws IOException {
+                int stale = 0;
+                List<UUID> lost = players.isEmpty() ? List.of() : leases.renew(players.keySet());
+                List<JdbcInventoryBackend.Cas> writes = new ArrayList<>();
+                for (Map.Entry<UUID, Map<String, byte[]>> player : players.entrySet()) {
+                    UUID uuid = player.getKey();
+                    if (lost.contains(uuid) && !reacquire(uuid)) {
+                        plugin.getLogger().severe("Dropped the shutdown save of " + uuid
+                            + ": another server holds their inventory lease");
+                        stale += player.getValue().size();
+                        continue;
+                    }
+                    for (Map.Entry<String, byte[]> group : player.getValue().entrySet()) {
+                        writes.add(new JdbcInventoryBackend.Cas(uuid, group.getKey(),
+                            baseVersion(uuid, group.getKey()), group.getValue()));
+                    }
+                }
+                // One transaction for every group, rather than a round trip each
+                long[] written = store.compareAndSetAll(writes);
+                for (int i = 0; i < written.length; i++) {
+                    JdbcInventoryBackend.Cas write = writes.get(i);
+                    if (!saved(write.uuid(), write.group(), write.expectedVersion(), written[i])) {
+                        stale++;
+                    }
+                }
+                return stale;
+            }
+
+            @Override
+            public long baseVersion(UUID uuid, String group) {
+                Map<String, Long> seen = versions.get(uuid);
+                return seen == null ? 0 : seen.getOrDefault(group, 0L);
+            }
+
+            @Override
+            public boolean recover(UUID uuid, String group, byte[] payload, long baseVersion) throws IOException {
+                if (!reacquire(uuid)) {
+                    return false;
+                }
+                try {
+                    // Journals written without sync replace whatever is stored, as they did before
+                    boolean written = baseVersion < 0
+                        ? overwrite(uuid, group, payload)
+                        : store.compareAndSet(uuid, group, baseVersion, payload) >= 0;
+                    if (!written) {
+                        // A replay cut short last time may already have written this entry
+                        JdbcInventoryBackend.Versioned stored = store.getVersioned(uuid, group);
+                        written = stored != null && Arrays.equals(stored.payload(), payload);
+                    }
+                    return written;
+                } finally {
+                    release(uuid);
+                }
+            }
+        };
+    }
+
+    private boolean reacquire(UUID uuid) throws IOException {
+        try {
+            return leases.acquire(uuid, 0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /** Let the next server have the player, once their last save has landed. */
+    void release(UUID uuid) throws IOException {
+        versions.remove(uuid);
+        leases.release(uuid);
+    }
+
+    List<String> describeMetrics() {
+        List<String> lines = new ArrayList<>(leases.describeMetrics());
+        lines.add("Sync: versions tracked for " + versions.size() + " players");
+        return lines;
+    }
+
+    private void renewOnline() {
+        List<UUID> online = new ArrayList<>();
+        for (Player player : Bukkit.getOnlinePlayers()) {
+            online.add(player.getUniqueId());
+        }
+        if (online.isEmpty()) {
+            return;
+        }
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+            try {
+                for (UUID uuid : leases.renew(online)) {
+                    // Expired under a stall, or the player was already online across a reload
+                    if (!leases.acquire(uuid, 0)) {
+                        plugin.getLogger().warning("Lost the inventory lease for " + uuid
+                            + " to another server; saves here only land if it has not written since");
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.WARNING, "Could not renew inventory leases", e);
+            }
+        });
+    }
+}
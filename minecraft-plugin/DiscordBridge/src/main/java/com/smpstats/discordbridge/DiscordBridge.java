@@ -3,14 +3,23 @@ package com.smpstats.discordbridge;
 import github.scarsz.discordsrv.DiscordSRV;
 import github.scarsz.discordsrv.api.Subscribe;
 import github.scarsz.discordsrv.api.events.AccountLinkedEvent;
-import org.bukkit.Bukkit;
+import org.bukkit.ChatColor;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
 import org.bukkit.plugin.java.JavaPlugin;
 
-import java.sql.Connection;
-import java.sql.DriverManager;
+import com.smp.common.db.ConnectionPool;
+import com.smp.common.db.PoolSettings;
+import com.smp.common.db.PooledConnection;
+import com.smp.common.metrics.LatencyHistogram;
+import com.smp.common.metrics.Metrics;
+
 import java.sql.PreparedStatement;
-import java.util.Random;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.UUID;
 
 public class DiscordBridge extends JavaPlugin {
 
@@ -19,7 +28,11 @@ public class DiscordBridge extends JavaPlugin {
     private String mysqlUser;
     private String mysqlPassword;
     private int mysqlPort;
-    private Random random = new Random();
+    private ConnectionPool pool;
+    private VerificationCodes codes;
+    private VerificationWriter writer;
+    private Metrics metrics;
+    private LatencyHistogram linkLatency;
 
     @Override
     public void onEnable() {
@@ -31,8 +44,33 @@ public class DiscordBridge extends JavaPlugin {
         mysqlUser = getConfig().getString("mysql.user", "root");
         mysqlPassword = getConfig().getString("mysql.password", "");
         
+        pool = new ConnectionPool("DiscordBridge", new PoolSettings(
+                PoolSettings.mysqlUrl(mysqlHost, mysqlPort, mysqlDatabase),
+                mysqlUser,
+                mysqlPassword,
+                getConfig().getInt("mysql.pool.max-size", 2),
+                getConfig().getLong("mysql.pool.borrow-timeout-ms", 5000),
+                getConfig().getLong("mysql.pool.validate-after-idle-ms", 1000),
+                getConfig().getLong("mysql.pool.idle-timeout-ms", 600000),
+                getConfig().getInt("mysql.pool.statement-cache-size", 8)
+        ), getLogger());
+        
+        metrics = new Metrics("DiscordBridge", getLogger());
+        linkLatency = metrics.timer("handler", "onAccountLinked");
+        pool.instrument(metrics);
+        metrics.start(
+                getConfig().getBoolean("metrics.export-enabled", true)
+                        ? getDataFolder().toPath().resolve(getConfig().getString("metrics.export-file", "metrics.prom"))
+                        : null,
+                getConfig().getLong("metrics.interval-seconds", 15) * 1000L);
+        
         createTable();
         
+        codes = new VerificationCodes(getConfig().getLong("verification.expiry-minutes", 10) * 60_000L, System.currentTimeMillis());
+        loadPendingCodes();
+        writer = new VerificationWriter(codes, pool, getLogger(), getConfig().getLong("verification.flush-interval-ms", 1000));
+        writer.instrument(metrics);
+        
         // Subscribe to DiscordSRV events
         DiscordSRV.api.subscribe(this);
         
@@ -42,15 +80,51 @@ public class DiscordBridge extends JavaPlugin {
     @Override
     public void onDisable() {
         DiscordSRV.api.unsubscribe(this);
+        if (writer != null) {
+            int pending = writer.shutdown(getConfig().getLong("verification.shutdown-timeout-ms", 5000));
+            if (pending > 0) {
+                getLogger().warning(pending + " verification codes were not written to the database");
+            }
+        }
+        if (pool != null) {
+            pool.close();
+        }
+        if (metrics != null) {
+            metrics.close();
+        }
     }
 
-    private Connection getConnection() throws Exception {
-        String url = "jdbc:mysql://" + mysqlHost + ":" + mysqlPort + "/" + mysqlDatabase;
-        return DriverManager.getConnection(url, mysqlUser, mysqlPassword);
+    @Override
+    public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
+        if (command.getName().equalsIgnoreCase("discordbridge")) {
+            if (args.length == 2 && args[0].equalsIgnoreCase("code")) {
+                VerificationCodes.Pending pending = codes.lookup(args[1], System.currentTimeMillis());
+                if (pending == null) {
+                    sender.sendMessage(ChatColor.RED + "No pending verification code " + args[1] + ".");
+                } else {
+                    long seconds = (pending.expiration() - System.currentTimeMillis()) / 1000;
+                    sender.sendMessage(ChatColor.GREEN + "Code " + pending.code() + " belongs to " + pending.username()
+                            + " (Discord " + pending.discordId() + "), expires in " + seconds + "s.");
+                }
+                return true;
+            }
+            sender.sendMessage(ChatColor.GOLD + "DiscordBridge latency and counters:");
+            for (String line : metrics.describe()) {
+                sender.sendMessage(ChatColor.GRAY + line);
+            }
+            for (String line : writer.describeMetrics()) {
+                sender.sendMessage(ChatColor.GRAY + line);
+            }
+            for (String line : pool.describeMetrics()) {
+                sender.sendMessage(ChatColor.GRAY + line);
+            }
+            return true;
+        }
+        return false;
     }
 
     private void createTable() {
-        try (Connection conn = getConnection()) {
+        try (PooledConnection conn = pool.borrow(); Statement stmt = conn.createStatement()) {
             String sql = "CREATE TABLE IF NOT EXISTS website_verifications (" +
                     "id INT PRIMARY KEY AUTO_INCREMENT, " +
                     "code VARCHAR(4), " +
@@ -59,59 +133,86 @@ public class DiscordBridge extends JavaPlugin {
                     "discord_id VARCHAR(20), " +
                     "verified BOOLEAN DEFAULT FALSE, " +
                     "expiration BIGINT, " +
-                    "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP" +
+                    "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
+                    "INDEX idx_verifications_code (code), " +
+                    "INDEX idx_verifications_uuid (uuid), " +
+                    "INDEX idx_verifications_expiration (expiration)" +
                     ")";
-            conn.createStatement().execute(sql);
+            stmt.execute(sql);
+            // Tables created before the indexes existed
+            addIndex(stmt, "idx_verifications_code", "code");
+            addIndex(stmt, "idx_verifications_uuid", "uuid");
+            addIndex(stmt, "idx_verifications_expiration", "expiration");
             getLogger().info("Database table ready.");
         } catch (Exception e) {
             getLogger().severe("Failed to create table: " + e.getMessage());
         }
     }
 
-    private String generateCode() {
-        return String.format("%04d", random.nextInt(10000));
+    private static void addIndex(Statement stmt, String name, String column) throws SQLException {
+        try {
+            stmt.execute("ALTER TABLE website_verifications ADD INDEX " + name + " (" + column + ")");
+        } catch (SQLException e) {
+            // 1061: duplicate key name, the index is already there
+            if (e.getErrorCode() != 1061) {
+                throw e;
+            }
+        }
+    }
+
+    /** Seed the registry with codes that are still live from before a restart. */
+    private void loadPendingCodes() {
+        long now = System.currentTimeMillis();
+        String sql = "SELECT code, uuid, username, discord_id, expiration FROM website_verifications " +
+                "WHERE verified = FALSE AND expiration > ? ORDER BY expiration DESC";
+        int restored = 0;
+        int skipped = 0;
+        try (PooledConnection conn = pool.borrow()) {
+            PreparedStatement stmt = conn.prepare(sql);
+            stmt.setLong(1, now);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    // One unreadable row must not cost every other player their code
+                    UUID uuid = VerificationCodes.parseUuid(rs.getString("uuid"));
+                    String code = rs.getString("code");
+                    if (uuid == null || code == null) {
+                        skipped++;
+                        continue;
+                    }
+                    // Newest first, so a player's latest code wins over older leftovers
+                    if (codes.restore(new VerificationCodes.Pending(code, uuid,
+                            rs.getString("username"), rs.getString("discord_id"), rs.getLong("expiration")))) {
+                        restored++;
+                    }
+                }
+            }
+        } catch (Exception e) {
+            getLogger().severe("Failed to load pending verification codes: " + e.getMessage());
+        }
+        if (restored > 0) {
+            getLogger().info("Restored " + restored + " pending verification codes.");
+        }
+        if (skipped > 0) {
+            getLogger().warning("Skipped " + skipped + " pending verification rows with no code or a bad uuid.");
+        }
     }
 
     @Subscribe
     public void onAccountLinked(AccountLinkedEvent event) {
+        long start = System.nanoTime();
         Player player = event.getPlayer();
-        String uuid = player.getUniqueId().toString();
         String username = player.getName();
         String discordId = event.getUser().getId();
-        String code = generateCode();
-        long expiration = System.currentTimeMillis() + (10 * 60 * 1000); // 10 minutes
+        VerificationCodes.Pending pending = codes.issue(player.getUniqueId(), username, discordId, System.currentTimeMillis());
+        String code = pending.code();
         
-        saveToDatabase(code, uuid, username, discordId, expiration);
+        writer.enqueue(pending);
         
         // Tell the player their website verification code
         player.sendMessage("§a[Website] Your verification code is: §e" + code);
         player.sendMessage("§7Use this code on the website to complete verification.");
         
         getLogger().info("Generated website code for " + username + ": " + code);
-    }
-
-    private void saveToDatabase(String code, String uuid, String username, String discordId, long expiration) {
-        Bukkit.getScheduler().runTaskAsynchronously(this, () -> {
-            try (Connection conn = getConnection()) {
-                // Delete old codes for this UUID
-                String deleteSql = "DELETE FROM website_verifications WHERE uuid = ?";
-                PreparedStatement deleteStmt = conn.prepareStatement(deleteSql);
-                deleteStmt.setString(1, uuid);
-                deleteStmt.executeUpdate();
-                
-                String sql = "INSERT INTO website_verifications (code, uuid, username, discord_id, verified, expiration) VALUES (?, ?, ?, ?, FALSE, ?)";
-                PreparedStatement stmt = conn.prepareStatement(sql);
-                stmt.setString(1, code);
-                stmt.setString(2, uuid);
-                stmt.setString(3, username);
-                stmt.setString(4, discordId);
-                stmt.setLong(5, expiration);
-                stmt.executeUpdate();
-                
-                getLogger().info("Saved to database: " + username + " with code " + code + " and Discord ID " + discordId);
-            } catch (Exception e) {
-                getLogger().severe("Failed to save: " + e.getMessage());
-            }
-        });
+        linkLatency.recordSince(start);
     }
 }
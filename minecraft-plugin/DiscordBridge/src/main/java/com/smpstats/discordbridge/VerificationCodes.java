@@ -0,0 +1,177 @@
+package com.smpstats.discordbridge;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * The codes this server has issued and not yet seen verified or expired.
+ * website_verifications is the shared record: {@link VerificationWriter}
+ * mirrors issued codes into it, and drops a code from here once its row is
+ * marked verified there. Pending rows are read back only at startup.
+ *
+ * Lookups by code and by player are hash hits. Expiry uses a hashed timing
+ * wheel of one-second slots: an entry sits in the slot for its expiry second
+ * modulo the wheel size, and advancing the wheel only visits the slots that
+ * passed, so expiring is proportional to what expires rather than to
+ * everything pending. Replaced and verified entries are left in their slot
+ * and skipped when it comes round. Thread-safe.
+ */
+final class VerificationCodes {
+
+    static final int CODE_SPACE = 10000;
+    private static final long TICK_MILLIS = 1000;
+    private static final int SLOTS = 64;
+    private static final int MASK = SLOTS - 1;
+
+    record Pending(String code, UUID uuid, String username, String discordId, long expiration) {
+    }
+
+    private static final class Entry {
+        final Pending pending;
+        final long expiryTick;
+        boolean removed;
+
+        Entry(Pending pending, long expiryTick) {
+            this.pending = pending;
+            this.expiryTick = expiryTick;
+        }
+    }
+
+    private final Map<String, Entry> byCode = new HashMap<>();
+    private final Map<UUID, Entry> byPlayer = new HashMap<>();
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final List<Entry>[] wheel = new List[SLOTS];
+    private final Random random = new Random();
+    private final long ttlMillis;
+    private long tick;
+    private long expired;
+    private long verified;
+
+    VerificationCodes(long ttlMillis, long now) {
+        this.ttlMillis = ttlMillis;
+        this.tick = now / TICK_MILLIS;
+        for (int i = 0; i < SLOTS; i++) {
+            wheel[i] = new ArrayList<>();
+        }
+    }
+
+    /** Issue a fresh code for the player, replacing any code they still have pending. */
+    synchronized Pending issue(UUID uuid, String username, String discordId, long now) {
+        Entry previous = byPlayer.get(uuid);
+        if (previous != null) {
+            remove(previous);
+        }
+        if (byCode.size() >= CODE_SPACE) {
+            throw new IllegalStateException("All " + CODE_SPACE + " verification codes are pending");
+        }
+        String code;
+        do {
+            code = String.format("%04d", random.nextInt(CODE_SPACE));
+        } while (byCode.containsKey(code));
+        Pending pending = new Pending(code, uuid, username, discordId, now + ttlMillis);
+        add(pending);
+        return pending;
+    }
+
+    /** Put back a code loaded from the table at startup, unless it collides with one already pending. */
+    synchronized boolean restore(Pending pending) {
+        if (byCode.containsKey(pending.code()) || byPlayer.containsKey(pending.uuid())) {
+            return false;
+        }
+        add(pending);
+        return true;
+    }
+
+    /** The pending entry for a code, or null if there is none or it has expired. */
+    synchronized Pending lookup(String code, long now) {
+        Entry entry = byCode.get(code);
+        return entry != null && entry.pending.expiration() > now ? entry.pending : null;
+    }
+
+    /** Whether {@code pending} is still the live code for its player. */
+    synchronized boolean isCurrent(Pending pending, long now) {
+        Entry entry = byPlayer.get(pending.uuid());
+        return entry != null && entry.pending == pending && pending.expiration() > now;
+    }
+
+    /** Drop the player's code once the table has it as verified, unless they have a newer one. */
+    synchronized boolean verified(UUID uuid, String code) {
+        Entry entry = byPlayer.get(uuid);
+        if (entry == null || !entry.pending.code().equals(code)) {
+            return false;
+        }
+        remove(entry);
+        verified++;
+        return true;
+    }
+
+    /**
+     * Advance the wheel to {@code now} and drop every code that expired on
+     * the way. Returns how many did.
+     */
+    synchronized int expire(long now) {
+        long target = now / TICK_MILLIS;
+        long steps = Math.min(target - tick, SLOTS);
+        int count = 0;
+        for (long i = 1; i <= steps; i++) {
+            Iterator<Entry> it = wheel[(int) ((tick + i) & MASK)].iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (entry.removed) {
+                    it.remove();
+                } else if (entry.expiryTick <= target) {
+                    it.remove();
+                    remove(entry);
+                    count++;
+                }
+            }
+        }
+        tick = Math.max(tick, target);
+        expired += count;
+        return count;
+    }
+
+    synchronized int size() {
+        return byCode.size();
+    }
+
+    synchronized long expired() {
+        return expired;
+    }
+
+    synchronized long verified() {
+        return verified;
+    }
+
+    /** The UUID in a uuid column, or null if it is empty or not a UUID. */
+    static UUID parseUuid(String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return UUID.fromString(value);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private void add(Pending pending) {
+        // Never behind the wheel, or the slot would not come round for a whole turn
+        long expiryTick = Math.max((pending.expiration() + TICK_MILLIS - 1) / TICK_MILLIS, tick + 1);
+        Entry entry = new Entry(pending, expiryTick);
+        byCode.put(pending.code(), entry);
+        byPlayer.put(pending.uuid(), entry);
+        wheel[(int) (expiryTick & MASK)].add(entry);
+    }
+
+    private void remove(Entry entry) {
+        entry.removed = true;
+        byCode.remove(entry.pending.code(), entry);
+        byPlayer.remove(entry.pending.uuid(), entry);
+    }
+}
@@ -0,0 +1,231 @@
+package com.smpstats.discordbridge;
+
+import com.smp.common.db.ConnectionPool;
+import com.smp.common.db.PooledConnection;
+import com.smp.common.metrics.LatencyHistogram;
+import com.smp.common.metrics.Metrics;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Write-behind mirror of {@link VerificationCodes} into website_verifications.
+ *
+ * Issued codes are queued and written by one worker in a single transaction
+ * per interval: the players' old rows are deleted and the new ones inserted
+ * as JDBC batches. The worker also advances the expiry wheel, and whenever
+ * codes expired it removes every unverified expired row with one ranged
+ * DELETE, so the table only ever holds live codes and verified links. While
+ * any codes are pending, it also reads back the live rows marked verified
+ * and drops those codes from {@link VerificationCodes}.
+ */
+final class VerificationWriter {
+
+    private static final String DELETE_PLAYER = "DELETE FROM website_verifications WHERE uuid = ?";
+    private static final String INSERT = "INSERT INTO website_verifications "
+            + "(code, uuid, username, discord_id, verified, expiration) VALUES (?, ?, ?, ?, FALSE, ?)";
+    private static final String DELETE_EXPIRED = "DELETE FROM website_verifications WHERE verified = FALSE AND expiration <= ?";
+    private static final String SELECT_VERIFIED = "SELECT uuid, code FROM website_verifications WHERE verified = TRUE AND expiration > ?";
+
+    private final BlockingQueue<VerificationCodes.Pending> queue = new LinkedBlockingQueue<>();
+    private final VerificationCodes codes;
+    private final ConnectionPool pool;
+    private final Logger logger;
+    private final long intervalMillis;
+    private final Thread worker;
+
+    private volatile boolean running = true;
+    // Rows from startup or earlier runs may have expired while the server was down
+    private boolean purgeDue = true;
+    private final List<VerificationCodes.Pending> retry = new ArrayList<>();
+    private volatile LatencyHistogram batchLatency;
+
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong purged = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+
+    VerificationWriter(VerificationCodes codes, ConnectionPool pool, Logger logger, long intervalMillis) {
+        this.codes = codes;
+        this.pool = pool;
+        this.logger = logger;
+        this.intervalMillis = Math.max(50, intervalMillis);
+        this.worker = new Thread(this::drainLoop, "DiscordBridge-DB-Writer");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /** Queue an issued code for the table. */
+    void enqueue(VerificationCodes.Pending pending) {
+        queue.add(pending);
+    }
+
+    /**
+     * Stop and wait for queued codes to be written. Returns the number still
+     * pending on timeout.
+     */
+    int shutdown(long timeoutMillis) {
+        running = false;
+        try {
+            worker.join(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (worker.isAlive()) {
+            worker.interrupt();
+        }
+        return queue.size();
+    }
+
+    /** Report pending codes, queue depth, batch latency and row counts. */
+    void instrument(Metrics metrics) {
+        metrics.gauge("queue_depth", "verification_writer", queue::size);
+        metrics.gauge("pending_codes", "verification", codes::size);
+        metrics.counter("expired", "verification", codes::expired);
+        metrics.counter("verified", "verification", codes::verified);
+        metrics.counter("rows_written", "verification_writer", written::get);
+        metrics.counter("rows_purged", "verification_writer", purged::get);
+        metrics.counter("errors", "verification_writer", failed::get);
+        batchLatency = metrics.timer("statement", "verification_batch");
+    }
+
+    List<String> describeMetrics() {
+        List<String> lines = new ArrayList<>();
+        lines.add("Pending codes: " + codes.size() + ", expired: " + codes.expired() + ", verified: " + codes.verified());
+        lines.add("Write-behind: " + queue.size() + " queued, " + written.get() + " written, "
+                + purged.get() + " expired rows purged, " + failed.get() + " failed in " + batches.get() + " batches");
+        return lines;
+    }
+
+    private void drainLoop() {
+        List<VerificationCodes.Pending> batch = new ArrayList<>();
+        while (running || !queue.isEmpty()) {
+            try {
+                VerificationCodes.Pending first = queue.poll(intervalMillis, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    // Let the interval fill up so links arriving together share a transaction
+                    if (running) {
+                        Thread.sleep(intervalMillis);
+                    }
+                    batch.add(first);
+                    queue.drainTo(batch);
+                }
+                if (codes.expire(System.currentTimeMillis()) > 0) {
+                    purgeDue = true;
+                }
+                if (!batch.isEmpty() || !retry.isEmpty() || purgeDue) {
+                    write(batch);
+                }
+                if (codes.size() > 0) {
+                    dropVerified();
+                }
+            } catch (InterruptedException e) {
+                if (!running) {
+                    break;
+                }
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "Unexpected error in verification writer", e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /** Drop codes whose rows were marked verified since the last interval. */
+    private void dropVerified() {
+        try (PooledConnection conn = pool.borrow()) {
+            try {
+                PreparedStatement stmt = conn.prepare(SELECT_VERIFIED);
+                stmt.setLong(1, System.currentTimeMillis());
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        UUID uuid = VerificationCodes.parseUuid(rs.getString(1));
+                        String code = rs.getString(2);
+                        if (uuid != null && code != null) {
+                            codes.verified(uuid, code);
+                        }
+                    }
+                }
+            } catch (SQLException e) {
+                conn.onError(e);
+                throw e;
+            }
+        } catch (SQLException e) {
+            // Still dropped at expiry; try again next interval
+            logger.log(Level.WARNING, "Failed to read verified codes", e);
+        }
+    }
+
+    private void write(List<VerificationCodes.Pending> batch) {
+        long now = System.currentTimeMillis();
+        // Only each player's latest code, and only if it is still live
+        Map<UUID, VerificationCodes.Pending> latest = new LinkedHashMap<>();
+        for (VerificationCodes.Pending pending : retry) {
+            latest.put(pending.uuid(), pending);
+        }
+        for (VerificationCodes.Pending pending : batch) {
+            latest.put(pending.uuid(), pending);
+        }
+        latest.values().removeIf(pending -> !codes.isCurrent(pending, now));
+        retry.clear();
+
+        long start = System.nanoTime();
+        try (PooledConnection conn = pool.borrow()) {
+            try {
+                conn.setAutoCommit(false);
+                if (!latest.isEmpty()) {
+                    PreparedStatement delete = conn.prepare(DELETE_PLAYER);
+                    PreparedStatement insert = conn.prepare(INSERT);
+                    for (VerificationCodes.Pending pending : latest.values()) {
+                        delete.setString(1, pending.uuid().toString());
+                        delete.addBatch();
+                        insert.setString(1, pending.code());
+                        insert.setString(2, pending.uuid().toString());
+                        insert.setString(3, pending.username());
+                        insert.setString(4, pending.discordId());
+                        insert.setLong(5, pending.expiration());
+                        insert.addBatch();
+                    }
+                    delete.executeBatch();
+                    insert.executeBatch();
+                }
+                int removed = 0;
+                if (purgeDue) {
+                    PreparedStatement purge = conn.prepare(DELETE_EXPIRED);
+                    purge.setLong(1, now);
+                    removed = purge.executeUpdate();
+                }
+                conn.commit();
+                written.addAndGet(latest.size());
+                purged.addAndGet(removed);
+                purgeDue = false;
+            } catch (SQLException e) {
+                conn.rollback();
+                conn.onError(e);
+                throw e;
+            }
+        } catch (SQLException e) {
+            failed.addAndGet(latest.size());
+            // Try again next interval; codes that expire meanwhile are dropped then
+            retry.addAll(latest.values());
+            logger.log(Level.WARNING, "Failed to write " + latest.size() + " verification codes", e);
+        }
+        batches.incrementAndGet();
+        LatencyHistogram latency = batchLatency;
+        if (latency != null) {
+            latency.recordSince(start);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.smp.benchmarks;
+
+import be.seeseemelk.mockbukkit.MockBukkit;
+import com.smp.common.inventory.InventorySnapshot;
+import org.bukkit.GameMode;
+import org.bukkit.Material;
+import org.bukkit.block.ShulkerBox;
+import org.bukkit.enchantments.Enchantment;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.meta.BlockStateMeta;
+import org.bukkit.inventory.meta.ItemMeta;
+import org.bukkit.potion.PotionEffect;
+import org.bukkit.potion.PotionEffectType;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Inventories shaped like the ones players actually carry, built against a
+ * MockBukkit server so item meta behaves like it does on a real one.
+ */
+public final class Fixtures {
+
+    /** What fills the 36 storage slots. */
+    public enum Kind {
+        /** Stacks of blocks and food, no meta. */
+        PLAIN,
+        /** A PvP kit: named, lored, enchanted gear and tools. */
+        ENCHANTED,
+        /** Shulker boxes each holding 27 enchanted items. */
+        SHULKERS
+    }
+
+    private Fixtures() {
+    }
+
+    public static void startServer() {
+        if (!MockBukkit.isMocked()) {
+            MockBukkit.mock();
+        }
+    }
+
+    public static void stopServer() {
+        if (MockBukkit.isMocked()) {
+            MockBukkit.unmock();
+        }
+    }
+
+    public static InventorySnapshot snapshot(Kind kind) {
+        ItemStack[] contents = new ItemStack[36];
+        for (int i = 0; i < contents.length; i++) {
+            contents[i] = switch (kind) {
+                case PLAIN -> plain(i);
+                case ENCHANTED -> i % 4 == 0 ? plain(i) : enchanted(i);
+                case SHULKERS -> i % 3 == 0 ? shulker(i) : enchanted(i);
+            };
+        }
+        ItemStack[] armor = kind == Kind.PLAIN
+                ? new ItemStack[]{plain(0), plain(1), null, null}
+                : new ItemStack[]{
+                        enchanted(Material.NETHERITE_BOOTS, Enchantment.PROTECTION_FALL),
+                        enchanted(Material.NETHERITE_LEGGINGS, Enchantment.PROTECTION_EXPLOSIONS),
+                        enchanted(Material.NETHERITE_CHESTPLATE, Enchantment.PROTECTION_ENVIRONMENTAL),
+                        enchanted(Material.NETHERITE_HELMET, Enchantment.OXYGEN)};
+        List<PotionEffect> effects = new ArrayList<>();
+        effects.add(new PotionEffect(PotionEffectType.SPEED, 1200, 1));
+        effects.add(new PotionEffect(PotionEffectType.FIRE_RESISTANCE, 6000, 0));
+        return new InventorySnapshot(contents, armor, new ItemStack(Material.TOTEM_OF_UNDYING), effects,
+                20.0, 20, 5.0f, 0.4f, 30, GameMode.SURVIVAL);
+    }
+
+    private static ItemStack plain(int slot) {
+        Material[] materials = {Material.COBBLESTONE, Material.OAK_LOG, Material.COOKED_BEEF, Material.TORCH,
+                Material.GOLDEN_CARROT, Material.ENDER_PEARL, Material.OBSIDIAN, Material.ARROW};
+        Material material = materials[slot % materials.length];
+        return new ItemStack(material, Math.min(material.getMaxStackSize(), 1 + slot * 7 % 64));
+    }
+
+    private static ItemStack enchanted(int slot) {
+        Material[] materials = {Material.NETHERITE_SWORD, Material.NETHERITE_AXE, Material.BOW,
+                Material.NETHERITE_PICKAXE, Material.CROSSBOW, Material.TRIDENT};
+        return enchanted(materials[slot % materials.length], Enchantment.DURABILITY);
+    }
+
+    private static ItemStack enchanted(Material material, Enchantment primary) {
+        ItemStack item = new ItemStack(material);
+        ItemMeta meta = item.getItemMeta();
+        meta.setDisplayName("§6Season Kit §7" + material.name().toLowerCase());
+        meta.setLore(List.of("§7Ranked duel reward", "§8Do not trade"));
+        meta.addEnchant(primary, 4, true);
+        meta.addEnchant(Enchantment.MENDING, 1, true);
+        meta.addEnchant(Enchantment.DURABILITY, 3, true);
+        item.setItemMeta(meta);
+        return item;
+    }
+
+    private static ItemStack shulker(int slot) {
+        ItemStack box = new ItemStack(Material.SHULKER_BOX);
+        BlockStateMeta meta = (BlockStateMeta) box.getItemMeta();
+        ShulkerBox state = (ShulkerBox) meta.getBlockState();
+        for (int i = 0; i < 27; i++) {
+            state.getInventory().setItem(i, enchanted(slot + i));
+        }
+        meta.setBlockState(state);
+        box.setItemMeta(meta);
+        return box;
+    }
+}
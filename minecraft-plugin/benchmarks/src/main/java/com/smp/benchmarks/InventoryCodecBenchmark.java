@@ -0,0 +1,105 @@
+package com.smp.benchmarks;
+
+import com.smp.common.inventory.InventoryCodec;
+import com.smp.common.inventory.InventorySnapshot;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode and decode cost of {@link InventoryCodec} for one group snapshot and
+ * for a player's whole group map. The encode benchmarks also report the
+ * encoded size as a {@code bytes} counter, so size regressions show up in the
+ * JSON report next to the timings. JMH sums such counters over the measured
+ * iterations; any single iteration's value (e.g. the p50) is the size of one
+ * encoding.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class InventoryCodecBenchmark {
+
+    /** Size of the last encoding, as a secondary result. */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class EncodedSize {
+        public long bytes;
+    }
+
+    @Param({"PLAIN", "ENCHANTED", "SHULKERS"})
+    public Fixtures.Kind kind;
+
+    /** -1 stores bodies raw; 512 is the plugins' default. */
+    @Param({"-1", "512"})
+    public int compressionThreshold;
+
+    private InventoryCodec codec;
+    private InventorySnapshot snapshot;
+    private Map<String, InventorySnapshot> groups;
+    private byte[] encoded;
+    private byte[] encodedGroups;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Fixtures.startServer();
+        codec = new InventoryCodec(compressionThreshold);
+        snapshot = Fixtures.snapshot(kind);
+        groups = new HashMap<>();
+        groups.put("survival", snapshot);
+        groups.put("LobbyPractice", Fixtures.snapshot(Fixtures.Kind.ENCHANTED));
+        groups.put("arena_1", Fixtures.snapshot(Fixtures.Kind.PLAIN));
+        encoded = codec.encode(snapshot);
+        encodedGroups = codec.encodeGroups(groups);
+        System.out.printf("%n[codec] %s threshold=%d: snapshot %d bytes, 3 groups %d bytes%n",
+                kind, compressionThreshold, encoded.length, encodedGroups.length);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Fixtures.stopServer();
+    }
+
+    @Benchmark
+    public byte[] encode(EncodedSize size) {
+        byte[] bytes = codec.encode(snapshot);
+        size.bytes = bytes.length;
+        return bytes;
+    }
+
+    @Benchmark
+    public InventorySnapshot decode() throws IOException {
+        return codec.decode(encoded);
+    }
+
+    @Benchmark
+    public byte[] encodeGroups(EncodedSize size) {
+        byte[] bytes = codec.encodeGroups(groups);
+        size.bytes = bytes.length;
+        return bytes;
+    }
+
+    @Benchmark
+    public void decodeGroups(Blackhole bh) throws IOException {
+        bh.consume(codec.decodeGroups(encodedGroups));
+    }
+}
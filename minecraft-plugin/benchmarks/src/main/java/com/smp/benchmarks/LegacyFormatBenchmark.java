@@ -0,0 +1,146 @@
+package com.smp.benchmarks;
+
+import com.smp.common.inventory.InventorySnapshot;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.potion.PotionEffect;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Baseline: the ObjectOutputStream format InventoryManager used before the
+ * binary codec, a HashMap of {@code ItemStack.serialize()} maps. Kept so the
+ * codec numbers have something to be compared against.
+ *
+ * Only the PLAIN inventory is measured. Item meta is not
+ * java.io.Serializable, so this format throws on any enchanted or named
+ * item. The even older InventoryData format stored ItemStack[] directly and
+ * could not serialize any item at all, so there is nothing to measure there.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class LegacyFormatBenchmark {
+
+    private InventorySnapshot snapshot;
+    private byte[] encoded;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Fixtures.startServer();
+        snapshot = Fixtures.snapshot(Fixtures.Kind.PLAIN);
+        encoded = serializeMapPath();
+        System.out.printf("%n[legacy] map path: snapshot %d bytes%n", encoded.length);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Fixtures.stopServer();
+    }
+
+    @Benchmark
+    public byte[] serializeMapPath() throws IOException {
+        Map<String, Object> data = new HashMap<>();
+        data.put("inventory", serializeInventory(snapshot.contents()));
+        data.put("armor", serializeInventory(snapshot.armor()));
+        data.put("offhand", serializeItem(snapshot.offHand()));
+        data.put("health", snapshot.health());
+        data.put("food", snapshot.foodLevel());
+        data.put("saturation", snapshot.saturation());
+        data.put("exp", snapshot.exp());
+        data.put("level", snapshot.level());
+        data.put("gamemode", snapshot.gameMode().name());
+        data.put("effects", serializeEffects(snapshot.effects()));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+            oos.writeObject(data);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public Object[] deserializeMapPath() throws IOException, ClassNotFoundException {
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(encoded))) {
+            Map<String, Object> data = (Map<String, Object>) ois.readObject();
+            return new Object[]{
+                    deserializeInventory((List<Map<String, Object>>) data.get("inventory")),
+                    deserializeInventory((List<Map<String, Object>>) data.get("armor")),
+                    deserializeItem((Map<String, Object>) data.get("offhand")),
+                    deserializeEffects((List<Map<String, Object>>) data.get("effects"))
+            };
+        }
+    }
+
+    // Copied from InventoryManagerPlugin as it was before the codec
+
+    private static List<Map<String, Object>> serializeInventory(ItemStack[] items) {
+        List<Map<String, Object>> serialized = new ArrayList<>();
+        for (ItemStack item : items) {
+            serialized.add(serializeItem(item));
+        }
+        return serialized;
+    }
+
+    private static Map<String, Object> serializeItem(ItemStack item) {
+        if (item == null) {
+            return null;
+        }
+        return item.serialize();
+    }
+
+    private static ItemStack[] deserializeInventory(List<Map<String, Object>> data) {
+        ItemStack[] items = new ItemStack[data.size()];
+        for (int i = 0; i < data.size(); i++) {
+            items[i] = deserializeItem(data.get(i));
+        }
+        return items;
+    }
+
+    private static ItemStack deserializeItem(Map<String, Object> data) {
+        if (data == null) {
+            return null;
+        }
+        return ItemStack.deserialize(data);
+    }
+
+    private static List<Map<String, Object>> serializeEffects(List<PotionEffect> effects) {
+        List<Map<String, Object>> serialized = new ArrayList<>();
+        for (PotionEffect effect : effects) {
+            serialized.add(effect.serialize());
+        }
+        return serialized;
+    }
+
+    private static List<PotionEffect> deserializeEffects(List<Map<String, Object>> data) {
+        List<PotionEffect> effects = new ArrayList<>();
+        for (Map<String, Object> effectData : data) {
+            effects.add(new PotionEffect(effectData));
+        }
+        return effects;
+    }
+}
@@ -0,0 +1,36 @@
+package com.smp.inventory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * World-to-group resolution, run on every world change. Lives in the
+ * plugin's package to reach the package-private resolver.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class WorldGroupBenchmark {
+
+    /** A survival-group world, and an unmanaged one that becomes its own group. */
+    @Param({"world_nether", "LobbyPractice"})
+    public String world;
+
+    @Benchmark
+    public String resolve() {
+        return InventoryManagerPlugin.getWorldGroup(world);
+    }
+}
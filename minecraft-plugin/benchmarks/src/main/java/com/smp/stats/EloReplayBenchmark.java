@@ -0,0 +1,125 @@
+package com.smp.stats;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rating replay over a synthetic history of a million 1v1 ranked fights
+ * spread over five kits, reported in fights per second: every kit on one
+ * thread, and one kit per task the way a leaderboard rebuild replays them.
+ *
+ * Winners are drawn from a hidden skill per player so ratings spread out the
+ * way they do on the server. Only the rating maths is measured; a rebuild
+ * also reads the rows from MySQL.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(2)
+public class EloReplayBenchmark {
+
+    private static final int FIGHTS = 1_000_000;
+    private static final String[] KITS = {"sword", "axe", "sumo", "mace", "crystalpvp"};
+
+    @Param({"20000"})
+    public int players;
+
+    @Param({"5"})
+    public int threads;
+
+    private record Fight(List<String> winners, List<String> losers) {
+    }
+
+    // Per kit, in recorded order
+    private List<List<Fight>> history;
+    private ExecutorService workers;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        String[] names = new String[players];
+        double[] skill = new double[players];
+        for (int i = 0; i < players; i++) {
+            names[i] = "player" + i;
+            skill[i] = 1000 + random.nextGaussian() * 200;
+        }
+        history = new ArrayList<>();
+        for (int k = 0; k < KITS.length; k++) {
+            history.add(new ArrayList<>());
+        }
+        for (int i = 0; i < FIGHTS; i++) {
+            int kit = random.nextInt(KITS.length);
+            int a = random.nextInt(players);
+            int b = random.nextInt(players - 1);
+            if (b >= a) {
+                b++;
+            }
+            boolean aWins = random.nextDouble() < EloRatings.expected(skill[a], skill[b]);
+            history.get(kit).add(new Fight(List.of(names[aWins ? a : b]), List.of(names[aWins ? b : a])));
+        }
+        workers = Executors.newFixedThreadPool(threads);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        workers.shutdownNow();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FIGHTS)
+    public long replaySequential() {
+        long rated = 0;
+        for (int k = 0; k < KITS.length; k++) {
+            rated += replay(k).fights();
+        }
+        return rated;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FIGHTS)
+    public long replayPerKit() throws InterruptedException, ExecutionException {
+        List<Future<EloRatings>> tasks = new ArrayList<>();
+        for (int k = 0; k < KITS.length; k++) {
+            int kit = k;
+            tasks.add(workers.submit(() -> replay(kit)));
+        }
+        long rated = 0;
+        for (Future<EloRatings> task : tasks) {
+            rated += task.get().fights();
+        }
+        return rated;
+    }
+
+    private EloRatings replay(int kit) {
+        EloRatings ratings = new EloRatings(32);
+        List<Fight> fights = history.get(kit);
+        for (int i = 0; i < fights.size(); i++) {
+            Fight fight = fights.get(i);
+            ratings.apply(i + 1, fight.winners(), fight.losers());
+        }
+        return ratings;
+    }
+}
@@ -0,0 +1,149 @@
+package com.smp.stats;
+
+import com.smp.common.db.ConnectionPool;
+import com.smp.common.db.PoolSettings;
+import com.smp.common.db.PooledConnection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * One flush interval's worth of kills and deaths for {@code players} players,
+ * written two ways against an embedded H2 database in MySQL mode:
+ * through {@link StatAccumulator} (journal, coalesce, multi-row upsert) and
+ * as one UPDATE per event, the way the event handlers used to write.
+ *
+ * H2 has no network round trip, which flatters the per-event path, and it
+ * runs ON DUPLICATE KEY UPDATE by catching a duplicate-key error per existing
+ * row, which penalises the upsert; on a real MySQL server the gap is larger
+ * and in the other direction.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class StatFlushBenchmark {
+
+    @Param({"50", "500"})
+    public int players;
+
+    /** Kills recorded per player between flushes. */
+    @Param({"4"})
+    public int killsPerPlayer;
+
+    private Path journalDir;
+    private ConnectionPool pool;
+    private StatJournal journal;
+    private StatAccumulator accumulator;
+    private UUID[] uuids;
+    private String[] names;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+        Logger logger = Logger.getLogger("StatFlushBenchmark");
+        journalDir = Files.createTempDirectory("smp-journal");
+        pool = new ConnectionPool("bench", new PoolSettings(
+                "jdbc:h2:mem:stats" + players + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1",
+                "sa", "", 4, 5000, 30_000, 600_000, 32), logger);
+        journal = new StatJournal(journalDir, 1 << 20, 200, logger);
+        accumulator = new StatAccumulator(pool, journal, logger);
+
+        uuids = new UUID[players];
+        names = new String[players];
+        try (PooledConnection conn = pool.borrow();
+             Statement stmt = conn.createStatement()) {
+            // player_stats as PlayerStatsSchema leaves it; its migrations use MySQL-only DDL
+            stmt.execute("CREATE TABLE IF NOT EXISTS player_stats (" +
+                    "uuid BINARY(16) PRIMARY KEY," +
+                    "id INT AUTO_INCREMENT UNIQUE," +
+                    "username VARCHAR(16) NOT NULL," +
+                    "playtime_hours DECIMAL(10,2) DEFAULT 0," +
+                    "kills INT DEFAULT 0," +
+                    "deaths INT DEFAULT 0," +
+                    "verification_key VARCHAR(6)," +
+                    "player_uuid VARCHAR(36))");
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_player_stats_username ON player_stats (username)");
+            stmt.execute("CREATE TABLE IF NOT EXISTS stat_journal_ack (" +
+                    "journal_id VARCHAR(36) PRIMARY KEY," +
+                    "last_seq BIGINT NOT NULL)");
+            PreparedStatement insert = conn.prepare("INSERT INTO player_stats (uuid, username, player_uuid) VALUES (?, ?, ?)");
+            for (int i = 0; i < players; i++) {
+                uuids[i] = UUID.randomUUID();
+                names[i] = "player" + i;
+                insert.setBytes(1, PlayerStatsSchema.uuidBytes(uuids[i]));
+                insert.setString(2, names[i]);
+                insert.setString(3, uuids[i].toString());
+                insert.executeUpdate();
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        journal.close();
+        pool.close();
+        try (Stream<Path> files = Files.walk(journalDir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public boolean accumulateAndFlush() {
+        for (int i = 0; i < players; i++) {
+            for (int k = 0; k < killsPerPlayer; k++) {
+                accumulator.recordKill(uuids[i], names[i]);
+            }
+            accumulator.recordDeath(uuids[i], names[i]);
+        }
+        // A failed flush keeps its deltas, so timing one would measure an ever-growing backlog
+        if (!accumulator.write(accumulator.snapshot(true))) {
+            throw new IllegalStateException("Stat flush failed; see the log");
+        }
+        return true;
+    }
+
+    @Benchmark
+    public int updatePerEvent() throws SQLException {
+        int rows = 0;
+        for (int i = 0; i < players; i++) {
+            for (int k = 0; k < killsPerPlayer; k++) {
+                rows += update("UPDATE player_stats SET kills = kills + 1 WHERE username = ?", names[i]);
+            }
+            rows += update("UPDATE player_stats SET deaths = deaths + 1 WHERE username = ?", names[i]);
+        }
+        return rows;
+    }
+
+    private int update(String sql, String username) throws SQLException {
+        // Borrow per event, like each async handler task did
+        try (PooledConnection conn = pool.borrow()) {
+            PreparedStatement stmt = conn.prepare(sql);
+            stmt.setString(1, username);
+            return stmt.executeUpdate();
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.smp.common.db;
+
+import com.smp.common.metrics.LatencyHistogram;
+import com.smp.common.metrics.Metrics;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Small JDBC connection pool shared by the SMP plugins.
+ *
+ * Connections are handed out most-recently-used first, pinged before reuse
+ * once they have sat idle, and closed by a background evictor after the idle
+ * timeout. A connection that dies (MySQL wait_timeout, network drop) is simply
+ * replaced on the next borrow, so no restart is needed after an outage.
+ */
+public final class ConnectionPool implements AutoCloseable {
+
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+    private final PoolSettings settings;
+    private final Logger logger;
+    private final Semaphore permits;
+    private final ConcurrentLinkedDeque<PooledConnection> idle = new ConcurrentLinkedDeque<>();
+    private final ScheduledExecutorService evictor;
+
+    private volatile boolean closed;
+    private volatile LatencyHistogram borrowWait;
+
+    private final AtomicInteger open = new AtomicInteger();
+    private final AtomicLong borrows = new AtomicLong();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong validationFailures = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    public ConnectionPool(String name, PoolSettings settings, Logger logger) {
+        this.settings = settings;
+        this.logger = logger;
+        this.permits = new Semaphore(settings.maxSize(), true);
+        this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, name + "-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1000, settings.idleTimeoutMillis() / 2);
+        evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Borrow a connection, waiting up to the configured borrow timeout when
+     * the pool is exhausted. Close the returned connection to give it back.
+     */
+    public PooledConnection borrow() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(settings.borrowTimeoutMillis(), TimeUnit.MILLISECONDS)) {
+                timeouts.incrementAndGet();
+                throw new SQLTransientConnectionException(
+                        "Timed out after " + settings.borrowTimeoutMillis() + "ms waiting for a database connection");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", e);
+        }
+
+        try {
+            PooledConnection conn;
+            while ((conn = idle.pollFirst()) != null) {
+                if (conn.idleMillis(System.currentTimeMillis()) < settings.validateAfterMillis()
+                        || conn.validate(VALIDATION_TIMEOUT_SECONDS)) {
+                    break;
+                }
+                validationFailures.incrementAndGet();
+                logger.info("Discarding stale database connection");
+                discard(conn);
+            }
+            if (conn == null) {
+                conn = open();
+            }
+            conn.onBorrow();
+            borrows.incrementAndGet();
+            LatencyHistogram wait = borrowWait;
+            if (wait != null) {
+                wait.recordSince(start);
+            }
+            return conn;
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    void release(PooledConnection conn) {
+        try {
+            if (!closed && conn.reset()) {
+                idle.offerFirst(conn);
+            } else {
+                discard(conn);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Report borrow latency (waiting for a permit plus validating or opening
+     * the connection), pool occupancy and failure counts.
+     */
+    public void instrument(Metrics metrics) {
+        metrics.gauge("pool_connections", "open", open::get);
+        metrics.gauge("pool_connections", "idle", idle::size);
+        metrics.gauge("pool_connections", "waiting", permits::getQueueLength);
+        metrics.counter("pool_events", "borrows", borrows::get);
+        metrics.counter("pool_events", "connects", created::get);
+        metrics.counter("errors", "pool_borrow_timeout", timeouts::get);
+        metrics.counter("errors", "pool_validation", validationFailures::get);
+        borrowWait = metrics.timer("pool", "borrow");
+    }
+
+    public List<String> describeMetrics() {
+        List<String> lines = new ArrayList<>();
+        lines.add("Pool: " + open.get() + " open, " + idle.size() + " idle, max " + settings.maxSize());
+        lines.add("Borrows: " + borrows.get() + ", connects: " + created.get() + ", timeouts: " + timeouts.get());
+        lines.add("Validation failures: " + validationFailures.get() + ", idle evictions: " + evicted.get());
+        return lines;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        evictor.shutdownNow();
+        PooledConnection conn;
+        while ((conn = idle.pollFirst()) != null) {
+            discard(conn);
+        }
+    }
+
+    private PooledConnection open() throws SQLException {
+        Connection raw = DriverManager.getConnection(settings.url(), settings.user(), settings.password());
+        open.incrementAndGet();
+        created.incrementAndGet();
+        return new PooledConnection(this, raw, settings.statementCacheSize());
+    }
+
+    private void discard(PooledConnection conn) {
+        conn.destroy();
+        open.decrementAndGet();
+    }
+
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        // Oldest connections sit at the tail because borrow and release work the head
+        Iterator<PooledConnection> it = idle.descendingIterator();
+        while (it.hasNext()) {
+            PooledConnection conn = it.next();
+            if (conn.idleMillis(now) < settings.idleTimeoutMillis()) {
+                break;
+            }
+            if (idle.removeLastOccurrence(conn)) {
+                discard(conn);
+                evicted.incrementAndGet();
+            }
+        }
+    }
+}
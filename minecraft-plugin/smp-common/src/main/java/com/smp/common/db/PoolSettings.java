@@ -0,0 +1,36 @@
+package com.smp.common.db;
+
+/**
+ * Connection pool configuration.
+ *
+ * @param maxSize             maximum number of open connections
+ * @param borrowTimeoutMillis how long {@link ConnectionPool#borrow()} waits for a free connection
+ * @param validateAfterMillis connections idle for at least this long are pinged before being handed out
+ * @param idleTimeoutMillis   idle connections older than this are closed by the evictor
+ * @param statementCacheSize  prepared statements cached per connection; at least 1
+ */
+public record PoolSettings(
+        String url,
+        String user,
+        String password,
+        int maxSize,
+        long borrowTimeoutMillis,
+        long validateAfterMillis,
+        long idleTimeoutMillis,
+        int statementCacheSize) {
+
+    public PoolSettings {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be at least 1");
+        }
+        // prepare() hands out statements the cache owns, so there has to be room for at least the newest
+        if (statementCacheSize < 1) {
+            throw new IllegalArgumentException("statementCacheSize must be at least 1");
+        }
+    }
+
+    public static String mysqlUrl(String host, Object port, String database) {
+        return "jdbc:mysql://" + host + ":" + port + "/" + database
+                + "?rewriteBatchedStatements=true&tcpKeepAlive=true";
+    }
+}
@@ -0,0 +1,171 @@
+package com.smp.common.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A connection borrowed from a {@link ConnectionPool}. Closing it returns the
+ * underlying JDBC connection to the pool instead of closing the socket.
+ */
+public final class PooledConnection implements AutoCloseable {
+
+    private final ConnectionPool pool;
+    private final Connection connection;
+    private final Map<String, PreparedStatement> statements;
+
+    private volatile long lastUsed = System.currentTimeMillis();
+    private boolean borrowed;
+    private boolean broken;
+
+    PooledConnection(ConnectionPool pool, Connection connection, int statementCacheSize) {
+        this.pool = pool;
+        this.connection = connection;
+        this.statements = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() <= statementCacheSize) {
+                    return false;
+                }
+                closeQuietly(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Returns a cached prepared statement for this connection. The statement
+     * belongs to the cache: callers must not close it.
+     */
+    public PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement stmt = statements.get(sql);
+        if (stmt == null || stmt.isClosed()) {
+            stmt = connection.prepareStatement(sql);
+            statements.put(sql, stmt);
+        } else {
+            stmt.clearParameters();
+            stmt.clearBatch();
+        }
+        return stmt;
+    }
+
+    /**
+     * A plain statement for DDL and one-off queries. Unlike {@link #prepare},
+     * the caller owns and closes it.
+     */
+    public Statement createStatement() throws SQLException {
+        return connection.createStatement();
+    }
+
+    public void setAutoCommit(boolean autoCommit) throws SQLException {
+        connection.setAutoCommit(autoCommit);
+    }
+
+    public void commit() throws SQLException {
+        connection.commit();
+    }
+
+    public void rollback() {
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            broken = true;
+        }
+    }
+
+    /**
+     * The underlying JDBC connection, for APIs that need it directly. It must
+     * not be closed or kept after this wrapper is closed.
+     */
+    public Connection raw() {
+        return connection;
+    }
+
+    /** Discard this connection instead of returning it to the pool. */
+    public void markBroken() {
+        broken = true;
+    }
+
+    /**
+     * Inspect a failure from this connection and mark it broken when the
+     * error means the link itself is gone rather than the statement failing.
+     */
+    public void onError(SQLException e) {
+        String state = e.getSQLState();
+        if (e instanceof SQLRecoverableException
+                || e instanceof SQLNonTransientConnectionException
+                || (state != null && state.startsWith("08"))) {
+            broken = true;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (borrowed) {
+            borrowed = false;
+            pool.release(this);
+        }
+    }
+
+    void onBorrow() {
+        borrowed = true;
+    }
+
+    /** Restore pool defaults; returns false if the connection should be discarded. */
+    boolean reset() {
+        if (broken) {
+            return false;
+        }
+        try {
+            if (connection.isClosed()) {
+                return false;
+            }
+            if (!connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+            connection.clearWarnings();
+            lastUsed = System.currentTimeMillis();
+            return true;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    boolean validate(int timeoutSeconds) {
+        try {
+            return connection.isValid(timeoutSeconds);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    long idleMillis(long now) {
+        return now - lastUsed;
+    }
+
+    void destroy() {
+        for (PreparedStatement stmt : statements.values()) {
+            closeQuietly(stmt);
+        }
+        statements.clear();
+        try {
+            connection.close();
+        } catch (SQLException ignored) {
+            // Already dead, nothing to release
+        }
+    }
+
+    private static void closeQuietly(Statement stmt) {
+        try {
+            stmt.close();
+        } catch (SQLException ignored) {
+            // Closing a cached statement only frees driver resources
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.smp.common.inventory;
+
+import com.smp.common.metrics.Metrics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Where encoded inventory payloads are kept, keyed by player UUID and group.
+ *
+ * Payloads are opaque {@link InventoryCodec} bytes; backends only store
+ * them. Implementations must be safe to call from several threads, though
+ * {@link InventoryIO} never runs two tasks for the same player at once.
+ * {@link InventoryBackends#open} picks one from the plugin config.
+ */
+public interface InventoryBackend extends Closeable {
+
+    /** The newest payload for the key, or null if none was ever stored. */
+    byte[] get(UUID uuid, String group) throws IOException;
+
+    /** Every group stored for the player; empty if none. */
+    Map<String, byte[]> getAll(UUID uuid) throws IOException;
+
+    boolean contains(UUID uuid, String group) throws IOException;
+
+    /** @return false if the backend could tell nothing changed and skipped the write */
+    boolean put(UUID uuid, String group, byte[] payload) throws IOException;
+
+    /**
+     * Store several groups for one player at once.
+     *
+     * @return number of groups written
+     */
+    int putAll(UUID uuid, Map<String, byte[]> groups) throws IOException;
+
+    /** Bulk load many players, in as few writes as the backend allows. */
+    void importAll(Map<UUID, Map<String, byte[]>> players) throws IOException;
+
+    void instrument(Metrics metrics);
+
+    List<String> describeMetrics();
+}
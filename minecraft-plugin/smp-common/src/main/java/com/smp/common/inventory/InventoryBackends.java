@@ -0,0 +1,80 @@
+package com.smp.common.inventory;
+
+import com.smp.common.db.ConnectionPool;
+import com.smp.common.db.PoolSettings;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.MemoryConfiguration;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.logging.Logger;
+
+/**
+ * Opens the {@link InventoryBackend} named by a plugin's {@code storage}
+ * config section:
+ *
+ * <pre>
+ * storage:
+ *   backend: file        # file, sqlite or mysql
+ *   segment-mb: 16       # file: segment files under inventories/store
+ *   sqlite:
+ *     file: "inventories/inventories.db"
+ *   mysql:
+ *     host: localhost
+ *     port: 3306
+ *     database: minecraft
+ *     username: root
+ *     password: ""
+ *     pool-size: 4
+ * </pre>
+ *
+ * Relative paths are resolved against the plugin folder. The JDBC drivers
+ * are the ones the server already ships.
+ */
+public final class InventoryBackends {
+
+    private InventoryBackends() {
+    }
+
+    public static InventoryBackend open(ConfigurationSection storage, Path pluginFolder, Logger logger) throws IOException {
+        if (storage == null) {
+            storage = new MemoryConfiguration();
+        }
+        String backend = storage.getString("backend", "file").toLowerCase(Locale.ROOT);
+        switch (backend) {
+            case "file":
+                return new InventoryStore(
+                        pluginFolder.resolve("inventories").resolve("store"),
+                        storage.getLong("segment-mb", 16) * 1024 * 1024,
+                        storage.getDouble("compact-below-live-ratio", 0.5),
+                        storage.getLong("compact-interval-seconds", 300) * 1000,
+                        logger);
+            case "sqlite": {
+                Path file = pluginFolder.resolve(storage.getString("sqlite.file", "inventories/inventories.db"));
+                Files.createDirectories(file.toAbsolutePath().getParent());
+                // SQLite takes one writer at a time, so a single connection avoids busy errors
+                PoolSettings settings = new PoolSettings("jdbc:sqlite:" + file.toAbsolutePath(), null, null,
+                        1, 5000, 60000, 600000, 16);
+                return new JdbcInventoryBackend(new ConnectionPool("Inventory-SQLite", settings, logger),
+                        JdbcInventoryBackend.Dialect.SQLITE);
+            }
+            case "mysql": {
+                PoolSettings settings = new PoolSettings(
+                        PoolSettings.mysqlUrl(
+                                storage.getString("mysql.host", "localhost"),
+                                storage.getString("mysql.port", "3306"),
+                                storage.getString("mysql.database", "minecraft")),
+                        storage.getString("mysql.username", "root"),
+                        storage.getString("mysql.password", ""),
+                        storage.getInt("mysql.pool-size", 4),
+                        5000, 1000, 600000, 16);
+                return new JdbcInventoryBackend(new ConnectionPool("Inventory-MySQL", settings, logger),
+                        JdbcInventoryBackend.Dialect.MYSQL);
+            }
+            default:
+                throw new IOException("Unknown inventory storage backend '" + backend + "', expected file, sqlite or mysql");
+        }
+    }
+}
@@ -0,0 +1,556 @@
+package com.smp.common.inventory;
+
+import org.bukkit.GameMode;
+import org.bukkit.Material;
+import org.bukkit.configuration.serialization.ConfigurationSerializable;
+import org.bukkit.configuration.serialization.ConfigurationSerialization;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.potion.PotionEffect;
+import org.bukkit.potion.PotionEffectType;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Versioned binary format for {@link InventorySnapshot}s.
+ *
+ * <pre>
+ * header:  magic "SMPI" | version u8 | kind u8 (snapshot, group map or item) | flags u8 (bit 0: deflate)
+ * body:    vitals, contents, armor, offhand, effects
+ * item:    0 = empty | 1 = material + amount | 2 = full ItemStack.serialize() tree
+ * </pre>
+ *
+ * Items without meta, the bulk of any inventory, cost a string-table index
+ * and a varint. Items with meta keep every field of the Bukkit serialized
+ * form, written as tagged values rather than Java serialization. Strings are
+ * interned per payload, so repeated materials and meta keys are written once.
+ */
+public final class InventoryCodec {
+
+    public static final int VERSION = 1;
+
+    private static final int MAGIC = 0x534D5049; // "SMPI"
+    private static final int KIND_SNAPSHOT = 0;
+    private static final int KIND_GROUPS = 1;
+    private static final int KIND_ITEM = 2;
+    private static final int FLAG_DEFLATE = 1;
+
+    private static final int ITEM_EMPTY = 0;
+    private static final int ITEM_PLAIN = 1;
+    private static final int ITEM_FULL = 2;
+
+    private static final int TAG_NULL = 0;
+    private static final int TAG_STRING = 1;
+    private static final int TAG_INT = 2;
+    private static final int TAG_LONG = 3;
+    private static final int TAG_DOUBLE = 4;
+    private static final int TAG_FLOAT = 5;
+    private static final int TAG_TRUE = 6;
+    private static final int TAG_FALSE = 7;
+    private static final int TAG_LIST = 8;
+    private static final int TAG_MAP = 9;
+    private static final int TAG_SERIALIZABLE = 10;
+    private static final int TAG_SHORT = 11;
+    private static final int TAG_BYTE = 12;
+
+    private static final Set<String> PLAIN_ITEM_KEYS = Set.of("v", "type", "amount");
+
+    /**
+     * A snapshot in Bukkit's serialized form, as the old per-group files held
+     * it: ItemStack.serialize() maps for items, null for empty slots.
+     *
+     * @param effects active effects, or null when effects are not managed
+     */
+    public record Serialized(
+            List<Map<String, Object>> contents,
+            List<Map<String, Object>> armor,
+            Map<String, Object> offHand,
+            List<Effect> effects,
+            double health,
+            int foodLevel,
+            float saturation,
+            float exp,
+            int level,
+            String gameMode) {
+    }
+
+    /** A potion effect by its PotionEffectType name, e.g. SPEED. */
+    public record Effect(String type, int duration, int amplifier, boolean ambient, boolean particles, boolean icon) {
+    }
+
+    private final int compressionThreshold;
+
+    /**
+     * @param compressionThreshold bodies at least this many bytes are deflated;
+     *                             a negative value disables compression
+     */
+    public InventoryCodec(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /** True if the bytes start with this codec's header rather than a legacy format. */
+    public static boolean isEncoded(byte[] data) {
+        return data.length >= 7
+                && ((data[0] & 0xFF) << 24 | (data[1] & 0xFF) << 16 | (data[2] & 0xFF) << 8 | (data[3] & 0xFF)) == MAGIC;
+    }
+
+    public byte[] encode(InventorySnapshot snapshot) {
+        Writer body = new Writer();
+        try {
+            body.snapshot(snapshot);
+            return frame(KIND_SNAPSHOT, body);
+        } catch (IOException e) {
+            throw new IllegalStateException("In-memory encoding failed", e);
+        }
+    }
+
+    /**
+     * Encode a snapshot from its serialized form without building ItemStacks
+     * or looking up effect types, so it works without a running server. The
+     * result decodes exactly like {@link #encode}'s.
+     */
+    public byte[] encodeSerialized(Serialized snapshot) {
+        Writer body = new Writer();
+        try {
+            body.serialized(snapshot);
+            return frame(KIND_SNAPSHOT, body);
+        } catch (IOException e) {
+            throw new IllegalStateException("In-memory encoding failed", e);
+        }
+    }
+
+    public InventorySnapshot decode(byte[] data) throws IOException {
+        return open(data, KIND_SNAPSHOT).snapshot();
+    }
+
+    public byte[] encodeGroups(Map<String, InventorySnapshot> groups) {
+        Writer body = new Writer();
+        try {
+            body.varInt(groups.size());
+            for (Map.Entry<String, InventorySnapshot> entry : groups.entrySet()) {
+                body.string(entry.getKey());
+                body.snapshot(entry.getValue());
+            }
+            return frame(KIND_GROUPS, body);
+        } catch (IOException e) {
+            throw new IllegalStateException("In-memory encoding failed", e);
+        }
+    }
+
+    public Map<String, InventorySnapshot> decodeGroups(byte[] data) throws IOException {
+        Reader in = open(data, KIND_GROUPS);
+        int count = in.varInt();
+        Map<String, InventorySnapshot> groups = new HashMap<>(Math.max(4, count * 2));
+        for (int i = 0; i < count; i++) {
+            groups.put(in.string(), in.snapshot());
+        }
+        return groups;
+    }
+
+    /**
+     * One item stack on its own, with its own string table, so equal stacks
+     * always encode to equal bytes. Null or air encodes an empty slot.
+     */
+    public byte[] encodeItem(ItemStack item) {
+        Writer body = new Writer();
+        try {
+            body.item(item);
+            return frame(KIND_ITEM, body);
+        } catch (IOException e) {
+            throw new IllegalStateException("In-memory encoding failed", e);
+        }
+    }
+
+    /** @return the item, or null for an empty slot */
+    public ItemStack decodeItem(byte[] data) throws IOException {
+        return open(data, KIND_ITEM).item();
+    }
+
+    private byte[] frame(int kind, Writer body) throws IOException {
+        byte[] raw = body.bytes.toByteArray();
+        boolean deflate = compressionThreshold >= 0 && raw.length >= compressionThreshold;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length + 8);
+        DataOutputStream header = new DataOutputStream(out);
+        header.writeInt(MAGIC);
+        header.writeByte(VERSION);
+        header.writeByte(kind);
+        header.writeByte(deflate ? FLAG_DEFLATE : 0);
+        if (!deflate) {
+            out.write(raw);
+            return out.toByteArray();
+        }
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (DeflaterOutputStream compressed = new DeflaterOutputStream(out, deflater)) {
+            compressed.write(raw);
+        } finally {
+            deflater.end();
+        }
+        return out.toByteArray();
+    }
+
+    private static Reader open(byte[] data, int expectedKind) throws IOException {
+        if (!isEncoded(data)) {
+            throw new IOException("Not an encoded inventory snapshot");
+        }
+        int version = data[4] & 0xFF;
+        if (version > VERSION) {
+            throw new IOException("Inventory snapshot version " + version + " is newer than supported " + VERSION);
+        }
+        int kind = data[5] & 0xFF;
+        if (kind != expectedKind) {
+            throw new IOException("Expected payload kind " + expectedKind + " but found " + kind);
+        }
+        InputStream body = new ByteArrayInputStream(data, 7, data.length - 7);
+        if ((data[6] & FLAG_DEFLATE) != 0) {
+            body = new InflaterInputStream(body);
+        }
+        return new Reader(body);
+    }
+
+    private static final class Writer {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        final Map<String, Integer> strings = new HashMap<>();
+
+        void snapshot(InventorySnapshot s) throws IOException {
+            out.writeDouble(s.health());
+            varInt(s.foodLevel());
+            out.writeFloat(s.saturation());
+            out.writeFloat(s.exp());
+            varInt(s.level());
+            string(s.gameMode().name());
+            items(s.contents());
+            items(s.armor());
+            item(s.offHand());
+            effects(s.effects());
+        }
+
+        void serialized(Serialized s) throws IOException {
+            out.writeDouble(s.health());
+            varInt(s.foodLevel());
+            out.writeFloat(s.saturation());
+            out.writeFloat(s.exp());
+            varInt(s.level());
+            string(s.gameMode());
+            serializedItems(s.contents());
+            serializedItems(s.armor());
+            serializedItem(s.offHand());
+            if (s.effects() == null) {
+                varInt(0);
+                return;
+            }
+            varInt(s.effects().size() + 1);
+            for (Effect effect : s.effects()) {
+                string(effect.type());
+                signedVarInt(effect.duration());
+                varInt(effect.amplifier());
+                out.writeByte((effect.ambient() ? 1 : 0) | (effect.particles() ? 2 : 0) | (effect.icon() ? 4 : 0));
+            }
+        }
+
+        void serializedItems(List<Map<String, Object>> items) throws IOException {
+            varInt(items.size());
+            for (Map<String, Object> item : items) {
+                serializedItem(item);
+            }
+        }
+
+        /** Same layout as {@link #item}: a map with only type and amount is a plain item. */
+        void serializedItem(Map<String, Object> item) throws IOException {
+            Object type = item == null ? null : item.get("type");
+            if (type == null || "AIR".equals(type)) {
+                out.writeByte(ITEM_EMPTY);
+            } else if (PLAIN_ITEM_KEYS.containsAll(item.keySet())) {
+                out.writeByte(ITEM_PLAIN);
+                string(type.toString());
+                varInt(item.get("amount") instanceof Number amount ? amount.intValue() : 1);
+            } else {
+                out.writeByte(ITEM_FULL);
+                value(item);
+            }
+        }
+
+        void items(ItemStack[] items) throws IOException {
+            varInt(items.length);
+            for (ItemStack item : items) {
+                item(item);
+            }
+        }
+
+        void item(ItemStack item) throws IOException {
+            if (item == null || item.getType() == Material.AIR) {
+                out.writeByte(ITEM_EMPTY);
+            } else if (!item.hasItemMeta()) {
+                out.writeByte(ITEM_PLAIN);
+                string(item.getType().name());
+                varInt(item.getAmount());
+            } else {
+                out.writeByte(ITEM_FULL);
+                value(item.serialize());
+            }
+        }
+
+        void effects(List<PotionEffect> effects) throws IOException {
+            // Count is offset by one so that zero can mean "effects not managed"
+            if (effects == null) {
+                varInt(0);
+                return;
+            }
+            varInt(effects.size() + 1);
+            for (PotionEffect effect : effects) {
+                string(effect.getType().getName());
+                signedVarInt(effect.getDuration());
+                varInt(effect.getAmplifier());
+                out.writeByte((effect.isAmbient() ? 1 : 0) | (effect.hasParticles() ? 2 : 0) | (effect.hasIcon() ? 4 : 0));
+            }
+        }
+
+        void value(Object value) throws IOException {
+            if (value == null) {
+                out.writeByte(TAG_NULL);
+            } else if (value instanceof String s) {
+                out.writeByte(TAG_STRING);
+                string(s);
+            } else if (value instanceof Integer i) {
+                out.writeByte(TAG_INT);
+                signedVarInt(i);
+            } else if (value instanceof Boolean b) {
+                out.writeByte(b ? TAG_TRUE : TAG_FALSE);
+            } else if (value instanceof Double d) {
+                out.writeByte(TAG_DOUBLE);
+                out.writeDouble(d);
+            } else if (value instanceof Long l) {
+                out.writeByte(TAG_LONG);
+                out.writeLong(l);
+            } else if (value instanceof Float f) {
+                out.writeByte(TAG_FLOAT);
+                out.writeFloat(f);
+            } else if (value instanceof Short s) {
+                out.writeByte(TAG_SHORT);
+                out.writeShort(s);
+            } else if (value instanceof Byte b) {
+                out.writeByte(TAG_BYTE);
+                out.writeByte(b);
+            } else if (value instanceof List<?> list) {
+                out.writeByte(TAG_LIST);
+                varInt(list.size());
+                for (Object element : list) {
+                    value(element);
+                }
+            } else if (value instanceof Map<?, ?> map) {
+                out.writeByte(TAG_MAP);
+                map(map);
+            } else if (value instanceof ConfigurationSerializable serializable) {
+                out.writeByte(TAG_SERIALIZABLE);
+                string(ConfigurationSerialization.getAlias(serializable.getClass()));
+                map(serializable.serialize());
+            } else {
+                throw new IOException("Cannot encode " + value.getClass().getName());
+            }
+        }
+
+        void map(Map<?, ?> map) throws IOException {
+            varInt(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                string(String.valueOf(entry.getKey()));
+                value(entry.getValue());
+            }
+        }
+
+        /** Index into the payload string table, or 0 followed by a new string. */
+        void string(String s) throws IOException {
+            Integer index = strings.get(s);
+            if (index != null) {
+                varInt(index);
+                return;
+            }
+            strings.put(s, strings.size() + 1);
+            varInt(0);
+            out.writeUTF(s);
+        }
+
+        void varInt(int value) throws IOException {
+            while ((value & ~0x7F) != 0) {
+                out.writeByte((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.writeByte(value);
+        }
+
+        void signedVarInt(int value) throws IOException {
+            varInt((value << 1) ^ (value >> 31));
+        }
+    }
+
+    private static final class Reader {
+        final DataInputStream in;
+        final List<String> strings = new ArrayList<>();
+
+        Reader(InputStream in) {
+            this.in = new DataInputStream(in);
+        }
+
+        InventorySnapshot snapshot() throws IOException {
+            double health = in.readDouble();
+            int food = varInt();
+            float saturation = in.readFloat();
+            float exp = in.readFloat();
+            int level = varInt();
+            GameMode gameMode = GameMode.valueOf(string());
+            ItemStack[] contents = items();
+            ItemStack[] armor = items();
+            ItemStack offHand = item();
+            List<PotionEffect> effects = effects();
+            return new InventorySnapshot(contents, armor, offHand, effects, health, food, saturation, exp, level, gameMode);
+        }
+
+        ItemStack[] items() throws IOException {
+            ItemStack[] items = new ItemStack[varInt()];
+            for (int i = 0; i < items.length; i++) {
+                items[i] = item();
+            }
+            return items;
+        }
+
+        @SuppressWarnings("unchecked")
+        ItemStack item() throws IOException {
+            int kind = in.readUnsignedByte();
+            switch (kind) {
+                case ITEM_EMPTY:
+                    return null;
+                case ITEM_PLAIN: {
+                    String name = string();
+                    int amount = varInt();
+                    Material material = Material.getMaterial(name);
+                    if (material == null) {
+                        throw new IOException("Unknown material " + name);
+                    }
+                    return new ItemStack(material, amount);
+                }
+                case ITEM_FULL:
+                    return ItemStack.deserialize((Map<String, Object>) value());
+                default:
+                    throw new IOException("Unknown item kind " + kind);
+            }
+        }
+
+        List<PotionEffect> effects() throws IOException {
+            int count = varInt() - 1;
+            if (count < 0) {
+                return null;
+            }
+            List<PotionEffect> effects = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String typeName = string();
+                int duration = signedVarInt();
+                int amplifier = varInt();
+                int flags = in.readUnsignedByte();
+                PotionEffectType type = PotionEffectType.getByName(typeName);
+                if (type != null) {
+                    effects.add(new PotionEffect(type, duration, amplifier,
+                            (flags & 1) != 0, (flags & 2) != 0, (flags & 4) != 0));
+                }
+            }
+            return effects;
+        }
+
+        Object value() throws IOException {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+                case TAG_NULL:
+                    return null;
+                case TAG_STRING:
+                    return string();
+                case TAG_INT:
+                    return signedVarInt();
+                case TAG_TRUE:
+                    return Boolean.TRUE;
+                case TAG_FALSE:
+                    return Boolean.FALSE;
+                case TAG_DOUBLE:
+                    return in.readDouble();
+                case TAG_LONG:
+                    return in.readLong();
+                case TAG_FLOAT:
+                    return in.readFloat();
+                case TAG_SHORT:
+                    return in.readShort();
+                case TAG_BYTE:
+                    return in.readByte();
+                case TAG_LIST: {
+                    int size = varInt();
+                    List<Object> list = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++) {
+                        list.add(value());
+                    }
+                    return list;
+                }
+                case TAG_MAP:
+                    return map();
+                case TAG_SERIALIZABLE: {
+                    String alias = string();
+                    Map<String, Object> fields = map();
+                    fields.put(ConfigurationSerialization.SERIALIZED_TYPE_KEY, alias);
+                    return ConfigurationSerialization.deserializeObject(fields);
+                }
+                default:
+                    throw new IOException("Unknown value tag " + tag);
+            }
+        }
+
+        Map<String, Object> map() throws IOException {
+            int size = varInt();
+            Map<String, Object> map = new LinkedHashMap<>(Math.max(4, size * 2));
+            for (int i = 0; i < size; i++) {
+                String key = string();
+                map.put(key, value());
+            }
+            return map;
+        }
+
+        String string() throws IOException {
+            int index = varInt();
+            if (index == 0) {
+                String s = in.readUTF();
+                strings.add(s);
+                return s;
+            }
+            if (index > strings.size()) {
+                throw new IOException("String table index " + index + " out of range");
+            }
+            return strings.get(index - 1);
+        }
+
+        int varInt() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = in.readUnsignedByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        int signedVarInt() throws IOException {
+            int raw = varInt();
+            return (raw >>> 1) ^ -(raw & 1);
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package com.smp.common.inventory;
+
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Moves the per-player files of every earlier layout into an
+ * {@link InventoryBackend}:
+ *
+ * <ul>
+ *     <li>{@code <uuid>.dat} and {@code <uuid>_<group>.yml}, read by {@link LegacyInventoryFiles}</li>
+ *     <li>{@code <uuid>.inv} (all groups) and {@code <uuid>_<group>.inv} (one group), already in the codec format</li>
+ * </ul>
+ *
+ * Files are read and encoded on a pool of worker threads while the calling
+ * thread writes what they produce in bulk imports, so conversion runs on
+ * every core and the backend sees a few large writes. Each file is moved
+ * into the archive folder once its batch is written; unreadable files are
+ * left in place and picked up again next time. Groups the backend already
+ * holds are not overwritten, as they were saved after the file.
+ *
+ * The plugins run this at startup. For large data folders, run it offline
+ * first through {@link #main}, which reads the backend from the plugin's
+ * config.yml and logs progress and throughput as it goes.
+ */
+public final class InventoryConverter {
+
+    /**
+     * @param files   legacy files converted and archived
+     * @param players distinct players imported
+     * @param groups  groups written to the backend
+     * @param skipped groups left alone because the backend already had them
+     * @param failed  files that could not be read
+     * @param bytes   size of the files read
+     */
+    public record Result(int files, int players, int groups, int skipped, int failed, long bytes, long millis) {
+
+        public String describe() {
+            double seconds = Math.max(millis, 1) / 1000.0;
+            return String.format("Converted %d inventory files (%d players, %d groups, %d already stored) in %.1fs: "
+                            + "%.0f files/s, %.1f MiB/s%s",
+                    files, players, groups, skipped, seconds, files / seconds, bytes / seconds / (1024 * 1024),
+                    failed > 0 ? ", " + failed + " unreadable files left in place" : "");
+        }
+    }
+
+    private record Converted(Path file, UUID uuid, Map<String, byte[]> groups, int skipped, long bytes) {
+    }
+
+    private static final long POLL_MILLIS = 100;
+    private static final long PROGRESS_INTERVAL_MILLIS = 5000;
+    private static final int BATCH_PLAYERS = 256;
+
+    private InventoryConverter() {
+    }
+
+    /**
+     * Convert every legacy file directly inside {@code folder}.
+     *
+     * @param archive where converted files are moved
+     * @param threads workers reading and encoding files
+     * @throws IOException if the backend fails; files not yet written stay in place
+     */
+    public static Result convert(Path folder, InventoryBackend backend, InventoryCodec codec, Path archive,
+                                 int threads, Logger logger) throws IOException {
+        long started = System.currentTimeMillis();
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder, "*.{dat,yml,inv}")) {
+            for (Path file : stream) {
+                if (Files.isRegularFile(file)) {
+                    files.add(file);
+                }
+            }
+        }
+        if (files.isEmpty()) {
+            return new Result(0, 0, 0, 0, 0, 0, 0);
+        }
+        Files.createDirectories(archive);
+
+        int workers = Math.max(1, Math.min(threads, files.size()));
+        // Bounded, so readers wait for the writer instead of holding the whole folder in memory
+        BlockingQueue<Converted> converted = new ArrayBlockingQueue<>(workers * BATCH_PLAYERS);
+        AtomicInteger finished = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        AtomicInteger counter = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(workers, r -> {
+            Thread thread = new Thread(r, "InventoryConverter-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (Path file : files) {
+            pool.execute(() -> {
+                try {
+                    converted.put(convertFile(file, backend, codec));
+                } catch (IOException | RuntimeException e) {
+                    failed.incrementAndGet();
+                    logger.warning("Skipping unreadable inventory file " + file.getFileName() + ": " + e.getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    finished.incrementAndGet();
+                }
+            });
+        }
+        pool.shutdown();
+
+        Set<UUID> players = new HashSet<>();
+        int done = 0;
+        int groups = 0;
+        int skipped = 0;
+        long bytes = 0;
+        long nextProgress = started + PROGRESS_INTERVAL_MILLIS;
+        List<Converted> batch = new ArrayList<>(BATCH_PLAYERS);
+        try {
+            while (finished.get() < files.size() || !converted.isEmpty()) {
+                Converted first = converted.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    converted.drainTo(batch, BATCH_PLAYERS - 1);
+
+                    Map<UUID, Map<String, byte[]>> writes = new HashMap<>();
+                    for (Converted file : batch) {
+                        writes.computeIfAbsent(file.uuid(), k -> new HashMap<>()).putAll(file.groups());
+                    }
+                    backend.importAll(writes);
+                    for (Converted file : batch) {
+                        Files.move(file.file(), archive.resolve(file.file().getFileName()), StandardCopyOption.REPLACE_EXISTING);
+                        players.add(file.uuid());
+                        groups += file.groups().size();
+                        skipped += file.skipped();
+                        bytes += file.bytes();
+                        done++;
+                    }
+                    batch.clear();
+                }
+                long now = System.currentTimeMillis();
+                if (now >= nextProgress) {
+                    nextProgress = now + PROGRESS_INTERVAL_MILLIS;
+                    double seconds = (now - started) / 1000.0;
+                    logger.info(String.format("Converted %d/%d inventory files, %.0f files/s, %.1f MiB/s",
+                            done, files.size(), done / seconds, bytes / seconds / (1024 * 1024)));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while converting inventory files", e);
+        } finally {
+            pool.shutdownNow();
+        }
+        return new Result(done, players.size(), groups, skipped, failed.get(), bytes, System.currentTimeMillis() - started);
+    }
+
+    /**
+     * Convert a plugin data folder offline:
+     * {@code InventoryConverter <plugin folder> [threads]}. The backend is the
+     * one configured under {@code storage} in the folder's config.yml.
+     */
+    public static void main(String[] args) {
+        System.setProperty("java.util.logging.SimpleFormatter.format", "[%1$tT %4$s] %5$s%6$s%n");
+        Logger logger = Logger.getLogger("InventoryConverter");
+        if (args.length < 1 || args.length > 2) {
+            logger.severe("Usage: InventoryConverter <plugin folder> [threads]");
+            System.exit(2);
+        }
+        Path pluginFolder = Paths.get(args[0]);
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        YamlConfiguration config = YamlConfiguration.loadConfiguration(pluginFolder.resolve("config.yml").toFile());
+        InventoryCodec codec = new InventoryCodec(config.getInt("storage.compression-threshold", 512));
+        Path inventories = pluginFolder.resolve("inventories");
+
+        try (InventoryBackend backend = InventoryBackends.open(config.getConfigurationSection("storage"), pluginFolder, logger)) {
+            logger.info("Converting " + inventories + " into the " + config.getString("storage.backend", "file")
+                    + " backend on " + threads + " threads");
+            Result result = convert(inventories, backend, codec, inventories.resolve("legacy"), threads, logger);
+            logger.info(result.describe());
+            backend.describeMetrics().forEach(logger::info);
+            if (result.failed() > 0) {
+                System.exit(1);
+            }
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Conversion failed", e);
+            System.exit(1);
+        }
+    }
+
+    private static Converted convertFile(Path file, InventoryBackend backend, InventoryCodec codec) throws IOException {
+        String name = file.getFileName().toString();
+        int extension = name.lastIndexOf('.');
+        int separator = name.indexOf('_');
+        String stem = name.substring(0, separator > 0 ? separator : extension);
+        UUID uuid;
+        try {
+            uuid = UUID.fromString(stem);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("File name does not start with a player UUID");
+        }
+        long size = Files.size(file);
+
+        Map<String, byte[]> encoded = new HashMap<>();
+        if (separator > 0) {
+            String group = name.substring(separator + 1, extension);
+            if (name.endsWith(".inv")) {
+                encoded.put(group, Files.readAllBytes(file));
+            } else if (name.endsWith(".yml")) {
+                encoded.put(group, codec.encodeSerialized(LegacyInventoryFiles.readGroupFile(file)));
+            } else {
+                throw new IOException("Unexpected per-group " + name.substring(extension) + " file");
+            }
+        } else if (name.endsWith(".dat")) {
+            LegacyInventoryFiles.readPlayerFile(file).forEach((group, snapshot) ->
+                    encoded.put(group, codec.encodeSerialized(snapshot)));
+        } else if (name.endsWith(".inv")) {
+            codec.decodeGroups(Files.readAllBytes(file)).forEach((group, snapshot) ->
+                    encoded.put(group, codec.encode(snapshot)));
+        } else {
+            throw new IOException("Unexpected per-player " + name.substring(extension) + " file");
+        }
+
+        int skipped = 0;
+        for (String group : new ArrayList<>(encoded.keySet())) {
+            if (backend.contains(uuid, group)) {
+                encoded.remove(group);
+                skipped++;
+            }
+        }
+        return new Converted(file, uuid, encoded, skipped, size);
+    }
+}
@@ -0,0 +1,704 @@
+package com.smp.common.inventory;
+
+import com.smp.common.metrics.LatencyHistogram;
+import com.smp.common.metrics.Metrics;
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemStack;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only history of saved inventories, for rolling a player back after
+ * a bug or griefing.
+ *
+ * Snapshots are split into content-addressed objects: every item stack is
+ * encoded on its own and stored under the hash of its bytes, and the rest of
+ * the snapshot becomes a manifest of its slots' hashes, stored the same way.
+ * An object is written only the first time its hash is seen, so a kit saved
+ * thousands of times costs one set of objects plus a small entry per save.
+ * Entries are indexed in memory by player, group and time, so finding the
+ * snapshot in effect at any moment is one lookup and restoring it a handful
+ * of reads.
+ *
+ * Records are written by one background thread and are best effort: a crash
+ * loses what was still queued, and a torn last record is dropped on the next
+ * start. A periodic retention pass thins out old entries, then rewrites the
+ * log with only the objects still referenced.
+ *
+ * <pre>
+ * log:      magic "SMPH" | version u32 | record*
+ * record:   body length u32 | crc32(body) u32 | body
+ * body:     0 | hash 16 | object                                   (item or manifest)
+ *           1 | uuid msb u64 | uuid lsb u64 | time u64 | manifest hash 16 | group utf8
+ * manifest: shell length u32 | shell | contents u16 | armor u16 | distinct u8 | hash 16 * distinct
+ *           | slot u8 * (contents + armor + 1)
+ * </pre>
+ *
+ * The shell is the codec's encoding of the snapshot with its slots removed.
+ * Each slot is 0 when empty, else the 1-based index of its item's hash.
+ */
+public final class InventoryHistory implements Closeable {
+
+    /**
+     * Which entries a retention pass keeps, by age. The newest entry of each
+     * player and group is always kept.
+     *
+     * @param keepAllMillis every entry younger than this is kept
+     * @param hourlyMillis  up to this age, the newest entry of each hour is kept
+     * @param dailyMillis   up to this age, the newest entry of each day is kept; older ones are dropped
+     * @param maxPerGroup   at most this many entries per player and group
+     */
+    public record Retention(long keepAllMillis, long hourlyMillis, long dailyMillis, int maxPerGroup) {
+    }
+
+    /**
+     * @param id short form of the manifest hash; equal ids are identical inventories
+     */
+    public record Entry(long time, String id) {
+    }
+
+    public record Restored(long time, InventorySnapshot snapshot) {
+    }
+
+    private static final int MAGIC = 0x534D5048; // "SMPH"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 8;
+    private static final int RECORD_HEADER_BYTES = 8;
+    private static final int TYPE_OBJECT = 0;
+    private static final int TYPE_ENTRY = 1;
+    private static final int HASH_BYTES = 16;
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+    private static final int MAX_DISTINCT = 255;
+
+    private final Path file;
+    private final InventoryCodec codec;
+    private final Retention retention;
+    private final Logger logger;
+    private final ScheduledExecutorService writer;
+    // Writer thread only
+    private final MessageDigest digest;
+
+    private final Object lock = new Object();
+    // Guarded by lock
+    private FileChannel channel;
+    private long size;
+    private final Map<Hash, ObjectRef> objects = new HashMap<>();
+    private final Map<UUID, Map<String, TreeMap<Long, Hash>>> entries = new HashMap<>();
+
+    private volatile boolean closed;
+    private volatile LatencyHistogram recordLatency;
+    private volatile LatencyHistogram restoreLatency;
+
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger entryCount = new AtomicInteger();
+    private final AtomicLong recorded = new AtomicLong();
+    private final AtomicLong unchanged = new AtomicLong();
+    private final AtomicLong objectsWritten = new AtomicLong();
+    private final AtomicLong objectsReused = new AtomicLong();
+    private final AtomicLong snapshotBytes = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong pruned = new AtomicLong();
+    private final AtomicLong bytesReclaimed = new AtomicLong();
+
+    /**
+     * Open the history in {@code directory}, rebuilding the index from the log.
+     *
+     * @param pruneIntervalMillis how often to apply the retention policy; 0 disables
+     */
+    public InventoryHistory(Path directory, InventoryCodec codec, Retention retention, long pruneIntervalMillis,
+                            Logger logger) throws IOException {
+        this.file = directory.resolve("history.dat");
+        this.codec = codec;
+        this.retention = retention;
+        this.logger = logger;
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is always available", e);
+        }
+
+        Files.createDirectories(directory);
+        Files.deleteIfExists(temporaryFile());
+        open();
+
+        writer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "InventoryHistory-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (pruneIntervalMillis > 0) {
+            writer.scheduleWithFixedDelay(this::pruneSafely, pruneIntervalMillis, pruneIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Queue the snapshot for the history, stamped now. Returns at once; the
+     * snapshot must not be changed afterwards.
+     */
+    public void record(UUID uuid, String group, InventorySnapshot snapshot) {
+        long time = System.currentTimeMillis();
+        if (closed) {
+            return;
+        }
+        queued.incrementAndGet();
+        try {
+            writer.execute(() -> {
+                queued.decrementAndGet();
+                try {
+                    write(uuid, group, snapshot, time);
+                } catch (IOException | RuntimeException e) {
+                    logger.log(Level.WARNING, "Could not record inventory history for " + uuid + "/" + group, e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            queued.decrementAndGet(); // Closed in between
+        }
+    }
+
+    /** Recorded entries for the player and group, newest first. */
+    public List<Entry> list(UUID uuid, String group, int limit) {
+        List<Entry> result = new ArrayList<>();
+        synchronized (lock) {
+            TreeMap<Long, Hash> history = history(uuid, group);
+            if (history != null) {
+                for (Map.Entry<Long, Hash> entry : history.descendingMap().entrySet()) {
+                    if (result.size() >= limit) {
+                        break;
+                    }
+                    result.add(new Entry(entry.getKey(), entry.getValue().shortId()));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The snapshot the player had in the group at {@code time}: the newest
+     * one recorded at or before it. Decodes item stacks, so call it off the
+     * main thread.
+     *
+     * @return null if nothing was recorded for the group by then
+     */
+    public Restored restore(UUID uuid, String group, long time) throws IOException {
+        long start = System.nanoTime();
+        try {
+            long recordedAt;
+            Manifest manifest;
+            byte[][] items;
+            synchronized (lock) {
+                TreeMap<Long, Hash> history = history(uuid, group);
+                Map.Entry<Long, Hash> entry = history == null ? null : history.floorEntry(time);
+                if (entry == null) {
+                    return null;
+                }
+                recordedAt = entry.getKey();
+                manifest = Manifest.parse(readObject(entry.getValue()));
+                items = new byte[manifest.hashes().length][];
+                for (int i = 0; i < items.length; i++) {
+                    items[i] = readObject(manifest.hashes()[i]);
+                }
+            }
+
+            // Decode each slot separately so no two slots share an ItemStack
+            ItemStack[] contents = new ItemStack[manifest.contents()];
+            ItemStack[] armor = new ItemStack[manifest.armor()];
+            for (int i = 0; i < contents.length; i++) {
+                contents[i] = decodeSlot(manifest.slots()[i], items);
+            }
+            for (int i = 0; i < armor.length; i++) {
+                armor[i] = decodeSlot(manifest.slots()[contents.length + i], items);
+            }
+            InventorySnapshot rest = codec.decode(manifest.shell());
+            return new Restored(recordedAt, new InventorySnapshot(contents, armor,
+                    decodeSlot(manifest.slots()[manifest.slots().length - 1], items), rest.effects(), rest.health(),
+                    rest.foodLevel(), rest.saturation(), rest.exp(), rest.level(), rest.gameMode()));
+        } finally {
+            LatencyHistogram latency = restoreLatency;
+            if (latency != null) {
+                latency.recordSince(start);
+            }
+        }
+    }
+
+    /** Report record and restore latency, and how much the deduplication saves. */
+    public void instrument(Metrics metrics) {
+        metrics.counter("history_events", "recorded", recorded::get);
+        metrics.counter("history_events", "skipped_unchanged", unchanged::get);
+        metrics.counter("history_events", "objects_written", objectsWritten::get);
+        metrics.counter("history_events", "objects_reused", objectsReused::get);
+        metrics.counter("history_events", "pruned", pruned::get);
+        metrics.counter("bytes_written", "inventory_history", bytesWritten::get);
+        metrics.gauge("history_entries", "indexed", entryCount::get);
+        metrics.gauge("queue_depth", "inventory_history", queued::get);
+        recordLatency = metrics.timer("history", "record");
+        restoreLatency = metrics.timer("history", "restore");
+    }
+
+    public List<String> describeMetrics() {
+        int objectCount;
+        long fileSize;
+        synchronized (lock) {
+            objectCount = objects.size();
+            fileSize = size;
+        }
+        long logical = snapshotBytes.get();
+        long written = bytesWritten.get();
+        List<String> lines = new ArrayList<>();
+        lines.add("History: " + entryCount.get() + " snapshots, " + objectCount + " objects, "
+                + fileSize / 1024 + " KiB on disk, " + queued.get() + " queued");
+        lines.add("History writes: " + recorded.get() + " recorded, " + unchanged.get() + " skipped unchanged, "
+                + objectsWritten.get() + " objects written, " + objectsReused.get() + " reused; "
+                + logical / 1024 + " KiB of snapshots in " + written / 1024 + " KiB"
+                + (written > 0 ? String.format(" (%.1fx)", (double) logical / written) : "")
+                + "; retention dropped " + pruned.get() + " and reclaimed " + bytesReclaimed.get() / 1024 + " KiB");
+        return lines;
+    }
+
+    /** Write what is still queued, then close the log. */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(10, TimeUnit.SECONDS)) {
+                logger.warning("Gave up on " + queued.get() + " queued inventory history records");
+                writer.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (lock) {
+            channel.force(true);
+            channel.close();
+        }
+    }
+
+    private void write(UUID uuid, String group, InventorySnapshot snapshot, long time) throws IOException {
+        long start = System.nanoTime();
+        // Encode and hash outside the lock, so restores are never held up by it
+        Map<Hash, byte[]> parts = new LinkedHashMap<>();
+        byte[] shell = codec.encode(new InventorySnapshot(new ItemStack[0], new ItemStack[0], null,
+                snapshot.effects(), snapshot.health(), snapshot.foodLevel(), snapshot.saturation(),
+                snapshot.exp(), snapshot.level(), snapshot.gameMode()));
+        int slotCount = snapshot.contents().length + snapshot.armor().length + 1;
+        byte[] slots = new byte[slotCount];
+        List<Hash> distinct = new ArrayList<>();
+        long logical = shell.length;
+        int slot = 0;
+        for (ItemStack[] items : List.of(snapshot.contents(), snapshot.armor(), new ItemStack[]{snapshot.offHand()})) {
+            for (ItemStack item : items) {
+                if (item != null && item.getType() != Material.AIR) {
+                    byte[] encoded = codec.encodeItem(item);
+                    Hash hash = hash(encoded);
+                    if (parts.putIfAbsent(hash, encoded) == null) {
+                        distinct.add(hash);
+                    }
+                    logical += encoded.length;
+                    slots[slot] = (byte) (distinct.indexOf(hash) + 1);
+                }
+                slot++;
+            }
+        }
+        if (distinct.size() > MAX_DISTINCT) {
+            throw new IOException("Snapshot has more than " + MAX_DISTINCT + " distinct items");
+        }
+        ByteBuffer manifest = ByteBuffer.allocate(4 + shell.length + 5 + HASH_BYTES * distinct.size() + slotCount);
+        manifest.putInt(shell.length).put(shell)
+                .putShort((short) snapshot.contents().length)
+                .putShort((short) snapshot.armor().length)
+                .put((byte) distinct.size());
+        for (Hash hash : distinct) {
+            manifest.putLong(hash.high()).putLong(hash.low());
+        }
+        manifest.put(slots);
+        Hash manifestHash = hash(manifest.array());
+        parts.put(manifestHash, manifest.array());
+
+        synchronized (lock) {
+            TreeMap<Long, Hash> history = entries.computeIfAbsent(uuid, k -> new HashMap<>())
+                    .computeIfAbsent(group, k -> new TreeMap<>());
+            Map.Entry<Long, Hash> latest = history.lastEntry();
+            if (latest != null && latest.getValue().equals(manifestHash)) {
+                unchanged.incrementAndGet();
+                return;
+            }
+
+            List<byte[]> bodies = new ArrayList<>();
+            List<Hash> added = new ArrayList<>();
+            for (Map.Entry<Hash, byte[]> part : parts.entrySet()) {
+                if (objects.containsKey(part.getKey())) {
+                    objectsReused.incrementAndGet();
+                } else {
+                    bodies.add(objectBody(part.getKey(), part.getValue()));
+                    added.add(part.getKey());
+                }
+            }
+            bodies.add(entryBody(uuid, group, time, manifestHash));
+            long[] offsets = append(bodies);
+
+            for (int i = 0; i < added.size(); i++) {
+                objects.put(added.get(i), new ObjectRef(offsets[i] + 1 + HASH_BYTES, parts.get(added.get(i)).length));
+            }
+            if (history.put(time, manifestHash) == null) {
+                entryCount.incrementAndGet();
+            }
+            objectsWritten.addAndGet(added.size());
+        }
+        recorded.incrementAndGet();
+        snapshotBytes.addAndGet(logical);
+        LatencyHistogram latency = recordLatency;
+        if (latency != null) {
+            latency.recordSince(start);
+        }
+    }
+
+    /**
+     * Append records in one write and fsync. Caller holds the lock.
+     *
+     * @return file offset of each record's body
+     */
+    private long[] append(List<byte[]> bodies) throws IOException {
+        int total = 0;
+        for (byte[] body : bodies) {
+            total += RECORD_HEADER_BYTES + body.length;
+        }
+        ByteBuffer out = ByteBuffer.allocate(total);
+        long[] offsets = new long[bodies.size()];
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < bodies.size(); i++) {
+            byte[] body = bodies.get(i);
+            crc.reset();
+            crc.update(body);
+            out.putInt(body.length).putInt((int) crc.getValue());
+            offsets[i] = size + out.position();
+            out.put(body);
+        }
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out, size + out.position());
+        }
+        channel.force(false);
+        size += total;
+        bytesWritten.addAndGet(total);
+        return offsets;
+    }
+
+    private void pruneSafely() {
+        try {
+            prune(System.currentTimeMillis());
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.WARNING, "Inventory history retention pass failed", e);
+        }
+    }
+
+    /** Apply the retention policy and, if anything was dropped, rewrite the log without it. */
+    private void prune(long now) throws IOException {
+        synchronized (lock) {
+            int dropped = 0;
+            for (Iterator<Map<String, TreeMap<Long, Hash>>> players = entries.values().iterator(); players.hasNext(); ) {
+                Map<String, TreeMap<Long, Hash>> groups = players.next();
+                for (TreeMap<Long, Hash> history : groups.values()) {
+                    dropped += thin(history, now);
+                }
+                groups.values().removeIf(TreeMap::isEmpty);
+                if (groups.isEmpty()) {
+                    players.remove();
+                }
+            }
+            if (dropped == 0) {
+                return;
+            }
+            entryCount.addAndGet(-dropped);
+            pruned.addAndGet(dropped);
+            rewrite();
+        }
+    }
+
+    /** @return entries removed from the history */
+    private int thin(TreeMap<Long, Hash> history, long now) {
+        int kept = 0;
+        int dropped = 0;
+        long lastHour = Long.MIN_VALUE;
+        long lastDay = Long.MIN_VALUE;
+        for (Iterator<Long> times = history.descendingKeySet().iterator(); times.hasNext(); ) {
+            long time = times.next();
+            long age = now - time;
+            boolean keep;
+            if (kept == 0) {
+                keep = true;
+            } else if (kept >= retention.maxPerGroup()) {
+                keep = false;
+            } else if (age <= retention.keepAllMillis()) {
+                keep = true;
+            } else if (age <= retention.hourlyMillis()) {
+                keep = time / HOUR != lastHour;
+            } else if (age <= retention.dailyMillis()) {
+                keep = time / DAY != lastDay;
+            } else {
+                keep = false;
+            }
+            if (keep) {
+                kept++;
+                lastHour = time / HOUR;
+                lastDay = time / DAY;
+            } else {
+                times.remove();
+                dropped++;
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * Copy the objects still referenced and every remaining entry to a new
+     * log and swap it in. Caller holds the lock.
+     */
+    private void rewrite() throws IOException {
+        Set<Hash> live = new HashSet<>();
+        for (Map<String, TreeMap<Long, Hash>> groups : entries.values()) {
+            for (TreeMap<Long, Hash> history : groups.values()) {
+                for (Hash manifest : history.values()) {
+                    if (live.add(manifest)) {
+                        live.addAll(List.of(Manifest.parse(readObject(manifest)).hashes()));
+                    }
+                }
+            }
+        }
+
+        Path temp = temporaryFile();
+        Map<Hash, ObjectRef> moved = new HashMap<>();
+        long written = HEADER_BYTES;
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(out), 1 << 16));
+            stream.writeInt(MAGIC);
+            stream.writeInt(VERSION);
+            CRC32 crc = new CRC32();
+            for (Hash hash : live) {
+                byte[] object = readObject(hash);
+                byte[] body = objectBody(hash, object);
+                moved.put(hash, new ObjectRef(written + RECORD_HEADER_BYTES + 1 + HASH_BYTES, object.length));
+                written += writeRecord(stream, crc, body);
+            }
+            for (Map.Entry<UUID, Map<String, TreeMap<Long, Hash>>> player : entries.entrySet()) {
+                for (Map.Entry<String, TreeMap<Long, Hash>> group : player.getValue().entrySet()) {
+                    for (Map.Entry<Long, Hash> entry : group.getValue().entrySet()) {
+                        written += writeRecord(stream, crc,
+                                entryBody(player.getKey(), group.getKey(), entry.getKey(), entry.getValue()));
+                    }
+                }
+            }
+            stream.flush();
+            out.force(true);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel.close();
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        bytesReclaimed.addAndGet(size - written);
+        size = written;
+        objects.clear();
+        objects.putAll(moved);
+    }
+
+    private static int writeRecord(DataOutputStream out, CRC32 crc, byte[] body) throws IOException {
+        crc.reset();
+        crc.update(body);
+        out.writeInt(body.length);
+        out.writeInt((int) crc.getValue());
+        out.write(body);
+        return RECORD_HEADER_BYTES + body.length;
+    }
+
+    /** Open the log, or create it, and index every intact record. */
+    private void open() throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long length = channel.size();
+        if (length < HEADER_BYTES) {
+            channel.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).putInt(MAGIC).putInt(VERSION).flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+            size = HEADER_BYTES;
+            return;
+        }
+
+        long end;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(0)), 1 << 16));
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            channel.close();
+            throw new IOException(file.getFileName() + " is not a version " + VERSION + " inventory history");
+        }
+        end = HEADER_BYTES;
+        CRC32 crc = new CRC32();
+        try {
+            while (end + RECORD_HEADER_BYTES <= length) {
+                int bodyLength = in.readInt();
+                int expected = in.readInt();
+                if (bodyLength < 1 + HASH_BYTES || bodyLength > length - end - RECORD_HEADER_BYTES) {
+                    break;
+                }
+                byte[] body = new byte[bodyLength];
+                in.readFully(body);
+                crc.reset();
+                crc.update(body);
+                if ((int) crc.getValue() != expected) {
+                    break;
+                }
+                index(body, end + RECORD_HEADER_BYTES);
+                end += RECORD_HEADER_BYTES + bodyLength;
+            }
+        } catch (EOFException e) {
+            // Torn record; everything before it stands
+        }
+        if (end < length) {
+            logger.warning("Dropping " + (length - end) + " torn bytes at the end of " + file.getFileName());
+            channel.truncate(end);
+        }
+        size = end;
+    }
+
+    private void index(byte[] body, long offset) {
+        ByteBuffer in = ByteBuffer.wrap(body);
+        int type = in.get();
+        if (type == TYPE_OBJECT) {
+            objects.put(new Hash(in.getLong(), in.getLong()), new ObjectRef(offset + 1 + HASH_BYTES,
+                    body.length - 1 - HASH_BYTES));
+        } else if (type == TYPE_ENTRY) {
+            UUID uuid = new UUID(in.getLong(), in.getLong());
+            long time = in.getLong();
+            Hash manifest = new Hash(in.getLong(), in.getLong());
+            String group = new String(body, in.position(), in.remaining(), StandardCharsets.UTF_8);
+            if (entries.computeIfAbsent(uuid, k -> new HashMap<>()).computeIfAbsent(group, k -> new TreeMap<>())
+                    .put(time, manifest) == null) {
+                entryCount.incrementAndGet();
+            }
+        }
+    }
+
+    /** Caller holds the lock. */
+    private byte[] readObject(Hash hash) throws IOException {
+        ObjectRef ref = objects.get(hash);
+        if (ref == null) {
+            throw new IOException("Inventory history object " + hash.shortId() + " is missing");
+        }
+        ByteBuffer out = ByteBuffer.allocate(ref.length());
+        while (out.hasRemaining()) {
+            if (channel.read(out, ref.offset() + out.position()) < 0) {
+                throw new IOException("Inventory history object " + hash.shortId() + " runs past the end of the log");
+            }
+        }
+        return out.array();
+    }
+
+    private ItemStack decodeSlot(int slot, byte[][] items) throws IOException {
+        return slot == 0 ? null : codec.decodeItem(items[slot - 1]);
+    }
+
+    /** Caller holds the lock. */
+    private TreeMap<Long, Hash> history(UUID uuid, String group) {
+        Map<String, TreeMap<Long, Hash>> groups = entries.get(uuid);
+        return groups == null ? null : groups.get(group);
+    }
+
+    private Path temporaryFile() {
+        return file.resolveSibling(file.getFileName() + ".tmp");
+    }
+
+    /** First 128 bits of the SHA-256 of the bytes. Writer thread only. */
+    private Hash hash(byte[] data) {
+        ByteBuffer sum = ByteBuffer.wrap(digest.digest(data));
+        return new Hash(sum.getLong(), sum.getLong());
+    }
+
+    private static byte[] objectBody(Hash hash, byte[] object) {
+        return ByteBuffer.allocate(1 + HASH_BYTES + object.length)
+                .put((byte) TYPE_OBJECT).putLong(hash.high()).putLong(hash.low()).put(object)
+                .array();
+    }
+
+    private static byte[] entryBody(UUID uuid, String group, long time, Hash manifest) {
+        byte[] name = group.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(1 + 16 + 8 + HASH_BYTES + name.length)
+                .put((byte) TYPE_ENTRY)
+                .putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits())
+                .putLong(time)
+                .putLong(manifest.high()).putLong(manifest.low())
+                .put(name)
+                .array();
+    }
+
+    private record Hash(long high, long low) {
+        String shortId() {
+            return String.format("%08x", high >>> 32);
+        }
+    }
+
+    private record ObjectRef(long offset, int length) {
+    }
+
+    /**
+     * @param slots per slot, 0 for empty or the 1-based index into {@code hashes}
+     */
+    private record Manifest(byte[] shell, int contents, int armor, Hash[] hashes, int[] slots) {
+
+        static Manifest parse(byte[] data) {
+            ByteBuffer in = ByteBuffer.wrap(data);
+            byte[] shell = new byte[in.getInt()];
+            in.get(shell);
+            int contents = in.getShort() & 0xFFFF;
+            int armor = in.getShort() & 0xFFFF;
+            Hash[] hashes = new Hash[in.get() & 0xFF];
+            for (int i = 0; i < hashes.length; i++) {
+                hashes[i] = new Hash(in.getLong(), in.getLong());
+            }
+            int[] slots = new int[contents + armor + 1];
+            for (int i = 0; i < slots.length; i++) {
+                slots[i] = in.get() & 0xFF;
+            }
+            return new Manifest(shell, contents, armor, hashes, slots);
+        }
+    }
+}
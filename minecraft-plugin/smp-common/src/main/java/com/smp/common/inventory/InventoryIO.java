@@ -0,0 +1,159 @@
+package com.smp.common.inventory;
+
+import com.smp.common.metrics.Metrics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Runs inventory file I/O off the main thread.
+ *
+ * Tasks for the same player run one after another in submission order, so a
+ * load queued after a save always sees the saved file. Tasks for different
+ * players run in parallel on a small pool.
+ */
+public final class InventoryIO implements AutoCloseable {
+
+    private final ExecutorService executor;
+    private final Logger logger;
+    private final Map<UUID, CompletableFuture<?>> tails = new ConcurrentHashMap<>();
+    private final Map<UUID, Integer> queued = new ConcurrentHashMap<>();
+
+    public InventoryIO(String name, int threads, Logger logger) {
+        this.logger = logger;
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread thread = new Thread(r, name + "-IO-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queue a task behind every earlier task for the same player. After
+     * {@link #close} tasks run on the calling thread instead.
+     */
+    public <T> CompletableFuture<T> submit(UUID owner, Callable<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        queued.merge(owner, 1, Integer::sum);
+        result.whenComplete((r, e) -> queued.computeIfPresent(owner, (key, count) -> count == 1 ? null : count - 1));
+        CompletableFuture<?> tail = tails.put(owner, result);
+        Runnable run = () -> {
+            try {
+                result.complete(task.call());
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            }
+        };
+        if (tail == null) {
+            execute(run);
+        } else {
+            tail.whenComplete((r, e) -> execute(run));
+        }
+        result.whenComplete((r, e) -> tails.remove(owner, result));
+        return result;
+    }
+
+    /** Number of tasks for this player that are queued or running. */
+    public int queued(UUID owner) {
+        return queued.getOrDefault(owner, 0);
+    }
+
+    /** Number of players with I/O still queued or running. */
+    public int pending() {
+        return tails.size();
+    }
+
+    /** Report how many players and tasks are waiting for I/O. */
+    public void instrument(Metrics metrics) {
+        metrics.gauge("queue_depth", "inventory_io_players", this::pending);
+        metrics.gauge("queue_depth", "inventory_io_tasks", () -> {
+            long tasks = 0;
+            for (int count : queued.values()) {
+                tasks += count;
+            }
+            return tasks;
+        });
+    }
+
+    /**
+     * Wait for everything queued so far, then stop the pool.
+     *
+     * @return false if tasks were still running when the timeout passed
+     */
+    public boolean close(long timeoutMillis) {
+        boolean drained = true;
+        try {
+            CompletableFuture.allOf(tails.values().toArray(new CompletableFuture<?>[0]))
+                    .get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            logger.warning("Gave up waiting for " + tails.size() + " players' inventory I/O after " + timeoutMillis + "ms");
+            drained = false;
+        } catch (ExecutionException e) {
+            // Individual failures were already reported by their callers
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            drained = false;
+        }
+        executor.shutdown();
+        return drained;
+    }
+
+    @Override
+    public void close() {
+        close(10_000);
+    }
+
+    /**
+     * Replace {@code target} so that readers see either the old or the new
+     * contents, never a partial file: write a temp file, fsync it, then
+     * rename it over the target.
+     */
+    public static void writeAtomically(Path target, byte[] data) throws IOException {
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory(target.getParent());
+    }
+
+    private static void syncDirectory(Path directory) {
+        // Makes the rename itself durable; not supported on every platform
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException | UnsupportedOperationException ignored) {
+        }
+    }
+
+    private void execute(Runnable run) {
+        try {
+            executor.execute(run);
+        } catch (RejectedExecutionException e) {
+            run.run();
+        }
+    }
+}
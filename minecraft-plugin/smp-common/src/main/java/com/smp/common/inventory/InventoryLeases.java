@@ -0,0 +1,182 @@
+package com.smp.common.inventory;
+
+import com.smp.common.db.ConnectionPool;
+import com.smp.common.db.PooledConnection;
+
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Short-lived per-player locks in inventory_leases, so only one server at a
+ * time applies and saves a player's inventories.
+ *
+ * A server takes the lease when the player logs in, renews it while they are
+ * online, and gives it up once their last save has landed. Another server
+ * waiting for the same player takes over as soon as the lease is released,
+ * or once it expires if the holder went away without releasing it. Expiry
+ * compares the servers' own clocks, so leases should be much longer than the
+ * clock drift between them.
+ */
+public final class InventoryLeases {
+
+    private static final long RETRY_MILLIS = 100;
+    private static final String HOLDER_SQL = "SELECT node FROM inventory_leases WHERE uuid = ?";
+    private static final String RENEW_SQL = "UPDATE inventory_leases SET expires_at = ? WHERE uuid = ? AND node = ?";
+    private static final String RELEASE_SQL = "DELETE FROM inventory_leases WHERE uuid = ? AND node = ?";
+    private static final String RELEASE_ALL_SQL = "DELETE FROM inventory_leases WHERE node = ?";
+
+    private final ConnectionPool pool;
+    private final String acquireSql;
+    private final String node;
+    private final long ttlMillis;
+
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong contended = new AtomicLong();
+    private final AtomicLong lost = new AtomicLong();
+
+    InventoryLeases(ConnectionPool pool, String acquireSql, String node, long ttlMillis) {
+        this.pool = pool;
+        this.acquireSql = acquireSql;
+        this.node = node;
+        this.ttlMillis = ttlMillis;
+    }
+
+    public String node() {
+        return node;
+    }
+
+    /**
+     * Take the player's lease, retrying while another server holds it.
+     *
+     * @return false if it was still held elsewhere after {@code waitMillis}
+     */
+    public boolean acquire(UUID uuid, long waitMillis) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + waitMillis;
+        boolean waited = false;
+        while (true) {
+            if (tryAcquire(uuid)) {
+                acquired.incrementAndGet();
+                return true;
+            }
+            if (!waited) {
+                contended.incrementAndGet();
+                waited = true;
+            }
+            if (System.currentTimeMillis() + RETRY_MILLIS > deadline) {
+                return false;
+            }
+            Thread.sleep(RETRY_MILLIS);
+        }
+    }
+
+    /**
+     * Extend the leases of players still online here.
+     *
+     * @return players whose lease this server no longer holds
+     */
+    public List<UUID> renew(Collection<UUID> players) throws IOException {
+        List<UUID> missing = new ArrayList<>();
+        if (players.isEmpty()) {
+            return missing;
+        }
+        List<UUID> order = new ArrayList<>(players);
+        try (PooledConnection conn = pool.borrow()) {
+            try {
+                PreparedStatement stmt = conn.prepare(RENEW_SQL);
+                long expires = System.currentTimeMillis() + ttlMillis;
+                for (UUID uuid : order) {
+                    stmt.setLong(1, expires);
+                    stmt.setBytes(2, JdbcInventoryBackend.uuidBytes(uuid));
+                    stmt.setString(3, node);
+                    stmt.addBatch();
+                }
+                int[] counts = stmt.executeBatch();
+                for (int i = 0; i < counts.length; i++) {
+                    // SUCCESS_NO_INFO (-2) means the driver could not tell, so assume it worked
+                    if (counts[i] == 0) {
+                        missing.add(order.get(i));
+                    }
+                }
+            } catch (SQLException e) {
+                conn.onError(e);
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not renew " + order.size() + " inventory leases", e);
+        }
+        lost.addAndGet(missing.size());
+        return missing;
+    }
+
+    /** Give up the player's lease, if this server still holds it. */
+    public void release(UUID uuid) throws IOException {
+        try (PooledConnection conn = pool.borrow()) {
+            try {
+                PreparedStatement stmt = conn.prepare(RELEASE_SQL);
+                stmt.setBytes(1, JdbcInventoryBackend.uuidBytes(uuid));
+                stmt.setString(2, node);
+                stmt.executeUpdate();
+            } catch (SQLException e) {
+                conn.onError(e);
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not release the inventory lease for " + uuid, e);
+        }
+    }
+
+    /** Give up every lease this server holds, at shutdown. */
+    public void releaseAll() throws IOException {
+        try (PooledConnection conn = pool.borrow()) {
+            try {
+                PreparedStatement stmt = conn.prepare(RELEASE_ALL_SQL);
+                stmt.setString(1, node);
+                stmt.executeUpdate();
+            } catch (SQLException e) {
+                conn.onError(e);
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not release this server's inventory leases", e);
+        }
+    }
+
+    public List<String> describeMetrics() {
+        List<String> lines = new ArrayList<>();
+        lines.add("Leases (" + node + "): " + acquired.get() + " acquired, " + contended.get()
+                + " waited on another server, " + lost.get() + " lost");
+        return lines;
+    }
+
+    private boolean tryAcquire(UUID uuid) throws IOException {
+        byte[] key = JdbcInventoryBackend.uuidBytes(uuid);
+        long now = System.currentTimeMillis();
+        try (PooledConnection conn = pool.borrow()) {
+            try {
+                PreparedStatement stmt = conn.prepare(acquireSql);
+                stmt.setBytes(1, key);
+                stmt.setString(2, node);
+                stmt.setLong(3, now + ttlMillis);
+                stmt.setLong(4, now);
+                stmt.executeUpdate();
+                PreparedStatement holder = conn.prepare(HOLDER_SQL);
+                holder.setBytes(1, key);
+                try (ResultSet rs = holder.executeQuery()) {
+                    return rs.next() && node.equals(rs.getString(1));
+                }
+            } catch (SQLException e) {
+                conn.onError(e);
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not take the inventory lease for " + uuid, e);
+        }
+    }
+}
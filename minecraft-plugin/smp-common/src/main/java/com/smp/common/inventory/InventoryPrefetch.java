@@ -0,0 +1,108 @@
+package com.smp.common.inventory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Staging cache for player data read ahead of the join.
+ *
+ * {@link #prefetch} is called from AsyncPlayerPreLoginEvent and queues the
+ * read on {@link InventoryIO}, so file reads and decoding overlap with the
+ * rest of the login. {@link #take} is called at join on the main thread and
+ * normally finds the data already decoded. If the read is still running
+ * after a short wait, or was never started, the data is loaded synchronously
+ * instead.
+ */
+public final class InventoryPrefetch<T> {
+
+    private final InventoryIO io;
+    private final long ttlMillis;
+    private final Map<UUID, Staged<T>> staged = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+
+    public InventoryPrefetch(InventoryIO io, long ttlMillis) {
+        this.io = io;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /** Start reading a player's data. Safe to call from any thread. */
+    public void prefetch(UUID uuid, Callable<T> loader) {
+        evictExpired();
+        staged.put(uuid, new Staged<>(io.submit(uuid, loader), System.currentTimeMillis()));
+    }
+
+    /**
+     * Drop staged data that may be stale, e.g. when an earlier session of the
+     * same player quits and saves after the new session's pre-login.
+     */
+    public void invalidate(UUID uuid) {
+        staged.remove(uuid);
+    }
+
+    /**
+     * Return the prefetched data, waiting up to {@code waitMillis} for a read
+     * still in flight, and fall back to {@code loader} on this thread.
+     */
+    public T take(UUID uuid, long waitMillis, Callable<T> loader) throws Exception {
+        Staged<T> entry = staged.remove(uuid);
+        if (entry == null) {
+            misses.incrementAndGet();
+        } else {
+            try {
+                T value = entry.future().get(waitMillis, TimeUnit.MILLISECONDS);
+                hits.incrementAndGet();
+                return value;
+            } catch (TimeoutException e) {
+                timeouts.incrementAndGet();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception cause ? cause : e;
+            }
+        }
+
+        // A save still queued for this player must land before the file is read
+        int ownReads = entry != null && !entry.future().isDone() ? 1 : 0;
+        if (io.queued(uuid) > ownReads) {
+            try {
+                return io.submit(uuid, loader).get();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception cause ? cause : e;
+            }
+        }
+        return loader.call();
+    }
+
+    public List<String> describeMetrics() {
+        List<String> lines = new ArrayList<>();
+        lines.add("Prefetch: " + hits.get() + " hits, " + misses.get() + " misses, "
+                + timeouts.get() + " timed out, " + expired.get() + " expired, " + staged.size() + " staged");
+        return lines;
+    }
+
+    private void evictExpired() {
+        // Pre-logins that never turned into a join, e.g. kicked by another plugin
+        long cutoff = System.currentTimeMillis() - ttlMillis;
+        staged.entrySet().removeIf(e -> {
+            if (e.getValue().stagedAt() < cutoff) {
+                expired.incrementAndGet();
+                return true;
+            }
+            return false;
+        });
+    }
+
+    private record Staged<T>(CompletableFuture<T> future, long stagedAt) {
+    }
+}
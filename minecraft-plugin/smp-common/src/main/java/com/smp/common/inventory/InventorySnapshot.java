@@ -0,0 +1,80 @@
+package com.smp.common.inventory;
+
+import org.bukkit.GameMode;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.PlayerInventory;
+import org.bukkit.potion.PotionEffect;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Everything the inventory plugins persist for one player in one world group.
+ *
+ * Item stacks are cloned on capture, so a snapshot no longer refers to the
+ * live inventory and can be encoded or written from another thread.
+ *
+ * @param effects active potion effects, or null when effects are not managed
+ *                and should be left untouched on apply
+ */
+public record InventorySnapshot(
+        ItemStack[] contents,
+        ItemStack[] armor,
+        ItemStack offHand,
+        List<PotionEffect> effects,
+        double health,
+        int foodLevel,
+        float saturation,
+        float exp,
+        int level,
+        GameMode gameMode) {
+
+    public static InventorySnapshot capture(Player player, boolean includeEffects) {
+        PlayerInventory inventory = player.getInventory();
+        return new InventorySnapshot(
+                copy(inventory.getContents()),
+                copy(inventory.getArmorContents()),
+                copy(inventory.getItemInOffHand()),
+                includeEffects ? new ArrayList<>(player.getActivePotionEffects()) : null,
+                player.getHealth(),
+                player.getFoodLevel(),
+                player.getSaturation(),
+                player.getExp(),
+                player.getLevel(),
+                player.getGameMode());
+    }
+
+    public void apply(Player player) {
+        PlayerInventory inventory = player.getInventory();
+        inventory.setContents(contents);
+        inventory.setArmorContents(armor);
+        inventory.setItemInOffHand(offHand);
+        player.setHealth(Math.min(health, player.getMaxHealth()));
+        player.setFoodLevel(foodLevel);
+        player.setSaturation(saturation);
+        player.setExp(exp);
+        player.setLevel(level);
+        player.setGameMode(gameMode);
+
+        if (effects != null) {
+            // Clear existing effects and apply saved ones
+            for (PotionEffect effect : player.getActivePotionEffects()) {
+                player.removePotionEffect(effect.getType());
+            }
+            player.addPotionEffects(effects);
+        }
+    }
+
+    private static ItemStack[] copy(ItemStack[] items) {
+        ItemStack[] copy = new ItemStack[items.length];
+        for (int i = 0; i < items.length; i++) {
+            copy[i] = copy(items[i]);
+        }
+        return copy;
+    }
+
+    private static ItemStack copy(ItemStack item) {
+        return item == null ? null : item.clone();
+    }
+}
@@ -0,0 +1,596 @@
+package com.smp.common.inventory;
+
+import com.smp.common.metrics.LatencyHistogram;
+import com.smp.common.metrics.Metrics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only, segmented store for encoded inventory payloads, keyed by
+ * player UUID and group.
+ *
+ * Every save appends a record to the active segment file and fsyncs once;
+ * nothing is rewritten in place, so a crash can only tear the last record,
+ * which is dropped on the next start. An in-memory index maps each key to
+ * its newest record and is rebuilt by scanning the segments at startup.
+ * Sealed segments are memory-mapped for reads. A background task copies the
+ * live records out of segments that are mostly superseded and deletes them.
+ *
+ * Each indexed record carries a 64-bit fingerprint of its payload, and a put
+ * whose payload matches the current record for the key is skipped, so saving
+ * an unchanged inventory costs no I/O.
+ *
+ * <pre>
+ * segment: magic "SMPS" | version u32 | record*
+ * record:  body length u32 | crc32(body) u32 | body
+ * body:    uuid msb u64 | uuid lsb u64 | group length u16 | group utf8 | payload
+ * </pre>
+ */
+public final class InventoryStore implements InventoryBackend {
+
+    private static final int MAGIC = 0x534D5053; // "SMPS"
+    private static final int VERSION = 1;
+    private static final int SEGMENT_HEADER_BYTES = 8;
+    private static final int RECORD_HEADER_BYTES = 8;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final double compactBelowLiveRatio;
+    private final Logger logger;
+
+    private final Map<UUID, Map<String, Location>> index = new ConcurrentHashMap<>();
+    private final Object writeLock = new Object();
+    // Guarded by writeLock
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private Segment active;
+
+    private final ScheduledExecutorService compactor;
+    private volatile boolean closed;
+    private volatile LatencyHistogram appendLatency;
+    private volatile LatencyHistogram readLatency;
+
+    private final AtomicLong records = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong fsyncs = new AtomicLong();
+    private final AtomicLong compactions = new AtomicLong();
+    private final AtomicLong bytesReclaimed = new AtomicLong();
+
+    /**
+     * Open the store, rebuilding the index from the segments on disk.
+     *
+     * @param compactBelowLiveRatio sealed segments whose live bytes fall below
+     *                              this fraction of their size are compacted
+     * @param compactIntervalMillis how often to look for such segments; 0 disables
+     */
+    public InventoryStore(Path directory, long segmentBytes, double compactBelowLiveRatio,
+                          long compactIntervalMillis, Logger logger) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.compactBelowLiveRatio = compactBelowLiveRatio;
+        this.logger = logger;
+
+        Files.createDirectories(directory);
+        rebuild();
+
+        compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "InventoryStore-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (compactIntervalMillis > 0) {
+            compactor.scheduleWithFixedDelay(this::compactSafely, compactIntervalMillis, compactIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public byte[] get(UUID uuid, String group) throws IOException {
+        Map<String, Location> groups = index.get(uuid);
+        Location location = groups == null ? null : groups.get(group);
+        return location == null ? null : read(location, uuid, group);
+    }
+
+    @Override
+    public Map<String, byte[]> getAll(UUID uuid) throws IOException {
+        Map<String, byte[]> result = new HashMap<>();
+        Map<String, Location> groups = index.get(uuid);
+        if (groups != null) {
+            for (Map.Entry<String, Location> entry : groups.entrySet()) {
+                result.put(entry.getKey(), read(entry.getValue(), uuid, entry.getKey()));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public boolean contains(UUID uuid, String group) {
+        Map<String, Location> groups = index.get(uuid);
+        return groups != null && groups.containsKey(group);
+    }
+
+    public boolean isEmpty() {
+        return index.isEmpty();
+    }
+
+    /** @return false if the payload matched the stored one and nothing was written */
+    @Override
+    public boolean put(UUID uuid, String group, byte[] payload) throws IOException {
+        return append(List.of(new Pending(uuid, group, payload)), true) == 1;
+    }
+
+    /**
+     * Store several groups for one player with a single append and fsync.
+     *
+     * @return number of groups written; unchanged ones are skipped
+     */
+    @Override
+    public int putAll(UUID uuid, Map<String, byte[]> groups) throws IOException {
+        List<Pending> batch = new ArrayList<>(groups.size());
+        groups.forEach((group, payload) -> batch.add(new Pending(uuid, group, payload)));
+        return append(batch, true);
+    }
+
+    /**
+     * Bulk load, e.g. when importing the old one-file-per-player layout.
+     * Written in large sequential appends with one fsync per chunk.
+     */
+    @Override
+    public void importAll(Map<UUID, Map<String, byte[]>> players) throws IOException {
+        List<Pending> batch = new ArrayList<>();
+        long batchBytes = 0;
+        for (Map.Entry<UUID, Map<String, byte[]>> player : players.entrySet()) {
+            for (Map.Entry<String, byte[]> group : player.getValue().entrySet()) {
+                batch.add(new Pending(player.getKey(), group.getKey(), group.getValue()));
+                batchBytes += group.getValue().length;
+                if (batchBytes >= segmentBytes / 4) {
+                    append(batch, true);
+                    batch = new ArrayList<>();
+                    batchBytes = 0;
+                }
+            }
+        }
+        if (!batch.isEmpty()) {
+            append(batch, true);
+        }
+    }
+
+    /**
+     * Rewrite sealed segments whose live fraction is below the threshold.
+     *
+     * @return number of segments removed
+     */
+    public int compact() throws IOException {
+        List<Segment> candidates = new ArrayList<>();
+        synchronized (writeLock) {
+            for (Segment segment : segments.values()) {
+                if (segment != active && segment.live.get() < segment.size * compactBelowLiveRatio) {
+                    candidates.add(segment);
+                }
+            }
+        }
+        int removed = 0;
+        for (Segment segment : candidates) {
+            if (closed) {
+                break;
+            }
+            compact(segment);
+            removed++;
+        }
+        return removed;
+    }
+
+    /** Report append (including the fsync) and read latency, and what the appends wrote. */
+    @Override
+    public void instrument(Metrics metrics) {
+        metrics.counter("bytes_written", "inventory_store", bytesWritten::get);
+        metrics.counter("store_events", "records_written", records::get);
+        metrics.counter("store_events", "skipped_unchanged", skipped::get);
+        metrics.counter("store_events", "fsyncs", fsyncs::get);
+        metrics.counter("store_events", "compactions", compactions::get);
+        metrics.gauge("store_players", "indexed", index::size);
+        appendLatency = metrics.timer("store", "append");
+        readLatency = metrics.timer("store", "read");
+    }
+
+    @Override
+    public List<String> describeMetrics() {
+        long size = 0;
+        long live = 0;
+        int count;
+        synchronized (writeLock) {
+            count = segments.size();
+            for (Segment segment : segments.values()) {
+                size += segment.size;
+                live += segment.live.get();
+            }
+        }
+        List<String> lines = new ArrayList<>();
+        lines.add("Store: " + index.size() + " players, " + count + " segments, "
+                + live / 1024 + "/" + size / 1024 + " KiB live");
+        lines.add("Store writes: " + records.get() + " records written, " + skipped.get() + " skipped unchanged, "
+                + bytesWritten.get() + " bytes in "
+                + fsyncs.get() + " fsyncs; " + compactions.get() + " compactions reclaimed "
+                + bytesReclaimed.get() / 1024 + " KiB");
+        return lines;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (writeLock) {
+            active.channel.force(true);
+            for (Segment segment : segments.values()) {
+                segment.channel.close();
+            }
+        }
+    }
+
+    /**
+     * @param skipUnchanged drop records whose fingerprint matches the record
+     *                      currently indexed for their key
+     * @return number of records written
+     */
+    private int append(List<Pending> batch, boolean skipUnchanged) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return appendLocked(batch, skipUnchanged);
+        } finally {
+            LatencyHistogram latency = appendLatency;
+            if (latency != null) {
+                latency.recordSince(start);
+            }
+        }
+    }
+
+    private int appendLocked(List<Pending> batch, boolean skipUnchanged) throws IOException {
+        synchronized (writeLock) {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+            List<Pending> changed = batch;
+            if (skipUnchanged) {
+                changed = new ArrayList<>(batch.size());
+                for (Pending pending : batch) {
+                    Map<String, Location> groups = index.get(pending.uuid);
+                    Location current = groups == null ? null : groups.get(pending.group);
+                    if (current != null && current.fingerprint == pending.fingerprint) {
+                        skipped.incrementAndGet();
+                    } else {
+                        changed.add(pending);
+                    }
+                }
+                if (changed.isEmpty()) {
+                    return 0;
+                }
+            }
+
+            int total = 0;
+            for (Pending pending : changed) {
+                total += RECORD_HEADER_BYTES + pending.bodyLength();
+            }
+            ByteBuffer out = ByteBuffer.allocate(total);
+            CRC32 crc = new CRC32();
+            int[] offsets = new int[changed.size()];
+            for (int i = 0; i < changed.size(); i++) {
+                Pending pending = changed.get(i);
+                offsets[i] = out.position();
+                out.putInt(pending.bodyLength());
+                int crcPosition = out.position();
+                out.putInt(0);
+                int bodyStart = out.position();
+                out.putLong(pending.uuid.getMostSignificantBits())
+                        .putLong(pending.uuid.getLeastSignificantBits())
+                        .putShort((short) pending.groupBytes.length)
+                        .put(pending.groupBytes)
+                        .put(pending.payload);
+                crc.reset();
+                crc.update(out.array(), bodyStart, out.position() - bodyStart);
+                out.putInt(crcPosition, (int) crc.getValue());
+            }
+            out.flip();
+
+            if (active.size > SEGMENT_HEADER_BYTES && active.size + total > segmentBytes) {
+                rotate();
+            }
+            Segment segment = active;
+            long base = segment.size;
+            while (out.hasRemaining()) {
+                segment.channel.write(out, base + out.position());
+            }
+            segment.channel.force(false);
+            segment.size += total;
+            fsyncs.incrementAndGet();
+            bytesWritten.addAndGet(total);
+            records.addAndGet(changed.size());
+
+            for (int i = 0; i < changed.size(); i++) {
+                Pending pending = changed.get(i);
+                index(pending.uuid, pending.group, new Location(segment, base + offsets[i],
+                        pending.bodyLength(), pending.fingerprint));
+            }
+            return changed.size();
+        }
+    }
+
+    /** Point the key at a new record and release the bytes of the one it replaces. */
+    private void index(UUID uuid, String group, Location location) {
+        location.segment.live.addAndGet(RECORD_HEADER_BYTES + location.length);
+        Location previous = index.computeIfAbsent(uuid, k -> new ConcurrentHashMap<>()).put(group, location);
+        if (previous != null) {
+            previous.segment.live.addAndGet(-(RECORD_HEADER_BYTES + previous.length));
+        }
+    }
+
+    private byte[] read(Location location, UUID uuid, String group) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return readRecord(location, uuid, group);
+        } finally {
+            LatencyHistogram latency = readLatency;
+            if (latency != null) {
+                latency.recordSince(start);
+            }
+        }
+    }
+
+    private byte[] readRecord(Location location, UUID uuid, String group) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES + location.length);
+        Segment segment = location.segment;
+        MappedByteBuffer map = segment.map;
+        if (map == null) {
+            try {
+                while (record.hasRemaining()) {
+                    if (segment.channel.read(record, location.offset + record.position()) < 0) {
+                        throw new IOException("Inventory record at " + location + " runs past the end of the segment");
+                    }
+                }
+            } catch (ClosedChannelException e) {
+                // Sealed and mapped while this read was in flight
+                map = segment.map;
+                if (map == null) {
+                    throw e;
+                }
+                record.clear();
+            }
+        }
+        if (map != null) {
+            record.put(map.duplicate().position((int) location.offset).limit((int) location.offset + record.capacity()));
+        }
+        record.flip();
+
+        record.getInt();
+        int expected = record.getInt();
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), RECORD_HEADER_BYTES, location.length);
+        if ((int) crc.getValue() != expected) {
+            throw new IOException("Corrupt inventory record for " + uuid + "/" + group + " in " + segment.path.getFileName());
+        }
+        int payloadStart = RECORD_HEADER_BYTES + 16 + 2 + (record.getShort(RECORD_HEADER_BYTES + 16) & 0xFFFF);
+        byte[] payload = new byte[record.capacity() - payloadStart];
+        record.get(payloadStart, payload);
+        return payload;
+    }
+
+    private void compactSafely() {
+        try {
+            compact();
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.WARNING, "Inventory store compaction failed", e);
+        }
+    }
+
+    /**
+     * Copy every record still referenced by the index to the active segment,
+     * then drop the segment. Runs under the write lock so no save can slip a
+     * newer record in between the liveness check and the copy.
+     */
+    private void compact(Segment segment) throws IOException {
+        synchronized (writeLock) {
+            if (closed || segment == active || !segments.containsValue(segment)) {
+                return;
+            }
+            List<Pending> live = new ArrayList<>();
+            scan(segment, (uuid, group, location, body) -> {
+                Map<String, Location> groups = index.get(uuid);
+                if (groups != null && location.equals(groups.get(group))) {
+                    byte[] payload = new byte[body.remaining()];
+                    body.get(payload);
+                    live.add(new Pending(uuid, group, payload));
+                }
+            });
+
+            if (!live.isEmpty()) {
+                // Through append() so rotation and live-byte accounting stay in one place
+                append(live, false);
+            }
+
+            segments.remove(segment.number);
+            segment.channel.close();
+            try {
+                Files.delete(segment.path);
+            } catch (IOException e) {
+                logger.warning("Could not delete compacted segment " + segment.path.getFileName() + ": " + e.getMessage());
+            }
+            compactions.incrementAndGet();
+            bytesReclaimed.addAndGet(segment.size - segment.live.get());
+        }
+    }
+
+    private void rebuild() throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            stream.forEach(paths::add);
+        }
+        paths.sort((a, b) -> Integer.compare(segmentNumber(a), segmentNumber(b)));
+
+        for (Path path : paths) {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            Segment segment = new Segment(segmentNumber(path), path, channel);
+            segment.size = channel.size();
+            if (segment.size < SEGMENT_HEADER_BYTES) {
+                // Crashed before the header was written
+                channel.close();
+                Files.delete(path);
+                continue;
+            }
+            segment.map = channel.map(FileChannel.MapMode.READ_ONLY, 0, segment.size);
+            if (segment.map.getInt(0) != MAGIC || segment.map.getInt(4) != VERSION) {
+                channel.close();
+                throw new IOException(path.getFileName() + " is not a version " + VERSION + " inventory segment");
+            }
+            long end = scan(segment, (uuid, group, location, body) -> index(uuid, group, location));
+            segments.put(segment.number, segment);
+            if (end < segment.size) {
+                logger.warning("Dropping " + (segment.size - end) + " torn bytes at the end of " + path.getFileName());
+                segment.map = null;
+                channel.truncate(end);
+                segment.size = end;
+                segment.map = channel.map(FileChannel.MapMode.READ_ONLY, 0, end);
+            }
+        }
+
+        if (segments.isEmpty()) {
+            openSegment(1);
+        } else {
+            // Appends continue in the newest segment
+            active = segments.lastEntry().getValue();
+            active.map = null;
+        }
+    }
+
+    private void rotate() throws IOException {
+        Segment sealed = active;
+        sealed.channel.force(true);
+        sealed.map = sealed.channel.map(FileChannel.MapMode.READ_ONLY, 0, sealed.size);
+        openSegment(sealed.number + 1);
+    }
+
+    private void openSegment(int number) throws IOException {
+        Path path = directory.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_BYTES).putInt(MAGIC).putInt(VERSION).flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        channel.force(true);
+        Segment segment = new Segment(number, path, channel);
+        segment.size = SEGMENT_HEADER_BYTES;
+        segments.put(number, segment);
+        active = segment;
+    }
+
+    /**
+     * Visit each intact record of a mapped segment in order.
+     *
+     * @return offset just past the last intact record
+     */
+    private long scan(Segment segment, RecordVisitor visitor) {
+        ByteBuffer in = segment.map.duplicate();
+        in.position(SEGMENT_HEADER_BYTES);
+        CRC32 crc = new CRC32();
+        while (in.remaining() >= RECORD_HEADER_BYTES) {
+            int start = in.position();
+            int length = in.getInt();
+            int expected = in.getInt();
+            if (length < 18 || length > in.remaining()) {
+                return start;
+            }
+            ByteBuffer body = in.slice(in.position(), length);
+            crc.reset();
+            crc.update(body.duplicate());
+            if ((int) crc.getValue() != expected) {
+                return start;
+            }
+            UUID uuid = new UUID(body.getLong(), body.getLong());
+            byte[] group = new byte[body.getShort() & 0xFFFF];
+            body.get(group);
+            visitor.visit(uuid, new String(group, StandardCharsets.UTF_8),
+                    new Location(segment, start, length, fingerprint(body.duplicate())), body);
+            in.position(start + RECORD_HEADER_BYTES + length);
+        }
+        return in.position();
+    }
+
+    private static int segmentNumber(Path path) {
+        String name = path.getFileName().toString();
+        return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private interface RecordVisitor {
+        void visit(UUID uuid, String group, Location location, ByteBuffer payload);
+    }
+
+    private static final class Segment {
+        final int number;
+        final Path path;
+        final FileChannel channel;
+        final AtomicLong live = new AtomicLong();
+        // Guarded by writeLock once the store is open
+        long size;
+        // Set once the segment is sealed; reads of the active segment go through the channel
+        volatile MappedByteBuffer map;
+
+        Segment(int number, Path path, FileChannel channel) {
+            this.number = number;
+            this.path = path;
+            this.channel = channel;
+        }
+    }
+
+    /** Two independent 32-bit checksums of the payload; cheap, and collisions are negligible. */
+    private static long fingerprint(ByteBuffer payload) {
+        CRC32 crc = new CRC32();
+        CRC32C crcc = new CRC32C();
+        crc.update(payload.duplicate());
+        crcc.update(payload);
+        return crc.getValue() << 32 | crcc.getValue();
+    }
+
+    private record Location(Segment segment, long offset, int length, long fingerprint) {
+    }
+
+    private record Pending(UUID uuid, String group, byte[] groupBytes, byte[] payload, long fingerprint) {
+        Pending(UUID uuid, String group, byte[] payload) {
+            this(uuid, group, group.getBytes(StandardCharsets.UTF_8), payload,
+                    InventoryStore.fingerprint(ByteBuffer.wrap(payload)));
+        }
+
+        int bodyLength() {
+            return 16 + 2 + groupBytes.length + payload.length;
+        }
+    }
+}
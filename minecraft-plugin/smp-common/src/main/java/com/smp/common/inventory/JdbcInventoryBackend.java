@@ -0,0 +1,531 @@
+package com.smp.common.inventory;
+
+import com.smp.common.db.ConnectionPool;
+import com.smp.common.db.PooledConnection;
+import com.smp.common.metrics.LatencyHistogram;
+import com.smp.common.metrics.Metrics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Inventory backend over a SQL table, one row per player and group:
+ *
+ * <pre>
+ * inventory_groups: uuid BINARY(16) | group_name | payload | version | updated_at, primary key (uuid, group_name)
+ * inventory_leases: uuid BINARY(16) primary key | node | expires_at
+ * </pre>
+ *
+ * The same statements serve SQLite and MySQL; only the table definitions
+ * and the inserts that resolve conflicts differ. Bulk imports are written in
+ * chunks of {@link #IMPORT_CHUNK} rows, one transaction per chunk.
+ *
+ * Every row carries a version that each write increments. Servers sharing
+ * the database read with {@link #getAllVersioned} and write back with
+ * {@link #compareAndSet} (or {@link #compareAndSetAll} for a batch), which
+ * only succeeds if nobody wrote the group in between, and hold an
+ * {@link InventoryLeases} lease on the player while they do.
+ */
+public final class JdbcInventoryBackend implements InventoryBackend {
+
+    public enum Dialect {
+        SQLITE("CREATE TABLE IF NOT EXISTS inventory_groups (" +
+                "uuid BLOB NOT NULL," +
+                "group_name TEXT NOT NULL," +
+                "payload BLOB NOT NULL," +
+                "version INTEGER NOT NULL DEFAULT 1," +
+                "updated_at INTEGER NOT NULL," +
+                "PRIMARY KEY (uuid, group_name))",
+                "ON CONFLICT (uuid, group_name) DO UPDATE SET payload = excluded.payload, "
+                        + "version = inventory_groups.version + 1, updated_at = excluded.updated_at",
+                "INSERT OR IGNORE",
+                "CREATE TABLE IF NOT EXISTS inventory_leases (" +
+                "uuid BLOB PRIMARY KEY," +
+                "node TEXT NOT NULL," +
+                "expires_at INTEGER NOT NULL)",
+                "INSERT INTO inventory_leases (uuid, node, expires_at) VALUES (?, ?, ?) "
+                        + "ON CONFLICT (uuid) DO UPDATE SET node = excluded.node, expires_at = excluded.expires_at "
+                        + "WHERE inventory_leases.node = excluded.node OR inventory_leases.expires_at < ?"),
+        MYSQL("CREATE TABLE IF NOT EXISTS inventory_groups (" +
+                "uuid BINARY(16) NOT NULL," +
+                "group_name VARCHAR(64) NOT NULL," +
+                "payload MEDIUMBLOB NOT NULL," +
+                "version BIGINT NOT NULL DEFAULT 1," +
+                "updated_at BIGINT NOT NULL," +
+                "PRIMARY KEY (uuid, group_name))",
+                "ON DUPLICATE KEY UPDATE payload = VALUES(payload), version = version + 1, updated_at = VALUES(updated_at)",
+                "INSERT IGNORE",
+                "CREATE TABLE IF NOT EXISTS inventory_leases (" +
+                "uuid BINARY(16) PRIMARY KEY," +
+                "node VARCHAR(64) NOT NULL," +
+                "expires_at BIGINT NOT NULL)",
+                // Assignments run left to right, so expires_at sees the node just written
+                "INSERT INTO inventory_leases (uuid, node, expires_at) VALUES (?, ?, ?) ON DUPLICATE KEY UPDATE "
+                        + "node = IF(node = VALUES(node) OR expires_at < ?, VALUES(node), node), "
+                        + "expires_at = IF(node = VALUES(node), VALUES(expires_at), expires_at)");
+
+        final String createTable;
+        final String upsert;
+        final String insertIfAbsent;
+        final String createLeases;
+        final String acquireLease;
+
+        Dialect(String createTable, String onConflict, String insertIgnore, String createLeases, String acquireLease) {
+            this.createTable = createTable;
+            this.upsert = "INSERT INTO inventory_groups (uuid, group_name, payload, updated_at) VALUES (?, ?, ?, ?) "
+                    + onConflict;
+            this.insertIfAbsent = insertIgnore
+                    + " INTO inventory_groups (uuid, group_name, payload, updated_at) VALUES (?, ?, ?, ?)";
+            this.createLeases = createLeases;
+            this.acquireLease = acquireLease;
+        }
+    }
+
+    /** A payload and the version it was stored as; every write adds one to the version. */
+    public record Versioned(byte[] payload, long version) {
+    }
+
+    /** One write for {@link #compareAndSetAll}, landing only if the group is still at {@code expectedVersion}. */
+    public record Cas(UUID uuid, String group, long expectedVersion, byte[] payload) {
+    }
+
+    static final int IMPORT_CHUNK = 500;
+
+    private static final String GET_SQL = "SELECT payload FROM inventory_groups WHERE uuid = ? AND group_name = ?";
+    private static final String GET_ALL_SQL = "SELECT group_name, payload FROM inventory_groups WHERE uuid = ?";
+    private static final String CONTAINS_SQL = "SELECT 1 FROM inventory_groups WHERE uuid = ? AND group_name = ?";
+    private static final String GET_VERSIONED_SQL = "SELECT payload, version FROM inventory_groups WHERE uuid = ? AND group_name = ?";
+    private static final String GET_ALL_VERSIONED_SQL = "SELECT group_name, payload, version FROM inventory_groups WHERE uuid = ?";
+    private static final String COMPARE_AND_SET_SQL = "UPDATE inventory_groups SET payload = ?, version = version + 1, "
+            + "updated_at = ? WHERE uuid = ? AND group_name = ? AND version = ?";
+
+    private final ConnectionPool pool;
+    private final Dialect dialect;
+
+    private final AtomicLong rowsWritten = new AtomicLong();
+    private final AtomicLong rowsRead = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong conflicts = new AtomicLong();
+    private volatile LatencyHistogram writeLatency;
+    private volatile LatencyHistogram readLatency;
+
+    /** Takes ownership of the pool and creates the table if it is missing. */
+    public JdbcInventoryBackend(ConnectionPool pool, Dialect dialect) throws IOException {
+        this.pool = pool;
+        this.dialect = dialect;
+        try (PooledConnection conn = pool.borrow(); Statement stmt = conn.createStatement()) {
+            try {
+                if (dialect == Dialect.SQLITE) {
+                    // Readers no longer wait for a writer; the setting is kept in the file
+                    stmt.execute("PRAGMA journal_mode=WAL");
+                }
+                stmt.execute(dialect.createTable);
+                stmt.execute(dialect.createLeases);
+            } catch (SQLException e) {
+                conn.onError(e);
+                throw e;
+            }
+        } catch (SQLException e) {
+            pool.close();
+            throw new IOException("Could not create the inventory tables", e);
+        }
+    }
+
+    @Override
+    public byte[] get(UUID uuid, String group) throws IOException {
+        long start = System.nanoTime();
+        try (PooledConnection conn = pool.borrow()) {
+            try {
+                PreparedStatement stmt = conn.prepare(GET_SQL);
+                stmt.setBytes(1, uuidBytes(uuid));
+                stmt.setString(2, group);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    if (!rs.next()) {
+                        return null;
+                    }
+                    rowsRead.incrementAndGet();
+                    return rs.getBytes(1);
+                }
+            } catch (SQLException e) {
+                conn.onError(e);
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not read " + group + " inventory for " + uuid, e);
+        } finally {
+            record(readLatency, start);
+        }
+    }
+
+    @Override
+    public Map<String, byte[]> getAll(UUID uuid) throws IOException {
+        long start = System.nanoTime();
+        Map<String, byte[]> groups = new HashMap<>();
+        try (PooledConnection conn = pool.borrow()) {
+            try {
+                PreparedStatement stmt = conn.prepare(GET_ALL_SQL);
+                stmt.setBytes(1, uuidBytes(uuid));
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        groups.put(rs.getString(1), rs.getBytes(2));
+                    }
+                }
+            } catch (SQLException e) {
+                conn.onError(e);
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not read inventories for " + uuid, e);
+        } finally {
+            record(readLatency, start);
+        }
+        rowsRead.addAndGet(groups.size());
+        return groups;
+    }
+
+    @Override
+    public boolean contains(UUID uuid, String group) throws IOException {
+        try (PooledConnection conn = pool.borrow()) {
+            try {
+                PreparedStatement stmt = conn.prepare(CONTAINS_SQL);
+                stmt.setBytes(1, uuidBytes(uuid));
+                stmt.setString(2, group);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    return rs.next();
+                }
+            } catch (SQLException e) {
+                conn.onError(e);
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not look up " + group + " inventory for " + uuid, e);
+        }
+    }
+
+    @Override
+    public boolean put(UUID uuid, String group, byte[] payload) throws IOException {
+        return putAll(uuid, Map.of(group, payload)) == 1;
+    }
+
+    @Override
+    public int putAll(UUID uuid, Map<String, byte[]> groups) throws IOException {
+        if (groups.isEmpty()) {
+            return 0;
+        }
+        write(Map.of(uuid, groups));
+        return groups.size();
+    }
+
+    @Override
+    public void importAll(Map<UUID, Map<String, byte[]>> players) throws IOException {
+        Map<UUID, Map<String, byte[]>> chunk = new HashMap<>();
+        int rows = 0;
+        for (Map.Entry<UUID, Map<String, byte[]>> player : players.entrySet()) {
+            chunk.put(player.getKey(), player.getValue());
+            rows += player.getValue().size();
+            if (rows >= IMPORT_CHUNK) {
+                write(chunk);
+                chunk = new HashMap<>();
+                rows = 0;
+            }
+        }
+        if (rows > 0) {
+            write(chunk);
+        }
+    }
+
+    /** The group's payload and version, or null if it was never stored. */
+    public Versioned getVersioned(UUID uuid, String group) throws IOException {
+        long start = System.nanoTime();
+        try (PooledConnection conn = pool.borrow()) {
+            try {
+                PreparedStatement stmt = conn.prepare(GET_VERSIONED_SQL);
+                stmt.setBytes(1, uuidBytes(uuid));
+                stmt.setString(2, group);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    if (!rs.next()) {
+                        return null;
+                    }
+                    rowsRead.incrementAndGet();
+                    return new Versioned(rs.getBytes(1), rs.getLong(2));
+                }
+            } catch (SQLException e) {
+                conn.onError(e);
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not read " + group + " inventory for " + uuid, e);
+        } finally {
+            record(readLatency, start);
+        }
+    }
+
+    /** Every group stored for the player with its version; empty if none. */
+    public Map<String, Versioned> getAllVersioned(UUID uuid) throws IOException {
+        long start = System.nanoTime();
+        Map<String, Versioned> groups = new HashMap<>();
+        try (PooledConnection conn = pool.borrow()) {
+            try {
+                PreparedStatement stmt = conn.prepare(GET_ALL_VERSIONED_SQL);
+                stmt.setBytes(1, uuidBytes(uuid));
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        groups.put(rs.getString(1), new Versioned(rs.getBytes(2), rs.getLong(3)));
+                    }
+                }
+            } catch (SQLException e) {
+                conn.onError(e);
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not read inventories for " + uuid, e);
+        } finally {
+            record(readLatency, start);
+        }
+        rowsRead.addAndGet(groups.size());
+        return groups;
+    }
+
+    /**
+     * Write the group only if it is still at {@code expectedVersion}, or, for
+     * an expected version of 0, only if it does not exist yet.
+     *
+     * @return the new version, or -1 if another write got there first
+     */
+    public long compareAndSet(UUID uuid, String group, long expectedVersion, byte[] payload) throws IOException {
+        long start = System.nanoTime();
+        int updated;
+        try (PooledConnection conn = pool.borrow()) {
+            try {
+                PreparedStatement stmt;
+                if (expectedVersion == 0) {
+                    stmt = conn.prepare(dialect.insertIfAbsent);
+                    stmt.setBytes(1, uuidBytes(uuid));
+                    stmt.setString(2, group);
+                    stmt.setBytes(3, payload);
+                    stmt.setLong(4, System.currentTimeMillis());
+                } else {
+                    stmt = conn.prepare(COMPARE_AND_SET_SQL);
+                    stmt.setBytes(1, payload);
+                    stmt.setLong(2, System.currentTimeMillis());
+                    stmt.setBytes(3, uuidBytes(uuid));
+                    stmt.setString(4, group);
+                    stmt.setLong(5, expectedVersion);
+                }
+                updated = stmt.executeUpdate();
+            } catch (SQLException e) {
+                conn.onError(e);
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not write " + group + " inventory for " + uuid, e);
+        } finally {
+            record(writeLatency, start);
+        }
+        if (updated == 0) {
+            conflicts.incrementAndGet();
+            return -1;
+        }
+        rowsWritten.incrementAndGet();
+        bytesWritten.addAndGet(payload.length);
+        return expectedVersion + 1;
+    }
+
+    /**
+     * {@link #compareAndSet} for many groups in one transaction: the updates
+     * of stored groups go out as one batch, then the inserts of new ones.
+     *
+     * @return the new version of each write, in order, or -1 where another write got there first
+     */
+    public long[] compareAndSetAll(List<Cas> writes) throws IOException {
+        long[] versions = new long[writes.size()];
+        if (writes.isEmpty()) {
+            return versions;
+        }
+        long start = System.nanoTime();
+        long now = System.currentTimeMillis();
+        try (PooledConnection conn = pool.borrow()) {
+            try {
+                conn.setAutoCommit(false);
+                List<Integer> updates = new ArrayList<>();
+                List<Integer> inserts = new ArrayList<>();
+                List<Integer> unknown = new ArrayList<>();
+                for (int i = 0; i < writes.size(); i++) {
+                    (writes.get(i).expectedVersion() == 0 ? inserts : updates).add(i);
+                }
+                // Each batch runs before the next statement is prepared, as the cache may hold only one
+                if (!updates.isEmpty()) {
+                    PreparedStatement stmt = conn.prepare(COMPARE_AND_SET_SQL);
+                    for (int i : updates) {
+                        Cas write = writes.get(i);
+                        stmt.setBytes(1, write.payload());
+                        stmt.setLong(2, now);
+                        stmt.setBytes(3, uuidBytes(write.uuid()));
+                        stmt.setString(4, write.group());
+                        stmt.setLong(5, write.expectedVersion());
+                        stmt.addBatch();
+                    }
+                    unknown.addAll(applied(stmt.executeBatch(), updates, writes, versions));
+                }
+                if (!inserts.isEmpty()) {
+                    PreparedStatement stmt = conn.prepare(dialect.insertIfAbsent);
+                    for (int i : inserts) {
+                        Cas write = writes.get(i);
+                        stmt.setBytes(1, uuidBytes(write.uuid()));
+                        stmt.setString(2, write.group());
+                        stmt.setBytes(3, write.payload());
+                        stmt.setLong(4, now);
+                        stmt.addBatch();
+                    }
+                    unknown.addAll(applied(stmt.executeBatch(), inserts, writes, versions));
+                }
+                if (!unknown.isEmpty()) {
+                    // A rewritten batch may report no per-row counts; read back whether each write landed
+                    PreparedStatement stmt = conn.prepare(GET_VERSIONED_SQL);
+                    for (int i : unknown) {
+                        Cas write = writes.get(i);
+                        stmt.setBytes(1, uuidBytes(write.uuid()));
+                        stmt.setString(2, write.group());
+                        try (ResultSet rs = stmt.executeQuery()) {
+                            long version = write.expectedVersion() + 1;
+                            boolean ours = rs.next() && rs.getLong(2) == version
+                                    && Arrays.equals(rs.getBytes(1), write.payload());
+                            versions[i] = ours ? version : -1;
+                        }
+                    }
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                conn.onError(e);
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not write " + writes.size() + " inventories", e);
+        } finally {
+            record(writeLatency, start);
+        }
+        for (int i = 0; i < writes.size(); i++) {
+            if (versions[i] < 0) {
+                conflicts.incrementAndGet();
+            } else {
+                rowsWritten.incrementAndGet();
+                bytesWritten.addAndGet(writes.get(i).payload().length);
+            }
+        }
+        return versions;
+    }
+
+    /** Player leases held under {@code node}, on this backend's database. */
+    public InventoryLeases leases(String node, long ttlMillis) {
+        return new InventoryLeases(pool, dialect.acquireLease, node, ttlMillis);
+    }
+
+    /** Report write and read latency, rows and bytes written, and the pool. */
+    @Override
+    public void instrument(Metrics metrics) {
+        metrics.counter("bytes_written", "inventory_store", bytesWritten::get);
+        metrics.counter("store_events", "records_written", rowsWritten::get);
+        metrics.counter("store_events", "records_read", rowsRead::get);
+        metrics.counter("store_events", "version_conflicts", conflicts::get);
+        writeLatency = metrics.timer("store", "write");
+        readLatency = metrics.timer("store", "read");
+        pool.instrument(metrics);
+    }
+
+    @Override
+    public List<String> describeMetrics() {
+        List<String> lines = new ArrayList<>();
+        lines.add("Store: " + dialect.name().toLowerCase(Locale.ROOT) + " inventory_groups, " + rowsWritten.get()
+                + " rows written (" + bytesWritten.get() / 1024 + " KiB), " + rowsRead.get() + " read, "
+                + conflicts.get() + " version conflicts");
+        lines.addAll(pool.describeMetrics());
+        return lines;
+    }
+
+    @Override
+    public void close() {
+        pool.close();
+    }
+
+    /** Upsert every group of every player in one transaction. */
+    private void write(Map<UUID, Map<String, byte[]>> players) throws IOException {
+        long start = System.nanoTime();
+        long now = System.currentTimeMillis();
+        int rows = 0;
+        long bytes = 0;
+        try (PooledConnection conn = pool.borrow()) {
+            try {
+                conn.setAutoCommit(false);
+                PreparedStatement stmt = conn.prepare(dialect.upsert);
+                for (Map.Entry<UUID, Map<String, byte[]>> player : players.entrySet()) {
+                    byte[] uuid = uuidBytes(player.getKey());
+                    for (Map.Entry<String, byte[]> group : player.getValue().entrySet()) {
+                        stmt.setBytes(1, uuid);
+                        stmt.setString(2, group.getKey());
+                        stmt.setBytes(3, group.getValue());
+                        stmt.setLong(4, now);
+                        stmt.addBatch();
+                        rows++;
+                        bytes += group.getValue().length;
+                    }
+                }
+                stmt.executeBatch();
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                conn.onError(e);
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not write inventories for " + players.size() + " players", e);
+        } finally {
+            record(writeLatency, start);
+        }
+        rowsWritten.addAndGet(rows);
+        bytesWritten.addAndGet(bytes);
+    }
+
+    /**
+     * Fill in the versions of one batch of {@link #compareAndSetAll}.
+     *
+     * @return writes whose count the driver could not tell (SUCCESS_NO_INFO)
+     */
+    private static List<Integer> applied(int[] counts, List<Integer> batch, List<Cas> writes, long[] versions) {
+        List<Integer> unknown = new ArrayList<>();
+        for (int j = 0; j < counts.length; j++) {
+            int i = batch.get(j);
+            if (counts[j] == Statement.SUCCESS_NO_INFO) {
+                unknown.add(i);
+            } else {
+                versions[i] = counts[j] == 0 ? -1 : writes.get(i).expectedVersion() + 1;
+            }
+        }
+        return unknown;
+    }
+
+    static byte[] uuidBytes(UUID uuid) {
+        return ByteBuffer.allocate(16)
+                .putLong(uuid.getMostSignificantBits())
+                .putLong(uuid.getLeastSignificantBits())
+                .array();
+    }
+
+    private static void record(LatencyHistogram latency, long startNanos) {
+        if (latency != null) {
+            latency.recordSince(startNanos);
+        }
+    }
+}
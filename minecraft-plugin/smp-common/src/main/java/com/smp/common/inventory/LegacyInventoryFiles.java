@@ -0,0 +1,152 @@
+package com.smp.common.inventory;
+
+import org.bukkit.GameMode;
+import org.bukkit.inventory.ItemStack;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Readers for the per-player files the inventory plugins wrote before the
+ * store, returning snapshots in serialized form so no server is needed:
+ *
+ * <ul>
+ *     <li>{@code <uuid>.dat}: a Java-serialized {@code Map<String, InventoryData>}, every group in one file</li>
+ *     <li>{@code <uuid>_<group>.yml}: despite the name, a Java-serialized {@code HashMap} of one group,
+ *         items as ItemStack.serialize() maps</li>
+ * </ul>
+ */
+public final class LegacyInventoryFiles {
+
+    // PotionEffectType names by the numeric id PotionEffect.serialize() stored
+    private static final String[] EFFECT_NAMES = {
+            null, "SPEED", "SLOW", "FAST_DIGGING", "SLOW_DIGGING", "INCREASE_DAMAGE", "HEAL", "HARM", "JUMP",
+            "CONFUSION", "REGENERATION", "DAMAGE_RESISTANCE", "FIRE_RESISTANCE", "WATER_BREATHING", "INVISIBILITY",
+            "BLINDNESS", "NIGHT_VISION", "HUNGER", "WEAKNESS", "POISON", "WITHER", "HEALTH_BOOST", "ABSORPTION",
+            "SATURATION", "GLOWING", "LEVITATION", "LUCK", "UNLUCK", "SLOW_FALLING", "CONDUIT_POWER",
+            "DOLPHINS_GRACE", "BAD_OMEN", "HERO_OF_THE_VILLAGE", "DARKNESS"
+    };
+
+    private LegacyInventoryFiles() {
+    }
+
+    /** Every group in a {@code <uuid>.dat} file. Effects were never saved in this format. */
+    @SuppressWarnings("unchecked")
+    public static Map<String, InventoryCodec.Serialized> readPlayerFile(Path file) throws IOException {
+        try (ObjectInputStream in = new LegacyObjectInputStream(Files.newInputStream(file))) {
+            Map<String, InventoryData> legacy = (Map<String, InventoryData>) in.readObject();
+            Map<String, InventoryCodec.Serialized> groups = new HashMap<>();
+            for (Map.Entry<String, InventoryData> entry : legacy.entrySet()) {
+                InventoryData data = entry.getValue();
+                groups.put(entry.getKey(), new InventoryCodec.Serialized(
+                        serialize(data.inventory), serialize(data.armor), serialize(data.offHand), null,
+                        data.health, data.foodLevel, data.saturation, data.exp, data.level,
+                        (data.gameMode != null ? data.gameMode : GameMode.SURVIVAL).name()));
+            }
+            return groups;
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Not an inventory .dat file: " + e.getMessage(), e);
+        }
+    }
+
+    /** The one group in a {@code <uuid>_<group>.yml} file. */
+    @SuppressWarnings("unchecked")
+    public static InventoryCodec.Serialized readGroupFile(Path file) throws IOException {
+        try (ObjectInputStream in = new LegacyObjectInputStream(Files.newInputStream(file))) {
+            Map<String, Object> data = (Map<String, Object>) in.readObject();
+            List<InventoryCodec.Effect> effects = new ArrayList<>();
+            List<Map<String, Object>> saved = (List<Map<String, Object>>) data.getOrDefault("effects", List.of());
+            for (Map<String, Object> effect : saved) {
+                String type = effectName(effect.get("effect"));
+                if (type != null) {
+                    effects.add(new InventoryCodec.Effect(type,
+                            ((Number) effect.get("duration")).intValue(),
+                            ((Number) effect.get("amplifier")).intValue(),
+                            Boolean.TRUE.equals(effect.get("ambient")),
+                            !Boolean.FALSE.equals(effect.get("has-particles")),
+                            !Boolean.FALSE.equals(effect.get("has-icon"))));
+                }
+            }
+            return new InventoryCodec.Serialized(
+                    (List<Map<String, Object>>) data.get("inventory"),
+                    (List<Map<String, Object>>) data.get("armor"),
+                    (Map<String, Object>) data.get("offhand"),
+                    effects,
+                    ((Number) data.get("health")).doubleValue(),
+                    ((Number) data.get("food")).intValue(),
+                    ((Number) data.get("saturation")).floatValue(),
+                    ((Number) data.get("exp")).floatValue(),
+                    ((Number) data.get("level")).intValue(),
+                    (String) data.get("gamemode"));
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Not an inventory .yml file: " + e.getMessage(), e);
+        }
+    }
+
+    private static String effectName(Object type) {
+        if (type instanceof Number id) {
+            int index = id.intValue();
+            return index > 0 && index < EFFECT_NAMES.length ? EFFECT_NAMES[index] : null;
+        }
+        return type == null ? null : type.toString().replace("minecraft:", "").toUpperCase(Locale.ROOT);
+    }
+
+    private static List<Map<String, Object>> serialize(ItemStack[] items) {
+        List<Map<String, Object>> serialized = new ArrayList<>();
+        if (items != null) {
+            for (ItemStack item : items) {
+                serialized.add(serialize(item));
+            }
+        }
+        return serialized;
+    }
+
+    private static Map<String, Object> serialize(ItemStack item) {
+        return item == null ? null : item.serialize();
+    }
+
+    /**
+     * Field-for-field copy of the plugin's old {@code InventoryManagerPlugin.InventoryData},
+     * which .dat files name as their element class.
+     */
+    private static final class InventoryData implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        ItemStack[] inventory;
+        ItemStack[] armor;
+        ItemStack offHand;
+        double health;
+        int foodLevel;
+        float saturation;
+        float exp;
+        int level;
+        GameMode gameMode;
+    }
+
+    /** Reads the old plugin's InventoryData as the copy above, whatever package wrote it. */
+    private static final class LegacyObjectInputStream extends ObjectInputStream {
+
+        LegacyObjectInputStream(InputStream in) throws IOException {
+            super(new BufferedInputStream(in));
+        }
+
+        @Override
+        protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+            ObjectStreamClass descriptor = super.readClassDescriptor();
+            return descriptor.getName().endsWith("InventoryManagerPlugin$InventoryData")
+                    ? ObjectStreamClass.lookup(InventoryData.class)
+                    : descriptor;
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package com.smp.common.inventory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Saves every online player's inventories at shutdown within one deadline.
+ *
+ * The caller captures all snapshots on the main thread in one pass. They are
+ * encoded in parallel on a small pool while the I/O already queued drains,
+ * then written to the store in one batch. If the queued I/O has not
+ * drained, or the store fails or has not finished by the deadline, the encoded
+ * inventories go to a recovery journal instead: one file written atomically,
+ * which {@link #recover} replays into the store on the next start, ahead of
+ * any older record.
+ *
+ * Servers sharing one store pass a {@link Writer} that only lands a group on
+ * the version this server last saw. The journal records that version, so a
+ * replay that finds a newer copy moves the entry to a quarantine journal
+ * instead of overwriting it.
+ *
+ * <pre>
+ * journal: magic "SMPR" | version u32 | count u32 | entry*
+ * entry:   uuid msb u64 | uuid lsb u64 | group utf | base version i64 | payload length u32 | payload
+ * </pre>
+ * Version 1 journals have no base version; their entries replace whatever is
+ * stored.
+ */
+public final class ShutdownFlush {
+
+    private static final int MAGIC = 0x534D5052; // "SMPR"
+    private static final int VERSION = 2;
+    private static final String JOURNAL_PREFIX = "recovery-";
+    private static final String QUARANTINE_PREFIX = "quarantine-";
+    private static final String JOURNAL_SUFFIX = ".journal";
+
+    /**
+     * @param players   players whose snapshots were captured
+     * @param written   inventories appended to the store
+     * @param recovered inventories written to the recovery journal
+     * @param stale     inventories dropped because another server stored a newer copy
+     * @param lost      inventories that could not be saved anywhere
+     * @param millis    time the whole flush took
+     */
+    public record Result(int players, int written, int recovered, int stale, int lost, long millis) {
+
+        public String describe() {
+            return "Saved " + written + " inventories for " + players + " players in " + millis + "ms"
+                    + (recovered > 0 ? ", " + recovered + " to the recovery journal" : "")
+                    + (stale > 0 ? ", " + stale + " dropped as stale" : "")
+                    + (lost > 0 ? ", " + lost + " LOST" : "");
+        }
+    }
+
+    /** How flushed and recovered inventories reach the store. */
+    public interface Writer {
+
+        /**
+         * Write every flushed group.
+         *
+         * @return groups not written because another server stored a newer copy
+         */
+        int writeAll(Map<UUID, Map<String, byte[]>> players) throws IOException;
+
+        /** The stored version a flushed group was meant to replace, or -1 to replace any. */
+        long baseVersion(UUID uuid, String group);
+
+        /**
+         * Replay one journal entry.
+         *
+         * @param baseVersion as {@link #baseVersion} returned at shutdown
+         * @return false if a newer copy is stored and the entry was not written
+         */
+        boolean recover(UUID uuid, String group, byte[] payload, long baseVersion) throws IOException;
+    }
+
+    /** Entries always replace what the store holds; for a store only this server writes. */
+    public static Writer writer(InventoryBackend store) {
+        return new Writer() {
+            @Override
+            public int writeAll(Map<UUID, Map<String, byte[]>> players) throws IOException {
+                store.importAll(players);
+                return 0;
+            }
+
+            @Override
+            public long baseVersion(UUID uuid, String group) {
+                return -1;
+            }
+
+            @Override
+            public boolean recover(UUID uuid, String group, byte[] payload, long baseVersion) throws IOException {
+                store.put(uuid, group, payload);
+                return true;
+            }
+        };
+    }
+
+    private record Entry(byte[] payload, long baseVersion) {
+    }
+
+    private ShutdownFlush() {
+    }
+
+    /**
+     * Persist the captured snapshots and close {@code io}.
+     *
+     * @param captured    groups to save per player, captured on the main thread
+     * @param recoveryDir where the recovery journal goes if the store cannot be used
+     * @param threads     encoder threads
+     */
+    public static Result flush(Map<UUID, Map<String, InventorySnapshot>> captured, InventoryCodec codec,
+                               InventoryBackend store, InventoryIO io, Path recoveryDir, int threads,
+                               long timeoutMillis, Logger logger) {
+        return flush(captured, codec, writer(store), io, recoveryDir, threads, timeoutMillis, logger);
+    }
+
+    /** As above, writing through {@code writer}. */
+    public static Result flush(Map<UUID, Map<String, InventorySnapshot>> captured, InventoryCodec codec,
+                               Writer writer, InventoryIO io, Path recoveryDir, int threads,
+                               long timeoutMillis, Logger logger) {
+        long started = System.currentTimeMillis();
+        long deadline = started + timeoutMillis;
+        int total = 0;
+        for (Map<String, InventorySnapshot> groups : captured.values()) {
+            total += groups.size();
+        }
+
+        AtomicInteger counter = new AtomicInteger();
+        ExecutorService encoders = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread thread = new Thread(r, "InventoryFlush-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        Map<UUID, Future<Map<String, byte[]>>> encoding = new LinkedHashMap<>();
+        for (Map.Entry<UUID, Map<String, InventorySnapshot>> player : captured.entrySet()) {
+            Map<String, InventorySnapshot> groups = player.getValue();
+            encoding.put(player.getKey(), encoders.submit(() -> {
+                Map<String, byte[]> encoded = new HashMap<>();
+                groups.forEach((group, snapshot) -> encoded.put(group, codec.encode(snapshot)));
+                return encoded;
+            }));
+        }
+        encoders.shutdown();
+
+        // Saves queued before shutdown must land first, or they would overwrite these
+        boolean drained = io.close(remaining(deadline));
+
+        Map<UUID, Map<String, byte[]>> encoded = new LinkedHashMap<>();
+        int ready = 0;
+        for (Map.Entry<UUID, Future<Map<String, byte[]>>> player : encoding.entrySet()) {
+            try {
+                Map<String, byte[]> groups = player.getValue().get(remaining(deadline), TimeUnit.MILLISECONDS);
+                encoded.put(player.getKey(), groups);
+                ready += groups.size();
+            } catch (TimeoutException e) {
+                logger.severe("Gave up encoding inventories for " + player.getKey() + " at the shutdown deadline");
+            } catch (ExecutionException e) {
+                logger.log(Level.SEVERE, "Could not encode inventories for " + player.getKey(), e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        encoders.shutdownNow();
+
+        if (drained && System.currentTimeMillis() < deadline) {
+            // On its own thread, so a stalled store cannot hold shutdown past the deadline
+            ExecutorService storeWriter = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "InventoryFlush-store");
+                thread.setDaemon(true);
+                return thread;
+            });
+            Future<Integer> write = storeWriter.submit(() -> writer.writeAll(encoded));
+            storeWriter.shutdown();
+            try {
+                int stale = write.get(remaining(deadline), TimeUnit.MILLISECONDS);
+                return new Result(captured.size(), ready - stale, 0, stale, total - ready,
+                        System.currentTimeMillis() - started);
+            } catch (TimeoutException e) {
+                // If it lands after all, replaying the journal finds the same payload stored
+                write.cancel(true);
+                logger.warning("Inventory store write did not finish within " + timeoutMillis
+                        + "ms, writing a recovery journal");
+            } catch (ExecutionException e) {
+                logger.log(Level.SEVERE, "Could not write inventories to the store at shutdown", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                write.cancel(true);
+            }
+        } else {
+            logger.warning("Inventory I/O did not finish within " + timeoutMillis + "ms, writing a recovery journal");
+        }
+
+        try {
+            writeJournal(recoveryDir, JOURNAL_PREFIX, withBaseVersions(encoded, writer));
+            return new Result(captured.size(), 0, ready, 0, total - ready, System.currentTimeMillis() - started);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Could not write the inventory recovery journal", e);
+            return new Result(captured.size(), 0, 0, 0, total, System.currentTimeMillis() - started);
+        }
+    }
+
+    /**
+     * Replay recovery journals from earlier shutdowns into the store, oldest
+     * first, and delete them. Journal entries always replace what the store
+     * holds, since they were captured after it.
+     *
+     * @return number of inventories restored
+     */
+    public static int recover(Path recoveryDir, InventoryBackend store, Logger logger) throws IOException {
+        return recover(recoveryDir, writer(store), logger);
+    }
+
+    /**
+     * As above, replaying through {@code writer}. Entries it turns down, as
+     * another server has stored a newer copy since, are kept in a quarantine
+     * journal next to the recovery journals rather than lost.
+     */
+    public static int recover(Path recoveryDir, Writer writer, Logger logger) throws IOException {
+        if (!Files.isDirectory(recoveryDir)) {
+            return 0;
+        }
+        List<Path> journals = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(recoveryDir, JOURNAL_PREFIX + "*" + JOURNAL_SUFFIX)) {
+            stream.forEach(journals::add);
+        }
+        // Names carry the shutdown time, zero-padded
+        journals.sort(null);
+
+        int restored = 0;
+        for (Path journal : journals) {
+            Map<UUID, Map<String, Entry>> entries = readJournal(journal);
+            Map<UUID, Map<String, Entry>> turnedDown = new LinkedHashMap<>();
+            for (Map.Entry<UUID, Map<String, Entry>> player : entries.entrySet()) {
+                for (Map.Entry<String, Entry> group : player.getValue().entrySet()) {
+                    Entry entry = group.getValue();
+                    if (writer.recover(player.getKey(), group.getKey(), entry.payload(), entry.baseVersion())) {
+                        restored++;
+                    } else {
+                        turnedDown.computeIfAbsent(player.getKey(), k -> new HashMap<>()).put(group.getKey(), entry);
+                    }
+                }
+            }
+            if (!turnedDown.isEmpty()) {
+                Path quarantine = writeJournal(recoveryDir, QUARANTINE_PREFIX, turnedDown);
+                logger.severe("Kept " + turnedDown.size() + " players' recovered inventories out of the store, "
+                        + "another server has saved them since; they are in " + quarantine.getFileName());
+            }
+            Files.delete(journal);
+            logger.info("Restored " + (entries.size() - turnedDown.size()) + " players' inventories from "
+                    + journal.getFileName());
+        }
+        return restored;
+    }
+
+    private static Map<UUID, Map<String, Entry>> withBaseVersions(Map<UUID, Map<String, byte[]>> encoded, Writer writer) {
+        Map<UUID, Map<String, Entry>> entries = new LinkedHashMap<>();
+        for (Map.Entry<UUID, Map<String, byte[]>> player : encoded.entrySet()) {
+            Map<String, Entry> groups = new HashMap<>();
+            player.getValue().forEach((group, payload) ->
+                    groups.put(group, new Entry(payload, writer.baseVersion(player.getKey(), group))));
+            entries.put(player.getKey(), groups);
+        }
+        return entries;
+    }
+
+    private static Path writeJournal(Path recoveryDir, String prefix, Map<UUID, Map<String, Entry>> entries)
+            throws IOException {
+        if (entries.isEmpty()) {
+            return null;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            int count = 0;
+            for (Map<String, Entry> groups : entries.values()) {
+                count += groups.size();
+            }
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(count);
+            for (Map.Entry<UUID, Map<String, Entry>> player : entries.entrySet()) {
+                for (Map.Entry<String, Entry> group : player.getValue().entrySet()) {
+                    out.writeLong(player.getKey().getMostSignificantBits());
+                    out.writeLong(player.getKey().getLeastSignificantBits());
+                    out.writeUTF(group.getKey());
+                    out.writeLong(group.getValue().baseVersion());
+                    out.writeInt(group.getValue().payload().length);
+                    out.write(group.getValue().payload());
+                }
+            }
+        }
+        Files.createDirectories(recoveryDir);
+        Path journal = recoveryDir.resolve(String.format("%s%013d%s", prefix, System.currentTimeMillis(), JOURNAL_SUFFIX));
+        InventoryIO.writeAtomically(journal, bytes.toByteArray());
+        return journal;
+    }
+
+    private static Map<UUID, Map<String, Entry>> readJournal(Path journal) throws IOException {
+        Map<UUID, Map<String, Entry>> entries = new LinkedHashMap<>();
+        try (InputStream file = Files.newInputStream(journal);
+             DataInputStream in = new DataInputStream(file)) {
+            int version = in.readInt() == MAGIC ? in.readInt() : -1;
+            if (version != 1 && version != VERSION) {
+                throw new IOException(journal.getFileName() + " is not a version 1 or " + VERSION + " recovery journal");
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                UUID uuid = new UUID(in.readLong(), in.readLong());
+                String group = in.readUTF();
+                long baseVersion = version == 1 ? -1 : in.readLong();
+                byte[] payload = new byte[in.readInt()];
+                in.readFully(payload);
+                entries.computeIfAbsent(uuid, k -> new HashMap<>()).put(group, new Entry(payload, baseVersion));
+            }
+        }
+        return entries;
+    }
+
+    private static long remaining(long deadline) {
+        return Math.max(0, deadline - System.currentTimeMillis());
+    }
+}
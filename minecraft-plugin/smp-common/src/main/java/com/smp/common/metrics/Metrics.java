@@ -0,0 +1,238 @@
+package com.smp.common.metrics;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Per-plugin registry of latency histograms, counters and gauges.
+ *
+ * Each metric belongs to a family ("handler", "statement", "errors",
+ * "queue_depth", ...) and has a name within it, such as the event handler or
+ * SQL statement it measures. Percentiles are reported over the last export
+ * interval, so a lag spike shows up for one interval instead of being
+ * averaged into the whole uptime; counts and sums are cumulative.
+ *
+ * Every interval the registry can also write everything in the Prometheus
+ * text format to a file, for node_exporter's textfile collector or any
+ * scraper that can read a file.
+ */
+public final class Metrics implements AutoCloseable {
+
+    private static final double[] QUANTILES = {0.5, 0.99};
+
+    private final String plugin;
+    private final Logger logger;
+    // Keyed by family, then name, so output is grouped by family
+    private final Map<String, Timer> timers = new ConcurrentSkipListMap<>();
+    private final Map<String, Source> counters = new ConcurrentSkipListMap<>();
+    private final Map<String, Source> gauges = new ConcurrentSkipListMap<>();
+
+    private ScheduledExecutorService exporter;
+    private volatile long windowMillis;
+
+    public Metrics(String plugin, Logger logger) {
+        this.plugin = plugin;
+        this.logger = logger;
+    }
+
+    /** The latency histogram for a family and name, created on first use. */
+    public LatencyHistogram timer(String family, String name) {
+        return timers.computeIfAbsent(key(family, name), k -> new Timer(family, name)).histogram;
+    }
+
+    /** A counter owned by the registry, created on first use. */
+    public LongAdder counter(String family, String name) {
+        Source source = counters.computeIfAbsent(key(family, name), k -> {
+            LongAdder adder = new LongAdder();
+            return new Source(family, name, adder::sum, adder);
+        });
+        if (source.adder == null) {
+            throw new IllegalStateException(family + "/" + name + " is read from a supplier");
+        }
+        return source.adder;
+    }
+
+    /** Export an existing monotonically increasing count as a counter. */
+    public void counter(String family, String name, LongSupplier value) {
+        counters.put(key(family, name), new Source(family, name, value, null));
+    }
+
+    /** Export a value that can go up and down, such as a queue depth. */
+    public void gauge(String family, String name, LongSupplier value) {
+        gauges.put(key(family, name), new Source(family, name, value, null));
+    }
+
+    /**
+     * Start closing a percentile window every interval, and write the
+     * Prometheus file if {@code exportFile} is not null.
+     */
+    public synchronized void start(Path exportFile, long intervalMillis) {
+        if (exporter != null) {
+            return;
+        }
+        exporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, plugin + "-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        exporter.scheduleAtFixedRate(() -> {
+            try {
+                roll(intervalMillis);
+                if (exportFile != null) {
+                    export(exportFile);
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.log(Level.WARNING, "Could not write metrics to " + exportFile, e);
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /** One line per timer, counter and gauge, for the admin commands. */
+    public List<String> describe() {
+        List<String> lines = new ArrayList<>();
+        String window = windowMillis > 0 ? " over " + windowMillis / 1000 + "s" : " since start";
+        for (Timer timer : timers.values()) {
+            LatencyHistogram.Snapshot total = timer.histogram.snapshot();
+            LatencyHistogram.Snapshot recent = timer.window != null ? timer.window : total;
+            lines.add(timer.family + " " + timer.name + ": " + total.count() + " calls, p50 "
+                    + millis(recent.percentile(0.5)) + " p99 " + millis(recent.percentile(0.99))
+                    + " max " + millis(recent.max()) + window);
+        }
+        for (Source counter : counters.values()) {
+            lines.add(counter.family + " " + counter.name + ": " + counter.value.getAsLong());
+        }
+        for (Source gauge : gauges.values()) {
+            lines.add(gauge.family + " " + gauge.name + ": " + gauge.value.getAsLong());
+        }
+        return lines;
+    }
+
+    /** Everything in the Prometheus text exposition format. */
+    public String render() {
+        StringBuilder out = new StringBuilder(4096);
+        String family = null;
+        for (Timer timer : timers.values()) {
+            String metric = "smp_" + timer.family + "_seconds";
+            if (!timer.family.equals(family)) {
+                family = timer.family;
+                out.append("# TYPE ").append(metric).append(" summary\n");
+            }
+            LatencyHistogram.Snapshot total = timer.histogram.snapshot();
+            LatencyHistogram.Snapshot recent = timer.window != null ? timer.window : total;
+            for (double q : QUANTILES) {
+                sample(out, metric, timer.name, "quantile=\"" + q + "\"", seconds(recent.percentile(q)));
+            }
+            sample(out, metric + "_sum", timer.name, null, seconds(total.sum()));
+            sample(out, metric + "_count", timer.name, null, Long.toString(total.count()));
+        }
+        family = null;
+        for (Timer timer : timers.values()) {
+            String metric = "smp_" + timer.family + "_max_seconds";
+            if (!timer.family.equals(family)) {
+                family = timer.family;
+                out.append("# TYPE ").append(metric).append(" gauge\n");
+            }
+            LatencyHistogram.Snapshot recent = timer.window != null ? timer.window : timer.histogram.snapshot();
+            sample(out, metric, timer.name, null, seconds(recent.max()));
+        }
+        render(out, counters, "_total", "counter");
+        render(out, gauges, "", "gauge");
+        return out.toString();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (exporter != null) {
+            exporter.shutdownNow();
+        }
+    }
+
+    /** Close the current percentile window. */
+    private void roll(long intervalMillis) {
+        for (Timer timer : timers.values()) {
+            LatencyHistogram.Snapshot now = timer.histogram.snapshot();
+            timer.window = timer.last == null ? now : now.since(timer.last);
+            timer.last = now;
+        }
+        windowMillis = intervalMillis;
+    }
+
+    private void export(Path file) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        // Scrapers must never read a half-written file
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(tmp, render().getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void render(StringBuilder out, Map<String, Source> sources, String suffix, String type) {
+        String family = null;
+        for (Source source : sources.values()) {
+            String metric = "smp_" + source.family + suffix;
+            if (!source.family.equals(family)) {
+                family = source.family;
+                out.append("# TYPE ").append(metric).append(' ').append(type).append('\n');
+            }
+            sample(out, metric, source.name, null, Long.toString(source.value.getAsLong()));
+        }
+    }
+
+    private void sample(StringBuilder out, String metric, String name, String extraLabel, String value) {
+        out.append(metric).append("{plugin=\"").append(escape(plugin)).append("\",name=\"").append(escape(name)).append('"');
+        if (extraLabel != null) {
+            out.append(',').append(extraLabel);
+        }
+        out.append("} ").append(value).append('\n');
+    }
+
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.2fms", nanos / 1e6);
+    }
+
+    private static String key(String family, String name) {
+        return family + '\0' + name;
+    }
+
+    private static final class Timer {
+        final String family;
+        final String name;
+        final LatencyHistogram histogram = new LatencyHistogram();
+        // Written by the exporter thread only
+        LatencyHistogram.Snapshot last;
+        volatile LatencyHistogram.Snapshot window;
+
+        Timer(String family, String name) {
+            this.family = family;
+            this.name = name;
+        }
+    }
+
+    private record Source(String family, String name, LongSupplier value, LongAdder adder) {
+    }
+}
@@ -0,0 +1,147 @@
+package com.smp.common.inventory;
+
+import org.bukkit.GameMode;
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.potion.PotionEffect;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Round trips through the codec. Encoding a live ItemStack asks the server's
+ * item factory about its meta, so items here go in through the serialized
+ * form and only come back out as ItemStacks.
+ */
+class InventoryCodecTest {
+
+    @Test
+    void roundTripsVitalsAndSlots() throws IOException {
+        InventoryCodec codec = new InventoryCodec(-1);
+        InventorySnapshot snapshot = snapshot(List.of(), 17.5, 12, 3.25f, 0.5f, 30, GameMode.ADVENTURE);
+
+        InventorySnapshot decoded = codec.decode(codec.encode(snapshot));
+
+        assertEquals(17.5, decoded.health());
+        assertEquals(12, decoded.foodLevel());
+        assertEquals(3.25f, decoded.saturation());
+        assertEquals(0.5f, decoded.exp());
+        assertEquals(30, decoded.level());
+        assertEquals(GameMode.ADVENTURE, decoded.gameMode());
+        assertEquals(41, decoded.contents().length);
+        assertEquals(4, decoded.armor().length);
+        assertTrue(Arrays.stream(decoded.contents()).allMatch(item -> item == null));
+        assertNull(decoded.offHand());
+        assertEquals(List.of(), decoded.effects());
+    }
+
+    @Test
+    void keepsUnmanagedEffectsDistinctFromNoEffects() throws IOException {
+        InventoryCodec codec = new InventoryCodec(-1);
+        InventorySnapshot unmanaged = snapshot(null, 20, 20, 5, 0, 0, GameMode.SURVIVAL);
+
+        assertNull(codec.decode(codec.encode(unmanaged)).effects());
+    }
+
+    @Test
+    void serializedFormEncodesToTheSameBytes() {
+        InventoryCodec codec = new InventoryCodec(-1);
+        InventorySnapshot snapshot = snapshot(List.of(), 20, 18, 2, 0.75f, 4, GameMode.SURVIVAL);
+        List<Map<String, Object>> contents = new ArrayList<>();
+        for (int i = 0; i < 41; i++) {
+            contents.add(null);
+        }
+        List<Map<String, Object>> armor = Arrays.asList(null, null, null, null);
+        InventoryCodec.Serialized serialized = new InventoryCodec.Serialized(contents, armor, null, List.of(),
+                20, 18, 2, 0.75f, 4, "SURVIVAL");
+
+        assertArrayEquals(codec.encode(snapshot), codec.encodeSerialized(serialized));
+    }
+
+    @Test
+    void decodesPlainItemsFromTheSerializedForm() throws IOException {
+        InventoryCodec codec = new InventoryCodec(-1);
+        List<Map<String, Object>> contents = new ArrayList<>();
+        contents.add(Map.of("type", "DIAMOND_SWORD", "amount", 1));
+        contents.add(Map.of("v", 3337, "type", "ENDER_PEARL", "amount", 16));
+        contents.add(Map.of("type", "AIR", "amount", 0));
+        InventoryCodec.Serialized serialized = new InventoryCodec.Serialized(contents, List.of(), null, null,
+                20, 20, 5, 0, 0, "SURVIVAL");
+
+        ItemStack[] decoded = codec.decode(codec.encodeSerialized(serialized)).contents();
+
+        assertEquals(Material.DIAMOND_SWORD, decoded[0].getType());
+        assertEquals(1, decoded[0].getAmount());
+        assertEquals(Material.ENDER_PEARL, decoded[1].getType());
+        assertEquals(16, decoded[1].getAmount());
+        assertNull(decoded[2]);
+    }
+
+    @Test
+    void deflatesLargeBodiesAndStillDecodes() throws IOException {
+        InventorySnapshot snapshot = snapshot(List.of(), 20, 20, 5, 0, 0, GameMode.SURVIVAL);
+        byte[] plain = new InventoryCodec(-1).encode(snapshot);
+        byte[] deflated = new InventoryCodec(0).encode(snapshot);
+
+        assertEquals(0, plain[6]);
+        assertEquals(1, deflated[6]);
+        assertTrue(deflated.length < plain.length);
+        assertEquals(GameMode.SURVIVAL, new InventoryCodec(0).decode(deflated).gameMode());
+    }
+
+    @Test
+    void roundTripsGroupMaps() throws IOException {
+        InventoryCodec codec = new InventoryCodec(64);
+        Map<String, InventorySnapshot> groups = new LinkedHashMap<>();
+        groups.put("survival", snapshot(List.of(), 20, 20, 5, 0, 10, GameMode.SURVIVAL));
+        groups.put("creative", snapshot(null, 20, 20, 5, 0, 0, GameMode.CREATIVE));
+
+        Map<String, InventorySnapshot> decoded = codec.decodeGroups(codec.encodeGroups(groups));
+
+        assertEquals(groups.keySet(), decoded.keySet());
+        assertEquals(10, decoded.get("survival").level());
+        assertEquals(GameMode.CREATIVE, decoded.get("creative").gameMode());
+        assertNull(decoded.get("creative").effects());
+    }
+
+    @Test
+    void encodesAnEmptySlotOnItsOwn() throws IOException {
+        InventoryCodec codec = new InventoryCodec(-1);
+
+        assertNull(codec.decodeItem(codec.encodeItem(null)));
+        assertThrows(IOException.class, () -> codec.decode(codec.encodeItem(null)));
+    }
+
+    @Test
+    void rejectsOtherPayloads() {
+        InventoryCodec codec = new InventoryCodec(-1);
+        byte[] snapshot = codec.encode(snapshot(List.of(), 20, 20, 5, 0, 0, GameMode.SURVIVAL));
+
+        assertTrue(InventoryCodec.isEncoded(snapshot));
+        assertFalse(InventoryCodec.isEncoded(new byte[] {(byte) 0xAC, (byte) 0xED, 0, 5, 0, 0, 0}));
+        assertThrows(IOException.class, () -> codec.decodeGroups(snapshot));
+        assertThrows(IOException.class, () -> codec.decode(new byte[] {1, 2, 3}));
+
+        byte[] newer = snapshot.clone();
+        newer[4] = (byte) (InventoryCodec.VERSION + 1);
+        assertThrows(IOException.class, () -> codec.decode(newer));
+    }
+
+    private static InventorySnapshot snapshot(List<PotionEffect> effects, double health, int food,
+                                              float saturation, float exp, int level, GameMode gameMode) {
+        return new InventorySnapshot(new ItemStack[41], new ItemStack[4], null, effects, health, food, saturation, exp,
+                level, gameMode);
+    }
+}
@@ -0,0 +1,133 @@
+package com.smp.common.inventory;
+
+import org.bukkit.GameMode;
+import org.bukkit.inventory.ItemStack;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Records go through the writer thread, so each test closes the history to
+ * drain it and reads back from a fresh instance. Snapshots carry no items,
+ * which would need a server to encode; each one differs by health.
+ */
+class InventoryHistoryTest {
+
+    private static final Logger LOGGER = Logger.getLogger("InventoryHistoryTest");
+    private static final InventoryHistory.Retention KEEP_ALL =
+            new InventoryHistory.Retention(Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE);
+    private static final String GROUP = "survival";
+
+    private final InventoryCodec codec = new InventoryCodec(-1);
+    private final UUID player = UUID.randomUUID();
+
+    @Test
+    void skipsUnchangedSnapshotsAndSharesObjects(@TempDir Path dir) throws Exception {
+        InventoryHistory history = open(dir, KEEP_ALL, 0);
+        recordAll(history, 10, 10, 12, 10);
+        history.close();
+
+        assertTrue(history.describeMetrics().get(0).startsWith("History: 3 snapshots, 2 objects, "),
+                history.describeMetrics().get(0));
+        assertTrue(history.describeMetrics().get(1).startsWith("History writes: 3 recorded, 1 skipped unchanged, "
+                + "2 objects written, 1 reused"), history.describeMetrics().get(1));
+
+        history = open(dir, KEEP_ALL, 0);
+        List<InventoryHistory.Entry> entries = history.list(player, GROUP, 10);
+        assertEquals(3, entries.size());
+        assertEquals(entries.get(0).id(), entries.get(2).id());
+        assertNotEquals(entries.get(0).id(), entries.get(1).id());
+        assertTrue(entries.get(0).time() > entries.get(1).time());
+
+        assertEquals(12, history.restore(player, GROUP, entries.get(1).time()).snapshot().health());
+        assertEquals(12, history.restore(player, GROUP, entries.get(0).time() - 1).snapshot().health());
+        assertEquals(10, history.restore(player, GROUP, Long.MAX_VALUE).snapshot().health());
+        assertNull(history.restore(player, GROUP, entries.get(2).time() - 1));
+        assertNull(history.restore(player, "creative", Long.MAX_VALUE));
+        history.close();
+    }
+
+    @Test
+    void retentionCapsEntriesPerGroupAndRewritesTheLog(@TempDir Path dir) throws Exception {
+        InventoryHistory history = open(dir, KEEP_ALL, 0);
+        recordAll(history, 1, 2, 3, 4, 5);
+        history.close();
+        long before = Files.size(dir.resolve("history.dat"));
+
+        InventoryHistory.Retention capped = new InventoryHistory.Retention(Long.MAX_VALUE, Long.MAX_VALUE,
+                Long.MAX_VALUE, 2);
+        history = open(dir, capped, 20);
+        List<InventoryHistory.Entry> all = history.list(player, GROUP, 10);
+        awaitEntries(history, 2);
+        history.close();
+        assertTrue(Files.size(dir.resolve("history.dat")) < before);
+
+        history = open(dir, KEEP_ALL, 0);
+        assertEquals(all.subList(0, 2), history.list(player, GROUP, 10));
+        assertEquals(5, history.restore(player, GROUP, all.get(0).time()).snapshot().health());
+        assertEquals(4, history.restore(player, GROUP, all.get(1).time()).snapshot().health());
+        assertNull(history.restore(player, GROUP, all.get(2).time()));
+        history.close();
+    }
+
+    @Test
+    void retentionAlwaysKeepsTheNewestEntry(@TempDir Path dir) throws Exception {
+        InventoryHistory history = open(dir, KEEP_ALL, 0);
+        recordAll(history, 1, 2, 3);
+        history.close();
+
+        history = open(dir, new InventoryHistory.Retention(0, 0, 0, 10), 20);
+        awaitEntries(history, 1);
+        assertEquals(3, history.restore(player, GROUP, Long.MAX_VALUE).snapshot().health());
+        history.close();
+    }
+
+    @Test
+    void dropsATornRecordOnOpen(@TempDir Path dir) throws Exception {
+        InventoryHistory history = open(dir, KEEP_ALL, 0);
+        recordAll(history, 1, 2);
+        history.close();
+        Path file = dir.resolve("history.dat");
+        long intact = Files.size(file);
+        Files.write(file, new byte[] {0, 0, 0, 64, 1, 2, 3}, StandardOpenOption.APPEND);
+
+        history = open(dir, KEEP_ALL, 0);
+        assertEquals(2, history.list(player, GROUP, 10).size());
+        history.close();
+        assertEquals(intact, Files.size(file));
+    }
+
+    private InventoryHistory open(Path dir, InventoryHistory.Retention retention, long pruneIntervalMillis)
+            throws IOException {
+        return new InventoryHistory(dir, codec, retention, pruneIntervalMillis, LOGGER);
+    }
+
+    /** Entries are keyed by the millisecond they were recorded in, so space them out. */
+    private void recordAll(InventoryHistory history, double... healths) throws InterruptedException {
+        for (double health : healths) {
+            history.record(player, GROUP, new InventorySnapshot(new ItemStack[36], new ItemStack[4], null, null,
+                    health, 20, 5, 0, 0, GameMode.SURVIVAL));
+            Thread.sleep(3);
+        }
+    }
+
+    private void awaitEntries(InventoryHistory history, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (history.list(player, GROUP, 10).size() != count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, history.list(player, GROUP, 10).size());
+    }
+}
@@ -0,0 +1,97 @@
+package com.smp.common.inventory;
+
+import org.bukkit.GameMode;
+import org.bukkit.inventory.ItemStack;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ShutdownFlushTest {
+
+    private static final Logger LOGGER = Logger.getLogger("ShutdownFlushTest");
+
+    private final InventoryCodec codec = new InventoryCodec(-1);
+    private final UUID player = UUID.randomUUID();
+
+    @Test
+    void writesToTheStoreWhenItAnswersInTime(@TempDir Path dir) throws Exception {
+        RecordingWriter writer = new RecordingWriter(null);
+        ShutdownFlush.Result result = flush(writer, dir, 5000);
+
+        assertEquals(new ShutdownFlush.Result(1, 2, 0, 0, 0, result.millis()), result);
+        assertEquals(2, writer.written.size());
+        assertEquals(0, ShutdownFlush.recover(dir, writer, LOGGER));
+    }
+
+    @Test
+    void fallsBackToTheJournalWhenTheStoreStalls(@TempDir Path dir) throws Exception {
+        CountDownLatch stalled = new CountDownLatch(1);
+        RecordingWriter writer = new RecordingWriter(stalled);
+        ShutdownFlush.Result result = flush(writer, dir, 200);
+        stalled.countDown();
+
+        assertEquals(new ShutdownFlush.Result(1, 0, 2, 0, 0, result.millis()), result);
+        assertTrue(result.millis() < 2000, "flush took " + result.millis() + "ms");
+
+        RecordingWriter next = new RecordingWriter(null);
+        assertEquals(2, ShutdownFlush.recover(dir, next, LOGGER));
+        assertEquals(2, next.written.size());
+    }
+
+    private ShutdownFlush.Result flush(ShutdownFlush.Writer writer, Path dir, long timeoutMillis) {
+        Map<String, InventorySnapshot> groups = new HashMap<>();
+        groups.put("survival", snapshot(10));
+        groups.put("creative", snapshot(20));
+        InventoryIO io = new InventoryIO("ShutdownFlushTest", 1, LOGGER);
+        return ShutdownFlush.flush(Map.of(player, groups), codec, writer, io, dir, 1, timeoutMillis, LOGGER);
+    }
+
+    private static InventorySnapshot snapshot(double health) {
+        return new InventorySnapshot(new ItemStack[36], new ItemStack[4], null, null, health, 20, 5, 0, 0,
+                GameMode.SURVIVAL);
+    }
+
+    /** Keeps what reaches the store; with a latch, writeAll blocks on it like a stalled database. */
+    private static final class RecordingWriter implements ShutdownFlush.Writer {
+        final Map<String, byte[]> written = new HashMap<>();
+        private final CountDownLatch stall;
+
+        RecordingWriter(CountDownLatch stall) {
+            this.stall = stall;
+        }
+
+        @Override
+        public int writeAll(Map<UUID, Map<String, byte[]>> players) throws IOException {
+            if (stall != null) {
+                try {
+                    stall.await();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted while stalled", e);
+                }
+            }
+            players.values().forEach(written::putAll);
+            return 0;
+        }
+
+        @Override
+        public long baseVersion(UUID uuid, String group) {
+            return -1;
+        }
+
+        @Override
+        public boolean recover(UUID uuid, String group, byte[] payload, long baseVersion) {
+            written.put(group, payload);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.smp.common.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LatencyHistogramTest {
+
+    @Test
+    void smallValuesHaveABucketEach() {
+        for (int value = 0; value < 8; value++) {
+            assertEquals(value, LatencyHistogram.index(value));
+            assertEquals(value, LatencyHistogram.upperBound(value));
+        }
+        assertEquals(8, LatencyHistogram.index(8));
+        assertEquals(15, LatencyHistogram.index(15));
+        assertEquals(16, LatencyHistogram.index(16));
+        assertEquals(16, LatencyHistogram.index(17));
+        assertEquals(17, LatencyHistogram.upperBound(16));
+    }
+
+    @Test
+    void everyValueFallsInsideItsBucket() {
+        Random random = new Random(7);
+        for (int i = 0; i < 100_000; i++) {
+            long value = (random.nextLong() >>> 1) >>> random.nextInt(63);
+            int index = LatencyHistogram.index(value);
+            assertTrue(index >= 0 && index < LatencyHistogram.BUCKETS, "index " + index + " for " + value);
+            assertTrue(value <= LatencyHistogram.upperBound(index), value + " above its bucket");
+            assertTrue(index == 0 || value > LatencyHistogram.upperBound(index - 1), value + " below its bucket");
+        }
+    }
+
+    @Test
+    void bucketsAreContiguousAndWithinAnEighth() {
+        for (int index = 1; index < LatencyHistogram.BUCKETS; index++) {
+            long lower = LatencyHistogram.upperBound(index - 1) + 1;
+            long upper = LatencyHistogram.upperBound(index);
+            assertEquals(index, LatencyHistogram.index(lower));
+            assertEquals(index, LatencyHistogram.index(upper));
+            assertTrue(upper - lower <= lower / 8, "bucket " + index + " is wider than 12.5%");
+        }
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.index(Long.MAX_VALUE));
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.upperBound(LatencyHistogram.BUCKETS - 1));
+    }
+
+    @Test
+    void percentilesComeFromBucketUpperBoundsCappedAtTheMax() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 100; value++) {
+            histogram.record(value * 1000);
+        }
+        histogram.record(-5);
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(101, snapshot.count());
+        assertEquals(5_050_000, snapshot.sum());
+        assertEquals(100_000, snapshot.max());
+        assertEquals(0, snapshot.percentile(0));
+        long p50 = snapshot.percentile(0.5);
+        assertTrue(p50 >= 50_000 && p50 <= 50_000 * 9 / 8, "p50 " + p50);
+        assertEquals(100_000, snapshot.percentile(1));
+        assertEquals(0, new LatencyHistogram().snapshot().percentile(0.99));
+    }
+
+    @Test
+    void intervalsSubtractEarlierSnapshots() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1_000_000);
+        LatencyHistogram.Snapshot earlier = histogram.snapshot();
+        histogram.record(10);
+        histogram.record(20);
+
+        LatencyHistogram.Snapshot interval = histogram.snapshot().since(earlier);
+        assertEquals(2, interval.count());
+        assertEquals(30, interval.sum());
+        assertEquals(LatencyHistogram.upperBound(LatencyHistogram.index(20)), interval.max());
+    }
+}
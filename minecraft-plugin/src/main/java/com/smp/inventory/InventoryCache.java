@@ -0,0 +1,231 @@
+package com.smp.inventory;
+
+import com.smp.common.inventory.InventorySnapshot;
+import org.bukkit.inventory.ItemStack;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bounded replacement for the per-player group map. Holds at most
+ * {@code maxGroupsPerPlayer} groups per player and {@code maxWeight}
+ * estimated heap bytes overall, evicting least recently used groups first.
+ *
+ * Clean groups (identical to what is in the store) are simply dropped on
+ * eviction. Dirty groups are handed to the spiller, and stay readable from
+ * here until it reports the write as done. A spill that fails is never
+ * reported, so the group stays here and goes out with the player's next
+ * dirty write. Main thread only, except {@link #spilled}.
+ */
+final class InventoryCache {
+
+    /** Persists an evicted dirty group; must call {@link #spilled} once written. */
+    interface Spiller {
+        void spill(UUID uuid, String group, InventorySnapshot snapshot);
+    }
+
+    private record Key(UUID uuid, String group) {
+    }
+
+    private static final class Entry {
+        final InventorySnapshot snapshot;
+        final long weight;
+        final boolean dirty;
+
+        Entry(InventorySnapshot snapshot, boolean dirty) {
+            this.snapshot = snapshot;
+            this.weight = weigh(snapshot);
+            this.dirty = dirty;
+        }
+    }
+
+    private final int maxGroupsPerPlayer;
+    private final long maxWeight;
+    private final Spiller spiller;
+
+    // Global recency order for the weight bound, and per-player order for the group bound
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private final Map<UUID, LinkedHashMap<String, Entry>> players = new HashMap<>();
+    private final Map<Key, InventorySnapshot> spilling = new ConcurrentHashMap<>();
+    private long weight;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long spills;
+
+    InventoryCache(int maxGroupsPerPlayer, long maxWeight, Spiller spiller) {
+        this.maxGroupsPerPlayer = Math.max(1, maxGroupsPerPlayer);
+        this.maxWeight = maxWeight;
+        this.spiller = spiller;
+    }
+
+    /** The cached group, or null if it has to be read from the store. */
+    InventorySnapshot get(UUID uuid, String group) {
+        Key key = new Key(uuid, group);
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            players.get(uuid).get(group);
+            hits++;
+            return entry.snapshot;
+        }
+        InventorySnapshot snapshot = spilling.get(key);
+        if (snapshot != null) {
+            hits++;
+            return snapshot;
+        }
+        misses++;
+        return null;
+    }
+
+    /**
+     * @param dirty true for a fresh capture that the store has not seen yet,
+     *              false for data just read from the store
+     */
+    void put(UUID uuid, String group, InventorySnapshot snapshot, boolean dirty) {
+        Key key = new Key(uuid, group);
+        Entry entry = new Entry(snapshot, dirty);
+        Entry previous = entries.put(key, entry);
+        players.computeIfAbsent(uuid, k -> new LinkedHashMap<>(8, 0.75f, true)).put(group, entry);
+        weight += entry.weight - (previous == null ? 0 : previous.weight);
+        if (dirty) {
+            // Superseded; the in-flight spill may still land but is older
+            spilling.remove(key);
+        }
+        trim(uuid);
+    }
+
+    /**
+     * Dirty groups for the player, to be written when they leave, including
+     * evicted ones not yet in the store. Report each with {@link #spilled}
+     * once written.
+     */
+    Map<String, InventorySnapshot> dirtyGroups(UUID uuid) {
+        Map<String, InventorySnapshot> dirty = new HashMap<>();
+        spilling.forEach((key, snapshot) -> {
+            if (key.uuid().equals(uuid)) {
+                dirty.put(key.group(), snapshot);
+            }
+        });
+        LinkedHashMap<String, Entry> groups = players.get(uuid);
+        if (groups != null) {
+            groups.forEach((group, entry) -> {
+                if (entry.dirty) {
+                    dirty.put(group, entry.snapshot);
+                }
+            });
+        }
+        return dirty;
+    }
+
+    /** Evicted groups of every player that are not in the store yet, for shutdown. */
+    Map<UUID, Map<String, InventorySnapshot>> unspilled() {
+        Map<UUID, Map<String, InventorySnapshot>> pending = new HashMap<>();
+        spilling.forEach((key, snapshot) ->
+                pending.computeIfAbsent(key.uuid(), k -> new HashMap<>()).put(key.group(), snapshot));
+        return pending;
+    }
+
+    /**
+     * Drop a player who left. Their dirty groups move to the spilling set like
+     * evicted ones, so the quit save reports them with {@link #spilled}, and
+     * if it fails they stay readable and go out with the shutdown flush.
+     */
+    void removePlayer(UUID uuid) {
+        LinkedHashMap<String, Entry> groups = players.remove(uuid);
+        if (groups != null) {
+            for (Map.Entry<String, Entry> group : groups.entrySet()) {
+                Key key = new Key(uuid, group.getKey());
+                entries.remove(key);
+                weight -= group.getValue().weight;
+                if (group.getValue().dirty) {
+                    spilling.put(key, group.getValue().snapshot);
+                }
+            }
+        }
+    }
+
+    /**
+     * Called from any thread once the group is in the store. Does nothing if
+     * a newer copy was evicted since.
+     */
+    void spilled(UUID uuid, String group, InventorySnapshot snapshot) {
+        spilling.remove(new Key(uuid, group), snapshot);
+    }
+
+    List<String> describeMetrics() {
+        List<String> lines = new ArrayList<>();
+        lines.add("Cache: " + entries.size() + " groups for " + players.size() + " players, ~"
+                + weight / 1024 + "/" + maxWeight / 1024 + " KiB");
+        lines.add("Cache: " + hits + " hits, " + misses + " misses, " + evictions + " evicted, "
+                + spills + " spilled, " + spilling.size() + " spilling");
+        return lines;
+    }
+
+    private void trim(UUID uuid) {
+        LinkedHashMap<String, Entry> groups = players.get(uuid);
+        while (groups.size() > maxGroupsPerPlayer) {
+            evict(uuid, groups.keySet().iterator().next());
+        }
+        Iterator<Key> eldest = entries.keySet().iterator();
+        while (weight > maxWeight && eldest.hasNext()) {
+            Key key = eldest.next();
+            eldest.remove();
+            evicted(key, players.get(key.uuid()));
+            eldest = entries.keySet().iterator();
+        }
+    }
+
+    private void evict(UUID uuid, String group) {
+        Key key = new Key(uuid, group);
+        entries.remove(key);
+        evicted(key, players.get(uuid));
+    }
+
+    private void evicted(Key key, LinkedHashMap<String, Entry> groups) {
+        Entry entry = groups.remove(key.group());
+        if (groups.isEmpty()) {
+            players.remove(key.uuid());
+        }
+        weight -= entry.weight;
+        evictions++;
+        if (entry.dirty) {
+            spills++;
+            spilling.put(key, entry.snapshot);
+            spiller.spill(key.uuid(), key.group(), entry.snapshot);
+        }
+    }
+
+    /**
+     * Rough retained size of a snapshot. Stacks with meta (names, lore,
+     * enchantments, shulker contents) dominate, so they are weighted heavily.
+     */
+    static long weigh(InventorySnapshot snapshot) {
+        long bytes = 256;
+        bytes += weigh(snapshot.contents());
+        bytes += weigh(snapshot.armor());
+        bytes += weigh(snapshot.offHand());
+        return bytes;
+    }
+
+    private static long weigh(ItemStack[] items) {
+        long bytes = 16L + 4L * items.length;
+        for (ItemStack item : items) {
+            bytes += weigh(item);
+        }
+        return bytes;
+    }
+
+    private static long weigh(ItemStack item) {
+        if (item == null) {
+            return 0;
+        }
+        return item.hasItemMeta() ? 1024 : 64;
+    }
+}
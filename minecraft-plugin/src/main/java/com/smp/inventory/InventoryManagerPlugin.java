@@ -1,19 +1,30 @@
 package com.smp.inventory;
 
 import org.bukkit.Bukkit;
-import org.bukkit.GameMode;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
 import org.bukkit.event.player.PlayerChangedWorldEvent;
 import org.bukkit.event.player.PlayerJoinEvent;
 import org.bukkit.event.player.PlayerQuitEvent;
-import org.bukkit.inventory.ItemStack;
 import org.bukkit.plugin.java.JavaPlugin;
 
+import com.smp.common.inventory.InventoryBackend;
+import com.smp.common.inventory.InventoryBackends;
+import com.smp.common.inventory.InventoryCodec;
+import com.smp.common.inventory.InventoryConverter;
+import com.smp.common.inventory.InventoryIO;
+import com.smp.common.inventory.InventoryPrefetch;
+import com.smp.common.inventory.InventorySnapshot;
+import com.smp.common.inventory.ShutdownFlush;
+import com.smp.common.metrics.LatencyHistogram;
+import com.smp.common.metrics.Metrics;
+
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
 
 public class InventoryManagerPlugin extends JavaPlugin implements Listener {
 
@@ -23,21 +34,75 @@ public class InventoryManagerPlugin extends JavaPlugin implements Listener {
             "world", "world_nether", "world_the_end"
     ));
 
-    // Map to store player inventories: UUID -> WorldGroup -> InventoryData
-    private final Map<UUID, Map<String, InventoryData>> playerInventories = new HashMap<>();
+    // Hot world groups of online players; the rest are read from the store on demand
+    private InventoryCache playerInventories;
+    // Latest cold load issued per player; while present, their current group has not been applied yet
+    private final Map<UUID, Long> pendingLoads = new HashMap<>();
+    private long loadCounter;
     
     private File dataFolder;
+    private File legacyFolder;
+    private InventoryCodec codec;
+    private InventoryBackend store;
+    private InventoryIO io;
+    private InventoryPrefetch<Map<String, InventorySnapshot>> prefetch;
+    private long prefetchWaitMillis;
+    private Metrics metrics;
+    private LatencyHistogram preLoginLatency;
+    private LatencyHistogram joinLatency;
+    private LatencyHistogram quitLatency;
+    private LatencyHistogram worldChangeLatency;
+    private LongAdder saveErrors;
+    private LongAdder loadErrors;
 
     @Override
     public void onEnable() {
-        // Register events
-        Bukkit.getPluginManager().registerEvents(this, this);
+        metrics = new Metrics("InventoryManager", getLogger());
+        preLoginLatency = metrics.timer("handler", "onPreLogin");
+        joinLatency = metrics.timer("handler", "onPlayerJoin");
+        quitLatency = metrics.timer("handler", "onPlayerQuit");
+        worldChangeLatency = metrics.timer("handler", "onWorldChange");
+        saveErrors = metrics.counter("errors", "inventory_save");
+        loadErrors = metrics.counter("errors", "inventory_load");
         
         // Create data folder for storing inventories
         dataFolder = new File(getDataFolder(), "inventories");
         if (!dataFolder.exists()) {
             dataFolder.mkdirs();
         }
+        legacyFolder = new File(dataFolder, "legacy");
+        codec = new InventoryCodec(getConfig().getInt("storage.compression-threshold", 512));
+        try {
+            store = InventoryBackends.open(getConfig().getConfigurationSection("storage"), getDataFolder().toPath(), getLogger());
+            store.instrument(metrics);
+            InventoryConverter.Result imported = InventoryConverter.convert(dataFolder.toPath(), store, codec,
+                    legacyFolder.toPath(), getConfig().getInt("storage.import-threads", 4), getLogger());
+            if (imported.files() > 0 || imported.failed() > 0) {
+                getLogger().info(imported.describe());
+            }
+            ShutdownFlush.recover(new File(dataFolder, "recovery").toPath(), store, getLogger());
+        } catch (IOException e) {
+            getLogger().severe("Failed to open inventory store");
+            e.printStackTrace();
+            Bukkit.getPluginManager().disablePlugin(this);
+            return;
+        }
+        io = new InventoryIO("InventoryManager", getConfig().getInt("storage.io-threads", 2), getLogger());
+        prefetch = new InventoryPrefetch<>(io, getConfig().getLong("storage.prefetch-ttl-seconds", 60) * 1000);
+        prefetchWaitMillis = getConfig().getLong("storage.prefetch-wait-ms", 100);
+        playerInventories = new InventoryCache(
+                getConfig().getInt("cache.max-groups-per-player", 4),
+                getConfig().getLong("cache.max-weight-mb", 64) * 1024 * 1024,
+                this::spillGroup);
+        io.instrument(metrics);
+        metrics.start(
+                getConfig().getBoolean("metrics.export-enabled", true)
+                        ? getDataFolder().toPath().resolve(getConfig().getString("metrics.export-file", "metrics.prom"))
+                        : null,
+                getConfig().getLong("metrics.interval-seconds", 15) * 1000L);
+        
+        // Register events
+        Bukkit.getPluginManager().registerEvents(this, this);
         
         getLogger().info("InventoryManager has been enabled!");
         getLogger().info("Survival group worlds: " + SURVIVAL_GROUP);
@@ -45,35 +110,87 @@ public class InventoryManagerPlugin extends JavaPlugin implements Listener {
 
     @Override
     public void onDisable() {
-        // Save all player inventories before shutdown
+        if (io == null) {
+            return; // Store failed to open
+        }
+        
+        // Capture every player's changed groups in one pass, then encode and write them together,
+        // along with evicted groups whose spill failed, including those of players who left
+        Map<UUID, Map<String, InventorySnapshot>> captured = playerInventories.unspilled();
         for (Player player : Bukkit.getOnlinePlayers()) {
-            savePlayerInventory(player);
+            saveInventoryToGroup(player, getWorldGroup(player.getWorld().getName()));
+            Map<String, InventorySnapshot> dirty = playerInventories.dirtyGroups(player.getUniqueId());
+            if (!dirty.isEmpty()) {
+                captured.computeIfAbsent(player.getUniqueId(), k -> new HashMap<>()).putAll(dirty);
+            }
+        }
+        ShutdownFlush.Result result = ShutdownFlush.flush(
+                captured,
+                codec,
+                store,
+                io,
+                new File(dataFolder, "recovery").toPath(),
+                getConfig().getInt("storage.shutdown-threads", 4),
+                getConfig().getLong("storage.shutdown-timeout-ms", 10000),
+                getLogger());
+        if (result.lost() > 0) {
+            getLogger().severe(result.describe());
+        } else {
+            getLogger().info(result.describe());
+        }
+        prefetch.describeMetrics().forEach(getLogger()::info);
+        playerInventories.describeMetrics().forEach(getLogger()::info);
+        store.describeMetrics().forEach(getLogger()::info);
+        metrics.describe().forEach(getLogger()::info);
+        try {
+            store.close();
+        } catch (IOException e) {
+            getLogger().warning("Failed to close inventory store: " + e.getMessage());
         }
+        metrics.close();
         
         getLogger().info("InventoryManager has been disabled!");
     }
 
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPreLogin(AsyncPlayerPreLoginEvent event) {
+        if (event.getLoginResult() != AsyncPlayerPreLoginEvent.Result.ALLOWED) {
+            return;
+        }
+        // Read and decode the file now so the join only applies it
+        long start = System.nanoTime();
+        UUID uuid = event.getUniqueId();
+        prefetch.prefetch(uuid, () -> readPlayerData(uuid));
+        preLoginLatency.recordSince(start);
+    }
+
     @EventHandler(priority = EventPriority.HIGHEST)
     public void onPlayerJoin(PlayerJoinEvent event) {
+        long start = System.nanoTime();
         Player player = event.getPlayer();
         loadPlayerData(player);
         
         // Load the correct inventory for the world they're joining
         String worldGroup = getWorldGroup(player.getWorld().getName());
         loadInventory(player, worldGroup);
+        joinLatency.recordSince(start);
     }
 
     @EventHandler(priority = EventPriority.HIGHEST)
     public void onPlayerQuit(PlayerQuitEvent event) {
+        long start = System.nanoTime();
         Player player = event.getPlayer();
         savePlayerInventory(player);
         
         // Clear from memory
-        playerInventories.remove(player.getUniqueId());
+        pendingLoads.remove(player.getUniqueId());
+        prefetch.invalidate(player.getUniqueId());
+        quitLatency.recordSince(start);
     }
 
     @EventHandler(priority = EventPriority.HIGHEST)
     public void onWorldChange(PlayerChangedWorldEvent event) {
+        long start = System.nanoTime();
         Player player = event.getPlayer();
         String fromWorld = event.getFrom().getName();
         String toWorld = player.getWorld().getName();
@@ -91,12 +208,13 @@ public class InventoryManagerPlugin extends JavaPlugin implements Listener {
             
             getLogger().info(player.getName() + " switched from " + fromGroup + " to " + toGroup);
         }
+        worldChangeLatency.recordSince(start);
     }
 
     /**
      * Get the world group for a given world name
      */
-    private String getWorldGroup(String worldName) {
+    static String getWorldGroup(String worldName) {
         if (SURVIVAL_GROUP.contains(worldName)) {
             return "survival";
         }
@@ -109,106 +227,155 @@ public class InventoryManagerPlugin extends JavaPlugin implements Listener {
      */
     private void saveInventoryToGroup(Player player, String worldGroup) {
         UUID uuid = player.getUniqueId();
+        if (pendingLoads.containsKey(uuid)) {
+            // Still holding the previous group's items, which must not be saved as this group's
+            return;
+        }
+        
+        // Potion effects are not tracked per group
+        InventorySnapshot data = InventorySnapshot.capture(player, false);
         
-        InventoryData data = new InventoryData();
-        data.inventory = player.getInventory().getContents();
-        data.armor = player.getInventory().getArmorContents();
-        data.offHand = player.getInventory().getItemInOffHand();
-        data.health = player.getHealth();
-        data.foodLevel = player.getFoodLevel();
-        data.saturation = player.getSaturation();
-        data.exp = player.getExp();
-        data.level = player.getLevel();
-        data.gameMode = player.getGameMode();
-        
-        playerInventories.computeIfAbsent(uuid, k -> new HashMap<>()).put(worldGroup, data);
+        playerInventories.put(uuid, worldGroup, data, true);
     }
 
     /**
-     * Load inventory for a specific world group
+     * Load inventory for a specific world group. A group that is not cached
+     * is read on the I/O pool, behind any spill of it, and applied back on the
+     * main thread, since the store may be a database.
      */
     private void loadInventory(Player player, String worldGroup) {
         UUID uuid = player.getUniqueId();
         
-        Map<String, InventoryData> groups = playerInventories.get(uuid);
-        if (groups == null || !groups.containsKey(worldGroup)) {
-            // No saved inventory for this group, keep current inventory
+        InventorySnapshot data = playerInventories.get(uuid, worldGroup);
+        if (data != null) {
+            pendingLoads.remove(uuid);
+            data.apply(player);
             return;
         }
         
-        InventoryData data = groups.get(worldGroup);
+        long load = ++loadCounter;
+        pendingLoads.put(uuid, load);
+        io.submit(uuid, () -> {
+            byte[] stored = store.get(uuid, worldGroup);
+            return stored == null ? null : codec.decode(stored);
+        }).whenComplete((snapshot, error) ->
+                Bukkit.getScheduler().runTask(this, () -> finishLoad(player, worldGroup, load, snapshot, error)));
+    }
+    
+    private void finishLoad(Player player, String worldGroup, long load, InventorySnapshot data, Throwable error) {
+        UUID uuid = player.getUniqueId();
+        Long latest = pendingLoads.get(uuid);
+        if (latest == null || latest != load || !player.isOnline()) {
+            return; // Superseded by a later world change, or the player left
+        }
+        if (error != null) {
+            // Stays pending, so the unreadable group is not overwritten with the wrong items
+            loadErrors.increment();
+            getLogger().warning("Failed to read " + worldGroup + " inventory for " + player.getName() + ": " + error.getMessage());
+            return;
+        }
+        pendingLoads.remove(uuid);
+        if (data == null) {
+            // No saved inventory for this group, keep current inventory
+            return;
+        }
         
-        player.getInventory().setContents(data.inventory);
-        player.getInventory().setArmorContents(data.armor);
-        player.getInventory().setItemInOffHand(data.offHand);
-        player.setHealth(Math.min(data.health, player.getMaxHealth()));
-        player.setFoodLevel(data.foodLevel);
-        player.setSaturation(data.saturation);
-        player.setExp(data.exp);
-        player.setLevel(data.level);
-        player.setGameMode(data.gameMode);
+        playerInventories.put(uuid, worldGroup, data, false);
+        data.apply(player);
+    }
+
+    /**
+     * Write a dirty group the cache evicted. Queued behind the player's other
+     * I/O, so a later read from the store sees it.
+     */
+    private void spillGroup(UUID uuid, String group, InventorySnapshot snapshot) {
+        io.submit(uuid, () -> {
+            store.put(uuid, group, codec.encode(snapshot));
+            return null;
+        }).whenComplete((result, error) -> {
+            if (error != null) {
+                // Still held by the cache; written again with the player's next save or at shutdown
+                saveErrors.increment();
+                getLogger().severe("Failed to spill " + group + " inventory for " + uuid + ", keeping it in memory: "
+                        + error.getMessage());
+                return;
+            }
+            playerInventories.spilled(uuid, group, snapshot);
+        });
     }
 
     /**
-     * Save all player inventories to disk
+     * Save a leaving player's changed groups and drop them from the cache
      */
     private void savePlayerInventory(Player player) {
         // Save current inventory first
         String currentGroup = getWorldGroup(player.getWorld().getName());
         saveInventoryToGroup(player, currentGroup);
         
-        // Save to file
+        // Append changed groups to the store on the I/O pool
         UUID uuid = player.getUniqueId();
-        Map<String, InventoryData> groups = playerInventories.get(uuid);
+        Map<String, InventorySnapshot> toWrite = playerInventories.dirtyGroups(uuid);
+        // Before the write is queued, so it cannot report the groups written before they are spilling
+        playerInventories.removePlayer(uuid);
         
-        if (groups == null || groups.isEmpty()) {
+        if (toWrite.isEmpty()) {
             return;
         }
         
-        File playerFile = new File(dataFolder, uuid.toString() + ".dat");
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(playerFile))) {
-            oos.writeObject(groups);
-        } catch (IOException e) {
-            getLogger().severe("Failed to save inventory for " + player.getName());
-            e.printStackTrace();
-        }
+        String name = player.getName();
+        io.submit(uuid, () -> {
+            // Each group is its own record, so groups not in memory are left as they are
+            Map<String, byte[]> encoded = new HashMap<>();
+            toWrite.forEach((group, snapshot) -> encoded.put(group, codec.encode(snapshot)));
+            store.putAll(uuid, encoded);
+            toWrite.forEach((group, snapshot) -> playerInventories.spilled(uuid, group, snapshot));
+            return null;
+        }).exceptionally(e -> {
+            saveErrors.increment();
+            getLogger().severe("Failed to save inventory for " + name + ": " + e.getMessage());
+            return null;
+        });
     }
 
     /**
-     * Load player data from disk
+     * Load player data prefetched at pre-login, reading it here if it is not ready
      */
-    @SuppressWarnings("unchecked")
     private void loadPlayerData(Player player) {
         UUID uuid = player.getUniqueId();
-        File playerFile = new File(dataFolder, uuid.toString() + ".dat");
         
-        if (!playerFile.exists()) {
-            return;
-        }
-        
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(playerFile))) {
-            Map<String, InventoryData> groups = (Map<String, InventoryData>) ois.readObject();
-            playerInventories.put(uuid, groups);
-        } catch (IOException | ClassNotFoundException e) {
+        try {
+            Map<String, InventorySnapshot> saved = prefetch.take(uuid, prefetchWaitMillis, () -> readPlayerData(uuid));
+            if (saved != null) {
+                // Current world last, as most recently used, so the bound never evicts it
+                String worldGroup = getWorldGroup(player.getWorld().getName());
+                saved.forEach((group, data) -> {
+                    if (!group.equals(worldGroup)) {
+                        playerInventories.put(uuid, group, data, false);
+                    }
+                });
+                if (saved.containsKey(worldGroup)) {
+                    playerInventories.put(uuid, worldGroup, saved.get(worldGroup), false);
+                }
+            }
+        } catch (Exception e) {
+            loadErrors.increment();
             getLogger().warning("Failed to load inventory for " + player.getName());
             e.printStackTrace();
         }
     }
 
     /**
-     * Class to store inventory data
+     * @return every saved group for the player, or null if nothing is saved
      */
-    private static class InventoryData implements Serializable {
-        private static final long serialVersionUID = 1L;
-        
-        ItemStack[] inventory;
-        ItemStack[] armor;
-        ItemStack offHand;
-        double health;
-        int foodLevel;
-        float saturation;
-        float exp;
-        int level;
-        GameMode gameMode;
+    private Map<String, InventorySnapshot> readPlayerData(UUID uuid) throws IOException {
+        Map<String, byte[]> stored = store.getAll(uuid);
+        if (stored.isEmpty()) {
+            return null;
+        }
+        Map<String, InventorySnapshot> groups = new HashMap<>();
+        for (Map.Entry<String, byte[]> entry : stored.entrySet()) {
+            groups.put(entry.getKey(), codec.decode(entry.getValue()));
+        }
+        return groups;
     }
 }
@@ -0,0 +1,289 @@
+package com.smp.stats;
+
+import com.smp.common.db.ConnectionPool;
+import com.smp.common.db.PooledConnection;
+import com.smp.common.metrics.LatencyHistogram;
+import com.smp.common.metrics.Metrics;
+
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Append-only log of every kill and death in combat_events, for boards over
+ * a window of time rather than all time.
+ *
+ * Each death is one compact row: killer and victim UUID, world, weapon and
+ * time. Rows are queued by the death handler and inserted in batches by one
+ * worker, so their ids commit in order, which {@link CombatRollups} relies
+ * on. The table is partitioned by month on the event's day: the worker keeps
+ * partitions created a few months ahead, and old months can be dropped whole
+ * without touching the rollups built from them.
+ */
+final class CombatEventLog {
+
+    record Event(long at, UUID killer, UUID victim, String world, String weapon) {
+    }
+
+    private static final long POLL_MILLIS = 250;
+    private static final long MAINTENANCE_INTERVAL_MILLIS = 60 * 60 * 1000;
+    private static final DateTimeFormatter PARTITION_NAME = DateTimeFormatter.ofPattern("'p'yyyyMM");
+    private static final String INSERT_SQL = "INSERT INTO combat_events "
+            + "(event_day, occurred_at, killer, victim, world, weapon) VALUES (?, ?, ?, ?, ?, ?)";
+
+    private final BlockingQueue<Event> queue;
+    private final ConnectionPool pool;
+    private final SchemaMigrator schema;
+    private final Logger logger;
+    private final ZoneId zone;
+    private final int batchSize;
+    private final int monthsAhead;
+    private final int retentionMonths;
+    private final Thread worker;
+
+    private volatile boolean running = true;
+    private volatile LatencyHistogram batchLatency;
+    // Only touched on the worker thread
+    private long nextMaintenance;
+
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong partitionsAdded = new AtomicLong();
+    private final AtomicLong partitionsDropped = new AtomicLong();
+
+    CombatEventLog(ConnectionPool pool, SchemaMigrator schema, Logger logger, ZoneId zone, int capacity, int batchSize,
+                   int monthsAhead, int retentionMonths) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.pool = pool;
+        this.schema = schema;
+        this.logger = logger;
+        this.zone = zone;
+        this.batchSize = Math.max(1, batchSize);
+        this.monthsAhead = Math.max(1, monthsAhead);
+        this.retentionMonths = retentionMonths;
+        this.worker = new Thread(this::drainLoop, "SMPStats-Combat-Log");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /** The combat tables, as the next schema migration. */
+    static void register(SchemaMigrator migrator, int version) {
+        migrator.add(version, "combat_events and combat_rollups", pool -> {
+            try (PooledConnection conn = pool.borrow(); Statement stmt = conn.createStatement()) {
+                // The partition column must be part of every unique key
+                stmt.execute("CREATE TABLE IF NOT EXISTS combat_events (" +
+                        "id BIGINT NOT NULL AUTO_INCREMENT," +
+                        "event_day DATE NOT NULL," +
+                        "occurred_at BIGINT NOT NULL," +
+                        "killer BINARY(16) NULL," +
+                        "victim BINARY(16) NOT NULL," +
+                        "world VARCHAR(64) NOT NULL," +
+                        "weapon VARCHAR(64) NOT NULL," +
+                        "PRIMARY KEY (id, event_day)) " +
+                        "PARTITION BY RANGE COLUMNS (event_day) (PARTITION pmax VALUES LESS THAN (MAXVALUE))");
+                stmt.execute("CREATE TABLE IF NOT EXISTS combat_rollups (" +
+                        "period VARCHAR(8) NOT NULL," +
+                        "bucket_start BIGINT NOT NULL," +
+                        "uuid BINARY(16) NOT NULL," +
+                        "kills INT NOT NULL DEFAULT 0," +
+                        "deaths INT NOT NULL DEFAULT 0," +
+                        "PRIMARY KEY (period, bucket_start, uuid)," +
+                        "INDEX idx_combat_rollups_kills (period, bucket_start, kills))");
+                stmt.execute("CREATE TABLE IF NOT EXISTS combat_rollup_state (" +
+                        "name VARCHAR(32) PRIMARY KEY," +
+                        "last_event_id BIGINT NOT NULL)");
+            }
+        });
+    }
+
+    /** Queue an event; never blocks, and drops the event if the queue is full. */
+    boolean record(Event event) {
+        if (!running || !queue.offer(event)) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Stop accepting events and wait for the queued ones to be written.
+     * Returns the number still pending on timeout.
+     */
+    int shutdown(long timeoutMillis) {
+        running = false;
+        try {
+            worker.join(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (worker.isAlive()) {
+            worker.interrupt();
+        }
+        return queue.size();
+    }
+
+    /** Report queue depth, batch latency and written, failed and dropped events. */
+    void instrument(Metrics metrics) {
+        metrics.gauge("queue_depth", "combat_events", queue::size);
+        metrics.counter("rows_written", "combat_events", written::get);
+        metrics.counter("errors", "combat_events", failed::get);
+        metrics.counter("dropped", "combat_events", dropped::get);
+        batchLatency = metrics.timer("statement", "combat_events_batch");
+    }
+
+    List<String> describeMetrics() {
+        List<String> lines = new ArrayList<>();
+        lines.add("Combat log: " + queue.size() + " queued, " + written.get() + " written, " + failed.get()
+                + " failed, " + dropped.get() + " dropped");
+        lines.add("Combat log partitions: " + partitionsAdded.get() + " added, " + partitionsDropped.get() + " dropped");
+        return lines;
+    }
+
+    private void drainLoop() {
+        List<Event> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                if (!schema.isComplete()) {
+                    if (!running) {
+                        break;
+                    }
+                    Thread.sleep(POLL_MILLIS);
+                    continue;
+                }
+                if (System.currentTimeMillis() >= nextMaintenance) {
+                    maintainPartitions();
+                }
+                Event first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                writeBatch(batch);
+            } catch (InterruptedException e) {
+                if (!running) {
+                    break;
+                }
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "Unexpected error in combat event writer", e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void writeBatch(List<Event> batch) {
+        long start = System.nanoTime();
+        try (PooledConnection conn = pool.borrow()) {
+            try {
+                conn.setAutoCommit(false);
+                PreparedStatement stmt = conn.prepare(INSERT_SQL);
+                for (Event event : batch) {
+                    stmt.setDate(1, Date.valueOf(day(event.at())));
+                    stmt.setLong(2, event.at());
+                    if (event.killer() != null) {
+                        stmt.setBytes(3, PlayerStatsSchema.uuidBytes(event.killer()));
+                    } else {
+                        stmt.setNull(3, Types.BINARY);
+                    }
+                    stmt.setBytes(4, PlayerStatsSchema.uuidBytes(event.victim()));
+                    stmt.setString(5, event.world());
+                    stmt.setString(6, event.weapon());
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+                conn.commit();
+                written.addAndGet(batch.size());
+            } catch (SQLException e) {
+                conn.rollback();
+                conn.onError(e);
+                throw e;
+            }
+        } catch (SQLException e) {
+            failed.addAndGet(batch.size());
+            logger.log(Level.WARNING, "Failed to write " + batch.size() + " combat events", e);
+        }
+        LatencyHistogram latency = batchLatency;
+        if (latency != null) {
+            latency.recordSince(start);
+        }
+    }
+
+    /**
+     * Split the catch-all partition so every month up to {@code monthsAhead}
+     * from now has its own, and drop months past the retention.
+     */
+    private void maintainPartitions() {
+        nextMaintenance = System.currentTimeMillis() + MAINTENANCE_INTERVAL_MILLIS;
+        YearMonth now = YearMonth.now(zone);
+        try (PooledConnection conn = pool.borrow(); Statement stmt = conn.createStatement()) {
+            try {
+                TreeSet<YearMonth> months = new TreeSet<>();
+                PreparedStatement list = conn.prepare("SELECT PARTITION_NAME FROM information_schema.PARTITIONS "
+                        + "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'combat_events' AND PARTITION_NAME <> 'pmax'");
+                try (ResultSet rs = list.executeQuery()) {
+                    while (rs.next()) {
+                        String name = rs.getString(1);
+                        if (name != null && name.length() == 7) {
+                            months.add(YearMonth.parse(name.substring(1), DateTimeFormatter.ofPattern("yyyyMM")));
+                        }
+                    }
+                }
+
+                // Months are only ever added after the newest one, since pmax holds everything past it
+                YearMonth from = months.isEmpty() ? now : months.last().plusMonths(1);
+                StringBuilder split = new StringBuilder();
+                int added = 0;
+                for (YearMonth month = from; !month.isAfter(now.plusMonths(monthsAhead)); month = month.plusMonths(1)) {
+                    split.append("PARTITION ").append(month.format(PARTITION_NAME))
+                            .append(" VALUES LESS THAN ('").append(month.plusMonths(1).atDay(1)).append("'), ");
+                    added++;
+                }
+                if (added > 0) {
+                    stmt.execute("ALTER TABLE combat_events REORGANIZE PARTITION pmax INTO ("
+                            + split + "PARTITION pmax VALUES LESS THAN (MAXVALUE))");
+                    partitionsAdded.addAndGet(added);
+                }
+
+                if (retentionMonths > 0) {
+                    YearMonth oldest = now.minusMonths(retentionMonths - 1L);
+                    for (YearMonth month : months) {
+                        if (month.isBefore(oldest)) {
+                            stmt.execute("ALTER TABLE combat_events DROP PARTITION " + month.format(PARTITION_NAME));
+                            partitionsDropped.incrementAndGet();
+                        }
+                    }
+                }
+            } catch (SQLException e) {
+                conn.onError(e);
+                throw e;
+            }
+        } catch (SQLException e) {
+            failed.incrementAndGet();
+            logger.log(Level.WARNING, "Could not maintain combat_events partitions, retrying in an hour", e);
+        }
+    }
+
+    private LocalDate day(long millis) {
+        return Instant.ofEpochMilli(millis).atZone(zone).toLocalDate();
+    }
+}
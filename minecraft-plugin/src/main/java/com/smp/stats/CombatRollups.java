@@ -0,0 +1,319 @@
+package com.smp.stats;
+
+import com.smp.common.db.ConnectionPool;
+import com.smp.common.db.PooledConnection;
+import com.smp.common.metrics.LatencyHistogram;
+import com.smp.common.metrics.Metrics;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hourly, daily and weekly kill and death totals per player in
+ * combat_rollups, so a board over a window reads a few pre-aggregated rows
+ * instead of scanning combat_events.
+ *
+ * New events are tailed past a high-water mark in combat_rollup_state and
+ * added to their buckets in the same transaction that moves the mark, so
+ * every event is counted exactly once. Buckets start at the hour, midnight
+ * and Monday in the server's time zone; a month is read as the sum of its
+ * days.
+ */
+final class CombatRollups {
+
+    enum Period {
+        HOUR, DAY, WEEK;
+
+        final String key = name().toLowerCase(Locale.ROOT);
+
+        long bucket(long millis, ZoneId zone) {
+            ZonedDateTime time = Instant.ofEpochMilli(millis).atZone(zone);
+            ZonedDateTime start = switch (this) {
+                case HOUR -> time.truncatedTo(ChronoUnit.HOURS);
+                case DAY -> time.toLocalDate().atStartOfDay(zone);
+                case WEEK -> time.toLocalDate().with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY)).atStartOfDay(zone);
+            };
+            return start.toInstant().toEpochMilli();
+        }
+    }
+
+    /** What /top can show besides all-time totals. */
+    enum Window {
+        DAY, WEEK, MONTH;
+
+        static Window parse(String name) {
+            for (Window window : values()) {
+                if (window.name().equalsIgnoreCase(name)) {
+                    return window;
+                }
+            }
+            return null;
+        }
+    }
+
+    record Entry(String username, long kills, long deaths) {
+    }
+
+    private static final String STATE_NAME = "combat_events";
+    private static final int MAX_BATCHES_PER_POLL = 20;
+    private static final String TAIL_SQL = "SELECT id, occurred_at, killer, victim FROM combat_events "
+            + "WHERE id > ? ORDER BY id LIMIT ?";
+    private static final String UPSERT_SQL = "INSERT INTO combat_rollups (period, bucket_start, uuid, kills, deaths) "
+            + "VALUES (?, ?, ?, ?, ?) ON DUPLICATE KEY UPDATE kills = kills + VALUES(kills), deaths = deaths + VALUES(deaths)";
+    private static final String SAVE_MARK_SQL = "INSERT INTO combat_rollup_state (name, last_event_id) VALUES (?, ?) "
+            + "ON DUPLICATE KEY UPDATE last_event_id = VALUES(last_event_id)";
+    private static final String BUCKET_TOP_SQL = "SELECT r.uuid, r.kills, r.deaths, p.username FROM combat_rollups r "
+            + "LEFT JOIN player_stats p ON p.uuid = r.uuid "
+            + "WHERE r.period = ? AND r.bucket_start = ? AND r.kills > 0 ORDER BY r.kills DESC LIMIT ?";
+    private static final String RANGE_TOP_SQL = "SELECT r.uuid, SUM(r.kills) AS kills, SUM(r.deaths) AS deaths, "
+            + "MAX(p.username) AS username FROM combat_rollups r LEFT JOIN player_stats p ON p.uuid = r.uuid "
+            + "WHERE r.period = ? AND r.bucket_start >= ? AND r.bucket_start < ? "
+            + "GROUP BY r.uuid HAVING kills > 0 ORDER BY kills DESC LIMIT ?";
+
+    private record Key(Period period, long bucket, UUID uuid) {
+    }
+
+    private final ConnectionPool pool;
+    private final SchemaMigrator schema;
+    private final Logger logger;
+    private final ZoneId zone;
+    private final int batchSize;
+    private final ScheduledExecutorService executor;
+
+    // Only touched on the executor thread
+    private long mark = -1;
+
+    private final AtomicLong polls = new AtomicLong();
+    private final AtomicLong folded = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile long highWaterMark = -1;
+    private volatile LatencyHistogram tailLatency;
+    private volatile LatencyHistogram queryLatency;
+
+    CombatRollups(ConnectionPool pool, SchemaMigrator schema, Logger logger, ZoneId zone, int batchSize) {
+        this.pool = pool;
+        this.schema = schema;
+        this.logger = logger;
+        this.zone = zone;
+        this.batchSize = Math.max(1, batchSize);
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "SMPStats-Rollups");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    void start(long intervalMillis) {
+        executor.scheduleWithFixedDelay(this::poll, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The top killers over the current day, week or month. Runs on the rollup
+     * thread, after any poll already queued.
+     */
+    CompletableFuture<List<Entry>> top(Window window, int limit) {
+        return CompletableFuture.supplyAsync(() -> {
+            long start = System.nanoTime();
+            try {
+                return query(window, limit, System.currentTimeMillis());
+            } catch (SQLException e) {
+                throw new IllegalStateException("Could not read the " + window.name().toLowerCase(Locale.ROOT) + " board", e);
+            } finally {
+                record(queryLatency, start);
+            }
+        }, executor);
+    }
+
+    /** Stop tailing, letting a running poll finish first. */
+    void close(long timeoutMillis) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Report per-batch tail latency, board query latency and failures. */
+    void instrument(Metrics metrics) {
+        metrics.counter("errors", "combat_rollups", failures::get);
+        metrics.counter("rows_folded", "combat_rollups", folded::get);
+        metrics.gauge("high_water_mark", "combat_events", () -> highWaterMark);
+        tailLatency = metrics.timer("statement", "combat_rollup_tail");
+        queryLatency = metrics.timer("statement", "combat_rollup_top");
+    }
+
+    List<String> describeMetrics() {
+        List<String> lines = new ArrayList<>();
+        lines.add("Combat rollups: up to combat_events #" + highWaterMark + ", " + folded.get() + " events folded, "
+                + polls.get() + " polls, " + failures.get() + " failed");
+        return lines;
+    }
+
+    private void poll() {
+        if (!schema.isComplete()) {
+            return;
+        }
+        polls.incrementAndGet();
+        try {
+            if (mark < 0) {
+                mark = readMark();
+                highWaterMark = mark;
+            }
+            for (int i = 0; i < MAX_BATCHES_PER_POLL; i++) {
+                long start = System.nanoTime();
+                boolean more = tail();
+                record(tailLatency, start);
+                if (!more) {
+                    break;
+                }
+            }
+        } catch (SQLException e) {
+            failures.incrementAndGet();
+            logger.log(Level.WARNING, "Could not update the combat rollups, retrying next poll", e);
+        } catch (RuntimeException e) {
+            // Keep the schedule alive; an escaped exception would cancel it
+            failures.incrementAndGet();
+            logger.log(Level.SEVERE, "Unexpected combat rollup failure", e);
+        }
+    }
+
+    /**
+     * Fold the next batch of events into the rollups.
+     *
+     * @return true if a full batch was consumed and more may be waiting
+     */
+    private boolean tail() throws SQLException {
+        Map<Key, long[]> totals = new HashMap<>();
+        long newMark = mark;
+        int rows = 0;
+        try (PooledConnection conn = pool.borrow()) {
+            try {
+                PreparedStatement stmt = conn.prepare(TAIL_SQL);
+                stmt.setLong(1, mark);
+                stmt.setInt(2, batchSize);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        long at = rs.getLong("occurred_at");
+                        byte[] killer = rs.getBytes("killer");
+                        if (killer != null) {
+                            add(totals, at, PlayerStatsSchema.uuid(killer), 0);
+                        }
+                        add(totals, at, PlayerStatsSchema.uuid(rs.getBytes("victim")), 1);
+                        newMark = rs.getLong("id");
+                        rows++;
+                    }
+                }
+                if (rows == 0) {
+                    return false;
+                }
+
+                conn.setAutoCommit(false);
+                PreparedStatement upsert = conn.prepare(UPSERT_SQL);
+                for (Map.Entry<Key, long[]> entry : totals.entrySet()) {
+                    Key key = entry.getKey();
+                    upsert.setString(1, key.period().key);
+                    upsert.setLong(2, key.bucket());
+                    upsert.setBytes(3, PlayerStatsSchema.uuidBytes(key.uuid()));
+                    upsert.setLong(4, entry.getValue()[0]);
+                    upsert.setLong(5, entry.getValue()[1]);
+                    upsert.addBatch();
+                }
+                upsert.executeBatch();
+                PreparedStatement save = conn.prepare(SAVE_MARK_SQL);
+                save.setString(1, STATE_NAME);
+                save.setLong(2, newMark);
+                save.executeUpdate();
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                conn.onError(e);
+                throw e;
+            }
+        }
+        mark = newMark;
+        highWaterMark = newMark;
+        folded.addAndGet(rows);
+        return rows == batchSize;
+    }
+
+    private void add(Map<Key, long[]> totals, long at, UUID uuid, int column) {
+        for (Period period : Period.values()) {
+            totals.computeIfAbsent(new Key(period, period.bucket(at, zone), uuid), k -> new long[2])[column]++;
+        }
+    }
+
+    private List<Entry> query(Window window, int limit, long now) throws SQLException {
+        List<Entry> entries = new ArrayList<>();
+        try (PooledConnection conn = pool.borrow()) {
+            try {
+                PreparedStatement stmt;
+                if (window == Window.MONTH) {
+                    LocalDate first = Instant.ofEpochMilli(now).atZone(zone).toLocalDate().withDayOfMonth(1);
+                    stmt = conn.prepare(RANGE_TOP_SQL);
+                    stmt.setString(1, Period.DAY.key);
+                    stmt.setLong(2, first.atStartOfDay(zone).toInstant().toEpochMilli());
+                    stmt.setLong(3, first.plusMonths(1).atStartOfDay(zone).toInstant().toEpochMilli());
+                    stmt.setInt(4, limit);
+                } else {
+                    Period period = window == Window.DAY ? Period.DAY : Period.WEEK;
+                    stmt = conn.prepare(BUCKET_TOP_SQL);
+                    stmt.setString(1, period.key);
+                    stmt.setLong(2, period.bucket(now, zone));
+                    stmt.setInt(3, limit);
+                }
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        String username = rs.getString("username");
+                        entries.add(new Entry(username != null ? username : PlayerStatsSchema.uuid(rs.getBytes("uuid")).toString(),
+                                rs.getLong("kills"), rs.getLong("deaths")));
+                    }
+                }
+            } catch (SQLException e) {
+                conn.onError(e);
+                throw e;
+            }
+        }
+        return entries;
+    }
+
+    /** The stored high-water mark, or 0 before the first event was folded. */
+    private long readMark() throws SQLException {
+        try (PooledConnection conn = pool.borrow()) {
+            PreparedStatement stmt = conn.prepare("SELECT last_event_id FROM combat_rollup_state WHERE name = ?");
+            stmt.setString(1, STATE_NAME);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0;
+            }
+        }
+    }
+
+    private static void record(LatencyHistogram latency, long startNanos) {
+        if (latency != null) {
+            latency.recordSince(startNanos);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.smp.stats;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Elo ratings for one kit. Every ranked fight is applied exactly once, in the
+ * order it was recorded; kits never affect each other, so a replay of the
+ * whole history can run one kit per thread.
+ *
+ * Team fights rate each player against the average of the opposing team.
+ * Not thread-safe.
+ */
+final class EloRatings {
+
+    static final double INITIAL_RATING = 1000;
+
+    /** A player's rating in this kit. */
+    static final class Rating {
+        double value = INITIAL_RATING;
+        int games;
+        long lastFightPlayerId;
+        boolean changed;
+    }
+
+    private final double kFactor;
+    private final Map<String, Rating> ratings = new HashMap<>();
+
+    private long fights;
+    private long skipped;
+
+    EloRatings(double kFactor) {
+        this.kFactor = kFactor;
+    }
+
+    Rating get(String username) {
+        return ratings.get(username);
+    }
+
+    Map<String, Rating> all() {
+        return ratings;
+    }
+
+    /** Seed a stored rating before applying newer fights. */
+    void put(String username, double value, int games, long lastFightPlayerId) {
+        Rating rating = new Rating();
+        rating.value = value;
+        rating.games = games;
+        rating.lastFightPlayerId = lastFightPlayerId;
+        ratings.put(username, rating);
+    }
+
+    /**
+     * Apply one finished fight. Fights without both a winner and a loser
+     * (draws, or rows missing for one side) leave every rating unchanged.
+     *
+     * @param fightPlayerId the highest fight_players id of the fight; players
+     *                      who already have it applied are not moved again
+     * @return false if the fight was one-sided and skipped, or every player
+     *         in it already had it applied
+     */
+    boolean apply(long fightPlayerId, List<String> winners, List<String> losers) {
+        if (winners.isEmpty() || losers.isEmpty()) {
+            skipped++;
+            return false;
+        }
+        double winnerAverage = average(winners);
+        double loserAverage = average(losers);
+        // Deltas use pre-fight ratings for everyone, so order within a team does not matter
+        double[] winnerDeltas = deltas(winners, loserAverage, 1);
+        double[] loserDeltas = deltas(losers, winnerAverage, 0);
+        int moved = update(winners, winnerDeltas, fightPlayerId) + update(losers, loserDeltas, fightPlayerId);
+        if (moved == 0) {
+            return false;
+        }
+        fights++;
+        return true;
+    }
+
+    long fights() {
+        return fights;
+    }
+
+    long skipped() {
+        return skipped;
+    }
+
+    private double average(List<String> team) {
+        double sum = 0;
+        for (String username : team) {
+            Rating rating = ratings.get(username);
+            sum += rating == null ? INITIAL_RATING : rating.value;
+        }
+        return sum / team.size();
+    }
+
+    private double[] deltas(List<String> team, double opponent, double score) {
+        double[] deltas = new double[team.size()];
+        for (int i = 0; i < deltas.length; i++) {
+            Rating rating = ratings.get(team.get(i));
+            double own = rating == null ? INITIAL_RATING : rating.value;
+            deltas[i] = kFactor * (score - expected(own, opponent));
+        }
+        return deltas;
+    }
+
+    /** @return how many players the fight moved */
+    private int update(List<String> team, double[] deltas, long fightPlayerId) {
+        int moved = 0;
+        for (int i = 0; i < deltas.length; i++) {
+            Rating rating = ratings.computeIfAbsent(team.get(i), name -> new Rating());
+            if (fightPlayerId <= rating.lastFightPlayerId) {
+                continue;
+            }
+            rating.value += deltas[i];
+            rating.games++;
+            rating.lastFightPlayerId = fightPlayerId;
+            rating.changed = true;
+            moved++;
+        }
+        return moved;
+    }
+
+    /** Probability that a player rated {@code own} beats one rated {@code opponent}. */
+    static double expected(double own, double opponent) {
+        return 1.0 / (1.0 + Math.pow(10.0, (opponent - own) / 400.0));
+    }
+}
@@ -0,0 +1,1010 @@
+package com.smp.stats;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.smp.common.db.ConnectionPool;
+import com.smp.common.db.PooledConnection;
+import com.smp.common.metrics.LatencyHistogram;
+import com.smp.common.metrics.Metrics;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps leaderboard_snapshot in step with the ranked duel history that the
+ * duels plugin writes to fights and fight_players, so the website reads one
+ * indexed row per player instead of aggregating the whole history per request.
+ *
+ * New fight_players rows are tailed past a high-water mark kept in
+ * leaderboard_state and folded into the affected players' rows. A full
+ * rebuild recomputes every kit from scratch, one kit per task in parallel; it
+ * runs on start when there is no high-water mark yet and on request.
+ *
+ * The mark is the highest fight_players id seen, which assumes ids become
+ * visible in id order: the duels plugin is the only writer and records one
+ * fight at a time. A second concurrent writer could commit a lower
+ * AUTO_INCREMENT id after a higher one was tailed, and that row would only
+ * be counted by the next rebuild.
+ *
+ * The same pass keeps kit_ratings, the plugin's own per-kit Elo ratings: each
+ * fight is rated once when its rows are tailed, and a rebuild replays each
+ * kit's history on that kit's task. The tail holds back the last fight of
+ * every batch until a later fight's rows arrive, the fight looks finished
+ * (a fights row and even, non-empty winning and losing sides), or it has
+ * waited out the orphan grace period, so both sides of a fight are rated
+ * together. Fights still one-sided after that are counted and not rated.
+ *
+ * A copy of every board is kept in memory and republished, sorted, whenever
+ * it changes, for readers such as the stats HTTP endpoint.
+ *
+ * Rows follow the website's rules: "sword" and "swordelo" fights both count
+ * for the sword board, the streak is the run of wins ending at the latest
+ * fight, and the "all" board's elo is the average of the five main kits.
+ */
+final class LeaderboardMaterializer {
+
+    static final String ALL = "all";
+
+    private static final String RANKED_MODE = "DUEL_QUEUE_RANKED";
+    private static final String RANKED_SUFFIX = "elo";
+    private static final String STATE_NAME = "fight_players";
+    private static final List<String> OVERALL_KITS = List.of("sword", "axe", "sumo", "mace", "crystalpvp");
+    private static final int DEFAULT_ELO = 1000;
+    private static final int RECENT_RESULTS = 20;
+    private static final int MAX_BATCHES_PER_POLL = 20;
+
+    private static final String COLUMNS = "kit, username, elo, wins, losses, win_streak, recent_results, "
+            + "latest_player_data, ranked_elo, base_elo, last_fight_player_id";
+
+    private static final String UPSERT_SQL = "INSERT INTO leaderboard_snapshot (" + COLUMNS + ") "
+            + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) ON DUPLICATE KEY UPDATE "
+            + "elo = VALUES(elo), wins = VALUES(wins), losses = VALUES(losses), "
+            + "win_streak = VALUES(win_streak), recent_results = VALUES(recent_results), "
+            + "latest_player_data = VALUES(latest_player_data), ranked_elo = VALUES(ranked_elo), "
+            + "base_elo = VALUES(base_elo), last_fight_player_id = VALUES(last_fight_player_id)";
+
+    private static final String RATING_UPSERT_SQL = "INSERT INTO kit_ratings "
+            + "(kit, username, rating, games, last_fight_player_id) VALUES (?, ?, ?, ?, ?) ON DUPLICATE KEY UPDATE "
+            + "rating = VALUES(rating), games = VALUES(games), last_fight_player_id = VALUES(last_fight_player_id)";
+
+    private static final String SAVE_MARK_SQL = "INSERT INTO leaderboard_state (name, last_fight_player_id) "
+            + "VALUES (?, ?) ON DUPLICATE KEY UPDATE last_fight_player_id = VALUES(last_fight_player_id)";
+
+    // Relies on the single-writer ordering described on the class
+    private static final String TAIL_SQL = "SELECT fp.id, fp.fight, fp.username, fp.is_winner, fp.player_data, "
+            + "f.started IS NULL AS orphan, f.mode, f.kit "
+            + "FROM fight_players fp LEFT JOIN fights f ON fp.fight = f.started "
+            + "WHERE fp.id > ? ORDER BY fp.id LIMIT ?";
+
+    private static final String SCAN_SQL = "SELECT fp.id, fp.fight, fp.username, fp.is_winner, fp.player_data, f.kit "
+            + "FROM fight_players fp INNER JOIN fights f ON fp.fight = f.started "
+            + "WHERE f.mode = ? AND f.kit IS NOT NULL AND fp.id > ? AND fp.id <= ? ";
+
+    private record Key(String kit, String username) {
+    }
+
+    /** One fight_players row; kit is null when the fight row is missing. */
+    private record Result(long id, String fight, String username, boolean won, String playerData, String kit) {
+    }
+
+    /** A tailed row and what the fight it belongs to looks like. */
+    private record Row(boolean orphan, String mode, Result result) {
+    }
+
+    /** A published leaderboard row; kitElo is what the kit counts for on the "all" board. */
+    record BoardEntry(String username, int elo, int wins, int losses, int winStreak, int kitElo) {
+    }
+
+    /** A published board, best elo first, plus lookup by lower-cased name. */
+    record KitBoard(List<BoardEntry> ranked, Map<String, BoardEntry> byName) {
+    }
+
+    /** One kit's rebuilt rows. */
+    private record Board(Map<String, Standing> standings, EloRatings ratings) {
+    }
+
+    /** A leaderboard_snapshot row being folded forward. */
+    private static final class Standing {
+        final String kit;
+        final String username;
+        int elo = DEFAULT_ELO;
+        int wins;
+        int losses;
+        int streak;
+        String recent = "";
+        String latestData;
+        Integer rankedElo;
+        Integer baseElo;
+        long lastId;
+        boolean changed;
+
+        Standing(String kit, String username) {
+            this.kit = kit;
+            this.username = username;
+        }
+
+        void apply(Result result) {
+            // Rows already folded in, e.g. by a rebuild that overlapped the tail
+            if (result.id() <= lastId) {
+                return;
+            }
+            lastId = result.id();
+            if (result.won()) {
+                wins++;
+                streak++;
+            } else {
+                losses++;
+                streak = 0;
+            }
+            String outcome = result.won() ? "1" : "0";
+            recent = recent.isEmpty() ? outcome : outcome + "," + recent;
+            if (recent.length() > RECENT_RESULTS * 2 - 1) {
+                recent = recent.substring(0, RECENT_RESULTS * 2 - 1);
+            }
+            if (!kit.equals(ALL)) {
+                latestData = result.playerData();
+                Integer parsed = eloOf(latestData);
+                elo = parsed == null ? DEFAULT_ELO : parsed;
+                // Only the "<kit>elo" variant differs from the board's own name
+                if (!result.kit().equals(kit)) {
+                    rankedElo = parsed;
+                } else {
+                    baseElo = parsed;
+                }
+            }
+            changed = true;
+        }
+
+        /** The elo this kit contributes to the "all" board. */
+        int overallElo() {
+            if (rankedElo != null) {
+                return rankedElo;
+            }
+            return baseElo != null ? baseElo : DEFAULT_ELO;
+        }
+    }
+
+    private final ConnectionPool pool;
+    private final Logger logger;
+    private final int batchSize;
+    private final long orphanGraceMillis;
+    private final int rebuildThreads;
+    private final double kFactor;
+    private final ScheduledExecutorService executor;
+
+    // Only touched on the executor thread
+    private long mark = -1;
+    private long stalledId = -1;
+    private long stalledSince;
+
+    private final AtomicLong polls = new AtomicLong();
+    private final AtomicLong applied = new AtomicLong();
+    private final AtomicLong unranked = new AtomicLong();
+    private final AtomicLong orphansSkipped = new AtomicLong();
+    private final AtomicLong kitlessSkipped = new AtomicLong();
+    private final AtomicLong rated = new AtomicLong();
+    private final AtomicLong oneSided = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong rebuilds = new AtomicLong();
+    private volatile long lastRebuildMillis = -1;
+    private volatile long highWaterMark = -1;
+    private volatile LatencyHistogram tailLatency;
+    private volatile LatencyHistogram rebuildLatency;
+
+    // Executor thread's copy of every board, and the immutable version readers see
+    private final Map<String, Map<String, BoardEntry>> boards = new HashMap<>();
+    private volatile Map<String, KitBoard> published = Map.of();
+    private volatile long boardVersion;
+
+    LeaderboardMaterializer(ConnectionPool pool, Logger logger, int batchSize, long orphanGraceMillis, int rebuildThreads,
+                            double kFactor) {
+        this.pool = pool;
+        this.logger = logger;
+        this.batchSize = Math.max(1, batchSize);
+        this.orphanGraceMillis = orphanGraceMillis;
+        this.rebuildThreads = Math.max(1, rebuildThreads);
+        this.kFactor = kFactor;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "SMPStats-Leaderboard");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    void start(long intervalMillis) {
+        executor.scheduleWithFixedDelay(this::poll, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Recompute every kit from the full history. Runs on the tailing thread,
+     * so it never interleaves with a poll.
+     *
+     * @return the number of rows written
+     */
+    CompletableFuture<Integer> requestRebuild() {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return rebuild();
+            } catch (SQLException | InterruptedException | ExecutionException e) {
+                throw new IllegalStateException("Leaderboard rebuild failed", e);
+            }
+        }, executor);
+    }
+
+    /** Stop tailing, letting a running poll or rebuild finish first. */
+    void close(long timeoutMillis) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                logger.warning("Leaderboard update still running after " + timeoutMillis + "ms, abandoning it");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** The published board for a kit or "all", or null if it has no rows or is not loaded yet. */
+    KitBoard board(String kit) {
+        return published.get(kit);
+    }
+
+    /** Changes whenever any published board changes. */
+    long boardVersion() {
+        return boardVersion;
+    }
+
+    /** Report per-batch tail latency, rebuild time and failures. */
+    void instrument(Metrics metrics) {
+        metrics.counter("errors", "leaderboard", failures::get);
+        metrics.counter("rows_written", "leaderboard_results", applied::get);
+        metrics.gauge("high_water_mark", "fight_players", () -> highWaterMark);
+        tailLatency = metrics.timer("statement", "leaderboard_tail");
+        rebuildLatency = metrics.timer("task", "leaderboard_rebuild");
+    }
+
+    List<String> describeMetrics() {
+        List<String> lines = new ArrayList<>();
+        lines.add("Leaderboard: up to fight_players #" + highWaterMark + ", " + polls.get() + " polls, "
+                + failures.get() + " failed");
+        lines.add("Leaderboard: " + applied.get() + " results applied, " + unranked.get() + " unranked skipped, "
+                + orphansSkipped.get() + " without a fight skipped, " + kitlessSkipped.get() + " without a kit skipped, "
+                + rated.get() + " fights rated, " + oneSided.get() + " one-sided not rated");
+        lines.add("Leaderboard: " + rebuilds.get() + " rebuilds"
+                + (lastRebuildMillis < 0 ? "" : ", last took " + lastRebuildMillis + "ms"));
+        return lines;
+    }
+
+    private void poll() {
+        polls.incrementAndGet();
+        try {
+            if (mark < 0) {
+                createTables();
+                long stored = readMark();
+                if (stored < 0) {
+                    logger.info("No leaderboard snapshot yet, building it from the fight history");
+                    rebuild();
+                    return;
+                }
+                loadBoards();
+                mark = stored;
+                highWaterMark = stored;
+            }
+            for (int i = 0; i < MAX_BATCHES_PER_POLL; i++) {
+                long start = System.nanoTime();
+                boolean more = tail();
+                record(tailLatency, start);
+                if (!more) {
+                    break;
+                }
+            }
+        } catch (SQLException | ExecutionException e) {
+            failures.incrementAndGet();
+            logger.log(Level.WARNING, "Could not update the leaderboard snapshot, retrying next poll", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            // Keep the schedule alive; an escaped exception would cancel it
+            failures.incrementAndGet();
+            logger.log(Level.SEVERE, "Unexpected leaderboard update failure", e);
+        }
+    }
+
+    /**
+     * Fold the next batch of fight_players rows into the snapshot.
+     *
+     * @return true if a full batch was consumed and more may be waiting
+     */
+    private boolean tail() throws SQLException {
+        List<Result> results = new ArrayList<>();
+        Collection<Standing> changed;
+        long newMark = mark;
+        boolean more;
+        try (PooledConnection conn = pool.borrow()) {
+            try {
+                List<Row> rows = new ArrayList<>();
+                PreparedStatement stmt = conn.prepare(TAIL_SQL);
+                stmt.setLong(1, mark);
+                stmt.setInt(2, batchSize);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        rows.add(new Row(rs.getBoolean("orphan"), rs.getString("mode"), readResult(rs)));
+                    }
+                }
+                more = rows.size() == batchSize;
+                if (!rows.isEmpty() && !dropTrailingFight(rows, more)) {
+                    return false;
+                }
+
+                for (Row row : rows) {
+                    if (row.orphan()) {
+                        // The duels plugin may not have committed the fight yet
+                        if (!stalledTooLong(row.result().id())) {
+                            more = false;
+                            break;
+                        }
+                        logger.warning("fight_players #" + row.result().id() + " has no matching fight after "
+                                + orphanGraceMillis + "ms, leaving it out of the leaderboard");
+                        orphansSkipped.incrementAndGet();
+                    } else if (!RANKED_MODE.equals(row.mode())) {
+                        unranked.incrementAndGet();
+                    } else if (row.result().kit() == null) {
+                        // No board to fold it into; retrying would not give it one
+                        kitlessSkipped.incrementAndGet();
+                    } else {
+                        results.add(row.result());
+                    }
+                    newMark = row.result().id();
+                }
+                if (newMark == mark) {
+                    return false;
+                }
+
+                conn.setAutoCommit(false);
+                changed = fold(conn, results);
+                write(conn, changed);
+                writeRatings(conn, rate(conn, results), false);
+                saveMark(conn, newMark);
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                conn.onError(e);
+                throw e;
+            }
+        }
+        if (!changed.isEmpty()) {
+            Set<String> kits = new HashSet<>();
+            for (Standing standing : changed) {
+                boards.computeIfAbsent(standing.kit, kit -> new HashMap<>()).put(standing.username, entry(standing));
+                kits.add(standing.kit);
+            }
+            publish(kits);
+        }
+        mark = newMark;
+        highWaterMark = newMark;
+        applied.addAndGet(results.size());
+        return more;
+    }
+
+    /**
+     * Drop the rows of the batch's last fight, whose other rows may not be
+     * committed yet. When that fight is all there is, keep it if it fills
+     * the batch on its own or looks finished, or once it has waited out the
+     * grace period.
+     *
+     * @return false if the batch's only fight is still being waited for
+     */
+    private boolean dropTrailingFight(List<Row> rows, boolean full) {
+        String fight = rows.get(rows.size() - 1).result().fight();
+        int cut = rows.size();
+        while (cut > 0 && Objects.equals(rows.get(cut - 1).result().fight(), fight)) {
+            cut--;
+        }
+        if (cut > 0) {
+            rows.subList(cut, rows.size()).clear();
+            return true;
+        }
+        // Orphans get their own grace period in tail()
+        if (full || rows.get(0).orphan() || looksFinished(rows)) {
+            return true;
+        }
+        long id = rows.get(0).result().id();
+        if (!stalledTooLong(id)) {
+            return false;
+        }
+        logger.warning("Fight " + fight + " (fight_players #" + id + ") still looks incomplete after "
+                + orphanGraceMillis + "ms, counting it as it is");
+        return true;
+    }
+
+    /** Both sides are present and the same size. */
+    private static boolean looksFinished(List<Row> fight) {
+        int winners = 0;
+        int losers = 0;
+        for (Row row : fight) {
+            if (row.result().won()) {
+                winners++;
+            } else {
+                losers++;
+            }
+        }
+        return winners > 0 && winners == losers;
+    }
+
+    /** True once the tail has been stuck on the same row for the grace period. */
+    private boolean stalledTooLong(long id) {
+        long now = System.currentTimeMillis();
+        if (id != stalledId) {
+            stalledId = id;
+            stalledSince = now;
+        }
+        return now - stalledSince >= orphanGraceMillis;
+    }
+
+    /** Load the current rows of everyone in the batch and apply the batch to them. */
+    private Collection<Standing> fold(PooledConnection conn, List<Result> results) throws SQLException {
+        if (results.isEmpty()) {
+            return List.of();
+        }
+        Set<String> usernames = new TreeSet<>();
+        for (Result result : results) {
+            usernames.add(result.username());
+        }
+        Map<Key, Standing> standings = load(conn, usernames);
+        for (Result result : results) {
+            String kit = baseKit(result.kit());
+            standings.computeIfAbsent(new Key(kit, result.username()), k -> new Standing(k.kit(), k.username()))
+                    .apply(result);
+            standings.computeIfAbsent(new Key(ALL, result.username()), k -> new Standing(k.kit(), k.username()))
+                    .apply(result);
+        }
+        for (String username : usernames) {
+            Standing overall = standings.get(new Key(ALL, username));
+            overall.elo = overallElo(kit -> standings.get(new Key(kit, username)));
+        }
+        List<Standing> changed = new ArrayList<>();
+        for (Standing standing : standings.values()) {
+            if (standing.changed) {
+                changed.add(standing);
+            }
+        }
+        return changed;
+    }
+
+    private Map<Key, Standing> load(PooledConnection conn, Set<String> usernames) throws SQLException {
+        StringBuilder sql = new StringBuilder("SELECT " + COLUMNS + " FROM leaderboard_snapshot WHERE username IN (");
+        for (int i = 0; i < usernames.size(); i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        sql.append(')');
+        Map<Key, Standing> standings = new HashMap<>();
+        // The IN list varies per batch, so this one bypasses the statement cache
+        try (PreparedStatement stmt = conn.raw().prepareStatement(sql.toString())) {
+            int index = 1;
+            for (String username : usernames) {
+                stmt.setString(index++, username);
+            }
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    Standing standing = new Standing(rs.getString("kit"), rs.getString("username"));
+                    standing.elo = rs.getInt("elo");
+                    standing.wins = rs.getInt("wins");
+                    standing.losses = rs.getInt("losses");
+                    standing.streak = rs.getInt("win_streak");
+                    standing.recent = rs.getString("recent_results");
+                    standing.latestData = rs.getString("latest_player_data");
+                    standing.rankedElo = rs.getObject("ranked_elo", Integer.class);
+                    standing.baseElo = rs.getObject("base_elo", Integer.class);
+                    standing.lastId = rs.getLong("last_fight_player_id");
+                    standings.put(new Key(standing.kit, standing.username), standing);
+                }
+            }
+        }
+        return standings;
+    }
+
+    /** Rate the batch's fights against the stored ratings of everyone in them. */
+    private Map<String, EloRatings> rate(PooledConnection conn, List<Result> results) throws SQLException {
+        Map<String, EloRatings> byKit = new HashMap<>();
+        if (results.isEmpty()) {
+            return byKit;
+        }
+        Set<String> usernames = new TreeSet<>();
+        for (Result result : results) {
+            usernames.add(result.username());
+        }
+        StringBuilder sql = new StringBuilder("SELECT kit, username, rating, games, last_fight_player_id "
+                + "FROM kit_ratings WHERE username IN (");
+        for (int i = 0; i < usernames.size(); i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        sql.append(')');
+        try (PreparedStatement stmt = conn.raw().prepareStatement(sql.toString())) {
+            int index = 1;
+            for (String username : usernames) {
+                stmt.setString(index++, username);
+            }
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    byKit.computeIfAbsent(rs.getString("kit"), kit -> new EloRatings(kFactor))
+                            .put(rs.getString("username"), rs.getDouble("rating"), rs.getInt("games"),
+                                    rs.getLong("last_fight_player_id"));
+                }
+            }
+        }
+
+        Map<String, List<Result>> fights = new LinkedHashMap<>();
+        for (Result result : results) {
+            fights.computeIfAbsent(result.fight(), fight -> new ArrayList<>()).add(result);
+        }
+        for (List<Result> fight : fights.values()) {
+            rateFight(byKit.computeIfAbsent(baseKit(fight.get(0).kit()), kit -> new EloRatings(kFactor)), fight);
+        }
+        return byKit;
+    }
+
+    private void rateFight(EloRatings ratings, List<Result> fight) {
+        List<String> winners = new ArrayList<>(2);
+        List<String> losers = new ArrayList<>(2);
+        long lastId = 0;
+        for (Result result : fight) {
+            (result.won() ? winners : losers).add(result.username());
+            lastId = Math.max(lastId, result.id());
+        }
+        if (ratings.apply(lastId, winners, losers)) {
+            rated.incrementAndGet();
+        } else if (winners.isEmpty() || losers.isEmpty()) {
+            oneSided.incrementAndGet();
+        }
+    }
+
+    /**
+     * Recompute all kits up to the current end of fight_players. Each kit is
+     * scanned and replaced by its own task on its own connection; the "all"
+     * board is scanned alongside and written last, since its elo needs the
+     * five main kits. Each kit task replays that kit's ratings as well.
+     */
+    private int rebuild() throws SQLException, InterruptedException, ExecutionException {
+        long started = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+        createTables();
+        long cutoff;
+        Set<String> kits = new TreeSet<>();
+        try (PooledConnection conn = pool.borrow();
+             Statement stmt = conn.createStatement()) {
+            try (ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(id), 0) FROM fight_players")) {
+                rs.next();
+                cutoff = rs.getLong(1);
+            }
+            PreparedStatement kitStmt = conn.prepare("SELECT DISTINCT kit FROM fights WHERE mode = ?");
+            kitStmt.setString(1, RANKED_MODE);
+            try (ResultSet rs = kitStmt.executeQuery()) {
+                while (rs.next()) {
+                    String kit = rs.getString(1);
+                    if (kit != null) {
+                        kits.add(baseKit(kit));
+                    }
+                }
+            }
+        }
+
+        AtomicInteger counter = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(rebuildThreads, r -> {
+            Thread thread = new Thread(r, "SMPStats-Leaderboard-Rebuild-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        int written = 0;
+        try {
+            Future<Board> overallScan = workers.submit(() -> scan(null, cutoff));
+            Map<String, Future<Board>> kitTasks = new LinkedHashMap<>();
+            for (String kit : kits) {
+                kitTasks.put(kit, workers.submit(() -> {
+                    Board board = scan(kit, cutoff);
+                    replace(kit, board);
+                    return board;
+                }));
+            }
+
+            Map<String, Map<String, Standing>> byKit = new HashMap<>();
+            for (Map.Entry<String, Future<Board>> task : kitTasks.entrySet()) {
+                Map<String, Standing> standings = task.getValue().get().standings();
+                byKit.put(task.getKey(), standings);
+                written += standings.size();
+            }
+            Board overallBoard = overallScan.get();
+            Map<String, Standing> overall = overallBoard.standings();
+            for (Standing standing : overall.values()) {
+                standing.elo = overallElo(kit -> {
+                    Map<String, Standing> standings = byKit.get(kit);
+                    return standings == null ? null : standings.get(standing.username);
+                });
+            }
+            replaceOverall(overallBoard, kits, cutoff);
+            written += overall.size();
+
+            boards.clear();
+            byKit.put(ALL, overall);
+            for (Map.Entry<String, Map<String, Standing>> kit : byKit.entrySet()) {
+                Map<String, BoardEntry> entries = new HashMap<>();
+                for (Standing standing : kit.getValue().values()) {
+                    entries.put(standing.username, entry(standing));
+                }
+                boards.put(kit.getKey(), entries);
+            }
+            publish(null);
+        } finally {
+            workers.shutdownNow();
+        }
+
+        mark = cutoff;
+        highWaterMark = cutoff;
+        stalledId = -1;
+        rebuilds.incrementAndGet();
+        lastRebuildMillis = System.currentTimeMillis() - started;
+        record(rebuildLatency, startNanos);
+        logger.info("Rebuilt the leaderboard snapshot: " + kits.size() + " kits, " + written + " rows, up to fight_players #"
+                + cutoff + " in " + lastRebuildMillis + "ms");
+        return written;
+    }
+
+    /**
+     * Fold every ranked result up to the cutoff, for one kit or for all kits
+     * when {@code kit} is null, replaying the kit's ratings on the way.
+     * Reads in id order, a page at a time.
+     */
+    private Board scan(String kit, long cutoff) throws SQLException {
+        String board = kit == null ? ALL : kit;
+        EloRatings ratings = kit == null ? null : new EloRatings(kFactor);
+        List<Result> fight = new ArrayList<>(2);
+        String sql = SCAN_SQL + (kit == null ? "" : "AND f.kit IN (?, ?) ") + "ORDER BY fp.id LIMIT ?";
+        Map<String, Standing> standings = new HashMap<>();
+        long after = 0;
+        try (PooledConnection conn = pool.borrow()) {
+            try {
+                while (true) {
+                    PreparedStatement stmt = conn.prepare(sql);
+                    int index = 1;
+                    stmt.setString(index++, RANKED_MODE);
+                    stmt.setLong(index++, after);
+                    stmt.setLong(index++, cutoff);
+                    if (kit != null) {
+                        stmt.setString(index++, kit);
+                        stmt.setString(index++, kit + RANKED_SUFFIX);
+                    }
+                    stmt.setInt(index, batchSize);
+                    int read = 0;
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        while (rs.next()) {
+                            read++;
+                            Result result = readResult(rs);
+                            standings.computeIfAbsent(result.username(), name -> new Standing(board, name)).apply(result);
+                            if (ratings != null) {
+                                if (!fight.isEmpty() && !Objects.equals(fight.get(0).fight(), result.fight())) {
+                                    rateFight(ratings, fight);
+                                    fight.clear();
+                                }
+                                fight.add(result);
+                            }
+                            after = result.id();
+                        }
+                    }
+                    if (read < batchSize) {
+                        if (!fight.isEmpty()) {
+                            rateFight(ratings, fight);
+                        }
+                        return new Board(standings, ratings);
+                    }
+                }
+            } catch (SQLException e) {
+                conn.onError(e);
+                throw e;
+            }
+        }
+    }
+
+    /** Swap a board's rows in one transaction, so readers never see it half written. */
+    private void replace(String kit, Board board) throws SQLException {
+        try (PooledConnection conn = pool.borrow()) {
+            try {
+                conn.setAutoCommit(false);
+                replaceRows(conn, kit, board);
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                conn.onError(e);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Swap the "all" board, the last a rebuild writes, in the same transaction
+     * as dropping kits that no longer have any ranked fights and saving the
+     * mark, so a failed rebuild leaves none of them half done.
+     */
+    private void replaceOverall(Board board, Set<String> kits, long cutoff) throws SQLException {
+        try (PooledConnection conn = pool.borrow()) {
+            try {
+                conn.setAutoCommit(false);
+                replaceRows(conn, ALL, board);
+                for (String table : new String[] {"leaderboard_snapshot", "kit_ratings"}) {
+                    StringBuilder sql = new StringBuilder("DELETE FROM " + table + " WHERE kit <> ?");
+                    for (int i = 0; i < kits.size(); i++) {
+                        sql.append(" AND kit <> ?");
+                    }
+                    try (PreparedStatement stmt = conn.raw().prepareStatement(sql.toString())) {
+                        int index = 1;
+                        stmt.setString(index++, ALL);
+                        for (String kit : kits) {
+                            stmt.setString(index++, kit);
+                        }
+                        stmt.executeUpdate();
+                    }
+                }
+                saveMark(conn, cutoff);
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                conn.onError(e);
+                throw e;
+            }
+        }
+    }
+
+    private void replaceRows(PooledConnection conn, String kit, Board board) throws SQLException {
+        PreparedStatement delete = conn.prepare("DELETE FROM leaderboard_snapshot WHERE kit = ?");
+        delete.setString(1, kit);
+        delete.executeUpdate();
+        write(conn, board.standings().values());
+        if (board.ratings() != null) {
+            PreparedStatement deleteRatings = conn.prepare("DELETE FROM kit_ratings WHERE kit = ?");
+            deleteRatings.setString(1, kit);
+            deleteRatings.executeUpdate();
+            writeRatings(conn, Map.of(kit, board.ratings()), true);
+        }
+    }
+
+    private void write(PooledConnection conn, Collection<Standing> standings) throws SQLException {
+        if (standings.isEmpty()) {
+            return;
+        }
+        PreparedStatement stmt = conn.prepare(UPSERT_SQL);
+        int pending = 0;
+        for (Standing standing : standings) {
+            stmt.setString(1, standing.kit);
+            stmt.setString(2, standing.username);
+            stmt.setInt(3, standing.elo);
+            stmt.setInt(4, standing.wins);
+            stmt.setInt(5, standing.losses);
+            stmt.setInt(6, standing.streak);
+            stmt.setString(7, standing.recent);
+            stmt.setString(8, standing.latestData);
+            stmt.setObject(9, standing.rankedElo, Types.INTEGER);
+            stmt.setObject(10, standing.baseElo, Types.INTEGER);
+            stmt.setLong(11, standing.lastId);
+            stmt.addBatch();
+            if (++pending == batchSize) {
+                stmt.executeBatch();
+                pending = 0;
+            }
+        }
+        if (pending > 0) {
+            stmt.executeBatch();
+        }
+    }
+
+    /** Read every stored board into memory, when resuming from a stored high-water mark. */
+    private void loadBoards() throws SQLException {
+        boards.clear();
+        try (PooledConnection conn = pool.borrow();
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT kit, username, elo, wins, losses, win_streak, ranked_elo, base_elo "
+                     + "FROM leaderboard_snapshot")) {
+            while (rs.next()) {
+                Standing standing = new Standing(rs.getString("kit"), rs.getString("username"));
+                standing.elo = rs.getInt("elo");
+                standing.wins = rs.getInt("wins");
+                standing.losses = rs.getInt("losses");
+                standing.streak = rs.getInt("win_streak");
+                standing.rankedElo = rs.getObject("ranked_elo", Integer.class);
+                standing.baseElo = rs.getObject("base_elo", Integer.class);
+                boards.computeIfAbsent(standing.kit, kit -> new HashMap<>()).put(standing.username, entry(standing));
+            }
+        }
+        publish(null);
+    }
+
+    /** Re-sort and publish the given boards, or all of them when {@code kits} is null. */
+    private void publish(Set<String> kits) {
+        Map<String, KitBoard> next = kits == null ? new HashMap<>() : new HashMap<>(published);
+        for (String kit : kits == null ? boards.keySet() : kits) {
+            Map<String, BoardEntry> entries = boards.get(kit);
+            List<BoardEntry> ranked = new ArrayList<>(entries.values());
+            ranked.sort(Comparator.comparingInt(BoardEntry::elo).reversed().thenComparing(BoardEntry::username));
+            Map<String, BoardEntry> byName = new HashMap<>();
+            for (BoardEntry entry : ranked) {
+                byName.put(entry.username().toLowerCase(Locale.ROOT), entry);
+            }
+            next.put(kit, new KitBoard(List.copyOf(ranked), Map.copyOf(byName)));
+        }
+        published = Map.copyOf(next);
+        boardVersion++;
+    }
+
+    private static BoardEntry entry(Standing standing) {
+        int kitElo = standing.kit.equals(ALL) ? standing.elo : standing.overallElo();
+        return new BoardEntry(standing.username, standing.elo, standing.wins, standing.losses, standing.streak, kitElo);
+    }
+
+    private void writeRatings(PooledConnection conn, Map<String, EloRatings> byKit, boolean all) throws SQLException {
+        PreparedStatement stmt = null;
+        int pending = 0;
+        for (Map.Entry<String, EloRatings> kit : byKit.entrySet()) {
+            for (Map.Entry<String, EloRatings.Rating> entry : kit.getValue().all().entrySet()) {
+                EloRatings.Rating rating = entry.getValue();
+                if (!all && !rating.changed) {
+                    continue;
+                }
+                if (stmt == null) {
+                    stmt = conn.prepare(RATING_UPSERT_SQL);
+                }
+                stmt.setString(1, kit.getKey());
+                stmt.setString(2, entry.getKey());
+                stmt.setDouble(3, rating.value);
+                stmt.setInt(4, rating.games);
+                stmt.setLong(5, rating.lastFightPlayerId);
+                stmt.addBatch();
+                if (++pending == batchSize) {
+                    stmt.executeBatch();
+                    pending = 0;
+                }
+            }
+        }
+        if (pending > 0) {
+            stmt.executeBatch();
+        }
+    }
+
+    private void createTables() throws SQLException {
+        String snapshotSql = "CREATE TABLE IF NOT EXISTS leaderboard_snapshot (" +
+                    "kit VARCHAR(32) NOT NULL," +
+                    "username VARCHAR(32) NOT NULL," +
+                    "elo INT NOT NULL," +
+                    "wins INT NOT NULL," +
+                    "losses INT NOT NULL," +
+                    "win_streak INT NOT NULL," +
+                    "recent_results VARCHAR(64) NOT NULL," +
+                    "latest_player_data TEXT," +
+                    "ranked_elo INT," +
+                    "base_elo INT," +
+                    "last_fight_player_id BIGINT NOT NULL," +
+                    "PRIMARY KEY (kit, username)," +
+                    "INDEX idx_leaderboard_kit_elo (kit, elo))";
+
+        String ratingsSql = "CREATE TABLE IF NOT EXISTS kit_ratings (" +
+                    "kit VARCHAR(32) NOT NULL," +
+                    "username VARCHAR(32) NOT NULL," +
+                    "rating DOUBLE NOT NULL," +
+                    "games INT NOT NULL," +
+                    "last_fight_player_id BIGINT NOT NULL," +
+                    "PRIMARY KEY (kit, username)," +
+                    "INDEX idx_kit_ratings_rating (kit, rating))";
+
+        String stateSql = "CREATE TABLE IF NOT EXISTS leaderboard_state (" +
+                    "name VARCHAR(32) PRIMARY KEY," +
+                    "last_fight_player_id BIGINT NOT NULL)";
+
+        try (PooledConnection conn = pool.borrow();
+             Statement stmt = conn.createStatement()) {
+            stmt.execute(snapshotSql);
+            stmt.execute(ratingsSql);
+            stmt.execute(stateSql);
+        }
+    }
+
+    /** The stored high-water mark, or -1 if the snapshot was never built. */
+    private long readMark() throws SQLException {
+        try (PooledConnection conn = pool.borrow()) {
+            PreparedStatement stmt = conn.prepare("SELECT last_fight_player_id FROM leaderboard_state WHERE name = ?");
+            stmt.setString(1, STATE_NAME);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : -1;
+            }
+        }
+    }
+
+    private static void saveMark(PooledConnection conn, long mark) throws SQLException {
+        PreparedStatement stmt = conn.prepare(SAVE_MARK_SQL);
+        stmt.setString(1, STATE_NAME);
+        stmt.setLong(2, mark);
+        stmt.executeUpdate();
+    }
+
+    private static void record(LatencyHistogram latency, long startNanos) {
+        if (latency != null) {
+            latency.recordSince(startNanos);
+        }
+    }
+
+    private static Result readResult(ResultSet rs) throws SQLException {
+        return new Result(rs.getLong("id"), rs.getString("fight"), rs.getString("username"), rs.getBoolean("is_winner"),
+                rs.getString("player_data"), rs.getString("kit"));
+    }
+
+    /** Floor of the average of the main kits' elo, as the website shows it. */
+    private static int overallElo(Function<String, Standing> kitStanding) {
+        long sum = 0;
+        for (String kit : OVERALL_KITS) {
+            Standing standing = kitStanding.apply(kit);
+            sum += standing == null ? DEFAULT_ELO : standing.overallElo();
+        }
+        return (int) Math.floorDiv(sum, OVERALL_KITS.size());
+    }
+
+    /** "swordelo" and "sword" share the sword board. */
+    static String baseKit(String kit) {
+        if (kit.length() > RANKED_SUFFIX.length() && kit.endsWith(RANKED_SUFFIX)) {
+            return kit.substring(0, kit.length() - RANKED_SUFFIX.length());
+        }
+        return kit;
+    }
+
+    /**
+     * The elo recorded in a fight_players.player_data document: newElo, else
+     * oldElo, else 1000. Null if the document does not parse.
+     */
+    static Integer eloOf(String playerData) {
+        if (playerData == null) {
+            return null;
+        }
+        try {
+            JsonElement root = JsonParser.parseString(playerData);
+            if (!root.isJsonObject()) {
+                return null;
+            }
+            JsonObject data = root.getAsJsonObject();
+            for (String field : new String[] {"newElo", "oldElo"}) {
+                JsonElement value = data.get(field);
+                if (value != null && value.isJsonPrimitive() && value.getAsJsonPrimitive().isNumber()) {
+                    int elo = (int) value.getAsDouble();
+                    if (elo != 0) {
+                        return elo;
+                    }
+                }
+            }
+            return DEFAULT_ELO;
+        } catch (JsonParseException | IllegalStateException | NumberFormatException e) {
+            return null;
+        }
+    }
+}
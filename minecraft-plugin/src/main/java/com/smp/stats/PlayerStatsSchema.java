@@ -0,0 +1,294 @@
+package com.smp.stats;
+
+import com.smp.common.db.ConnectionPool;
+import com.smp.common.db.PooledConnection;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+/**
+ * The player_stats migrations, from the original username-keyed table to
+ * one keyed by a BINARY(16) player UUID.
+ *
+ * The UUID column is added nullable, filled in by a backfill that works
+ * through the table in primary key order, a small chunk per transaction with
+ * a pause in between, so only a chunk's rows are locked at a time while the
+ * website keeps reading. Rows split by a name change are then merged, and
+ * finally the primary key moves to the UUID and the username keeps a plain,
+ * non-unique index. The key change is done in place where MySQL allows it.
+ * A later migration pins username to a case-insensitive collation, since
+ * the website looks players up by name with a plain, indexed comparison.
+ */
+final class PlayerStatsSchema {
+
+    static final int LATEST = 5;
+
+    private final Logger logger;
+    private final int batchSize;
+    private final long pauseMillis;
+
+    PlayerStatsSchema(Logger logger, int batchSize, long pauseMillis) {
+        this.logger = logger;
+        this.batchSize = Math.max(1, batchSize);
+        this.pauseMillis = pauseMillis;
+    }
+
+    void register(SchemaMigrator migrator) {
+        migrator.add(1, "player_stats and stat_journal_ack", PlayerStatsSchema::baseline)
+                .add(2, "add player_stats.uuid", PlayerStatsSchema::addUuidColumn)
+                .add(3, "backfill player_stats.uuid", this::backfill)
+                .add(4, "merge player_stats rows split by name changes", this::mergeSplitRows)
+                .add(LATEST, "key player_stats on uuid", this::switchKey);
+    }
+
+    /** Register the username collation migration, which runs after the combat log's. */
+    static void registerNameCollation(SchemaMigrator migrator, int version) {
+        migrator.add(version, "case-insensitive player_stats.username", PlayerStatsSchema::pinNameCollation);
+    }
+
+    /** The 16 bytes stored in player_stats.uuid. */
+    static byte[] uuidBytes(UUID uuid) {
+        return ByteBuffer.allocate(16)
+                .putLong(uuid.getMostSignificantBits())
+                .putLong(uuid.getLeastSignificantBits())
+                .array();
+    }
+
+    /** The UUID stored in player_stats.uuid or any other BINARY(16) player column. */
+    static UUID uuid(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        return new UUID(buffer.getLong(), buffer.getLong());
+    }
+
+    private static void baseline(ConnectionPool pool) throws SQLException {
+        try (PooledConnection conn = pool.borrow(); Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS player_stats (" +
+                    "id INT AUTO_INCREMENT PRIMARY KEY," +
+                    "username VARCHAR(16) UNIQUE NOT NULL," +
+                    "playtime_hours DECIMAL(10,2) DEFAULT 0," +
+                    "kills INT DEFAULT 0," +
+                    "deaths INT DEFAULT 0," +
+                    "verification_key VARCHAR(6)," +
+                    "player_uuid VARCHAR(36)," +
+                    "last_updated TIMESTAMP DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP)");
+            stmt.execute("CREATE TABLE IF NOT EXISTS stat_journal_ack (" +
+                    "journal_id VARCHAR(36) PRIMARY KEY," +
+                    "last_seq BIGINT NOT NULL)");
+        }
+    }
+
+    private static void addUuidColumn(ConnectionPool pool) throws SQLException {
+        try (PooledConnection conn = pool.borrow(); Statement stmt = conn.createStatement()) {
+            if (!columnExists(conn, "uuid")) {
+                alter(stmt, "ADD COLUMN uuid BINARY(16) NULL AFTER id, ADD INDEX idx_player_stats_uuid (uuid)");
+            }
+        }
+    }
+
+    /**
+     * Fill in uuid from player_uuid. Rows that never recorded a UUID get the
+     * offline-mode UUID for their name and keep player_uuid NULL, so the
+     * owner's real UUID can adopt the row when they next join.
+     */
+    private void backfill(ConnectionPool pool) throws SQLException, InterruptedException {
+        long after = 0;
+        long filled = 0;
+        while (true) {
+            List<Long> ids = new ArrayList<>(batchSize);
+            List<UUID> uuids = new ArrayList<>(batchSize);
+            try (PooledConnection conn = pool.borrow()) {
+                try {
+                    PreparedStatement select = conn.prepare("SELECT id, username, player_uuid FROM player_stats " +
+                            "WHERE id > ? AND uuid IS NULL ORDER BY id LIMIT ?");
+                    select.setLong(1, after);
+                    select.setInt(2, batchSize);
+                    try (ResultSet rs = select.executeQuery()) {
+                        while (rs.next()) {
+                            ids.add(rs.getLong("id"));
+                            uuids.add(uuidOf(rs.getString("username"), rs.getString("player_uuid")));
+                        }
+                    }
+                    if (ids.isEmpty()) {
+                        break;
+                    }
+                    conn.setAutoCommit(false);
+                    PreparedStatement update = conn.prepare("UPDATE player_stats SET uuid = ? WHERE id = ? AND uuid IS NULL");
+                    for (int i = 0; i < ids.size(); i++) {
+                        update.setBytes(1, uuidBytes(uuids.get(i)));
+                        update.setLong(2, ids.get(i));
+                        update.addBatch();
+                    }
+                    update.executeBatch();
+                    conn.commit();
+                } catch (SQLException e) {
+                    conn.rollback();
+                    conn.onError(e);
+                    throw e;
+                }
+            }
+            after = ids.get(ids.size() - 1);
+            filled += ids.size();
+            if (filled % (batchSize * 20L) < batchSize) {
+                logger.info("Backfilled uuid for " + filled + " player_stats rows");
+            }
+            Thread.sleep(pauseMillis);
+        }
+        if (filled > 0) {
+            logger.info("Backfilled uuid for " + filled + " player_stats rows in total");
+        }
+    }
+
+    /**
+     * A name change used to start a second row for the same player. Fold
+     * every such group into its most recently updated row, which carries the
+     * current name; other columns of the older rows are dropped.
+     */
+    private void mergeSplitRows(ConnectionPool pool) throws SQLException, InterruptedException {
+        List<byte[]> split = new ArrayList<>();
+        try (PooledConnection conn = pool.borrow(); Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT uuid FROM player_stats GROUP BY uuid HAVING COUNT(*) > 1")) {
+            while (rs.next()) {
+                split.add(rs.getBytes(1));
+            }
+        }
+        for (int i = 0; i < split.size(); i++) {
+            try (PooledConnection conn = pool.borrow()) {
+                try {
+                    conn.setAutoCommit(false);
+                    PreparedStatement select = conn.prepare("SELECT id, kills, deaths, playtime_hours FROM player_stats " +
+                            "WHERE uuid = ? ORDER BY last_updated DESC, id DESC FOR UPDATE");
+                    select.setBytes(1, split.get(i));
+                    long survivor = -1;
+                    long kills = 0;
+                    long deaths = 0;
+                    BigDecimal playtime = BigDecimal.ZERO;
+                    try (ResultSet rs = select.executeQuery()) {
+                        while (rs.next()) {
+                            if (survivor < 0) {
+                                survivor = rs.getLong("id");
+                            }
+                            kills += rs.getLong("kills");
+                            deaths += rs.getLong("deaths");
+                            BigDecimal hours = rs.getBigDecimal("playtime_hours");
+                            if (hours != null) {
+                                playtime = playtime.add(hours);
+                            }
+                        }
+                    }
+                    if (survivor >= 0) {
+                        PreparedStatement update = conn.prepare("UPDATE player_stats SET kills = ?, deaths = ?, playtime_hours = ? WHERE id = ?");
+                        update.setLong(1, kills);
+                        update.setLong(2, deaths);
+                        update.setBigDecimal(3, playtime);
+                        update.setLong(4, survivor);
+                        update.executeUpdate();
+                        PreparedStatement delete = conn.prepare("DELETE FROM player_stats WHERE uuid = ? AND id <> ?");
+                        delete.setBytes(1, split.get(i));
+                        delete.setLong(2, survivor);
+                        delete.executeUpdate();
+                    }
+                    conn.commit();
+                } catch (SQLException e) {
+                    conn.rollback();
+                    conn.onError(e);
+                    throw e;
+                }
+            }
+            if ((i + 1) % batchSize == 0) {
+                Thread.sleep(pauseMillis);
+            }
+        }
+        if (!split.isEmpty()) {
+            logger.info("Merged player_stats rows for " + split.size() + " players who changed name");
+        }
+    }
+
+    private void switchKey(ConnectionPool pool) throws SQLException, InterruptedException {
+        // Rows inserted by an older plugin version since the backfill ran
+        backfill(pool);
+        try (PooledConnection conn = pool.borrow(); Statement stmt = conn.createStatement()) {
+            if (primaryKeyColumn(conn).equalsIgnoreCase("uuid")) {
+                return;
+            }
+            // id stays unique for the website, and must stay a key while it is AUTO_INCREMENT
+            alter(stmt, "MODIFY uuid BINARY(16) NOT NULL, DROP PRIMARY KEY, ADD PRIMARY KEY (uuid), "
+                    + "ADD UNIQUE INDEX idx_player_stats_id (id), DROP INDEX username, "
+                    + "ADD INDEX idx_player_stats_username (username), DROP INDEX idx_player_stats_uuid");
+        }
+    }
+
+    /**
+     * Make username compare case-insensitively whatever the server's default
+     * collation, so "Steve" finds the row of "steve" without LOWER(), which
+     * would stop MySQL using the username index.
+     */
+    private static void pinNameCollation(ConnectionPool pool) throws SQLException {
+        try (PooledConnection conn = pool.borrow(); Statement stmt = conn.createStatement()) {
+            PreparedStatement select = conn.prepare("SELECT COLLATION_NAME FROM information_schema.COLUMNS " +
+                    "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'player_stats' AND COLUMN_NAME = 'username'");
+            String collation;
+            try (ResultSet rs = select.executeQuery()) {
+                collation = rs.next() ? rs.getString(1) : null;
+            }
+            if (collation != null && collation.endsWith("_ci")) {
+                return;
+            }
+            alter(stmt, "MODIFY username VARCHAR(16) CHARACTER SET utf8mb4 COLLATE utf8mb4_unicode_ci NOT NULL");
+        }
+    }
+
+    /** Run an ALTER without blocking writers where the server supports it. */
+    private static void alter(Statement stmt, String changes) throws SQLException {
+        try {
+            stmt.execute("ALTER TABLE player_stats " + changes + ", ALGORITHM=INPLACE, LOCK=NONE");
+        } catch (SQLException e) {
+            // 1845/1846: this server cannot do the change in place
+            if (e.getErrorCode() != 1845 && e.getErrorCode() != 1846) {
+                throw e;
+            }
+            stmt.execute("ALTER TABLE player_stats " + changes);
+        }
+    }
+
+    private static boolean columnExists(PooledConnection conn, String column) throws SQLException {
+        PreparedStatement stmt = conn.prepare("SELECT COUNT(*) FROM information_schema.COLUMNS " +
+                "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'player_stats' AND COLUMN_NAME = ?");
+        stmt.setString(1, column);
+        try (ResultSet rs = stmt.executeQuery()) {
+            return rs.next() && rs.getInt(1) > 0;
+        }
+    }
+
+    private static String primaryKeyColumn(PooledConnection conn) throws SQLException {
+        PreparedStatement stmt = conn.prepare("SELECT COLUMN_NAME FROM information_schema.STATISTICS " +
+                "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'player_stats' AND INDEX_NAME = 'PRIMARY'");
+        try (ResultSet rs = stmt.executeQuery()) {
+            return rs.next() ? rs.getString(1) : "";
+        }
+    }
+
+    private static UUID uuidOf(String username, String playerUUID) {
+        if (playerUUID != null) {
+            try {
+                return UUID.fromString(playerUUID);
+            } catch (IllegalArgumentException e) {
+                // Fall through to the name-based UUID
+            }
+        }
+        return offlineUuid(username);
+    }
+
+    /** The UUID an offline-mode server gives the name; legacy rows without a player_uuid are keyed on it. */
+    static UUID offlineUuid(String username) {
+        return UUID.nameUUIDFromBytes(("OfflinePlayer:" + username).getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,314 @@
+package com.smp.stats;
+
+import com.smp.common.db.ConnectionPool;
+import com.smp.common.db.PooledConnection;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * In-memory ranking of every player in player_stats by kills, playtime and
+ * K/D, so /rank and /top never touch MySQL.
+ *
+ * It is seeded from player_stats while the stat journal is recovered, before
+ * any flush of this run can reach the table, and the leftover journal entries
+ * are added on top. Live deltas are added as they are recorded, including any
+ * that arrive before the seed, so the totals always match what player_stats
+ * will hold once everything is flushed. Main thread only, except
+ * {@link #load}.
+ *
+ * Players are keyed by UUID, like player_stats, so a rename keeps its slot
+ * and two players who share a name stay apart. A name resolves to whoever
+ * last joined or was recorded under it. A legacy row's offline UUID is folded
+ * into the real one when its owner joins, as the claim does in player_stats.
+ */
+final class RankIndex {
+
+    enum Metric {
+        KILLS("kills"),
+        PLAYTIME("playtime"),
+        KD("kd");
+
+        final String id;
+
+        Metric(String id) {
+            this.id = id;
+        }
+
+        static Metric parse(String id) {
+            for (Metric metric : values()) {
+                if (metric.id.equalsIgnoreCase(id)) {
+                    return metric;
+                }
+            }
+            return null;
+        }
+    }
+
+    /** A player_stats row at seed time. */
+    record Totals(UUID uuid, String username, long kills, long deaths, double playtimeHours) {
+    }
+
+    /** One player's totals and ranks, as published in a {@link View}. */
+    record PlayerView(String username, long kills, long deaths, double playtimeHours, double kd,
+                      int killsRank, int playtimeRank, int kdRank) {
+    }
+
+    record TopEntry(int rank, String username, double value) {
+    }
+
+    /** Immutable copy of the index for readers off the main thread. */
+    record View(long version, int players, Map<Metric, List<TopEntry>> top, Map<UUID, PlayerView> byUuid,
+                Map<String, UUID> byName) {
+
+        PlayerView player(String username) {
+            UUID uuid = byName.get(key(username));
+            return uuid == null ? null : byUuid.get(uuid);
+        }
+    }
+
+    /** Receives the entries of {@link #top} in rank order. */
+    interface TopVisitor {
+        void visit(int rank, String username, double value);
+    }
+
+    private static final double MILLIS_PER_HOUR = 3_600_000.0;
+
+    private final ConnectionPool pool;
+    private final Map<UUID, Integer> slots = new HashMap<>();
+    // Lower-cased name to the slot of whoever last used it
+    private final Map<String, Integer> byName = new HashMap<>();
+    private final RankTree[] trees = new RankTree[Metric.values().length];
+    private UUID[] uuids = new UUID[64];
+    private String[] names = new String[64];
+    private long[] kills = new long[64];
+    private long[] deaths = new long[64];
+    private double[] playtimeHours = new double[64];
+    private int nextSlot = 1;
+    private boolean seeded;
+    private long version;
+
+    RankIndex(ConnectionPool pool) {
+        this.pool = pool;
+        for (Metric metric : Metric.values()) {
+            trees[metric.ordinal()] = new RankTree(64);
+        }
+    }
+
+    /** Read every player's totals; safe to call off the main thread. */
+    List<Totals> load() throws SQLException {
+        List<Totals> totals = new ArrayList<>();
+        try (PooledConnection conn = pool.borrow()) {
+            PreparedStatement stmt = conn.prepare("SELECT uuid, username, kills, deaths, playtime_hours FROM player_stats");
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    totals.add(new Totals(PlayerStatsSchema.uuid(rs.getBytes("uuid")), rs.getString("username"),
+                            rs.getLong("kills"), rs.getLong("deaths"), rs.getDouble("playtime_hours")));
+                }
+            }
+        }
+        return totals;
+    }
+
+    /** Add the stored totals to whatever has been recorded since startup. */
+    void seed(List<Totals> totals) {
+        for (Totals row : totals) {
+            int slot = slot(row.uuid(), row.username());
+            kills[slot] += row.kills();
+            deaths[slot] += row.deaths();
+            playtimeHours[slot] += row.playtimeHours();
+            reindex(slot);
+        }
+        seeded = true;
+    }
+
+    /** Journal entries from the previous run that never reached player_stats. */
+    void replay(List<StatJournal.Entry> entries) {
+        for (StatJournal.Entry entry : entries) {
+            switch (entry.type()) {
+                case KILL -> add(entry.playerUUID(), entry.username(), entry.amount(), 0, 0);
+                case DEATH -> add(entry.playerUUID(), entry.username(), 0, entry.amount(), 0);
+                case PLAYTIME -> add(entry.playerUUID(), entry.username(), 0, 0, entry.amount());
+            }
+        }
+    }
+
+    boolean isSeeded() {
+        return seeded;
+    }
+
+    /**
+     * Make sure a player who just joined is ranked, even with no stats yet,
+     * and that their name now finds them.
+     */
+    void track(UUID uuid, String username) {
+        Integer legacy = legacySlot(username);
+        boolean known = slots.containsKey(uuid);
+        int slot = slot(uuid, username);
+        byName.put(key(username), slot);
+        if (legacy != null && legacy != slot) {
+            absorb(slot, legacy);
+        } else if (!known) {
+            reindex(slot);
+        }
+    }
+
+    void recordKill(UUID uuid, String username) {
+        add(uuid, username, 1, 0, 0);
+    }
+
+    void recordDeath(UUID uuid, String username) {
+        add(uuid, username, 0, 1, 0);
+    }
+
+    void recordPlaytime(UUID uuid, String username, long millis) {
+        if (millis > 0) {
+            add(uuid, username, 0, 0, millis);
+        }
+    }
+
+    /** Changes whenever any total changes. */
+    long version() {
+        return version;
+    }
+
+    /**
+     * Copy the index for other threads: the top {@code topLimit} per metric
+     * and every player's totals and ranks.
+     */
+    View view(int topLimit) {
+        Map<Metric, List<TopEntry>> top = new EnumMap<>(Metric.class);
+        for (Metric metric : Metric.values()) {
+            List<TopEntry> entries = new ArrayList<>(topLimit);
+            top(metric, topLimit, (rank, username, value) -> entries.add(new TopEntry(rank, username, value)));
+            top.put(metric, List.copyOf(entries));
+        }
+        Map<UUID, PlayerView> players = new HashMap<>(slots.size() * 2);
+        for (Map.Entry<UUID, Integer> entry : slots.entrySet()) {
+            int slot = entry.getValue();
+            players.put(entry.getKey(), new PlayerView(names[slot], kills[slot], deaths[slot], playtimeHours[slot],
+                    value(Metric.KD, slot), trees[Metric.KILLS.ordinal()].rank(slot),
+                    trees[Metric.PLAYTIME.ordinal()].rank(slot), trees[Metric.KD.ordinal()].rank(slot)));
+        }
+        Map<String, UUID> names = new HashMap<>(byName.size() * 2);
+        byName.forEach((name, slot) -> names.put(name, uuids[slot]));
+        return new View(version, players(), Collections.unmodifiableMap(top), Collections.unmodifiableMap(players),
+                Collections.unmodifiableMap(names));
+    }
+
+    int players() {
+        return slots.size();
+    }
+
+    /** 1-based rank with ties sharing a rank, or 0 for an unknown player. */
+    int rank(Metric metric, String username) {
+        Integer slot = byName.get(key(username));
+        return slot == null ? 0 : trees[metric.ordinal()].rank(slot);
+    }
+
+    double value(Metric metric, String username) {
+        Integer slot = byName.get(key(username));
+        return slot == null ? 0 : value(metric, slot);
+    }
+
+    /** The player's name as stored, or null if unknown. */
+    String name(String username) {
+        Integer slot = byName.get(key(username));
+        return slot == null ? null : names[slot];
+    }
+
+    /** Visit the best {@code limit} players for the metric. */
+    void top(Metric metric, int limit, TopVisitor visitor) {
+        RankTree tree = trees[metric.ordinal()];
+        tree.forEachTop(limit, slot -> {
+            double value = tree.score(slot);
+            visitor.visit(tree.countAbove(value) + 1, names[slot], value);
+        });
+    }
+
+    private void add(UUID uuid, String username, long killDelta, long deathDelta, long playtimeMillis) {
+        int slot = slot(uuid, username);
+        kills[slot] += killDelta;
+        deaths[slot] += deathDelta;
+        playtimeHours[slot] += playtimeMillis / MILLIS_PER_HOUR;
+        reindex(slot);
+    }
+
+    private void reindex(int slot) {
+        version++;
+        for (Metric metric : Metric.values()) {
+            trees[metric.ordinal()].set(slot, value(metric, slot));
+        }
+    }
+
+    private double value(Metric metric, int slot) {
+        return switch (metric) {
+            case KILLS -> kills[slot];
+            case PLAYTIME -> playtimeHours[slot];
+            case KD -> deaths[slot] == 0 ? kills[slot] : (double) kills[slot] / deaths[slot];
+        };
+    }
+
+    /** A legacy row for the name: one keyed on the offline UUID of the name it was stored under. */
+    private Integer legacySlot(String username) {
+        Integer slot = byName.get(key(username));
+        if (slot != null && uuids[slot].equals(PlayerStatsSchema.offlineUuid(names[slot]))) {
+            return slot;
+        }
+        return slots.get(PlayerStatsSchema.offlineUuid(username));
+    }
+
+    /** Fold a legacy slot's totals into its owner's and drop it. */
+    private void absorb(int slot, int legacy) {
+        kills[slot] += kills[legacy];
+        deaths[slot] += deaths[legacy];
+        playtimeHours[slot] += playtimeHours[legacy];
+        slots.remove(uuids[legacy]);
+        for (RankTree tree : trees) {
+            tree.remove(legacy);
+        }
+        reindex(slot);
+    }
+
+    private int slot(UUID uuid, String username) {
+        Integer slot = slots.get(uuid);
+        if (slot != null) {
+            if (!username.equals(names[slot])) {
+                // A rename; the old name no longer finds this player
+                byName.remove(key(names[slot]), slot);
+                names[slot] = username;
+                byName.put(key(username), slot);
+            }
+            return slot;
+        }
+        int created = nextSlot++;
+        if (created == names.length) {
+            int length = names.length * 2;
+            uuids = Arrays.copyOf(uuids, length);
+            names = Arrays.copyOf(names, length);
+            kills = Arrays.copyOf(kills, length);
+            deaths = Arrays.copyOf(deaths, length);
+            playtimeHours = Arrays.copyOf(playtimeHours, length);
+        }
+        uuids[created] = uuid;
+        names[created] = username;
+        slots.put(uuid, created);
+        byName.put(key(username), created);
+        return created;
+    }
+
+    private static String key(String username) {
+        // player_stats.username uses a case-insensitive collation
+        return username.toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,224 @@
+package com.smp.stats;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Order-statistic tree over player slots, highest score first. A treap whose
+ * nodes are the slots themselves, kept in parallel arrays with subtree sizes,
+ * so rank and select are O(log n) and updates allocate nothing once the
+ * arrays have grown to the player count.
+ *
+ * Equal scores are ordered by slot, which keeps every key unique; ranks
+ * still count only strictly higher scores. Not thread-safe.
+ */
+final class RankTree {
+
+    private static final int NIL = 0;
+
+    // Slot 0 is the nil node, with size 0
+    private int[] left;
+    private int[] right;
+    private int[] size;
+    private int[] priority;
+    private double[] score;
+    private boolean[] present;
+    private int[] stack = new int[64];
+    private int root = NIL;
+    private int seed = 0x2545F491;
+
+    // Results of split(), to avoid returning pairs
+    private int splitLeft;
+    private int splitRight;
+
+    RankTree(int capacity) {
+        int length = Math.max(16, capacity + 1);
+        left = new int[length];
+        right = new int[length];
+        size = new int[length];
+        priority = new int[length];
+        score = new double[length];
+        present = new boolean[length];
+    }
+
+    int size() {
+        return size[root];
+    }
+
+    boolean contains(int slot) {
+        return slot < present.length && present[slot];
+    }
+
+    double score(int slot) {
+        return score[slot];
+    }
+
+    /** Insert the slot, or move it if it is already in the tree. */
+    void set(int slot, double value) {
+        if (slot <= NIL) {
+            throw new IllegalArgumentException("Slot must be positive: " + slot);
+        }
+        if (contains(slot)) {
+            if (score[slot] == value) {
+                return;
+            }
+            root = erase(root, slot);
+        } else {
+            ensureCapacity(slot);
+            priority[slot] = nextPriority();
+            present[slot] = true;
+        }
+        score[slot] = value;
+        left[slot] = NIL;
+        right[slot] = NIL;
+        size[slot] = 1;
+        split(root, slot);
+        root = merge(merge(splitLeft, slot), splitRight);
+    }
+
+    void remove(int slot) {
+        if (contains(slot)) {
+            root = erase(root, slot);
+            present[slot] = false;
+        }
+    }
+
+    /** Number of slots with a strictly higher score. */
+    int countAbove(double value) {
+        int count = 0;
+        int node = root;
+        while (node != NIL) {
+            if (score[node] > value) {
+                count += size[left[node]] + 1;
+                node = right[node];
+            } else {
+                node = left[node];
+            }
+        }
+        return count;
+    }
+
+    /** Competition rank of the slot: 1 plus the number of higher scores, 0 if absent. */
+    int rank(int slot) {
+        return contains(slot) ? countAbove(score[slot]) + 1 : 0;
+    }
+
+    /** The slot at this 0-based position, highest score first, or 0 if out of range. */
+    int select(int index) {
+        if (index < 0 || index >= size[root]) {
+            return NIL;
+        }
+        int node = root;
+        while (true) {
+            int leftSize = size[left[node]];
+            if (index < leftSize) {
+                node = left[node];
+            } else if (index == leftSize) {
+                return node;
+            } else {
+                index -= leftSize + 1;
+                node = right[node];
+            }
+        }
+    }
+
+    /** Visit the first {@code limit} slots in order without allocating. */
+    void forEachTop(int limit, IntConsumer visitor) {
+        int depth = 0;
+        int node = root;
+        int visited = 0;
+        while ((node != NIL || depth > 0) && visited < limit) {
+            while (node != NIL) {
+                if (depth == stack.length) {
+                    stack = Arrays.copyOf(stack, depth * 2);
+                }
+                stack[depth++] = node;
+                node = left[node];
+            }
+            node = stack[--depth];
+            visitor.accept(node);
+            visited++;
+            node = right[node];
+        }
+    }
+
+    /** True if {@code a} sorts before {@code b}: higher score, then lower slot. */
+    private boolean before(int a, int b) {
+        return score[a] > score[b] || (score[a] == score[b] && a < b);
+    }
+
+    /** Split into the nodes before {@code key} and the rest. */
+    private void split(int node, int key) {
+        if (node == NIL) {
+            splitLeft = NIL;
+            splitRight = NIL;
+            return;
+        }
+        if (before(node, key)) {
+            split(right[node], key);
+            right[node] = splitLeft;
+            update(node);
+            splitLeft = node;
+        } else {
+            split(left[node], key);
+            left[node] = splitRight;
+            update(node);
+            splitRight = node;
+        }
+    }
+
+    private int merge(int a, int b) {
+        if (a == NIL) {
+            return b;
+        }
+        if (b == NIL) {
+            return a;
+        }
+        if (priority[a] > priority[b]) {
+            right[a] = merge(right[a], b);
+            update(a);
+            return a;
+        }
+        left[b] = merge(a, left[b]);
+        update(b);
+        return b;
+    }
+
+    private int erase(int node, int key) {
+        if (node == key) {
+            return merge(left[node], right[node]);
+        }
+        if (before(key, node)) {
+            left[node] = erase(left[node], key);
+        } else {
+            right[node] = erase(right[node], key);
+        }
+        update(node);
+        return node;
+    }
+
+    private void update(int node) {
+        size[node] = size[left[node]] + size[right[node]] + 1;
+    }
+
+    private int nextPriority() {
+        // xorshift; only needs to be well spread, not unpredictable
+        seed ^= seed << 13;
+        seed ^= seed >>> 17;
+        seed ^= seed << 5;
+        return seed;
+    }
+
+    private void ensureCapacity(int slot) {
+        if (slot < left.length) {
+            return;
+        }
+        int length = Math.max(slot + 1, left.length * 2);
+        left = Arrays.copyOf(left, length);
+        right = Arrays.copyOf(right, length);
+        size = Arrays.copyOf(size, length);
+        priority = Arrays.copyOf(priority, length);
+        score = Arrays.copyOf(score, length);
+        present = Arrays.copyOf(present, length);
+    }
+}
@@ -5,14 +5,25 @@ import org.bukkit.event.Listener;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.player.PlayerJoinEvent;
 import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.event.entity.EntityDamageEvent;
 import org.bukkit.event.entity.PlayerDeathEvent;
+import org.bukkit.inventory.ItemStack;
 import org.bukkit.Bukkit;
 import org.bukkit.entity.Player;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
 import org.bukkit.ChatColor;
 
+import com.smp.common.db.ConnectionPool;
+import com.smp.common.db.PoolSettings;
+import com.smp.common.db.PooledConnection;
+import com.smp.common.metrics.LatencyHistogram;
+import com.smp.common.metrics.Metrics;
+
+import java.io.File;
+import java.io.IOException;
 import java.sql.*;
+import java.time.ZoneId;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
@@ -25,17 +36,140 @@ import net.md_5.bungee.api.chat.ComponentBuilder;
 
 public class SMPStatsPlugin extends JavaPlugin implements Listener {
     
-    private Connection connection;
+    private ConnectionPool pool;
+    private SchemaMigrator schema;
+    private StatWriteQueue writeQueue;
+    private StatJournal journal;
+    private StatAccumulator statAccumulator;
+    private StatFlusher statFlusher;
+    private LeaderboardMaterializer leaderboard;
+    private CombatEventLog combatLog;
+    private CombatRollups combatRollups;
+    private RankIndex rankIndex;
+    private StatsHttpServer httpServer;
+    private Metrics metrics;
+    private LatencyHistogram joinLatency;
+    private LatencyHistogram quitLatency;
+    private LatencyHistogram deathLatency;
+    private LatencyHistogram verifyLatency;
+    // When each online player's unrecorded playtime started: join, or the last checkpoint
     private Map<UUID, Long> playerJoinTimes = new HashMap<>();
     
+    private static final int MAX_TOP = 20;
+    
     @Override
     public void onEnable() {
         // Save default config
         saveDefaultConfig();
         
+        // Latency histograms and counters for /smpstats latency and the Prometheus file
+        metrics = new Metrics("SMPStats", getLogger());
+        joinLatency = metrics.timer("handler", "onPlayerJoin");
+        quitLatency = metrics.timer("handler", "onPlayerQuit");
+        deathLatency = metrics.timer("handler", "onPlayerDeath");
+        verifyLatency = metrics.timer("statement", "verification_key");
+        
+        // Every stat delta is journaled to disk before it is applied. Opened before anything starts a
+        // thread or a connection, since onDisable has nothing to shut down if this fails
+        try {
+            journal = new StatJournal(
+                new File(getDataFolder(), "journal").toPath(),
+                getConfig().getLong("journal.segment-bytes", 1048576),
+                getConfig().getLong("journal.sync-interval-ms", 200),
+                getLogger()
+            );
+        } catch (IOException e) {
+            getLogger().severe("Could not open the stat journal, disabling plugin!");
+            e.printStackTrace();
+            Bukkit.getPluginManager().disablePlugin(this);
+            return;
+        }
+        journal.instrument(metrics);
+        
         // Connect to database
         connectDatabase();
         
+        // Start the write-behind worker for stat updates
+        writeQueue = new StatWriteQueue(
+            pool,
+            schema,
+            getLogger(),
+            getConfig().getInt("write-behind.queue-capacity", 10000),
+            getConfig().getInt("write-behind.batch-size", 200),
+            getConfig().getLong("write-behind.offer-timeout-ms", 5)
+        );
+        writeQueue.instrument(metrics);
+        
+        // Kills, deaths and playtime accumulate in memory and are flushed periodically
+        statAccumulator = new StatAccumulator(pool, journal, getLogger());
+        statAccumulator.instrument(metrics);
+        rankIndex = new RankIndex(pool);
+        statFlusher = new StatFlusher(this, statAccumulator, journal, this::checkpointPlaytime, rankIndex, schema);
+        statFlusher.start(getConfig().getLong("stats.flush-interval-seconds", 30) * 20L);
+        
+        // Every kill and death is also logged as an event, rolled up per hour, day and week for windowed boards
+        if (getConfig().getBoolean("events.enabled", true)) {
+            ZoneId zone = ZoneId.systemDefault();
+            combatLog = new CombatEventLog(
+                pool,
+                schema,
+                getLogger(),
+                zone,
+                getConfig().getInt("events.queue-capacity", 10000),
+                getConfig().getInt("events.batch-size", 500),
+                getConfig().getInt("events.partitions-ahead", 2),
+                getConfig().getInt("events.retention-months", 0)
+            );
+            combatLog.instrument(metrics);
+            combatRollups = new CombatRollups(pool, schema, getLogger(), zone, getConfig().getInt("events.rollup-batch-size", 2000));
+            combatRollups.instrument(metrics);
+            combatRollups.start(getConfig().getLong("events.rollup-interval-seconds", 30) * 1000L);
+        }
+        
+        // Keep the website's leaderboard rows and per-kit ratings up to date from the ranked duel history
+        if (getConfig().getBoolean("leaderboard.enabled", true)) {
+            leaderboard = new LeaderboardMaterializer(
+                pool,
+                getLogger(),
+                getConfig().getInt("leaderboard.batch-size", 500),
+                getConfig().getLong("leaderboard.orphan-grace-seconds", 60) * 1000L,
+                getConfig().getInt("leaderboard.rebuild-threads", 2),
+                getConfig().getDouble("leaderboard.k-factor", 32)
+            );
+            leaderboard.instrument(metrics);
+            leaderboard.start(getConfig().getLong("leaderboard.poll-interval-seconds", 10) * 1000L);
+        }
+        
+        // Optional read-only JSON endpoint so the website can read without querying MySQL
+        if (getConfig().getBoolean("http.enabled", false)) {
+            int port = getConfig().getInt("http.port", 8765);
+            try {
+                httpServer = new StatsHttpServer(
+                    getLogger(),
+                    rankIndex,
+                    leaderboard,
+                    getConfig().getString("http.bind", "127.0.0.1"),
+                    port,
+                    getConfig().getInt("http.threads", 4)
+                );
+                httpServer.instrument(metrics);
+                httpServer.start();
+                long refreshTicks = getConfig().getLong("http.refresh-seconds", 5) * 20L;
+                Bukkit.getScheduler().runTaskTimer(this, httpServer::refresh, 20L, refreshTicks);
+            } catch (IOException e) {
+                getLogger().severe("Could not start the stats HTTP endpoint on port " + port + "!");
+                e.printStackTrace();
+                httpServer = null;
+            }
+        }
+        
+        metrics.start(
+            getConfig().getBoolean("metrics.export-enabled", true)
+                ? getDataFolder().toPath().resolve(getConfig().getString("metrics.export-file", "metrics.prom"))
+                : null,
+            getConfig().getLong("metrics.interval-seconds", 15) * 1000L
+        );
+        
         // Register events
         Bukkit.getPluginManager().registerEvents(this, this);
         
@@ -44,23 +178,86 @@ public class SMPStatsPlugin extends JavaPlugin implements Listener {
     
     @Override
     public void onDisable() {
-        // Save all online players' playtime
+        if (statFlusher == null) {
+            // onEnable stopped early; close whatever it got to
+            if (writeQueue != null) {
+                writeQueue.close();
+                writeQueue.shutdown(1);
+            }
+            if (schema != null) {
+                schema.close();
+            }
+            if (pool != null) {
+                pool.close();
+            }
+            if (journal != null) {
+                journal.close();
+            }
+            return;
+        }
+        
+        if (httpServer != null) {
+            httpServer.stop();
+        }
+        
+        // One deadline for everything below, so a slow database cannot stretch the restart
+        long timeout = getConfig().getLong("write-behind.shutdown-timeout-ms", 10000);
+        long started = System.currentTimeMillis();
+        long deadline = started + timeout;
+        
+        // Capture all online players' playtime in one pass; this only touches memory and the journal
         for (Player player : Bukkit.getOnlinePlayers()) {
             savePlaytime(player);
         }
         
-        // Close database connection
-        if (connection != null) {
-            try {
-                connection.close();
-            } catch (SQLException e) {
-                e.printStackTrace();
+        // The writer thread drains queued updates while the final flush runs here
+        writeQueue.close();
+        schema.close();
+        
+        // Write the remaining stat deltas, including partial playtime steps, in one batched upsert
+        int players = statAccumulator.pendingPlayers();
+        boolean flushed = statFlusher.shutdown(remaining(deadline));
+        int pending = writeQueue.shutdown(remaining(deadline));
+        journal.close();
+        
+        if (flushed) {
+            getLogger().info("Shutdown flush wrote stats for " + players + " players in "
+                + (System.currentTimeMillis() - started) + "ms");
+        } else {
+            getLogger().warning("Shutdown flush did not finish in " + timeout + "ms, " + statAccumulator.pendingPlayers()
+                + " players' stats stay in the journal and are written on the next start");
+        }
+        if (pending > 0) {
+            getLogger().severe("Stat write queue did not drain in " + timeout + "ms, " + pending + " updates lost");
+        }
+        for (String line : writeQueue.describeMetrics()) {
+            getLogger().info(line);
+        }
+        
+        if (combatLog != null) {
+            int unwritten = combatLog.shutdown(remaining(deadline));
+            if (unwritten > 0) {
+                getLogger().warning(unwritten + " combat events were not written before the shutdown deadline");
             }
+            combatRollups.close(remaining(deadline));
+        }
+        
+        if (leaderboard != null) {
+            leaderboard.close(remaining(deadline));
         }
         
+        // Close database connections
+        pool.close();
+        metrics.close();
+        
         getLogger().info("SMP Stats Plugin disabled!");
     }
     
+    private static long remaining(long deadline) {
+        // At least 1ms: a zero timeout means "wait forever" to Thread.join
+        return Math.max(1, deadline - System.currentTimeMillis());
+    }
+    
     private void connectDatabase() {
         String host = getConfig().getString("database.host");
         String port = getConfig().getString("database.port");
@@ -68,40 +265,163 @@ public class SMPStatsPlugin extends JavaPlugin implements Listener {
         String username = getConfig().getString("database.username");
         String password = getConfig().getString("database.password");
         
-        try {
-            String url = "jdbc:mysql://" + host + ":" + port + "/" + database;
-            connection = DriverManager.getConnection(url, username, password);
-            getLogger().info("Connected to MySQL database!");
-            
-            // Create table if not exists
-            createTable();
-        } catch (SQLException e) {
-            getLogger().severe("Could not connect to MySQL database!");
-            e.printStackTrace();
-        }
-    }
-    
-    private void createTable() {
-        String sql = "CREATE TABLE IF NOT EXISTS player_stats (" +
-                    "id INT AUTO_INCREMENT PRIMARY KEY," +
-                    "username VARCHAR(16) UNIQUE NOT NULL," +
-                    "playtime_hours DECIMAL(10,2) DEFAULT 0," +
-                    "kills INT DEFAULT 0," +
-                    "deaths INT DEFAULT 0," +
-                    "verification_key VARCHAR(6)," +
-                    "player_uuid VARCHAR(36)," +
-                    "last_updated TIMESTAMP DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP)";
-        
-        try (Statement stmt = connection.createStatement()) {
-            stmt.execute(sql);
-            getLogger().info("Player stats table ready!");
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
+        PoolSettings settings = new PoolSettings(
+            PoolSettings.mysqlUrl(host, port, database),
+            username,
+            password,
+            getConfig().getInt("database.pool.max-size", 4),
+            getConfig().getLong("database.pool.borrow-timeout-ms", 5000),
+            getConfig().getLong("database.pool.validate-after-idle-ms", 1000),
+            getConfig().getLong("database.pool.idle-timeout-ms", 600000),
+            getConfig().getInt("database.pool.statement-cache-size", 32)
+        );
+        pool = new ConnectionPool("SMPStats", settings, getLogger());
+        pool.instrument(metrics);
+        
+        // Create and migrate the tables in the background; stat writes wait for it and stay in the journal meanwhile
+        schema = new SchemaMigrator(pool, getLogger(), getConfig().getLong("migrations.retry-seconds", 30) * 1000L);
+        new PlayerStatsSchema(
+            getLogger(),
+            getConfig().getInt("migrations.backfill-batch-size", 500),
+            getConfig().getLong("migrations.backfill-pause-ms", 100)
+        ).register(schema);
+        CombatEventLog.register(schema, PlayerStatsSchema.LATEST + 1);
+        PlayerStatsSchema.registerNameCollation(schema, PlayerStatsSchema.LATEST + 2);
+        schema.instrument(metrics);
+        schema.start();
     }
     
     @Override
     public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
+        if (command.getName().equalsIgnoreCase("smpstats")) {
+            if (args.length > 0 && args[0].equalsIgnoreCase("rebuild-leaderboard")) {
+                if (leaderboard == null) {
+                    sender.sendMessage(ChatColor.RED + "The leaderboard snapshot is disabled in the config.");
+                    return true;
+                }
+                sender.sendMessage(ChatColor.YELLOW + "Rebuilding the leaderboard snapshot...");
+                leaderboard.requestRebuild().whenComplete((rows, error) -> Bukkit.getScheduler().runTask(this, () -> {
+                    if (error != null) {
+                        getLogger().severe("Leaderboard rebuild failed: " + error.getMessage());
+                        error.printStackTrace();
+                        sender.sendMessage(ChatColor.RED + "Leaderboard rebuild failed, see the console.");
+                    } else {
+                        sender.sendMessage(ChatColor.GREEN + "Leaderboard snapshot rebuilt: " + rows + " rows.");
+                    }
+                }));
+                return true;
+            }
+            
+            if (args.length > 0 && args[0].equalsIgnoreCase("latency")) {
+                sender.sendMessage(ChatColor.GOLD + "SMP Stats latency and counters:");
+                for (String line : metrics.describe()) {
+                    sender.sendMessage(ChatColor.GRAY + line);
+                }
+                return true;
+            }
+            
+            for (String line : schema.describeMetrics()) {
+                sender.sendMessage(ChatColor.GRAY + line);
+            }
+            sender.sendMessage(ChatColor.GOLD + "SMP Stats write queue:");
+            for (String line : writeQueue.describeMetrics()) {
+                sender.sendMessage(ChatColor.GRAY + line);
+            }
+            sender.sendMessage(ChatColor.GOLD + "Stat accumulator:");
+            for (String line : statAccumulator.describeMetrics()) {
+                sender.sendMessage(ChatColor.GRAY + line);
+            }
+            for (String line : journal.describeMetrics()) {
+                sender.sendMessage(ChatColor.GRAY + line);
+            }
+            if (combatLog != null) {
+                for (String line : combatLog.describeMetrics()) {
+                    sender.sendMessage(ChatColor.GRAY + line);
+                }
+                for (String line : combatRollups.describeMetrics()) {
+                    sender.sendMessage(ChatColor.GRAY + line);
+                }
+            }
+            if (leaderboard != null) {
+                for (String line : leaderboard.describeMetrics()) {
+                    sender.sendMessage(ChatColor.GRAY + line);
+                }
+            }
+            if (httpServer != null) {
+                for (String line : httpServer.describeMetrics()) {
+                    sender.sendMessage(ChatColor.GRAY + line);
+                }
+            }
+            sender.sendMessage(ChatColor.GOLD + "Database pool:");
+            for (String line : pool.describeMetrics()) {
+                sender.sendMessage(ChatColor.GRAY + line);
+            }
+            return true;
+        }
+        
+        if (command.getName().equalsIgnoreCase("rank")) {
+            if (!rankIndex.isSeeded()) {
+                sender.sendMessage(ChatColor.RED + "Ranks are still loading, try again in a moment.");
+                return true;
+            }
+            RankIndex.Metric metric = args.length > 0 ? RankIndex.Metric.parse(args[0]) : RankIndex.Metric.KILLS;
+            if (metric == null) {
+                sender.sendMessage(ChatColor.RED + "Unknown stat! Use kills, playtime or kd.");
+                return true;
+            }
+            String target;
+            if (args.length > 1) {
+                target = args[1];
+            } else if (sender instanceof Player) {
+                target = sender.getName();
+            } else {
+                sender.sendMessage(ChatColor.RED + "Usage: /rank <kills|playtime|kd> <player>");
+                return true;
+            }
+            
+            int rank = rankIndex.rank(metric, target);
+            if (rank == 0) {
+                sender.sendMessage(ChatColor.RED + "No stats found for " + target + "!");
+                return true;
+            }
+            sender.sendMessage(ChatColor.GOLD + "✦ " + ChatColor.YELLOW + rankIndex.name(target) + ChatColor.GRAY + " is "
+                + ChatColor.GREEN + "#" + rank + ChatColor.GRAY + " of " + rankIndex.players() + " in "
+                + metricName(metric) + ChatColor.GRAY + " (" + ChatColor.WHITE
+                + formatStat(metric, rankIndex.value(metric, target)) + ChatColor.GRAY + ")");
+            return true;
+        }
+        
+        if (command.getName().equalsIgnoreCase("top")) {
+            if (args.length > 1 && CombatRollups.Window.parse(args[1]) != null) {
+                return showWindowTop(sender, args);
+            }
+            if (!rankIndex.isSeeded()) {
+                sender.sendMessage(ChatColor.RED + "Ranks are still loading, try again in a moment.");
+                return true;
+            }
+            RankIndex.Metric metric = args.length > 0 ? RankIndex.Metric.parse(args[0]) : RankIndex.Metric.KILLS;
+            if (metric == null) {
+                sender.sendMessage(ChatColor.RED + "Unknown stat! Use kills, playtime or kd.");
+                return true;
+            }
+            int limit = 10;
+            if (args.length > 1) {
+                try {
+                    limit = Math.max(1, Math.min(MAX_TOP, Integer.parseInt(args[1])));
+                } catch (NumberFormatException e) {
+                    sender.sendMessage(ChatColor.RED + "Usage: /top <kills|playtime|kd> [count]");
+                    return true;
+                }
+            }
+            
+            sender.sendMessage(ChatColor.GREEN + "▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬");
+            sender.sendMessage(ChatColor.GOLD + "✦ " + ChatColor.YELLOW + "Top " + limit + " - " + metricName(metric));
+            rankIndex.top(metric, limit, (rank, username, value) -> sender.sendMessage(
+                ChatColor.GREEN + "#" + rank + " " + ChatColor.WHITE + username + ChatColor.GRAY + " - " + formatStat(metric, value)));
+            sender.sendMessage(ChatColor.GREEN + "▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬");
+            return true;
+        }
+        
         if (command.getName().equalsIgnoreCase("discord")) {
             if (!(sender instanceof Player)) {
                 sender.sendMessage(ChatColor.RED + "Only players can use this command!");
@@ -174,6 +494,55 @@ public class SMPStatsPlugin extends JavaPlugin implements Listener {
         return false;
     }
     
+    /** /top kills <day|week|month> [count], read from the combat rollups off the main thread. */
+    private boolean showWindowTop(CommandSender sender, String[] args) {
+        CombatRollups.Window window = CombatRollups.Window.parse(args[1]);
+        if (RankIndex.Metric.parse(args[0]) != RankIndex.Metric.KILLS) {
+            sender.sendMessage(ChatColor.RED + "Only kills have daily, weekly and monthly boards.");
+            return true;
+        }
+        if (combatRollups == null) {
+            sender.sendMessage(ChatColor.RED + "Combat events are disabled in the config.");
+            return true;
+        }
+        int limit = 10;
+        if (args.length > 2) {
+            try {
+                limit = Math.max(1, Math.min(MAX_TOP, Integer.parseInt(args[2])));
+            } catch (NumberFormatException e) {
+                sender.sendMessage(ChatColor.RED + "Usage: /top kills <day|week|month> [count]");
+                return true;
+            }
+        }
+        
+        String title = switch (window) {
+            case DAY -> "Today";
+            case WEEK -> "This Week";
+            case MONTH -> "This Month";
+        };
+        int shown = limit;
+        combatRollups.top(window, limit).whenComplete((entries, error) -> Bukkit.getScheduler().runTask(this, () -> {
+            if (error != null) {
+                getLogger().severe("Windowed top query failed: " + error.getMessage());
+                error.printStackTrace();
+                sender.sendMessage(ChatColor.RED + "Could not load the board, try again in a moment.");
+                return;
+            }
+            sender.sendMessage(ChatColor.GREEN + "▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬");
+            sender.sendMessage(ChatColor.GOLD + "✦ " + ChatColor.YELLOW + "Top " + shown + " - Kills " + title);
+            if (entries.isEmpty()) {
+                sender.sendMessage(ChatColor.GRAY + "No kills yet.");
+            }
+            int rank = 1;
+            for (CombatRollups.Entry entry : entries) {
+                sender.sendMessage(ChatColor.GREEN + "#" + rank++ + " " + ChatColor.WHITE + entry.username() + ChatColor.GRAY
+                    + " - " + entry.kills() + " (" + entry.deaths() + " deaths)");
+            }
+            sender.sendMessage(ChatColor.GREEN + "▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬▬");
+        }));
+        return true;
+    }
+    
     private String generateVerificationKey() {
         Random random = new Random();
         int pin = 1000 + random.nextInt(9000); // Generates 1000-9999
@@ -181,59 +550,121 @@ public class SMPStatsPlugin extends JavaPlugin implements Listener {
     }
     
     private boolean saveVerificationKey(String username, String key, UUID playerUUID) {
-        String sql = "UPDATE player_stats SET verification_key = ?, player_uuid = ? WHERE username = ?";
+        if (!schema.isComplete()) {
+            return false;
+        }
+        String sql = "UPDATE player_stats SET verification_key = ?, username = ? WHERE uuid = ?";
         
-        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+        long start = System.nanoTime();
+        try (PooledConnection conn = pool.borrow()) {
+            PreparedStatement stmt = conn.prepare(sql);
             stmt.setString(1, key);
-            stmt.setString(2, playerUUID.toString());
-            stmt.setString(3, username);
+            stmt.setString(2, username);
+            stmt.setBytes(3, PlayerStatsSchema.uuidBytes(playerUUID));
             int rows = stmt.executeUpdate();
             return rows > 0;
         } catch (SQLException e) {
             e.printStackTrace();
             return false;
+        } finally {
+            verifyLatency.recordSince(start);
         }
     }
     
     @EventHandler
     public void onPlayerJoin(PlayerJoinEvent event) {
+        long start = System.nanoTime();
         Player player = event.getPlayer();
         playerJoinTimes.put(player.getUniqueId(), System.currentTimeMillis());
         
         // Initialize player in database if not exists
         initializePlayer(player.getName(), player.getUniqueId());
+        rankIndex.track(player.getUniqueId(), player.getName());
+        joinLatency.recordSince(start);
     }
     
     @EventHandler
     public void onPlayerQuit(PlayerQuitEvent event) {
+        long start = System.nanoTime();
         Player player = event.getPlayer();
         savePlaytime(player);
         playerJoinTimes.remove(player.getUniqueId());
+        statAccumulator.retire(player.getUniqueId());
+        quitLatency.recordSince(start);
     }
     
     @EventHandler
     public void onPlayerDeath(PlayerDeathEvent event) {
+        long start = System.nanoTime();
         Player victim = event.getEntity();
         Player killer = victim.getKiller();
         
         // Increment death count for victim
-        incrementStat(victim.getName(), "deaths");
+        statAccumulator.recordDeath(victim.getUniqueId(), victim.getName());
+        rankIndex.recordDeath(victim.getUniqueId(), victim.getName());
         
         // Increment kill count for killer if exists
         if (killer != null) {
-            incrementStat(killer.getName(), "kills");
+            statAccumulator.recordKill(killer.getUniqueId(), killer.getName());
+            rankIndex.recordKill(killer.getUniqueId(), killer.getName());
         }
+        
+        if (combatLog != null) {
+            combatLog.record(new CombatEventLog.Event(
+                System.currentTimeMillis(),
+                killer != null ? killer.getUniqueId() : null,
+                victim.getUniqueId(),
+                victim.getWorld().getName(),
+                weaponOf(victim, killer)
+            ));
+        }
+        deathLatency.recordSince(start);
+    }
+    
+    /** The killer's held item, or what killed the victim when it was not a player. */
+    private static String weaponOf(Player victim, Player killer) {
+        if (killer != null) {
+            ItemStack held = killer.getInventory().getItemInMainHand();
+            return held == null || held.getType().isAir() ? "HAND" : held.getType().name();
+        }
+        EntityDamageEvent cause = victim.getLastDamageCause();
+        return cause != null ? cause.getCause().name() : "UNKNOWN";
+    }
+    
+    private static String metricName(RankIndex.Metric metric) {
+        return switch (metric) {
+            case KILLS -> "Kills";
+            case PLAYTIME -> "Playtime";
+            case KD -> "K/D";
+        };
+    }
+    
+    private static String formatStat(RankIndex.Metric metric, double value) {
+        return switch (metric) {
+            case KILLS -> String.valueOf((long) value);
+            case PLAYTIME -> String.format("%.1fh", value);
+            case KD -> String.format("%.2f", value);
+        };
     }
     
     private void initializePlayer(String username, UUID playerUUID) {
-        String sql = "INSERT INTO player_stats (username, player_uuid) VALUES (?, ?) ON DUPLICATE KEY UPDATE username=username";
-        
-        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
-            stmt.setString(1, username);
-            stmt.setString(2, playerUUID.toString());
-            stmt.executeUpdate();
-        } catch (SQLException e) {
-            e.printStackTrace();
+        writeQueue.enqueue(StatMutation.claim(username, playerUUID));
+        writeQueue.enqueue(StatMutation.initialize(username, playerUUID));
+    }
+    
+    /**
+     * Record the session time of every online player so far and restart their
+     * clocks. Runs on every flush tick, so a crash loses at most one interval.
+     */
+    private void checkpointPlaytime() {
+        long now = System.currentTimeMillis();
+        for (Player player : Bukkit.getOnlinePlayers()) {
+            Long since = playerJoinTimes.get(player.getUniqueId());
+            if (since != null && now > since) {
+                statAccumulator.recordPlaytime(player.getUniqueId(), player.getName(), now - since);
+                rankIndex.recordPlaytime(player.getUniqueId(), player.getName(), now - since);
+                playerJoinTimes.put(player.getUniqueId(), now);
+            }
         }
     }
     
@@ -242,27 +673,7 @@ public class SMPStatsPlugin extends JavaPlugin implements Listener {
         if (joinTime == null) return;
         
         long sessionTime = System.currentTimeMillis() - joinTime;
-        double hoursPlayed = sessionTime / (1000.0 * 60.0 * 60.0);
-        
-        String sql = "UPDATE player_stats SET playtime_hours = playtime_hours + ? WHERE username = ?";
-        
-        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
-            stmt.setDouble(1, hoursPlayed);
-            stmt.setString(2, player.getName());
-            stmt.executeUpdate();
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-    }
-    
-    private void incrementStat(String username, String statColumn) {
-        String sql = "UPDATE player_stats SET " + statColumn + " = " + statColumn + " + 1 WHERE username = ?";
-        
-        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
-            stmt.setString(1, username);
-            stmt.executeUpdate();
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
+        statAccumulator.recordPlaytime(player.getUniqueId(), player.getName(), sessionTime);
+        rankIndex.recordPlaytime(player.getUniqueId(), player.getName(), sessionTime);
     }
 }
@@ -0,0 +1,183 @@
+package com.smp.stats;
+
+import com.smp.common.db.ConnectionPool;
+import com.smp.common.db.PooledConnection;
+import com.smp.common.metrics.Metrics;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Versioned schema migrations, run on a background thread at startup.
+ *
+ * Applied versions are recorded in schema_migrations, and each migration runs
+ * once, in version order. A named MySQL lock keeps two servers sharing the
+ * database from migrating at the same time. Migrations must be safe to run
+ * again after a crash part-way, since a version is only recorded once its
+ * step returns. If the database is unreachable or a step fails, the run is
+ * retried after a pause; until every migration has been applied
+ * {@link #isComplete()} stays false and writers hold their updates back.
+ */
+final class SchemaMigrator {
+
+    @FunctionalInterface
+    interface Step {
+        void apply(ConnectionPool pool) throws SQLException, InterruptedException;
+    }
+
+    private record Migration(int version, String description, Step step) {
+    }
+
+    private static final String LOCK_NAME = "smpstats_schema_migrations";
+    private static final int LOCK_TIMEOUT_SECONDS = 60;
+
+    private final ConnectionPool pool;
+    private final Logger logger;
+    private final long retryMillis;
+    private final List<Migration> migrations = new ArrayList<>();
+    private Thread worker;
+
+    private volatile int version = -1;
+    private volatile boolean complete;
+    private volatile boolean running = true;
+
+    SchemaMigrator(ConnectionPool pool, Logger logger, long retryMillis) {
+        this.pool = pool;
+        this.logger = logger;
+        this.retryMillis = retryMillis;
+    }
+
+    /** Register a migration; versions must be added in increasing order. */
+    SchemaMigrator add(int version, String description, Step step) {
+        if (!migrations.isEmpty() && migrations.get(migrations.size() - 1).version() >= version) {
+            throw new IllegalArgumentException("Migration " + version + " is out of order");
+        }
+        migrations.add(new Migration(version, description, step));
+        return this;
+    }
+
+    void start() {
+        worker = new Thread(this::runLoop, "SMPStats-Migrations");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /** Whether every migration has been applied and the current statements can be used. */
+    boolean isComplete() {
+        return complete;
+    }
+
+    /** Stop a run in progress; a step interrupted part-way is resumed on the next start. */
+    void close() {
+        running = false;
+        if (worker != null) {
+            worker.interrupt();
+        }
+    }
+
+    void instrument(Metrics metrics) {
+        metrics.gauge("schema_version", "player_stats", () -> version);
+    }
+
+    List<String> describeMetrics() {
+        List<String> lines = new ArrayList<>();
+        int latest = migrations.isEmpty() ? 0 : migrations.get(migrations.size() - 1).version();
+        lines.add("Schema: version " + Math.max(version, 0) + " of " + latest + (complete ? "" : ", migrating"));
+        return lines;
+    }
+
+    private void runLoop() {
+        while (running && !complete) {
+            try {
+                migrate();
+                complete = true;
+            } catch (InterruptedException e) {
+                break;
+            } catch (SQLException | RuntimeException e) {
+                logger.log(Level.WARNING, "Schema migration postponed, retrying in " + retryMillis / 1000 + "s", e);
+                try {
+                    Thread.sleep(retryMillis);
+                } catch (InterruptedException interrupted) {
+                    break;
+                }
+            }
+        }
+    }
+
+    private void migrate() throws SQLException, InterruptedException {
+        // The lock belongs to this connection's session, so it is held for the whole run
+        try (PooledConnection lock = pool.borrow()) {
+            try {
+                acquire(lock);
+                try {
+                    try (Statement stmt = lock.createStatement()) {
+                        stmt.execute("CREATE TABLE IF NOT EXISTS schema_migrations (" +
+                                "version INT PRIMARY KEY," +
+                                "description VARCHAR(255) NOT NULL," +
+                                "applied_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP)");
+                    }
+                    version = readVersion(lock);
+                    for (Migration migration : migrations) {
+                        if (migration.version() <= version) {
+                            continue;
+                        }
+                        long started = System.currentTimeMillis();
+                        logger.info("Applying schema migration " + migration.version() + ": " + migration.description());
+                        migration.step().apply(pool);
+                        record(lock, migration);
+                        version = migration.version();
+                        logger.info("Schema migration " + migration.version() + " done in "
+                                + (System.currentTimeMillis() - started) + "ms");
+                    }
+                } finally {
+                    release(lock);
+                }
+            } catch (SQLException e) {
+                lock.onError(e);
+                throw e;
+            }
+        }
+    }
+
+    private static void acquire(PooledConnection conn) throws SQLException {
+        PreparedStatement stmt = conn.prepare("SELECT GET_LOCK(?, ?)");
+        stmt.setString(1, LOCK_NAME);
+        stmt.setInt(2, LOCK_TIMEOUT_SECONDS);
+        try (ResultSet rs = stmt.executeQuery()) {
+            if (!rs.next() || rs.getInt(1) != 1) {
+                throw new SQLException("Another server is migrating the schema");
+            }
+        }
+    }
+
+    private static void release(PooledConnection conn) {
+        try {
+            PreparedStatement stmt = conn.prepare("SELECT RELEASE_LOCK(?)");
+            stmt.setString(1, LOCK_NAME);
+            stmt.executeQuery().close();
+        } catch (SQLException e) {
+            // Dropping the connection releases the lock as well
+            conn.markBroken();
+        }
+    }
+
+    private static int readVersion(PooledConnection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(version), 0) FROM schema_migrations")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    private static void record(PooledConnection conn, Migration migration) throws SQLException {
+        PreparedStatement stmt = conn.prepare("INSERT INTO schema_migrations (version, description) VALUES (?, ?)");
+        stmt.setInt(1, migration.version());
+        stmt.setString(2, migration.description());
+        stmt.executeUpdate();
+    }
+}
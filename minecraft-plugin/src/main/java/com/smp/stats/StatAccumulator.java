@@ -0,0 +1,319 @@
+package com.smp.stats;
+
+import com.smp.common.db.ConnectionPool;
+import com.smp.common.db.PooledConnection;
+import com.smp.common.metrics.LatencyHistogram;
+import com.smp.common.metrics.Metrics;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * In-memory kill, death and playtime counters per player.
+ *
+ * Event handlers only bump striped {@link LongAdder}s, so recording a stat
+ * never takes a lock or touches the database. A periodic flush writes every
+ * pending delta as one multi-row upsert and subtracts exactly what it wrote
+ * once the transaction commits; anything recorded meanwhile stays pending for
+ * the next flush.
+ *
+ * Every delta is journaled in {@link StatJournal} first. The flush commits the
+ * highest journal sequence it covers together with the upsert, so the
+ * unacknowledged part of the journal always equals what is pending here.
+ * The watermark is only committed once the journal has fsynced through it.
+ */
+final class StatAccumulator {
+
+    /** player_stats stores hours with two decimals, so playtime is flushed in 0.01h steps. */
+    static final long PLAYTIME_STEP_MILLIS = 36_000;
+
+    private static final int ROWS_PER_STATEMENT = 500;
+    /** How long a flush waits for the journal to reach its watermark before retrying next time. */
+    private static final long JOURNAL_SYNC_TIMEOUT_MILLIS = 5000;
+    private static final String UPSERT_PREFIX =
+            "INSERT INTO player_stats (uuid, username, player_uuid, kills, deaths, playtime_hours) VALUES ";
+    private static final String UPSERT_SUFFIX =
+            " ON DUPLICATE KEY UPDATE username = VALUES(username), kills = kills + VALUES(kills),"
+            + " deaths = deaths + VALUES(deaths), playtime_hours = playtime_hours + VALUES(playtime_hours)";
+    private static final String ACK_SQL =
+            "INSERT INTO stat_journal_ack (journal_id, last_seq) VALUES (?, ?)"
+            + " ON DUPLICATE KEY UPDATE last_seq = GREATEST(last_seq, VALUES(last_seq))";
+    private static final String READ_ACK_SQL = "SELECT last_seq FROM stat_journal_ack WHERE journal_id = ?";
+
+    private final Map<UUID, Counters> counters = new ConcurrentHashMap<>();
+    private final ConnectionPool pool;
+    private final StatJournal journal;
+    private final Logger logger;
+
+    // Highest journal sequence whose delta is reflected in the counters
+    private final AtomicLong appliedSeq = new AtomicLong();
+
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong rowsWritten = new AtomicLong();
+    private final AtomicLong failedFlushes = new AtomicLong();
+    private volatile long lastFlushMillis;
+    private volatile LatencyHistogram flushLatency;
+
+    StatAccumulator(ConnectionPool pool, StatJournal journal, Logger logger) {
+        this.pool = pool;
+        this.journal = journal;
+        this.logger = logger;
+    }
+
+    void recordKill(UUID playerUUID, String username) {
+        long seq = journal.append(StatJournal.Type.KILL, playerUUID, username, 1);
+        counters(playerUUID, username).kills.increment();
+        appliedSeq.accumulateAndGet(seq, Math::max);
+    }
+
+    void recordDeath(UUID playerUUID, String username) {
+        long seq = journal.append(StatJournal.Type.DEATH, playerUUID, username, 1);
+        counters(playerUUID, username).deaths.increment();
+        appliedSeq.accumulateAndGet(seq, Math::max);
+    }
+
+    void recordPlaytime(UUID playerUUID, String username, long millis) {
+        if (millis > 0) {
+            long seq = journal.append(StatJournal.Type.PLAYTIME, playerUUID, username, millis);
+            counters(playerUUID, username).playtimeMillis.add(millis);
+            appliedSeq.accumulateAndGet(seq, Math::max);
+        }
+    }
+
+    /** Highest journal sequence the database has committed for this journal. */
+    long readAcknowledgedSeq() throws SQLException {
+        try (PooledConnection conn = pool.borrow()) {
+            PreparedStatement stmt = conn.prepare(READ_ACK_SQL);
+            stmt.setString(1, journal.id());
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0;
+            }
+        }
+    }
+
+    /**
+     * Load journal entries that never reached the database back into the
+     * counters, without journaling them again. Main thread only.
+     */
+    void replay(List<StatJournal.Entry> entries) {
+        for (StatJournal.Entry entry : entries) {
+            Counters c = counters.get(entry.playerUUID());
+            if (c == null) {
+                c = new Counters(entry.playerUUID());
+                c.username = entry.username();
+                c.retired = true;
+                counters.put(entry.playerUUID(), c);
+            }
+            switch (entry.type()) {
+                case KILL -> c.kills.add(entry.amount());
+                case DEATH -> c.deaths.add(entry.amount());
+                case PLAYTIME -> c.playtimeMillis.add(entry.amount());
+            }
+            appliedSeq.accumulateAndGet(entry.seq(), Math::max);
+        }
+    }
+
+    /** Called when a player leaves; their entry is dropped once fully flushed. */
+    void retire(UUID playerUUID) {
+        Counters c = counters.get(playerUUID);
+        if (c != null) {
+            c.retired = true;
+        }
+    }
+
+    /**
+     * Remove retired players with nothing pending. Must run on the main thread,
+     * where all recording happens, so no update can race with the removal.
+     */
+    void pruneRetired() {
+        counters.values().removeIf(c -> c.retired && c.isEmpty());
+    }
+
+    /**
+     * Capture all pending deltas. Playtime below one 0.01h step is carried over
+     * for online players unless {@code includeRemainder} is set, as it is for
+     * the final flush. Must run on the main thread so the snapshot and its
+     * journal watermark agree, and not while another snapshot is being written.
+     */
+    Snapshot snapshot(boolean includeRemainder) {
+        long watermark = appliedSeq.get();
+        List<Delta> deltas = new ArrayList<>();
+        for (Counters c : counters.values()) {
+            long kills = c.kills.sum();
+            long deaths = c.deaths.sum();
+            long playtime = c.playtimeMillis.sum();
+            long carried = 0;
+            if (!includeRemainder && !c.retired) {
+                carried = playtime % PLAYTIME_STEP_MILLIS;
+                playtime -= carried;
+            }
+            if (kills != 0 || deaths != 0 || playtime != 0) {
+                deltas.add(new Delta(c, c.username, kills, deaths, playtime, carried));
+            }
+        }
+        return new Snapshot(deltas, watermark);
+    }
+
+    /**
+     * Write a snapshot and the journal watermark in one transaction, then
+     * subtract what was written. Safe to call off the main thread.
+     */
+    boolean write(Snapshot snapshot) {
+        List<Delta> deltas = snapshot.deltas();
+        if (deltas.isEmpty()) {
+            // Nothing pending means every journaled delta up to here is already in the database
+            journal.acknowledge(snapshot.watermark());
+            return true;
+        }
+
+        long start = System.nanoTime();
+        try {
+            // An ack ahead of the disk could be reissued after a crash and then skipped on replay
+            if (!journal.awaitSynced(snapshot.watermark(), JOURNAL_SYNC_TIMEOUT_MILLIS)) {
+                failedFlushes.incrementAndGet();
+                logger.warning("Stat journal is not synced through " + snapshot.watermark()
+                        + ", postponing the flush for " + deltas.size() + " players");
+                return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        try (PooledConnection conn = pool.borrow()) {
+            try {
+                conn.setAutoCommit(false);
+                for (int from = 0; from < deltas.size(); from += ROWS_PER_STATEMENT) {
+                    writeChunk(conn, deltas.subList(from, Math.min(from + ROWS_PER_STATEMENT, deltas.size())));
+                }
+                PreparedStatement ack = conn.prepare(ACK_SQL);
+                ack.setString(1, journal.id());
+                ack.setLong(2, snapshot.watermark());
+                ack.executeUpdate();
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                conn.onError(e);
+                throw e;
+            }
+        } catch (SQLException e) {
+            failedFlushes.incrementAndGet();
+            logger.log(Level.WARNING, "Failed to flush stats for " + deltas.size() + " players, will retry", e);
+            return false;
+        }
+
+        // Only now is it safe to forget what was written
+        for (Delta delta : deltas) {
+            delta.counters.kills.add(-delta.kills);
+            delta.counters.deaths.add(-delta.deaths);
+            delta.counters.playtimeMillis.add(-delta.playtimeMillis);
+            if (delta.carriedMillis > 0) {
+                // The carried playtime was acknowledged with its original records, so journal it again
+                long seq = journal.append(StatJournal.Type.PLAYTIME, delta.counters.playerUUID, delta.username, delta.carriedMillis);
+                appliedSeq.accumulateAndGet(seq, Math::max);
+            }
+        }
+        journal.acknowledge(snapshot.watermark());
+        flushes.incrementAndGet();
+        rowsWritten.addAndGet(deltas.size());
+        long elapsed = System.nanoTime() - start;
+        lastFlushMillis = elapsed / 1_000_000;
+        LatencyHistogram latency = flushLatency;
+        if (latency != null) {
+            latency.record(elapsed);
+        }
+        return true;
+    }
+
+    int pendingPlayers() {
+        int pending = 0;
+        for (Counters c : counters.values()) {
+            if (!c.isEmpty()) {
+                pending++;
+            }
+        }
+        return pending;
+    }
+
+    /** Report flush latency (the whole upsert transaction) and row and failure counts. */
+    void instrument(Metrics metrics) {
+        metrics.counter("rows_written", "player_stats", rowsWritten::get);
+        metrics.counter("errors", "stat_flush", failedFlushes::get);
+        metrics.gauge("tracked_players", "stat_accumulator", counters::size);
+        flushLatency = metrics.timer("statement", "stat_flush");
+    }
+
+    List<String> describeMetrics() {
+        List<String> lines = new ArrayList<>();
+        lines.add("Tracked players: " + counters.size() + ", with pending stats: " + pendingPlayers());
+        lines.add("Flushes: " + flushes.get() + ", rows written: " + rowsWritten.get()
+                + ", failed: " + failedFlushes.get() + ", last took " + lastFlushMillis + "ms");
+        return lines;
+    }
+
+    private Counters counters(UUID playerUUID, String username) {
+        Counters c = counters.computeIfAbsent(playerUUID, Counters::new);
+        c.username = username;
+        c.retired = false;
+        return c;
+    }
+
+    private static void writeChunk(PooledConnection conn, List<Delta> chunk) throws SQLException {
+        StringBuilder sql = new StringBuilder(UPSERT_PREFIX.length() + UPSERT_SUFFIX.length() + chunk.size() * 21);
+        sql.append(UPSERT_PREFIX);
+        for (int i = 0; i < chunk.size(); i++) {
+            sql.append(i == 0 ? "(?, ?, ?, ?, ?, ?)" : ", (?, ?, ?, ?, ?, ?)");
+        }
+        sql.append(UPSERT_SUFFIX);
+
+        // Row counts vary per flush, so these statements are not worth caching
+        try (PreparedStatement stmt = conn.raw().prepareStatement(sql.toString())) {
+            int index = 1;
+            for (Delta delta : chunk) {
+                stmt.setBytes(index++, PlayerStatsSchema.uuidBytes(delta.counters.playerUUID));
+                stmt.setString(index++, delta.username);
+                stmt.setString(index++, delta.counters.playerUUID.toString());
+                stmt.setLong(index++, delta.kills);
+                stmt.setLong(index++, delta.deaths);
+                stmt.setDouble(index++, delta.playtimeMillis / (1000.0 * 60.0 * 60.0));
+            }
+            stmt.executeUpdate();
+        }
+    }
+
+    private static final class Counters {
+        final UUID playerUUID;
+        final LongAdder kills = new LongAdder();
+        final LongAdder deaths = new LongAdder();
+        final LongAdder playtimeMillis = new LongAdder();
+        volatile String username;
+        volatile boolean retired;
+
+        Counters(UUID playerUUID) {
+            this.playerUUID = playerUUID;
+        }
+
+        boolean isEmpty() {
+            return kills.sum() == 0 && deaths.sum() == 0 && playtimeMillis.sum() == 0;
+        }
+    }
+
+    private record Delta(Counters counters, String username, long kills, long deaths, long playtimeMillis,
+                         long carriedMillis) {
+    }
+
+    record Snapshot(List<Delta> deltas, long watermark) {
+        boolean isEmpty() {
+            return deltas.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.smp.stats;
+
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.logging.Level;
+
+/**
+ * Drives the periodic stat flush. Snapshots are taken on the main thread,
+ * where every stat is recorded, and written on an async thread. Only one
+ * snapshot is in flight at a time so a delta can never be written twice.
+ *
+ * Until the journal left over from the previous run has been replayed, no
+ * flush runs; the replay waits for the database to become reachable and the
+ * schema migrations to finish.
+ *
+ * Each tick first runs the checkpoint, which moves the session time of every
+ * online player into the accumulator, so playtime is written interval by
+ * interval instead of in one delta at quit.
+ *
+ * The rank index is seeded during the same recovery, while player_stats
+ * still holds only what earlier runs flushed.
+ */
+final class StatFlusher {
+
+    private final Plugin plugin;
+    private final StatAccumulator accumulator;
+    private final StatJournal journal;
+    private final Runnable checkpoint;
+    private final RankIndex ranks;
+    private final SchemaMigrator schema;
+
+    private volatile boolean inFlight;
+    private volatile boolean replayPending = true;
+    private BukkitTask task;
+
+    StatFlusher(Plugin plugin, StatAccumulator accumulator, StatJournal journal, Runnable checkpoint, RankIndex ranks,
+               SchemaMigrator schema) {
+        this.plugin = plugin;
+        this.accumulator = accumulator;
+        this.journal = journal;
+        this.checkpoint = checkpoint;
+        this.ranks = ranks;
+        this.schema = schema;
+    }
+
+    void start(long intervalTicks) {
+        task = Bukkit.getScheduler().runTaskTimer(plugin, this::tick, intervalTicks, intervalTicks);
+    }
+
+    private void tick() {
+        // Journaled right away, so this is durable even if the flush has to wait
+        checkpoint.run();
+        if (inFlight || !schema.isComplete()) {
+            return;
+        }
+        inFlight = true;
+        if (replayPending) {
+            Bukkit.getScheduler().runTaskAsynchronously(plugin, this::recoverJournal);
+            return;
+        }
+
+        accumulator.pruneRetired();
+        StatAccumulator.Snapshot snapshot = accumulator.snapshot(false);
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+            try {
+                accumulator.write(snapshot);
+            } finally {
+                inFlight = false;
+            }
+        });
+    }
+
+    private void recoverJournal() {
+        List<StatJournal.Entry> entries;
+        List<RankIndex.Totals> totals;
+        try {
+            long acknowledged = accumulator.readAcknowledgedSeq();
+            entries = journal.recover(acknowledged);
+            totals = ranks.load();
+        } catch (SQLException | IOException e) {
+            plugin.getLogger().warning("Stat journal replay postponed: " + e.getMessage());
+            inFlight = false;
+            return;
+        }
+        Bukkit.getScheduler().runTask(plugin, () -> {
+            accumulator.replay(entries);
+            ranks.seed(totals);
+            ranks.replay(entries);
+            if (!entries.isEmpty()) {
+                plugin.getLogger().info("Replayed " + entries.size() + " journaled stat updates");
+            }
+            replayPending = false;
+            inFlight = false;
+        });
+    }
+
+    /**
+     * Stop the periodic flush and write everything that is left, including
+     * partial playtime steps. Called from onDisable on the main thread.
+     */
+    boolean shutdown(long timeoutMillis) {
+        if (task != null) {
+            task.cancel();
+        }
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (inFlight && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (inFlight || replayPending) {
+            // Deltas stay in the journal and are replayed on the next start
+            return false;
+        }
+        try {
+            return accumulator.write(accumulator.snapshot(true));
+        } catch (RuntimeException e) {
+            plugin.getLogger().log(Level.SEVERE, "Final stat flush failed", e);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,435 @@
+package com.smp.stats;
+
+import com.smp.common.metrics.LatencyHistogram;
+import com.smp.common.metrics.Metrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead journal for stat deltas.
+ *
+ * Every kill, death and playtime delta is appended here before it reaches
+ * {@link StatAccumulator}. Appends only copy bytes into a memory buffer; a
+ * background thread writes the buffer out and fsyncs it every sync interval.
+ * Each record carries a sequence number, and the database stores the highest
+ * sequence it has committed, so replaying after a crash skips anything that
+ * already landed. Segments are rotated by size and deleted once every record
+ * in them has been acknowledged.
+ *
+ * A sequence may only be committed to the database once it is on disk here
+ * ({@link #awaitSynced}); otherwise a crash could hand the same numbers out
+ * again, and the replay would skip them as already committed. A batch whose
+ * write fails stays pending and is retried on the next sync.
+ */
+final class StatJournal implements AutoCloseable {
+
+    enum Type {
+        KILL, DEATH, PLAYTIME
+    }
+
+    record Entry(long seq, Type type, UUID playerUUID, String username, long amount) {
+    }
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    /** seq, type, uuid, amount and name length; followed by the name and a CRC32. */
+    private static final int RECORD_HEADER_BYTES = 8 + 1 + 16 + 8 + 2;
+
+    private final Path directory;
+    private final String journalId;
+    private final long segmentBytes;
+    private final long syncIntervalMillis;
+    private final Logger logger;
+
+    // Appends go into pending under the lock; the syncer swaps it out
+    private final Object bufferLock = new Object();
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream(8192);
+    private ByteArrayOutputStream spare = new ByteArrayOutputStream(8192);
+    private final ByteBuffer scratch = ByteBuffer.allocate(512);
+    private final CRC32 crc = new CRC32();
+    private long lastSeq;
+
+    // Owned by the syncer thread after construction
+    private final TreeMap<Long, Segment> sealed = new TreeMap<>();
+    private FileChannel current;
+    private Segment currentSegment;
+    private long nextSegmentNumber = 1;
+
+    private final List<Path> recoverable = new ArrayList<>();
+    private final Thread syncer;
+    // Wakes the syncer early for awaitSynced and close
+    private final Object syncLock = new Object();
+    // Guarded by syncLock
+    private long syncedSeq;
+    private boolean syncRequested;
+    private boolean closing;
+    private volatile long ackedSeq;
+
+    private final AtomicLong appended = new AtomicLong();
+    private final AtomicLong bytesSynced = new AtomicLong();
+    private final AtomicLong fsyncs = new AtomicLong();
+    private final AtomicLong segmentsDeleted = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile LatencyHistogram syncLatency;
+
+    StatJournal(Path directory, long segmentBytes, long syncIntervalMillis, Logger logger) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.syncIntervalMillis = syncIntervalMillis;
+        this.logger = logger;
+
+        Files.createDirectories(directory);
+        Path idFile = directory.resolve("journal.id");
+        if (Files.exists(idFile)) {
+            journalId = Files.readString(idFile, StandardCharsets.UTF_8).trim();
+        } else {
+            journalId = UUID.randomUUID().toString();
+            writeAtomically(idFile, journalId);
+        }
+
+        // Everything left from the last run is sealed and offered for replay
+        lastSeq = readSeqFloor();
+        try (DirectoryStream<Path> segments = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : segments) {
+                if (Files.size(path) == 0) {
+                    Files.delete(path);
+                    continue;
+                }
+                long maxSeq = lastSeq;
+                for (Entry entry : read(path)) {
+                    maxSeq = Math.max(maxSeq, entry.seq());
+                }
+                lastSeq = Math.max(lastSeq, maxSeq);
+                long number = segmentNumber(path);
+                nextSegmentNumber = Math.max(nextSegmentNumber, number + 1);
+                sealed.put(number, new Segment(path, maxSeq));
+                recoverable.add(path);
+            }
+        }
+        openSegment();
+        syncedSeq = lastSeq;
+
+        syncer = new Thread(this::syncLoop, "SMPStats-Journal");
+        syncer.setDaemon(true);
+        syncer.start();
+    }
+
+    /** Identifies this journal in the stat_journal_ack table. */
+    String id() {
+        return journalId;
+    }
+
+    /** Record a delta and return its sequence number. Never touches the disk. */
+    long append(Type type, UUID playerUUID, String username, long amount) {
+        synchronized (bufferLock) {
+            long seq = ++lastSeq;
+            byte[] name = username.getBytes(StandardCharsets.UTF_8);
+            scratch.clear();
+            scratch.putLong(seq)
+                    .put((byte) type.ordinal())
+                    .putLong(playerUUID.getMostSignificantBits())
+                    .putLong(playerUUID.getLeastSignificantBits())
+                    .putLong(amount)
+                    .putShort((short) name.length)
+                    .put(name);
+            crc.reset();
+            crc.update(scratch.array(), 0, scratch.position());
+            scratch.putInt((int) crc.getValue());
+            pending.write(scratch.array(), 0, scratch.position());
+            appended.incrementAndGet();
+            return seq;
+        }
+    }
+
+    /**
+     * All records left over from the previous run with a sequence number above
+     * {@code afterSeq}, in order. Torn records at the end of a segment are skipped.
+     */
+    List<Entry> recover(long afterSeq) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        for (Path path : recoverable) {
+            for (Entry entry : read(path)) {
+                if (entry.seq() > afterSeq) {
+                    entries.add(entry);
+                }
+            }
+        }
+        entries.sort((a, b) -> Long.compare(a.seq(), b.seq()));
+        return entries;
+    }
+
+    /** Everything up to {@code seq} is committed; its segments may be deleted. */
+    void acknowledge(long seq) {
+        if (seq > ackedSeq) {
+            ackedSeq = seq;
+        }
+    }
+
+    /**
+     * Wait until every record up to {@code seq} has been written and fsynced,
+     * waking the syncer rather than waiting out its interval.
+     *
+     * @return false if that did not happen within the timeout, or the journal is closing
+     */
+    boolean awaitSynced(long seq, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (syncLock) {
+            while (syncedSeq < seq) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0 || closing) {
+                    return false;
+                }
+                syncRequested = true;
+                syncLock.notifyAll();
+                syncLock.wait(remaining);
+            }
+            return true;
+        }
+    }
+
+    long unacknowledged() {
+        synchronized (bufferLock) {
+            return lastSeq - ackedSeq;
+        }
+    }
+
+    /** Report fsync latency, bytes written and the unacknowledged backlog. */
+    void instrument(Metrics metrics) {
+        metrics.counter("bytes_written", "stat_journal", bytesSynced::get);
+        metrics.counter("errors", "stat_journal", failures::get);
+        metrics.gauge("queue_depth", "stat_journal_unacknowledged", this::unacknowledged);
+        syncLatency = metrics.timer("io", "stat_journal_sync");
+    }
+
+    List<String> describeMetrics() {
+        List<String> lines = new ArrayList<>();
+        lines.add("Journal: " + appended.get() + " appended, " + unacknowledged() + " unacknowledged, "
+                + bytesSynced.get() + " bytes synced in " + fsyncs.get() + " fsyncs");
+        lines.add("Journal segments deleted: " + segmentsDeleted.get());
+        return lines;
+    }
+
+    /** Sync everything appended so far and stop the background thread. */
+    @Override
+    public void close() {
+        synchronized (syncLock) {
+            closing = true;
+            syncLock.notifyAll();
+        }
+        try {
+            syncer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void syncLoop() {
+        // Never interrupted: an interrupt during a FileChannel write would close the channel
+        while (!awaitClosing()) {
+            try {
+                sync();
+                truncate();
+            } catch (IOException e) {
+                failures.incrementAndGet();
+                logger.log(Level.SEVERE, "Failed to write stat journal", e);
+            }
+        }
+        try {
+            sync();
+            truncate();
+            current.close();
+            synchronized (bufferLock) {
+                writeAtomically(directory.resolve("journal.seq"), Long.toString(lastSeq));
+            }
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Failed to close stat journal", e);
+        }
+    }
+
+    /** Wait out the sync interval, or less if asked to sync or close. */
+    private boolean awaitClosing() {
+        long deadline = System.currentTimeMillis() + syncIntervalMillis;
+        synchronized (syncLock) {
+            try {
+                long remaining;
+                while (!closing && !syncRequested && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                    syncLock.wait(remaining);
+                }
+            } catch (InterruptedException e) {
+                return true;
+            }
+            syncRequested = false;
+            return closing;
+        }
+    }
+
+    private void sync() throws IOException {
+        ByteArrayOutputStream batch;
+        long maxSeq;
+        synchronized (bufferLock) {
+            maxSeq = lastSeq;
+            if (pending.size() == 0) {
+                // Every sequence handed out so far was written by an earlier sync
+                markSynced(maxSeq);
+                return;
+            }
+            batch = pending;
+            pending = spare;
+            spare = batch;
+        }
+        long start = System.nanoTime();
+        ByteBuffer bytes = ByteBuffer.wrap(batch.toByteArray());
+        long position = current.size();
+        try {
+            while (bytes.hasRemaining()) {
+                current.write(bytes);
+            }
+            current.force(false);
+        } catch (IOException e) {
+            // Keep the batch, ahead of anything appended meanwhile, and drop whatever part reached the file
+            synchronized (bufferLock) {
+                pending.writeTo(batch);
+                pending.reset();
+                spare = pending;
+                pending = batch;
+            }
+            try {
+                current.truncate(position);
+            } catch (IOException truncateFailed) {
+                e.addSuppressed(truncateFailed);
+            }
+            throw e;
+        }
+        batch.reset();
+        markSynced(maxSeq);
+        LatencyHistogram latency = syncLatency;
+        if (latency != null) {
+            latency.recordSince(start);
+        }
+        fsyncs.incrementAndGet();
+        bytesSynced.addAndGet(bytes.capacity());
+        currentSegment = new Segment(currentSegment.path(), maxSeq);
+
+        if (current.size() >= segmentBytes) {
+            sealCurrent();
+        }
+    }
+
+    private void markSynced(long seq) {
+        synchronized (syncLock) {
+            if (seq > syncedSeq) {
+                syncedSeq = seq;
+                syncLock.notifyAll();
+            }
+        }
+    }
+
+    private void truncate() throws IOException {
+        long acked = ackedSeq;
+        // The active segment is sealed early once fully acknowledged so it can go too
+        if (currentSegment.maxSeq() > 0 && currentSegment.maxSeq() <= acked && current.size() > 0) {
+            sealCurrent();
+        }
+        while (!sealed.isEmpty()) {
+            Map.Entry<Long, Segment> oldest = sealed.firstEntry();
+            if (oldest.getValue().maxSeq() > acked) {
+                break;
+            }
+            sealed.pollFirstEntry();
+            Files.deleteIfExists(oldest.getValue().path());
+            segmentsDeleted.incrementAndGet();
+        }
+    }
+
+    private void sealCurrent() throws IOException {
+        current.close();
+        sealed.put(segmentNumber(currentSegment.path()), currentSegment);
+        // Remember how far sequence numbers got in case every segment is deleted
+        writeAtomically(directory.resolve("journal.seq"), Long.toString(currentSegment.maxSeq()));
+        openSegment();
+    }
+
+    private void openSegment() throws IOException {
+        Path path = directory.resolve(String.format("%s%012d%s", SEGMENT_PREFIX, nextSegmentNumber++, SEGMENT_SUFFIX));
+        current = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        currentSegment = new Segment(path, 0);
+    }
+
+    private long readSeqFloor() throws IOException {
+        Path seqFile = directory.resolve("journal.seq");
+        if (!Files.exists(seqFile)) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(Files.readString(seqFile, StandardCharsets.UTF_8).trim());
+        } catch (NumberFormatException e) {
+            logger.warning("Ignoring corrupt journal.seq");
+            return 0;
+        }
+    }
+
+    private List<Entry> read(Path path) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        Type[] types = Type.values();
+        CRC32 check = new CRC32();
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(path));
+        while (in.remaining() >= RECORD_HEADER_BYTES + 4) {
+            int start = in.position();
+            long seq = in.getLong();
+            int type = in.get() & 0xFF;
+            long msb = in.getLong();
+            long lsb = in.getLong();
+            long amount = in.getLong();
+            int nameLength = in.getShort() & 0xFFFF;
+            if (in.remaining() < nameLength + 4) {
+                break; // Torn by a crash mid-write
+            }
+            byte[] name = new byte[nameLength];
+            in.get(name);
+            check.reset();
+            check.update(in.array(), start, in.position() - start);
+            if ((int) check.getValue() != in.getInt() || type >= types.length) {
+                logger.warning("Stopped reading " + path.getFileName() + " at a corrupt record");
+                break;
+            }
+            entries.add(new Entry(seq, types[type], new UUID(msb, lsb), new String(name, StandardCharsets.UTF_8), amount));
+        }
+        return entries;
+    }
+
+    private static long segmentNumber(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private static void writeAtomically(Path target, String content) throws IOException {
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.wrap(content.getBytes(StandardCharsets.UTF_8)));
+            channel.force(true);
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private record Segment(Path path, long maxSeq) {
+    }
+}
@@ -0,0 +1,42 @@
+package com.smp.stats;
+
+import java.util.UUID;
+
+/**
+ * A single pending change to a player_stats row, queued by the event handlers
+ * and applied later by the write-behind worker. Counter updates go through
+ * {@link StatAccumulator} instead.
+ */
+record StatMutation(Kind kind, String username, UUID playerUUID) {
+
+    // Batches run the kinds in declaration order, and each kind's statements in order
+    enum Kind {
+        // A row from before UUIDs were recorded belongs to whoever joins with its name. If they already
+        // have a row of their own, the old row is folded into it and deleted, as migration 4 merges split rows
+        CLAIM(
+            "UPDATE player_stats AS target JOIN player_stats AS legacy"
+                + " ON legacy.username = ? AND legacy.player_uuid IS NULL AND legacy.uuid <> target.uuid"
+                + " SET target.kills = target.kills + legacy.kills, target.deaths = target.deaths + legacy.deaths,"
+                + " target.playtime_hours = target.playtime_hours + legacy.playtime_hours"
+                + " WHERE target.uuid = ?",
+            "DELETE legacy FROM player_stats AS legacy JOIN player_stats AS target"
+                + " ON target.uuid = ? AND legacy.uuid <> target.uuid"
+                + " WHERE legacy.username = ? AND legacy.player_uuid IS NULL",
+            "UPDATE player_stats SET uuid = ?, player_uuid = ? WHERE username = ? AND player_uuid IS NULL"),
+        INITIALIZE("INSERT INTO player_stats (uuid, username, player_uuid) VALUES (?, ?, ?) ON DUPLICATE KEY UPDATE username = VALUES(username)");
+
+        final String[] statements;
+
+        Kind(String... statements) {
+            this.statements = statements;
+        }
+    }
+
+    static StatMutation claim(String username, UUID playerUUID) {
+        return new StatMutation(Kind.CLAIM, username, playerUUID);
+    }
+
+    static StatMutation initialize(String username, UUID playerUUID) {
+        return new StatMutation(Kind.INITIALIZE, username, playerUUID);
+    }
+}
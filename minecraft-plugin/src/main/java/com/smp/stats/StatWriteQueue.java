@@ -0,0 +1,238 @@
+package com.smp.stats;
+
+import com.smp.common.db.ConnectionPool;
+import com.smp.common.db.PooledConnection;
+import com.smp.common.metrics.LatencyHistogram;
+import com.smp.common.metrics.Metrics;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Write-behind stage for player_stats. Event handlers enqueue mutations on the
+ * main thread and a dedicated worker drains them into JDBC batches, so a slow
+ * MySQL round trip never stalls the tick loop. Nothing is written until the
+ * schema migrations have finished.
+ */
+final class StatWriteQueue {
+
+    private static final long POLL_MILLIS = 250;
+    private static final long DROP_LOG_INTERVAL_MILLIS = 30_000;
+
+    private final BlockingQueue<StatMutation> queue;
+    private final ConnectionPool pool;
+    private final SchemaMigrator schema;
+    private final Logger logger;
+    private final int batchSize;
+    private final long offerTimeoutMillis;
+    private final Thread worker;
+
+    private volatile boolean running = true;
+    private volatile long lastDropLog;
+    private volatile LatencyHistogram batchLatency;
+
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong blockedOffers = new AtomicLong();
+    private final AtomicLong maxDepth = new AtomicLong();
+
+    StatWriteQueue(ConnectionPool pool, SchemaMigrator schema, Logger logger, int capacity, int batchSize, long offerTimeoutMillis) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.pool = pool;
+        this.schema = schema;
+        this.logger = logger;
+        this.batchSize = batchSize;
+        this.offerTimeoutMillis = offerTimeoutMillis;
+        this.worker = new Thread(this::drainLoop, "SMPStats-DB-Writer");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Queue a mutation. If the queue is full the caller waits up to the offer
+     * timeout for the worker to catch up, then the mutation is dropped.
+     */
+    boolean enqueue(StatMutation mutation) {
+        if (!running) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        boolean accepted = queue.offer(mutation);
+        if (!accepted) {
+            blockedOffers.incrementAndGet();
+            try {
+                accepted = queue.offer(mutation, offerTimeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (!accepted) {
+            dropped.incrementAndGet();
+            long now = System.currentTimeMillis();
+            if (now - lastDropLog > DROP_LOG_INTERVAL_MILLIS) {
+                lastDropLog = now;
+                logger.warning("Stat write queue is full, dropping updates (" + dropped.get() + " dropped so far)");
+            }
+            return false;
+        }
+        enqueued.incrementAndGet();
+        maxDepth.accumulateAndGet(queue.size(), Math::max);
+        return true;
+    }
+
+    /** Stop accepting mutations; the worker keeps writing what is already queued. */
+    void close() {
+        running = false;
+    }
+
+    /**
+     * Stop accepting mutations and wait for everything already queued to be
+     * written. Returns the number of mutations still pending on timeout.
+     */
+    int shutdown(long timeoutMillis) {
+        close();
+        try {
+            worker.join(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (worker.isAlive()) {
+            worker.interrupt();
+        }
+        return queue.size();
+    }
+
+    int depth() {
+        return queue.size();
+    }
+
+    /** Report queue depth, batch latency and write, failure and drop counts. */
+    void instrument(Metrics metrics) {
+        metrics.gauge("queue_depth", "stat_write_queue", queue::size);
+        metrics.counter("rows_written", "stat_write_queue", written::get);
+        metrics.counter("errors", "stat_write_queue", failed::get);
+        metrics.counter("dropped", "stat_write_queue", dropped::get);
+        batchLatency = metrics.timer("statement", "stat_write_batch");
+    }
+
+    List<String> describeMetrics() {
+        List<String> lines = new ArrayList<>();
+        lines.add("Queue depth: " + queue.size() + " (max " + maxDepth.get() + ", capacity " + (queue.size() + queue.remainingCapacity()) + ")");
+        lines.add("Enqueued: " + enqueued.get() + ", written: " + written.get() + ", failed: " + failed.get());
+        lines.add("Batches: " + batches.get() + ", blocked offers: " + blockedOffers.get() + ", dropped: " + dropped.get());
+        return lines;
+    }
+
+    private void drainLoop() {
+        List<StatMutation> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                if (!schema.isComplete()) {
+                    // Mutations are written against the migrated schema only
+                    if (!running) {
+                        break;
+                    }
+                    Thread.sleep(POLL_MILLIS);
+                    continue;
+                }
+                StatMutation first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                writeBatch(batch);
+            } catch (InterruptedException e) {
+                if (!running) {
+                    break;
+                }
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "Unexpected error in stat writer", e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void writeBatch(List<StatMutation> batch) {
+        // Group by statement in Kind order: CLAIM adopts a legacy row before INITIALIZE would insert a new one
+        Map<StatMutation.Kind, List<StatMutation>> byKind = new EnumMap<>(StatMutation.Kind.class);
+        for (StatMutation mutation : batch) {
+            byKind.computeIfAbsent(mutation.kind(), k -> new ArrayList<>()).add(mutation);
+        }
+
+        long start = System.nanoTime();
+
+        try (PooledConnection conn = pool.borrow()) {
+            try {
+                conn.setAutoCommit(false);
+                for (Map.Entry<StatMutation.Kind, List<StatMutation>> entry : byKind.entrySet()) {
+                    String[] statements = entry.getKey().statements;
+                    for (int step = 0; step < statements.length; step++) {
+                        PreparedStatement stmt = conn.prepare(statements[step]);
+                        for (StatMutation mutation : entry.getValue()) {
+                            bind(stmt, mutation, step);
+                            stmt.addBatch();
+                        }
+                        stmt.executeBatch();
+                    }
+                }
+                conn.commit();
+                written.addAndGet(batch.size());
+            } catch (SQLException e) {
+                conn.rollback();
+                conn.onError(e);
+                throw e;
+            }
+        } catch (SQLException e) {
+            failed.addAndGet(batch.size());
+            logger.log(Level.WARNING, "Failed to write " + batch.size() + " stat updates", e);
+        }
+        batches.incrementAndGet();
+        LatencyHistogram latency = batchLatency;
+        if (latency != null) {
+            latency.recordSince(start);
+        }
+    }
+
+    private static void bind(PreparedStatement stmt, StatMutation mutation, int step) throws SQLException {
+        byte[] uuid = PlayerStatsSchema.uuidBytes(mutation.playerUUID());
+        switch (mutation.kind()) {
+            case CLAIM -> {
+                switch (step) {
+                    case 0 -> {
+                        stmt.setString(1, mutation.username());
+                        stmt.setBytes(2, uuid);
+                    }
+                    case 1 -> {
+                        stmt.setBytes(1, uuid);
+                        stmt.setString(2, mutation.username());
+                    }
+                    default -> {
+                        stmt.setBytes(1, uuid);
+                        stmt.setString(2, mutation.playerUUID().toString());
+                        stmt.setString(3, mutation.username());
+                    }
+                }
+            }
+            case INITIALIZE -> {
+                stmt.setBytes(1, uuid);
+                stmt.setString(2, mutation.username());
+                stmt.setString(3, mutation.playerUUID().toString());
+            }
+        }
+    }
+}
@@ -0,0 +1,454 @@
+package com.smp.stats;
+
+import com.smp.common.metrics.LatencyHistogram;
+import com.smp.common.metrics.Metrics;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+
+/**
+ * Optional read-only HTTP endpoint for the website, answered from the
+ * plugin's memory instead of MySQL:
+ *
+ * <pre>
+ * GET /leaderboard?kit=all|sword|...       ranked duel board, as app/api/leaderboard returns it
+ * GET /player-details?username=NAME        per-kit elo, as app/api/player-details returns it
+ * GET /stats/top?metric=kills|playtime|kd&amp;limit=N
+ * GET /stats/player?username=NAME          kills, deaths, playtime, K/D and ranks
+ * </pre>
+ *
+ * Each response is serialized once per change of the data behind it and
+ * carries an ETag, so a client that sends If-None-Match gets an empty 304
+ * until something changes. Requests run on virtual threads when the JVM has
+ * them (Java 21+), otherwise on a small fixed pool.
+ */
+final class StatsHttpServer {
+
+    private static final int TOP_LIMIT = 100;
+    private static final List<String> PROFILE_KITS = List.of("sword", "axe", "sumo", "mace");
+    private static final List<String> ROUTES = List.of("/leaderboard", "/player-details", "/stats/top", "/stats/player");
+
+    private record Response(int status, byte[] body, String etag) {
+    }
+
+    private record Cached(long version, Response response) {
+    }
+
+    private final Logger logger;
+    private final RankIndex ranks;
+    private final LeaderboardMaterializer leaderboard;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final boolean virtualThreads;
+    private final Map<String, Cached> cache = new ConcurrentHashMap<>();
+    private volatile RankIndex.View stats;
+    // Per route, so request paths from the outside cannot create new histograms
+    private volatile Map<String, LatencyHistogram> routeLatency = Map.of();
+    private volatile LatencyHistogram otherLatency;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong notModified = new AtomicLong();
+    private final AtomicLong serialized = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    /**
+     * @param leaderboard null when the leaderboard snapshot is disabled
+     */
+    StatsHttpServer(Logger logger, RankIndex ranks, LeaderboardMaterializer leaderboard, String bind, int port,
+                    int threads) throws IOException {
+        this.logger = logger;
+        this.ranks = ranks;
+        this.leaderboard = leaderboard;
+        this.server = HttpServer.create(new InetSocketAddress(bind, port), 64);
+        ExecutorService virtual = newVirtualThreadExecutor();
+        this.virtualThreads = virtual != null;
+        this.executor = virtual != null ? virtual : newPool(threads);
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+    }
+
+    void start() {
+        server.start();
+        logger.info("Stats HTTP endpoint listening on " + server.getAddress()
+                + (virtualThreads ? " (virtual threads)" : ""));
+    }
+
+    /** Publish the rank index if it changed since the last call. Main thread only. */
+    void refresh() {
+        RankIndex.View current = stats;
+        if (ranks.isSeeded() && (current == null || current.version() != ranks.version())) {
+            stats = ranks.view(TOP_LIMIT);
+        }
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Report latency per route, request counts and failures. */
+    void instrument(Metrics metrics) {
+        metrics.counter("http_requests", "total", requests::get);
+        metrics.counter("http_requests", "not_modified", notModified::get);
+        metrics.counter("errors", "http", errors::get);
+        Map<String, LatencyHistogram> latency = new HashMap<>();
+        for (String route : ROUTES) {
+            latency.put(route, metrics.timer("http", route));
+        }
+        otherLatency = metrics.timer("http", "other");
+        routeLatency = Map.copyOf(latency);
+    }
+
+    List<String> describeMetrics() {
+        List<String> lines = new ArrayList<>();
+        lines.add("HTTP: " + requests.get() + " requests, " + notModified.get() + " not modified, "
+                + errors.get() + " failed");
+        lines.add("HTTP: " + serialized.get() + " responses serialized, " + cache.size() + " cached");
+        return lines;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        long start = System.nanoTime();
+        try (exchange) {
+            String method = exchange.getRequestMethod();
+            boolean head = method.equals("HEAD");
+            if (!head && !method.equals("GET")) {
+                exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                send(exchange, error(405, "Method not allowed"), false);
+                return;
+            }
+            Response response = route(exchange.getRequestURI().getPath(), query(exchange.getRequestURI().getRawQuery()));
+            String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+            if (response.etag() != null && matches(ifNoneMatch, response.etag())) {
+                notModified.incrementAndGet();
+                exchange.getResponseHeaders().set("ETag", response.etag());
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+            send(exchange, response, head);
+        } catch (RuntimeException e) {
+            errors.incrementAndGet();
+            logger.log(Level.WARNING, "Stats HTTP request failed: " + exchange.getRequestURI(), e);
+        } finally {
+            LatencyHistogram latency = routeLatency.getOrDefault(exchange.getRequestURI().getPath(), otherLatency);
+            if (latency != null) {
+                latency.recordSince(start);
+            }
+        }
+    }
+
+    private Response route(String path, Map<String, String> query) {
+        switch (path) {
+            case "/leaderboard": {
+                if (leaderboard == null) {
+                    return error(404, "Leaderboard snapshot is disabled");
+                }
+                String kit = query.getOrDefault("kit", LeaderboardMaterializer.ALL);
+                return boardResponse("leaderboard:" + kit, leaderboard.board(kit) != null, () -> leaderboardJson(kit));
+            }
+            case "/player-details": {
+                if (leaderboard == null) {
+                    return error(404, "Leaderboard snapshot is disabled");
+                }
+                String username = query.get("username");
+                if (username == null || username.isEmpty()) {
+                    return error(400, "Username required");
+                }
+                return boardResponse("player-details:" + username.toLowerCase(Locale.ROOT), ranked(username),
+                        () -> playerDetailsJson(username));
+            }
+            case "/stats/top": {
+                RankIndex.View view = stats;
+                if (view == null) {
+                    return error(503, "Stats are still loading");
+                }
+                RankIndex.Metric metric = RankIndex.Metric.parse(query.getOrDefault("metric", "kills"));
+                if (metric == null) {
+                    return error(400, "Unknown metric");
+                }
+                int limit;
+                try {
+                    limit = Math.max(1, Math.min(TOP_LIMIT, Integer.parseInt(query.getOrDefault("limit", "10"))));
+                } catch (NumberFormatException e) {
+                    return error(400, "Invalid limit");
+                }
+                int size = limit;
+                return cached("top:" + metric.id + ":" + limit, view.version(), () -> topJson(view, metric, size));
+            }
+            case "/stats/player": {
+                RankIndex.View view = stats;
+                if (view == null) {
+                    return error(503, "Stats are still loading");
+                }
+                String username = query.get("username");
+                if (username == null || username.isEmpty()) {
+                    return error(400, "Username required");
+                }
+                RankIndex.PlayerView player = view.player(username);
+                if (player == null) {
+                    return error(404, "Unknown player");
+                }
+                return cached("player:" + username.toLowerCase(Locale.ROOT), view.version(), () -> playerJson(view, player));
+            }
+            default:
+                return error(404, "Not found");
+        }
+    }
+
+    /**
+     * @param known false for kits and players with no rows, whose responses
+     *              are built every time so arbitrary names cannot fill the cache
+     */
+    private Response boardResponse(String key, boolean known, Supplier<String> json) {
+        long version = leaderboard.boardVersion();
+        if (version == 0) {
+            return error(503, "Leaderboard is still loading");
+        }
+        if (!known) {
+            return build(json);
+        }
+        return cached(key, version, json);
+    }
+
+    private boolean ranked(String username) {
+        String key = username.toLowerCase(Locale.ROOT);
+        for (String kit : PROFILE_KITS) {
+            LeaderboardMaterializer.KitBoard board = leaderboard.board(kit);
+            if (board != null && board.byName().containsKey(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** The cached response if the data has not changed since it was built, else a fresh one. */
+    private Response cached(String key, long version, Supplier<String> json) {
+        Cached hit = cache.get(key);
+        if (hit != null && hit.version() == version) {
+            return hit.response();
+        }
+        Response response = build(json);
+        cache.put(key, new Cached(version, response));
+        return response;
+    }
+
+    private Response build(Supplier<String> json) {
+        byte[] body = json.get().getBytes(StandardCharsets.UTF_8);
+        CRC32C crc = new CRC32C();
+        crc.update(body);
+        serialized.incrementAndGet();
+        return new Response(200, body, "\"" + Long.toHexString(crc.getValue()) + "\"");
+    }
+
+    private String leaderboardJson(String kit) {
+        LeaderboardMaterializer.KitBoard board = leaderboard.board(kit);
+        StringBuilder json = new StringBuilder(board == null ? 2 : board.ranked().size() * 128);
+        json.append('[');
+        if (board != null) {
+            int rank = 0;
+            for (LeaderboardMaterializer.BoardEntry entry : board.ranked()) {
+                int total = entry.wins() + entry.losses();
+                if (rank > 0) {
+                    json.append(',');
+                }
+                json.append("{\"username\":");
+                quote(json, entry.username());
+                json.append(",\"wins\":").append(entry.wins())
+                        .append(",\"losses\":").append(entry.losses())
+                        .append(",\"totalMatches\":").append(total)
+                        .append(",\"winRate\":").append(total > 0 ? Math.round(entry.wins() * 100.0 / total) : 0)
+                        .append(",\"elo\":").append(entry.elo())
+                        .append(",\"winStreak\":").append(entry.winStreak())
+                        .append(",\"rank\":").append(++rank)
+                        .append('}');
+            }
+        }
+        return json.append(']').toString();
+    }
+
+    private String playerDetailsJson(String username) {
+        StringBuilder json = new StringBuilder(128);
+        json.append("{\"username\":");
+        quote(json, username);
+        json.append(",\"gamemodeElos\":{");
+        for (int i = 0; i < PROFILE_KITS.size(); i++) {
+            String kit = PROFILE_KITS.get(i);
+            LeaderboardMaterializer.KitBoard board = leaderboard.board(kit);
+            LeaderboardMaterializer.BoardEntry entry = board == null ? null
+                    : board.byName().get(username.toLowerCase(Locale.ROOT));
+            if (i > 0) {
+                json.append(',');
+            }
+            quote(json, kit);
+            json.append(':').append(entry == null ? (int) EloRatings.INITIAL_RATING : entry.kitElo());
+        }
+        return json.append("}}").toString();
+    }
+
+    private static String topJson(RankIndex.View view, RankIndex.Metric metric, int limit) {
+        List<RankIndex.TopEntry> entries = view.top().get(metric);
+        StringBuilder json = new StringBuilder(limit * 64);
+        json.append('[');
+        for (int i = 0; i < Math.min(limit, entries.size()); i++) {
+            RankIndex.TopEntry entry = entries.get(i);
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"rank\":").append(entry.rank()).append(",\"username\":");
+            quote(json, entry.username());
+            json.append(",\"value\":");
+            if (metric == RankIndex.Metric.KILLS) {
+                json.append((long) entry.value());
+            } else {
+                json.append(round(entry.value()));
+            }
+            json.append('}');
+        }
+        return json.append(']').toString();
+    }
+
+    private static String playerJson(RankIndex.View view, RankIndex.PlayerView player) {
+        StringBuilder json = new StringBuilder(256);
+        json.append("{\"username\":");
+        quote(json, player.username());
+        json.append(",\"kills\":").append(player.kills())
+                .append(",\"deaths\":").append(player.deaths())
+                .append(",\"playtimeHours\":").append(round(player.playtimeHours()))
+                .append(",\"kd\":").append(round(player.kd()))
+                .append(",\"players\":").append(view.players())
+                .append(",\"ranks\":{\"kills\":").append(player.killsRank())
+                .append(",\"playtime\":").append(player.playtimeRank())
+                .append(",\"kd\":").append(player.kdRank())
+                .append("}}");
+        return json.toString();
+    }
+
+    private static Response error(int status, String message) {
+        StringBuilder json = new StringBuilder("{\"error\":");
+        quote(json, message);
+        return new Response(status, json.append('}').toString().getBytes(StandardCharsets.UTF_8), null);
+    }
+
+    private void send(HttpExchange exchange, Response response, boolean head) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        if (response.etag() != null) {
+            exchange.getResponseHeaders().set("ETag", response.etag());
+            exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        }
+        if (head) {
+            exchange.sendResponseHeaders(response.status(), -1);
+            return;
+        }
+        exchange.sendResponseHeaders(response.status(), response.body().length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(response.body());
+        }
+    }
+
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Map<String, String> query(String raw) {
+        Map<String, String> params = new HashMap<>();
+        if (raw == null || raw.isEmpty()) {
+            return params;
+        }
+        for (String pair : raw.split("&")) {
+            int eq = pair.indexOf('=');
+            String name = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            try {
+                params.putIfAbsent(URLDecoder.decode(name, StandardCharsets.UTF_8),
+                        URLDecoder.decode(value, StandardCharsets.UTF_8));
+            } catch (IllegalArgumentException e) {
+                // Malformed escape; ignore the parameter
+            }
+        }
+        return params;
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 100.0) / 100.0;
+    }
+
+    private static void quote(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> json.append("\\\"");
+                case '\\' -> json.append("\\\\");
+                case '\n' -> json.append("\\n");
+                case '\r' -> json.append("\\r");
+                case '\t' -> json.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+                }
+            }
+        }
+        json.append('"');
+    }
+
+    /** Executors.newVirtualThreadPerTaskExecutor() on Java 21+, or null. */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static ExecutorService newPool(int threads) {
+        AtomicInteger counter = new AtomicInteger();
+        return Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread thread = new Thread(r, "SMPStats-HTTP-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
@@ -0,0 +1,97 @@
+package com.smp.stats;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EloRatingsTest {
+
+    private static final double DELTA = 1e-9;
+
+    @Test
+    void evenPlayersMoveByHalfTheKFactor() {
+        EloRatings ratings = new EloRatings(32);
+
+        assertTrue(ratings.apply(2, List.of("alex"), List.of("steve")));
+
+        assertEquals(1016, ratings.get("alex").value, DELTA);
+        assertEquals(984, ratings.get("steve").value, DELTA);
+        assertEquals(1, ratings.get("alex").games);
+        assertEquals(2, ratings.get("steve").lastFightPlayerId);
+        assertTrue(ratings.get("alex").changed);
+    }
+
+    @Test
+    void anUpsetMovesMoreThanAnExpectedWin() {
+        EloRatings ratings = new EloRatings(32);
+        ratings.put("favourite", 1400, 10, 0);
+        ratings.put("underdog", 1000, 10, 0);
+
+        ratings.apply(1, List.of("underdog"), List.of("favourite"));
+
+        double gain = 32 * (1 - EloRatings.expected(1000, 1400));
+        assertEquals(1000 + gain, ratings.get("underdog").value, DELTA);
+        assertEquals(1400 - gain, ratings.get("favourite").value, DELTA);
+        assertTrue(gain > 16);
+    }
+
+    @Test
+    void expectedScoresAreSymmetric() {
+        assertEquals(0.5, EloRatings.expected(1200, 1200), DELTA);
+        assertEquals(1, EloRatings.expected(1600, 1200) + EloRatings.expected(1200, 1600), DELTA);
+        assertEquals(1 / 11.0, EloRatings.expected(1000, 1400), DELTA);
+    }
+
+    @Test
+    void teamsAreRatedAgainstTheOpposingAverage() {
+        EloRatings ratings = new EloRatings(32);
+        ratings.put("a", 1100, 5, 0);
+        ratings.put("b", 900, 5, 0);
+        ratings.put("c", 1000, 5, 0);
+        ratings.put("d", 1000, 5, 0);
+
+        ratings.apply(4, List.of("a", "b"), List.of("c", "d"));
+
+        assertEquals(1100 + 32 * (1 - EloRatings.expected(1100, 1000)), ratings.get("a").value, DELTA);
+        assertEquals(900 + 32 * (1 - EloRatings.expected(900, 1000)), ratings.get("b").value, DELTA);
+        assertEquals(1000 - 16, ratings.get("c").value, DELTA);
+    }
+
+    @Test
+    void skipsOneSidedFights() {
+        EloRatings ratings = new EloRatings(32);
+
+        assertFalse(ratings.apply(1, List.of("alex"), List.of()));
+        assertFalse(ratings.apply(2, List.of(), List.of("steve")));
+
+        assertNull(ratings.get("alex"));
+        assertNull(ratings.get("steve"));
+        assertEquals(2, ratings.skipped());
+        assertEquals(0, ratings.fights());
+    }
+
+    @Test
+    void neverAppliesAFightTwiceToTheSamePlayer() {
+        EloRatings ratings = new EloRatings(32);
+        ratings.put("alex", 1050, 3, 10);
+
+        // A rebuild that overlapped the tail replays fight #10 for alex, but steve has not seen it
+        ratings.apply(10, List.of("alex"), List.of("steve"));
+
+        assertEquals(1050, ratings.get("alex").value, DELTA);
+        assertEquals(3, ratings.get("alex").games);
+        assertFalse(ratings.get("alex").changed);
+        assertEquals(1, ratings.get("steve").games);
+        assertEquals(1, ratings.fights());
+
+        // Replayed again, nobody moves and it is not counted
+        assertFalse(ratings.apply(10, List.of("alex"), List.of("steve")));
+        assertEquals(1, ratings.fights());
+        assertEquals(0, ratings.skipped());
+    }
+}
@@ -0,0 +1,63 @@
+package com.smp.stats;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class RankIndexTest {
+
+    private static final UUID ALEX = UUID.fromString("00000000-0000-0000-0000-00000000a1e8");
+    private static final UUID STEVE = UUID.fromString("00000000-0000-0000-0000-000000057e7e");
+
+    @Test
+    void aRenameKeepsThePlayersSlot() {
+        RankIndex index = seeded(new RankIndex.Totals(ALEX, "Alex", 5, 1, 2.0));
+
+        index.track(ALEX, "Alexandra");
+        index.recordKill(ALEX, "Alexandra");
+
+        assertEquals(1, index.players());
+        assertEquals(6, index.value(RankIndex.Metric.KILLS, "alexandra"));
+        assertEquals("Alexandra", index.name("ALEXANDRA"));
+        assertEquals(0, index.rank(RankIndex.Metric.KILLS, "Alex"));
+        assertNull(index.view(10).player("Alex"));
+    }
+
+    @Test
+    void playersSharingANameStayApart() {
+        RankIndex index = seeded(new RankIndex.Totals(ALEX, "Sam", 5, 0, 0),
+                new RankIndex.Totals(STEVE, "sam", 2, 0, 0));
+
+        assertEquals(2, index.players());
+        index.track(ALEX, "Sam");
+        assertEquals(5, index.value(RankIndex.Metric.KILLS, "sam"));
+        index.track(STEVE, "sam");
+        assertEquals(2, index.value(RankIndex.Metric.KILLS, "Sam"));
+        assertEquals(2, index.view(10).player("SAM").kills());
+        assertEquals(2, index.view(10).byUuid().size());
+    }
+
+    @Test
+    void aLegacyRowIsFoldedIntoItsOwnerOnJoin() {
+        UUID legacy = PlayerStatsSchema.offlineUuid("Steve");
+        RankIndex index = seeded(new RankIndex.Totals(legacy, "Steve", 4, 2, 1.5),
+                new RankIndex.Totals(STEVE, "Steve", 1, 0, 0));
+
+        index.track(STEVE, "Steve");
+
+        assertEquals(1, index.players());
+        assertEquals(5, index.value(RankIndex.Metric.KILLS, "steve"));
+        assertEquals(1.5, index.value(RankIndex.Metric.PLAYTIME, "steve"));
+        assertEquals(List.of(STEVE), List.copyOf(index.view(10).byUuid().keySet()));
+    }
+
+    private static RankIndex seeded(RankIndex.Totals... totals) {
+        RankIndex index = new RankIndex(null);
+        index.seed(List.of(totals));
+        return index;
+    }
+}
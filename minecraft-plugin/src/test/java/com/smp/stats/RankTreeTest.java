@@ -0,0 +1,116 @@
+package com.smp.stats;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RankTreeTest {
+
+    @Test
+    void ordersByScoreThenSlot() {
+        RankTree tree = new RankTree(4);
+        tree.set(1, 10);
+        tree.set(2, 30);
+        tree.set(3, 20);
+        tree.set(4, 30);
+
+        assertEquals(List.of(2, 4, 3, 1), top(tree, 10));
+        assertEquals(2, tree.select(0));
+        assertEquals(1, tree.select(3));
+        assertEquals(0, tree.select(4));
+        assertEquals(0, tree.select(-1));
+    }
+
+    @Test
+    void tiedScoresShareACompetitionRank() {
+        RankTree tree = new RankTree(4);
+        tree.set(1, 10);
+        tree.set(2, 30);
+        tree.set(3, 20);
+        tree.set(4, 30);
+
+        assertEquals(1, tree.rank(2));
+        assertEquals(1, tree.rank(4));
+        assertEquals(3, tree.rank(3));
+        assertEquals(4, tree.rank(1));
+        assertEquals(0, tree.rank(5));
+        assertEquals(2, tree.countAbove(20));
+        assertEquals(0, tree.countAbove(30));
+    }
+
+    @Test
+    void movesAndRemovesSlots() {
+        RankTree tree = new RankTree(4);
+        tree.set(1, 10);
+        tree.set(2, 20);
+        tree.set(3, 30);
+
+        tree.set(1, 40);
+        assertEquals(List.of(1, 3, 2), top(tree, 10));
+        assertEquals(3, tree.size());
+
+        tree.remove(3);
+        tree.remove(3);
+        assertFalse(tree.contains(3));
+        assertEquals(List.of(1, 2), top(tree, 10));
+        assertEquals(2, tree.size());
+        assertEquals(List.of(1), top(tree, 1));
+    }
+
+    @Test
+    void growsPastItsInitialCapacity() {
+        RankTree tree = new RankTree(1);
+        tree.set(1000, 5);
+        tree.set(3, 7);
+
+        assertTrue(tree.contains(1000));
+        assertEquals(List.of(3, 1000), top(tree, 10));
+        assertThrows(IllegalArgumentException.class, () -> tree.set(0, 1));
+    }
+
+    @Test
+    void agreesWithASortedListUnderRandomUpdates() {
+        RankTree tree = new RankTree(16);
+        Map<Integer, Double> scores = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 5000; i++) {
+            int slot = 1 + random.nextInt(300);
+            if (random.nextInt(5) == 0) {
+                tree.remove(slot);
+                scores.remove(slot);
+            } else {
+                // Few distinct scores, so ties are common
+                double score = random.nextInt(50);
+                tree.set(slot, score);
+                scores.put(slot, score);
+            }
+        }
+
+        List<Integer> expected = new ArrayList<>(scores.keySet());
+        expected.sort(Comparator.comparing((Integer slot) -> scores.get(slot)).reversed()
+                .thenComparing(Comparator.naturalOrder()));
+        assertEquals(expected, top(tree, Integer.MAX_VALUE));
+        for (int i = 0; i < expected.size(); i++) {
+            int slot = expected.get(i);
+            assertEquals(slot, tree.select(i));
+            long higher = scores.values().stream().filter(score -> score > scores.get(slot)).count();
+            assertEquals(higher + 1, tree.rank(slot));
+        }
+    }
+
+    private static List<Integer> top(RankTree tree, int limit) {
+        List<Integer> slots = new ArrayList<>();
+        tree.forEachTop(limit, slots::add);
+        return slots;
+    }
+}
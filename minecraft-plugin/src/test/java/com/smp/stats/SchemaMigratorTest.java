@@ -0,0 +1,242 @@
+package com.smp.stats;
+
+import com.smp.common.db.ConnectionPool;
+import com.smp.common.db.PoolSettings;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SchemaMigratorTest {
+
+    private static final Logger LOGGER = Logger.getLogger("SchemaMigratorTest");
+
+    @Test
+    void rejectsVersionsAddedOutOfOrder() {
+        SchemaMigrator migrator = new SchemaMigrator(null, LOGGER, 0);
+        migrator.add(1, "one", pool -> { }).add(3, "three", pool -> { });
+
+        assertThrows(IllegalArgumentException.class, () -> migrator.add(2, "two", pool -> { }));
+        assertThrows(IllegalArgumentException.class, () -> migrator.add(3, "three again", pool -> { }));
+    }
+
+    @Test
+    void appliesOnlyPendingMigrationsInVersionOrder() throws Exception {
+        try (FakeDatabase db = new FakeDatabase(1)) {
+            List<Integer> ran = Collections.synchronizedList(new ArrayList<>());
+            SchemaMigrator migrator = new SchemaMigrator(db.pool, LOGGER, 10);
+            migrator.add(1, "one", pool -> ran.add(1))
+                    .add(2, "two", pool -> ran.add(2))
+                    .add(5, "five", pool -> ran.add(5));
+
+            run(migrator);
+
+            assertEquals(List.of(2, 5), ran);
+            assertEquals(List.of(1, 2, 5), db.applied);
+            assertEquals(List.of("Schema: version 5 of 5"), migrator.describeMetrics());
+            assertEquals(0, db.locksHeld.get());
+        }
+    }
+
+    @Test
+    void resumesAtTheStepThatFailed() throws Exception {
+        try (FakeDatabase db = new FakeDatabase()) {
+            List<Integer> ran = Collections.synchronizedList(new ArrayList<>());
+            AtomicInteger failures = new AtomicInteger();
+            SchemaMigrator migrator = new SchemaMigrator(db.pool, LOGGER, 10);
+            migrator.add(1, "one", pool -> ran.add(1))
+                    .add(2, "two", pool -> {
+                        ran.add(2);
+                        if (failures.getAndIncrement() == 0) {
+                            throw new SQLException("Lock wait timeout exceeded");
+                        }
+                    })
+                    .add(3, "three", pool -> ran.add(3));
+
+            run(migrator);
+
+            assertEquals(List.of(1, 2, 2, 3), ran);
+            assertEquals(List.of(1, 2, 3), db.applied);
+            assertEquals(0, db.locksHeld.get());
+        }
+    }
+
+    private static void run(SchemaMigrator migrator) throws InterruptedException {
+        migrator.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!migrator.isComplete() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        migrator.close();
+        assertTrue(migrator.isComplete(), "migrations did not finish");
+    }
+
+    /**
+     * Just enough of a JDBC driver for the statements SchemaMigrator runs:
+     * the named lock, schema_migrations and its MAX(version).
+     */
+    private static final class FakeDatabase implements AutoCloseable {
+
+        final List<Integer> applied = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger locksHeld = new AtomicInteger();
+        final ConnectionPool pool;
+        private final Driver driver;
+
+        FakeDatabase(Integer... alreadyApplied) throws SQLException {
+            Collections.addAll(applied, alreadyApplied);
+            String url = "jdbc:fake-migrations:" + UUID.randomUUID();
+            driver = new FakeDriver(url);
+            DriverManager.registerDriver(driver);
+            pool = new ConnectionPool("SchemaMigratorTest", new PoolSettings(url, "", "", 2, 1000, 60_000, 60_000, 8),
+                    LOGGER);
+        }
+
+        @Override
+        public void close() throws SQLException {
+            pool.close();
+            DriverManager.deregisterDriver(driver);
+        }
+
+        private Connection connection() {
+            return proxy(Connection.class, (self, method, args) -> switch (method.getName()) {
+                case "prepareStatement" -> statement(PreparedStatement.class, (String) args[0]);
+                case "createStatement" -> statement(Statement.class, null);
+                case "getAutoCommit", "isValid" -> true;
+                default -> defaultValue(method.getReturnType());
+            });
+        }
+
+        private <T extends Statement> T statement(Class<T> type, String prepared) {
+            Object[] params = new Object[4];
+            return proxy(type, (self, method, args) -> {
+                switch (method.getName()) {
+                    case "setString", "setInt" -> params[(Integer) args[0]] = args[1];
+                    case "execute" -> {
+                        return false;
+                    }
+                    case "executeQuery" -> {
+                        return resultSet(query(prepared != null ? prepared : (String) args[0]));
+                    }
+                    case "executeUpdate" -> {
+                        if (prepared.startsWith("INSERT INTO schema_migrations")) {
+                            applied.add((Integer) params[1]);
+                        }
+                        return 1;
+                    }
+                    default -> {
+                        return defaultValue(method.getReturnType());
+                    }
+                }
+                return null;
+            });
+        }
+
+        private int query(String sql) {
+            if (sql.startsWith("SELECT GET_LOCK")) {
+                locksHeld.incrementAndGet();
+                return 1;
+            }
+            if (sql.startsWith("SELECT RELEASE_LOCK")) {
+                locksHeld.decrementAndGet();
+                return 1;
+            }
+            if (sql.contains("MAX(version)")) {
+                synchronized (applied) {
+                    return applied.stream().mapToInt(Integer::intValue).max().orElse(0);
+                }
+            }
+            throw new IllegalArgumentException("Unexpected query " + sql);
+        }
+
+        private static ResultSet resultSet(int value) {
+            boolean[] read = new boolean[1];
+            return proxy(ResultSet.class, (self, method, args) -> switch (method.getName()) {
+                case "next" -> {
+                    boolean first = !read[0];
+                    read[0] = true;
+                    yield first;
+                }
+                case "getInt" -> value;
+                default -> defaultValue(method.getReturnType());
+            });
+        }
+
+        private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+            return type.cast(Proxy.newProxyInstance(SchemaMigratorTest.class.getClassLoader(), new Class<?>[] {type},
+                    handler));
+        }
+
+        private static Object defaultValue(Class<?> type) {
+            if (type == boolean.class) {
+                return false;
+            }
+            if (type == int.class || type == long.class) {
+                return type == int.class ? (Object) 0 : (Object) 0L;
+            }
+            return null;
+        }
+
+        private final class FakeDriver implements Driver {
+
+            private final String url;
+
+            FakeDriver(String url) {
+                this.url = url;
+            }
+
+            @Override
+            public Connection connect(String url, Properties info) {
+                return acceptsURL(url) ? connection() : null;
+            }
+
+            @Override
+            public boolean acceptsURL(String url) {
+                return this.url.equals(url);
+            }
+
+            @Override
+            public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+                return new DriverPropertyInfo[0];
+            }
+
+            @Override
+            public int getMajorVersion() {
+                return 1;
+            }
+
+            @Override
+            public int getMinorVersion() {
+                return 0;
+            }
+
+            @Override
+            public boolean jdbcCompliant() {
+                return false;
+            }
+
+            @Override
+            public Logger getParentLogger() {
+                return LOGGER;
+            }
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.smp.stats;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StatJournalTest {
+
+    private static final Logger LOGGER = Logger.getLogger("StatJournalTest");
+    private static final UUID ALEX = UUID.fromString("00000000-0000-0000-0000-00000000a1e8");
+    private static final UUID STEVE = UUID.fromString("00000000-0000-0000-0000-000000057e7e");
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void replaysRecordsFromThePreviousRunInOrder() throws IOException {
+        String id;
+        try (StatJournal journal = open()) {
+            id = journal.id();
+            assertEquals(1, journal.append(StatJournal.Type.KILL, ALEX, "Alex", 1));
+            assertEquals(2, journal.append(StatJournal.Type.DEATH, STEVE, "Steve", 1));
+            assertEquals(3, journal.append(StatJournal.Type.PLAYTIME, ALEX, "Alex", 60_000));
+        }
+
+        try (StatJournal journal = open()) {
+            assertEquals(id, journal.id());
+            List<StatJournal.Entry> entries = journal.recover(0);
+            assertEquals(List.of(
+                    new StatJournal.Entry(1, StatJournal.Type.KILL, ALEX, "Alex", 1),
+                    new StatJournal.Entry(2, StatJournal.Type.DEATH, STEVE, "Steve", 1),
+                    new StatJournal.Entry(3, StatJournal.Type.PLAYTIME, ALEX, "Alex", 60_000)), entries);
+            assertEquals(List.of(3L), seqs(journal.recover(2)));
+            // Sequence numbers carry on from the last run
+            assertEquals(4, journal.append(StatJournal.Type.KILL, STEVE, "Steve", 1));
+        }
+    }
+
+    @Test
+    void stopsAtARecordWithABadChecksum() throws IOException {
+        try (StatJournal journal = open()) {
+            journal.append(StatJournal.Type.KILL, ALEX, "Alex", 1);
+            journal.append(StatJournal.Type.KILL, STEVE, "Steve", 1);
+            journal.append(StatJournal.Type.KILL, ALEX, "Alex", 1);
+        }
+        Path segment = onlySegment();
+        byte[] bytes = Files.readAllBytes(segment);
+        // Flip a bit in the second record's name; the first record is 35 header + 4 name + 4 CRC bytes
+        bytes[43 + 35] ^= 1;
+        Files.write(segment, bytes);
+
+        try (StatJournal journal = open()) {
+            assertEquals(List.of(1L), seqs(journal.recover(0)));
+        }
+    }
+
+    @Test
+    void skipsARecordTornByACrash() throws IOException {
+        try (StatJournal journal = open()) {
+            journal.append(StatJournal.Type.KILL, ALEX, "Alex", 1);
+            journal.append(StatJournal.Type.DEATH, ALEX, "Alex", 1);
+        }
+        Path segment = onlySegment();
+        byte[] bytes = Files.readAllBytes(segment);
+        Files.write(segment, Arrays.copyOf(bytes, bytes.length - 3));
+
+        try (StatJournal journal = open()) {
+            assertEquals(List.of(1L), seqs(journal.recover(0)));
+            assertEquals(3, journal.append(StatJournal.Type.KILL, ALEX, "Alex", 1));
+        }
+    }
+
+    @Test
+    void deletesAcknowledgedSegmentsButKeepsTheSequence() throws IOException {
+        try (StatJournal journal = open()) {
+            journal.append(StatJournal.Type.KILL, ALEX, "Alex", 1);
+            journal.append(StatJournal.Type.KILL, ALEX, "Alex", 1);
+            journal.acknowledge(2);
+            assertEquals(0, journal.unacknowledged());
+        }
+        assertTrue(segments().isEmpty(), "acknowledged segments should be deleted on close");
+
+        try (StatJournal journal = open()) {
+            assertTrue(journal.recover(0).isEmpty());
+            assertEquals(3, journal.append(StatJournal.Type.KILL, ALEX, "Alex", 1));
+        }
+    }
+
+    @Test
+    void awaitSyncedWakesTheSyncerInsteadOfWaitingOutTheInterval() throws Exception {
+        try (StatJournal journal = new StatJournal(dir, 1 << 20, 60_000, LOGGER)) {
+            long seq = journal.append(StatJournal.Type.KILL, ALEX, "Alex", 1);
+            assertTrue(journal.awaitSynced(seq, 5000));
+            assertEquals(List.of(1L), seqs(readBack()));
+            assertFalse(journal.awaitSynced(seq + 1, 50), "a sequence never handed out is never synced");
+        }
+    }
+
+    private StatJournal open() throws IOException {
+        return new StatJournal(dir, 1 << 20, 10, LOGGER);
+    }
+
+    /** Records on disk right now, read by a second journal over a copy of the directory. */
+    private List<StatJournal.Entry> readBack() throws IOException {
+        Path copy = Files.createDirectories(dir.resolve("copy"));
+        for (Path segment : segments()) {
+            Files.copy(segment, copy.resolve(segment.getFileName()));
+        }
+        try (StatJournal journal = new StatJournal(copy, 1 << 20, 10, LOGGER)) {
+            return journal.recover(0);
+        }
+    }
+
+    private Path onlySegment() throws IOException {
+        List<Path> segments = segments();
+        assertEquals(1, segments.size());
+        return segments.get(0);
+    }
+
+    private List<Path> segments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "segment-*.log")) {
+            for (Path path : stream) {
+                if (Files.size(path) > 0) {
+                    segments.add(path);
+                }
+            }
+        }
+        return segments;
+    }
+
+    private static List<Long> seqs(List<StatJournal.Entry> entries) {
+        List<Long> seqs = new ArrayList<>();
+        for (StatJournal.Entry entry : entries) {
+            seqs.add(entry.seq());
+        }
+        return seqs;
+    }
+}